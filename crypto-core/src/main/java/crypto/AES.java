@@ -3,8 +3,9 @@ package crypto;
 import javax.crypto.*;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
 import java.security.*;
+import java.util.Arrays;
 
 /**
  * Class that encrypts using AES, supports CBC+HMAC and GCM modes
@@ -31,9 +32,29 @@ public class AES {
     public static final int CBC_IV_LENGTH = 16;
     public static final int GCM_IV_LENGTH = 12;
 
+    /**
+     * GCM authentication tag length, the JCE only supports tags up to 128 bits.
+     */
+    public static final int GCM_TAG_LENGTH_BITS = 128;
+
     public static final String AES_CBC_CIPHER_LBL = "AES/CBC/PKCS5Padding";
     public static final String AES_GCM_CIPHER_LBL = "AES/GCM/NoPadding";
 
+    /**
+     * Used by {@link AesEngine} to decrypt CBC messages without allocating, the PKCS5 padding is removed by hand.
+     */
+    static final String AES_CBC_NO_PADDING_CIPHER_LBL = "AES/CBC/NoPadding";
+
+    /**
+     * Nonce length of {@link #encryptSIV(byte, Key.ExpandedKey, byte[])}, deterministic SIV messages have no nonce.
+     */
+    public static final int SIV_NONCE_LENGTH = 16;
+
+    /**
+     * Large inputs are encrypted and mac'ed in chunks of this size, small enough to stay in the CPU cache between the two.
+     */
+    static final int CHUNK_SIZE = 16 * 1024;
+
     public static final byte[] encryptCBC(Key.ExpandedKey key, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
         return encryptCBC((byte) 0, key, txt);
     }
@@ -63,7 +84,7 @@ public class AES {
     /**
      *
      * This method allows to pass in a custom cipher provider.
-     * By default please use {@link #encryptCBC(byte, Key.ExpandedKey, byte[])} which will use the default JCE provider.
+     * By default please use {@link #encryptCBC(byte, Key.ExpandedKey, byte[])}, which uses the backend selected by {@link CryptoBackends}.
      * @param version any custom version you want to add to the output array
      * @param key the key to use
      * @param txt the text to encrypt
@@ -78,49 +99,212 @@ public class AES {
      * @throws NoSuchProviderException
      */
     public static final byte[] encryptCBC(byte version, String cipherProviderName, Key.ExpandedKey key, byte[] txt) throws NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchPaddingException, NoSuchProviderException {
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        CryptoEvents.CipherEvent event = CryptoEvents.beginEncrypt();
+        long start = metrics == null ? 0 : System.nanoTime();
+        Throwable failure = null;
+
+        try {
+            if (cipherProviderName == null) {
+                return CryptoBackends.get(CryptoBackend.Mode.CBC, key.keySize).encryptCBC(version, key, txt);
+            }
+
+            Cipher cipher = Cipher.getInstance(AES_CBC_CIPHER_LBL, cipherProviderName);
+
+            // HMAC output length:
+            // 128 bits => 16
+            // 256 bits => 32
+            // 512 bits => 64
+            return encryptCBC(version, cipher, key.encKeySpec(), key.hmac(), null, txt);
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (metrics != null || event != null) {
+                record(metrics, event, CryptoMetrics.Operation.ENCRYPT, CryptoMetrics.Mode.CBC, key.keySize, metricsProvider(CryptoBackend.Mode.CBC, key.keySize, cipherProviderName), txt.length, start, failure);
+            }
+        }
+    }
+
+    /**
+     * Performs a AES CBC encryption with HMAC where the HMAC also covers the associated data aad.
+     * The aad is authenticated but not encrypted and not part of the message, the same aad must be passed to
+     * {@link #decryptCBC(byte, Key.ExpandedKey, byte[], byte[])}.
+     * The hmac is calculated over [ aad-len:8-bytes, aad, iv, encrypted-text ], a null or empty aad gives the same message as
+     * {@link #encryptCBC(byte, Key.ExpandedKey, byte[])}.
+     * <p>
+     * Runs on the default JCE provider with the ciphers kept by the key.
+     *
+     * @param version any custom version you want to add to the output array
+     * @param key the key to use
+     * @param aad the associated data, e.g. routing headers, may be null
+     * @param txt the text to encrypt
+     * @return the encrypted byte array
+     */
+    public static final byte[] encryptCBC(byte version, Key.ExpandedKey key, byte[] aad, byte[] txt) throws NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchPaddingException {
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        CryptoEvents.CipherEvent event = CryptoEvents.beginEncrypt();
+        long start = metrics == null ? 0 : System.nanoTime();
+        Throwable failure = null;
+
+        try {
+            return encryptCBC(version, key.cbcCipher(), key.encKeySpec(), key.hmac(), wrap(aad), txt);
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (metrics != null || event != null) {
+                record(metrics, event, CryptoMetrics.Operation.ENCRYPT, CryptoMetrics.Mode.CBC, key.keySize, CryptoBackends.JCE.name(), txt.length, start, failure);
+            }
+        }
+    }
+
+    /**
+     * Encrypts with an already created cipher and an already initialised hmac.
+     * The cipher is re-initialised with a new iv, the hmac is left in its initialised state so that both can be reused.
+     */
+    static final byte[] encryptCBC(byte version, Cipher cipher, SecretKey encKey, Mac hmac, ByteBuffer aad, byte[] txt) throws InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        byte[] output = new byte[outputSizeCBC(hmac.getMacLength(), txt.length)];
 
-        byte[] iv = new byte[CBC_IV_LENGTH];
-        Random.nextBytes(iv);
+        try {
+            encryptCBC(version, cipher, encKey, hmac, new byte[CBC_IV_LENGTH], aad, txt, 0, txt.length, output, 0);
+        } catch (ShortBufferException e) {
+            // the output is sized with outputSizeCBC, this can only happen if the size calculation is wrong
+            throw new RuntimeException(e);
+        }
 
-        Cipher cipher = cipherProviderName == null ? Cipher.getInstance(AES_CBC_CIPHER_LBL) : Cipher.getInstance(AES_CBC_CIPHER_LBL, cipherProviderName);
+        return output;
+    }
 
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key.encKey, "AES"), new IvParameterSpec(iv));
-        byte[] cipherText = cipher.doFinal(txt);
+    /**
+     * Encrypts src[off:off+len] and writes the message to dst starting at dstOff, src and dst must not overlap.
+     * The cipher text and the hmac are written directly into dst, no intermediate buffers are used.
+     *
+     * @param iv a CBC_IV_LENGTH scratch array that is filled with the random iv
+     * @return the number of bytes written to dst
+     */
+    static final int encryptCBC(byte version, Cipher cipher, SecretKey encKey, Mac hmac, byte[] iv, ByteBuffer aad, byte[] src, int off, int len, byte[] dst, int dstOff) throws InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+        NonceSource.THREAD_LOCAL_RANDOM.nextNonce(iv);
+        return encryptCBC(version, cipher, encKey, hmac, iv, 0, aad, src, off, len, dst, dstOff);
+    }
 
+    /**
+     * Same as {@link #encryptCBC(byte, Cipher, SecretKey, Mac, byte[], ByteBuffer, byte[], int, int, byte[], int)} but uses the
+     * already random iv in ivs[ivOff:ivOff+CBC_IV_LENGTH], so that the ivs for many messages can be filled in one call.
+     */
+    static final int encryptCBC(byte version, Cipher cipher, SecretKey encKey, Mac hmac, byte[] ivs, int ivOff, ByteBuffer aad, byte[] src, int off, int len, byte[] dst, int dstOff) throws InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, ShortBufferException {
 
         // HMAC output length:
         // 128 bits => 16
         // 256 bits => 32
         // 512 bits => 64
-        SecretKey macKey = new SecretKeySpec(key.authKey, key.keySize.hmacLbl());
-        Mac hmac = Mac.getInstance(key.keySize.hmacLbl());
-        hmac.init(macKey);
+        int macLength = hmac.getMacLength();
+
+        if (macLength > Byte.MAX_VALUE) {
+            throw new RuntimeException("Mac length " + macLength + " is bigger than allowed range: " + Byte.MAX_VALUE);
+        }
+
+        if (dst.length - dstOff < outputSizeCBC(macLength, len)) {
+            throw new ShortBufferException("Output buffer requires " + outputSizeCBC(macLength, len) + " bytes");
+        }
+
+        int i = dstOff;
+
+        dst[i++] = version;
+        dst[i++] = (byte) CBC_IV_LENGTH;
+        System.arraycopy(ivs, ivOff, dst, i, CBC_IV_LENGTH);
+        i += CBC_IV_LENGTH;
+
+        dst[i++] = (byte) macLength;
+
+        int macPos = i;
+        int cipherTextPos = macPos + macLength;
+
+        cipher.init(Cipher.ENCRYPT_MODE, encKey, new IvParameterSpec(ivs, ivOff, CBC_IV_LENGTH));
+        updateAAD(hmac, aad);
+        hmac.update(ivs, ivOff, CBC_IV_LENGTH);
+
+        // encrypt and mac chunk by chunk so that the cipher text is still in the cache when it is mac'ed
+        int cipherTextLen = 0;
+        int end = off + len;
+
+        while (end - off > CHUNK_SIZE) {
+            int n = cipher.update(src, off, CHUNK_SIZE, dst, cipherTextPos + cipherTextLen);
+            hmac.update(dst, cipherTextPos + cipherTextLen, n);
+
+            off += CHUNK_SIZE;
+            cipherTextLen += n;
+        }
+
+        int n = cipher.doFinal(src, off, end - off, dst, cipherTextPos + cipherTextLen);
+        hmac.update(dst, cipherTextPos + cipherTextLen, n);
+        cipherTextLen += n;
+
+        hmac.doFinal(dst, macPos);
+
+        return cipherTextPos + cipherTextLen - dstOff;
+    }
+
+    /**
+     * ByteBuffer version of {@link #encryptCBC(byte, Cipher, SecretKey, Mac, byte[], ByteBuffer, byte[], int, int, byte[], int)}.
+     * Reads the remaining bytes of src and writes the message at the position of dst, both positions are moved forward.
+     *
+     * @param mac a scratch array of at least the hmac length
+     */
+    static final int encryptCBC(byte version, Cipher cipher, SecretKey encKey, Mac hmac, byte[] iv, byte[] mac, ByteBuffer aad, ByteBuffer src, ByteBuffer dst) throws InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+
+        int macLength = hmac.getMacLength();
+
+        if (macLength > Byte.MAX_VALUE) {
+            throw new RuntimeException("Mac length " + macLength + " is bigger than allowed range: " + Byte.MAX_VALUE);
+        }
+
+        if (dst.remaining() < outputSizeCBC(macLength, src.remaining())) {
+            throw new ShortBufferException("Output buffer requires " + outputSizeCBC(macLength, src.remaining()) + " bytes");
+        }
+
+        NonceSource.THREAD_LOCAL_RANDOM.nextNonce(iv);
+
+        int start = dst.position();
+
+        dst.put(version);
+        dst.put((byte) iv.length);
+        dst.put(iv);
+        dst.put((byte) macLength);
+
+        int macPos = dst.position();
+        int cipherTextPos = macPos + macLength;
+        Buffers.position(dst, cipherTextPos);
+
+        cipher.init(Cipher.ENCRYPT_MODE, encKey, new IvParameterSpec(iv));
+        updateAAD(hmac, aad);
         hmac.update(iv);
-        hmac.update(cipherText);
 
-        byte[] mac = hmac.doFinal();
+        int srcLimit = src.limit();
 
-        byte[] output = new byte[1 + 1 + iv.length + 1 + mac.length + cipherText.length];
-        int i = 0;
+        while (src.remaining() > CHUNK_SIZE) {
+            int chunkPos = dst.position();
 
-        output[i++] = version;
-        output[i++] = (byte) iv.length;
-        System.arraycopy(iv, 0, output, i, iv.length);
-        i += iv.length;
+            Buffers.limit(src, src.position() + CHUNK_SIZE);
+            cipher.update(src, dst);
+            Buffers.limit(src, srcLimit);
 
-        if (mac.length > Byte.MAX_VALUE) {
-            throw new RuntimeException("Mac length " + mac.length + " is bigger than allowed range: " + Byte.MAX_VALUE);
+            Buffers.update(hmac, dst, chunkPos, dst.position());
         }
 
-        output[i++] = (byte) mac.length;
+        int chunkPos = dst.position();
+        cipher.doFinal(src, dst);
 
-        System.arraycopy(mac, 0, output, i, mac.length);
-        i += mac.length;
+        int end = dst.position();
 
-        System.arraycopy(cipherText, 0, output, i, cipherText.length);
+        Buffers.update(hmac, dst, chunkPos, end);
+        hmac.doFinal(mac, 0);
 
-        return output;
+        Buffers.position(dst, macPos);
+        dst.put(mac, 0, macLength);
+        Buffers.position(dst, end);
 
+        return end - start;
     }
 
     public static final byte[] decryptCBC(Key.ExpandedKey key, byte[] encryptedMessage) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException {
@@ -151,10 +335,10 @@ public class AES {
 
     /**
      * This method allows to pass in a custom cipher.
-     * By default please use {@link #decryptCBC(byte, Key.ExpandedKey, byte[])}} which will use the default JCE provider.
+     * By default please use {@link #decryptCBC(byte, Key.ExpandedKey, byte[])}}, which uses the backend selected by {@link CryptoBackends}.
      *
      * @param version any custom version you want to add to the output array
-     * @param cipherProvider a JCE encryption provider
+     * @param cipherProvider a JCE encryption provider, null to use the backend selected by {@link CryptoBackends}
      * @param key the key used to encrypt the data
      * @param encryptedMessage the encrypted data
      * @return the decrypted data
@@ -167,209 +351,1540 @@ public class AES {
      * @throws NoSuchProviderException
      */
     public static final byte[] decryptCBC(byte version, String cipherProvider, Key.ExpandedKey key, byte[] encryptedMessage) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException {
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        CryptoEvents.CipherEvent event = CryptoEvents.beginDecrypt();
+        long start = metrics == null ? 0 : System.nanoTime();
+        Throwable failure = null;
 
-        int i = 0;
-        int cipherVersion = encryptedMessage[i++];
-        if (cipherVersion != version) {
-            throw new RuntimeException("Version " + version + " was expected but the cipher message has " + cipherVersion);
-        }
+        try {
+            if (cipherProvider == null) {
+                return CryptoBackends.get(CryptoBackend.Mode.CBC, key.keySize).decryptCBC(version, key, encryptedMessage);
+            }
 
-        int ivLength = encryptedMessage[i++];
+            Cipher cipher = Cipher.getInstance(AES_CBC_CIPHER_LBL, cipherProvider);
 
-        if (ivLength != CBC_IV_LENGTH) { // check input parameter
-            throw new IllegalArgumentException("invalid iv length");
+            return decryptCBC(version, cipher, key.encKeySpec(), key.hmac(), key.keySize, null, encryptedMessage);
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (metrics != null || event != null) {
+                record(metrics, event, CryptoMetrics.Operation.DECRYPT, CryptoMetrics.Mode.CBC, key.keySize, metricsProvider(CryptoBackend.Mode.CBC, key.keySize, cipherProvider), encryptedMessage.length, start, failure);
+            }
         }
+    }
 
-        int ivPos = i;
-        i += ivLength;
-
-        int macLength = encryptedMessage[i++];
+    /**
+     * Decrypts a message from {@link #encryptCBC(byte, Key.ExpandedKey, byte[], byte[])}.
+     *
+     * @param aad the associated data the message was encrypted with, may be null
+     * @throws SecurityException if the message or the aad could not be authenticated
+     */
+    public static final byte[] decryptCBC(byte version, Key.ExpandedKey key, byte[] aad, byte[] encryptedMessage) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException {
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        CryptoEvents.CipherEvent event = CryptoEvents.beginDecrypt();
+        long start = metrics == null ? 0 : System.nanoTime();
+        Throwable failure = null;
 
-        if (macLength != key.keySize.getHMacSizeBytes()) { // check input parameter
-            throw new IllegalArgumentException("invalid mac length");
+        try {
+            return decryptCBC(version, key.cbcCipher(), key.encKeySpec(), key.hmac(), key.keySize, wrap(aad), encryptedMessage);
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (metrics != null || event != null) {
+                record(metrics, event, CryptoMetrics.Operation.DECRYPT, CryptoMetrics.Mode.CBC, key.keySize, CryptoBackends.JCE.name(), encryptedMessage.length, start, failure);
+            }
         }
+    }
 
-        int macPos = i;
-        i += macLength;
-
-        byte[] mac = new byte[macLength];
-        System.arraycopy(encryptedMessage, macPos, mac, 0, macLength);
+    /**
+     * Decrypts with an already created cipher and an already initialised hmac, see {@link #encryptCBC(byte, Cipher, SecretKey, Mac, ByteBuffer, byte[])}.
+     */
+    static final byte[] decryptCBC(byte version, Cipher cipher, SecretKey encKey, Mac hmac, Key.KeySize keySize, ByteBuffer aad, byte[] encryptedMessage) throws InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException {
 
-        int cipherTextPos = i;
+        int cipherTextPos = checkCBCHeader(version, keySize, encryptedMessage, 0, encryptedMessage.length);
         int cipherTextLen = encryptedMessage.length - cipherTextPos;
 
-        // Before we decrypt we must validate the HMAC
-        SecretKey macKey = new SecretKeySpec(key.authKey, key.keySize.hmacLbl());
-        Mac hmac = Mac.getInstance(key.keySize.hmacLbl());
-        hmac.init(macKey);
-        hmac.update(encryptedMessage, ivPos, ivLength);
-        hmac.update(encryptedMessage, cipherTextPos, cipherTextLen);
+        if (cipherTextLen > CHUNK_SIZE) {
+            cipher.init(Cipher.DECRYPT_MODE, encKey, new IvParameterSpec(encryptedMessage, 2, CBC_IV_LENGTH));
 
-        byte[] refMac = hmac.doFinal();
+            byte[] output = new byte[cipherTextLen];
+            int n;
+            try {
+                n = verifyAndDecryptCBC(cipher, hmac, new byte[hmac.getMacLength()], aad, encryptedMessage, 0, cipherTextPos, encryptedMessage.length, output, 0);
+            } catch (ShortBufferException e) {
+                // the output has the cipher text length, this can only happen if the size calculation is wrong
+                throw new RuntimeException(e);
+            }
 
-        // Important, we must use a constant time equals method like MessageDigest
-        // to avoid side channel attacks.
-        if (!MessageDigest.isEqual(refMac, mac)) {
-            throw new SecurityException("could not authenticate");
+            return Arrays.copyOf(output, n);
         }
 
-        Cipher cipher = cipherProvider == null ? Cipher.getInstance(AES_CBC_CIPHER_LBL) : Cipher.getInstance(AES_CBC_CIPHER_LBL, cipherProvider);
-        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key.encKey, "AES"), new IvParameterSpec(encryptedMessage, ivPos, ivLength));
-        return cipher.doFinal(encryptedMessage, cipherTextPos, cipherTextLen);
-    }
+        // Before we decrypt we must validate the HMAC
+        verifyCBC(hmac, new byte[hmac.getMacLength()], aad, encryptedMessage, 0, cipherTextPos, encryptedMessage.length);
 
-    public static final byte[] encryptGCM(Key.ExpandedKey key, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
-        return encryptGCM((byte) 0, key, txt);
+        cipher.init(Cipher.DECRYPT_MODE, encKey, new IvParameterSpec(encryptedMessage, 2, CBC_IV_LENGTH));
+        return cipher.doFinal(encryptedMessage, cipherTextPos, cipherTextLen);
     }
 
     /**
-     * Encryp a AES GCM message encrypted with {@link #encryptGCM}
-     * The output message is:
+     * Macs and decrypts the cipher text in src[cipherTextPos:end] chunk by chunk, so that each chunk is read from memory
+     * once and is still in the cache when it is decrypted. Used for cipher texts larger than CHUNK_SIZE,
+     * smaller ones fit in the cache and are verified before they are decrypted.
      * <p>
-     * [ version:byte, iv-len:byte, iv:byte-array[iv-len], encrypted-text:byte-array ]
+     * The plain text is written to dst before the mac is checked. If the mac does not match, the plain text written so far
+     * is zeroed before the SecurityException is thrown. The final block, and with it the padding, is only decrypted
+     * after the mac matched.
      *
-     * @param version any custom version you want to add to the output array
-     * @param key the key to use for encryption
-     * @param txt the text to encrypt
-     * @return the encrypted data
-     * @throws NoSuchPaddingException
-     * @throws NoSuchAlgorithmException
-     * @throws InvalidAlgorithmParameterException
-     * @throws InvalidKeyException
-     * @throws BadPaddingException
-     * @throws IllegalBlockSizeException
-     * @throws NoSuchProviderException
+     * @param cipher initialised for decryption with the iv of the message, it must be re-initialised if this throws
+     * @param mac a scratch array of at least the hmac length
+     * @return the number of bytes written to dst
      */
-    public static final byte[] encryptGCM(byte version, Key.ExpandedKey key, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
-        return encryptGCM(version, null, key, txt);
+    static int verifyAndDecryptCBC(Cipher cipher, Mac hmac, byte[] mac, ByteBuffer aad, byte[] src, int off, int cipherTextPos, int end, byte[] dst, int dstOff) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+        int ivPos = off + 2;
+
+        updateAAD(hmac, aad);
+        hmac.update(src, ivPos, CBC_IV_LENGTH);
+
+        int n = 0;
+        for (int i = cipherTextPos; i < end; i += CHUNK_SIZE) {
+            int chunkLen = Math.min(CHUNK_SIZE, end - i);
+
+            hmac.update(src, i, chunkLen);
+            n += cipher.update(src, i, chunkLen, dst, dstOff + n);
+        }
+
+        hmac.doFinal(mac, 0);
+
+        // Important, we must use a constant time equals method like MessageDigest
+        // to avoid side channel attacks.
+        if (!isEqual(mac, src, ivPos + CBC_IV_LENGTH + 1, hmac.getMacLength())) {
+            Arrays.fill(dst, dstOff, dstOff + n, (byte) 0);
+            throw new SecurityException("could not authenticate");
+        }
+
+        return n + cipher.doFinal(dst, dstOff + n);
     }
 
     /**
-     * This method allows to pass in a custom cipher.
-     * By default please use {@link #decryptGCM(byte, Key.ExpandedKey, byte[])}  which will use the default JCE provider.
+     * Decrypts the remaining bytes of src and writes the plain text at the position of dst, both positions are moved forward.
+     * The cipher is initialised with the iv of the message, see
+     * {@link #decryptCBC(byte, Cipher, DigestHmac, Key.KeySize, byte[], ByteBuffer, ByteBuffer, ByteBuffer)} for the variant that keeps a zero iv cipher.
      *
-     * @param version any custom version you want to add to the output array
-     * @param cipherProvider JCE provider
-     * @param key the key to use for encryption
-     * @param txt the plain text
-     * @return the encrypted data
-     * @throws NoSuchPaddingException
-     * @throws NoSuchAlgorithmException
-     * @throws InvalidAlgorithmParameterException
-     * @throws InvalidKeyException
-     * @throws BadPaddingException
-     * @throws IllegalBlockSizeException
-     * @throws NoSuchProviderException
+     * @param iv a CBC_IV_LENGTH scratch array
+     * @param mac a scratch array of at least the hmac length
      */
-    public static final byte[] encryptGCM(byte version, String cipherProvider, Key.ExpandedKey key, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+    static final int decryptCBC(byte version, Cipher cipher, SecretKey encKey, Mac hmac, Key.KeySize keySize, byte[] iv, byte[] mac, ByteBuffer aad, ByteBuffer src, ByteBuffer dst) throws InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, ShortBufferException {
+
+        int off = src.position();
+        int end = src.limit();
 
-        byte[] iv = new byte[GCM_IV_LENGTH];
-        Random.nextBytes(iv);
+        int cipherTextPos = checkCBCHeader(version, keySize, src, off, end - off);
+        int cipherTextLen = end - cipherTextPos;
+
+        if (dst.remaining() < cipherTextLen) {
+            throw new ShortBufferException("Output buffer requires " + cipherTextLen + " bytes");
+        }
 
-        final Cipher cipher = cipherProvider == null ? Cipher.getInstance(AES_GCM_CIPHER_LBL) : Cipher.getInstance(AES_GCM_CIPHER_LBL, cipherProvider);
-        GCMParameterSpec parameterSpec = new GCMParameterSpec(key.keySize.getKeySizeBits(), iv);
+        int ivPos = off + 2;
 
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key.encKey, "AES"), parameterSpec);
-        byte[] cipherText = cipher.doFinal(txt);
+        if (cipherTextLen <= CHUNK_SIZE) {
+            // Before we decrypt we must validate the HMAC
+            verifyCBC(hmac, mac, aad, src, off, cipherTextPos, end);
+        }
 
+        for (int i = 0; i < CBC_IV_LENGTH; i++) {
+            iv[i] = src.get(ivPos + i);
+        }
 
-        byte[] output = new byte[1 + 1 + iv.length + cipherText.length];
-        int i = 0;
-        output[i++] = version;
-        output[i++] = (byte) iv.length;
-        System.arraycopy(iv, 0, output, i, iv.length);
-        i += iv.length;
+        cipher.init(Cipher.DECRYPT_MODE, encKey, new IvParameterSpec(iv));
 
-        System.arraycopy(cipherText, 0, output, i, cipherText.length);
+        if (cipherTextLen > CHUNK_SIZE) {
+            return verifyAndDecryptCBC(cipher, hmac, mac, aad, src, off, cipherTextPos, end, dst);
+        }
 
-        return output;
+        Buffers.position(src, cipherTextPos);
+        return cipher.doFinal(src, dst);
     }
 
     /**
-     *
-     * @param key the key used for encryption
-     * @param encryptedMessage the encrypted data
-     * @return the decrypted data
-     * @throws NoSuchAlgorithmException
-     * @throws InvalidKeyException
-     * @throws BadPaddingException
-     * @throws IllegalBlockSizeException
-     * @throws InvalidAlgorithmParameterException
-     * @throws NoSuchPaddingException
-     * @throws NoSuchProviderException
+     * ByteBuffer version of {@link #verifyAndDecryptCBC(Cipher, Mac, byte[], ByteBuffer, byte[], int, int, int, byte[], int)}.
+     * Writes the plain text at the position of dst, the positions of src and dst are moved forward.
      */
-    public static final byte[] decryptGCM(Key.ExpandedKey key, byte[] encryptedMessage) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException {
-        return decryptGCM((byte) 0, key, encryptedMessage);
+    static int verifyAndDecryptCBC(Cipher cipher, Mac hmac, byte[] mac, ByteBuffer aad, ByteBuffer src, int off, int cipherTextPos, int end, ByteBuffer dst) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+        int ivPos = off + 2;
+        int start = dst.position();
+
+        updateAAD(hmac, aad);
+        Buffers.update(hmac, src, ivPos, ivPos + CBC_IV_LENGTH);
+
+        for (int i = cipherTextPos; i < end; i += CHUNK_SIZE) {
+            int chunkEnd = Math.min(i + CHUNK_SIZE, end);
+
+            Buffers.update(hmac, src, i, chunkEnd);
+
+            Buffers.limit(src, chunkEnd);
+            Buffers.position(src, i);
+            cipher.update(src, dst);
+        }
+        Buffers.limit(src, end);
+
+        hmac.doFinal(mac, 0);
+
+        if (!isEqual(mac, src, ivPos + CBC_IV_LENGTH + 1, hmac.getMacLength())) {
+            zero(dst, start, dst.position() - start);
+            throw new SecurityException("could not authenticate");
+        }
+
+        cipher.doFinal(src, dst);
+
+        return dst.position() - start;
     }
 
     /**
-     * Decrypt a AES GCM message encrypted with {@link #encryptGCM}
-     * The expected message is:
+     * Decrypts the message in src[off:off+len] and writes the plain text to dst starting at dstOff, without allocating.
+     * The iv and mac are read in place from src.
      * <p>
-     * [ version:byte, iv-len:byte, iv:byte-array[iv-len], encrypted-text:byte-array ]
+     * The cipher is never re-initialised, so no iv parameter spec is created. Decrypting with a zero iv gives the plain text
+     * xor the iv in the first block only, so the iv is xor'ed into the first block of dst afterwards. Unpadding is done
+     * here after the hmac was verified, the JCE would copy the whole plain text to unpad.
+     * dst[dstOff:dstOff+cipher-text-len] is written to, the padding bytes after the returned length are left in place.
+     * <p>
+     * Cipher texts larger than CHUNK_SIZE are macd and decrypted in one pass as in
+     * {@link #verifyAndDecryptCBC(Cipher, Mac, byte[], ByteBuffer, byte[], int, int, int, byte[], int)},
+     * dst is zeroed if the hmac does not match.
      *
-     * @param version any custom version you want to add to the output array
-     * @param key the key used for encrypt the data
-     * @param encryptedMessage the encrypted data
-     * @return the decrypted data
-     * @throws NoSuchAlgorithmException
-     * @throws InvalidKeyException
-     * @throws BadPaddingException
-     * @throws IllegalBlockSizeException
-     * @throws InvalidAlgorithmParameterException
-     * @throws NoSuchPaddingException
-     * @throws NoSuchProviderException
+     * @param zeroIvCipher an {@link #AES_CBC_NO_PADDING_CIPHER_LBL} cipher initialised for decryption with a zero iv,
+     *                     doFinal resets it to that state after every message
+     * @param mac a scratch array of at least the hmac length
+     * @return the number of bytes written to dst
      */
-    public static final byte[] decryptGCM(byte version, Key.ExpandedKey key, byte[] encryptedMessage) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException {
-        return decryptGCM(version, null, key, encryptedMessage);
-    }
+    static final int decryptCBC(byte version, Cipher zeroIvCipher, DigestHmac hmac, Key.KeySize keySize, byte[] mac, ByteBuffer aad, byte[] src, int off, int len, byte[] dst, int dstOff) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+
+        int cipherTextPos = checkCBCHeader(version, keySize, src, off, len);
+        int cipherTextLen = off + len - cipherTextPos;
+
+        if (dst.length - dstOff < cipherTextLen) {
+            throw new ShortBufferException("Output buffer requires " + cipherTextLen + " bytes");
+        }
+
+        if (cipherTextLen > CHUNK_SIZE) {
+            checkCBCCipherTextLength(cipherTextLen);
+        }
+
+        // the hmac is kept per thread, a message that failed part way must not leave its input in it
+        hmac.reset();
+
+        int ivPos = off + 2;
+        updateAAD(hmac, aad);
+        hmac.update(src, ivPos, CBC_IV_LENGTH);
+
+        int n;
+        if (cipherTextLen > CHUNK_SIZE) {
+            // One pass, each chunk is macd and decrypted while it is in the cache.
+            // The chunks are block aligned so update decrypts all of them and doFinal only resets the cipher.
+            n = 0;
+            for (int i = cipherTextPos; i < off + len; i += CHUNK_SIZE) {
+                int chunkLen = Math.min(CHUNK_SIZE, off + len - i);
+
+                hmac.update(src, i, chunkLen);
+                n += zeroIvCipher.update(src, i, chunkLen, dst, dstOff + n);
+            }
+            n += zeroIvCipher.doFinal(dst, dstOff + n);
+            hmac.doFinal(mac, 0);
+
+            if (!isEqual(mac, src, ivPos + CBC_IV_LENGTH + 1, hmac.getMacLength())) {
+                Arrays.fill(dst, dstOff, dstOff + n, (byte) 0);
+                throw new SecurityException("could not authenticate");
+            }
+        } else {
+            // Before we decrypt we must validate the HMAC
+            hmac.update(src, cipherTextPos, cipherTextLen);
+            hmac.doFinal(mac, 0);
 
+            if (!isEqual(mac, src, ivPos + CBC_IV_LENGTH + 1, hmac.getMacLength())) {
+                throw new SecurityException("could not authenticate");
+            }
+
+            checkCBCCipherTextLength(cipherTextLen);
+
+            n = zeroIvCipher.doFinal(src, cipherTextPos, cipherTextLen, dst, dstOff);
+        }
+
+        for (int i = 0; i < CBC_IV_LENGTH; i++) {
+            dst[dstOff + i] ^= src[ivPos + i];
+        }
+
+        return n - paddingLength(dst[dstOff + n - 1], dst, dstOff, n);
+    }
 
     /**
-     * This method allows to pass in a custom cipher.
-     * By default please use {@link #decryptGCM(byte, Key.ExpandedKey, byte[])}  which will use the default JCE provider.
-     *
-     * @param version any custom version you want to add to the output array
-     * @param cipherProvider JCE provider
-     * @param key the key used to encrypt the data
-     * @param encryptedMessage the encrypted data
-     * @return the decrypted data
-     * @throws NoSuchAlgorithmException
-     * @throws InvalidKeyException
-     * @throws BadPaddingException
-     * @throws IllegalBlockSizeException
-     * @throws InvalidAlgorithmParameterException
-     * @throws NoSuchPaddingException
-     * @throws NoSuchProviderException
+     * ByteBuffer version of {@link #decryptCBC(byte, Cipher, DigestHmac, Key.KeySize, byte[], ByteBuffer, byte[], int, int, byte[], int)}.
+     * Reads the remaining bytes of src and writes the plain text at the position of dst, both positions are moved forward.
+     * Heap buffers are not copied, the JCE copies direct buffers through temporary arrays.
      */
-    public static final byte[] decryptGCM(byte version, String cipherProvider, Key.ExpandedKey key, byte[] encryptedMessage) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException {
+    static final int decryptCBC(byte version, Cipher zeroIvCipher, DigestHmac hmac, Key.KeySize keySize, byte[] mac, ByteBuffer aad, ByteBuffer src, ByteBuffer dst) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
 
-        int i = 0;
-        int cipherVersion = encryptedMessage[i++];
-        if (cipherVersion != version) {
-            throw new RuntimeException("Version " + version + " was expected but the cipher message has " + cipherVersion);
-        }
+        int off = src.position();
+        int end = src.limit();
 
-        int ivLength = encryptedMessage[i++];
+        int cipherTextPos = checkCBCHeader(version, keySize, src, off, end - off);
+        int cipherTextLen = end - cipherTextPos;
 
-        if (ivLength != GCM_IV_LENGTH) { // check input parameter
-            throw new IllegalArgumentException("invalid iv length: " + ivLength);
+        if (dst.remaining() < cipherTextLen) {
+            throw new ShortBufferException("Output buffer requires " + cipherTextLen + " bytes");
         }
 
-        int ivPos = i;
+        if (cipherTextLen > CHUNK_SIZE) {
+            checkCBCCipherTextLength(cipherTextLen);
+        }
 
-        byte[] iv = new byte[ivLength];
-        System.arraycopy(encryptedMessage, ivPos, iv, 0, ivLength);
-        i += ivLength;
+        // the hmac is kept per thread, a message that failed part way must not leave its input in it
+        hmac.reset();
 
-        int cipherTextPos = i;
-        int cipherTextLen = encryptedMessage.length - cipherTextPos;
+        int ivPos = off + 2;
+        updateAAD(hmac, aad);
+        hmac.update(src, ivPos, ivPos + CBC_IV_LENGTH);
 
+        int dstPos = dst.position();
 
-        final Cipher cipher = cipherProvider == null ? Cipher.getInstance(AES_GCM_CIPHER_LBL) : Cipher.getInstance(AES_GCM_CIPHER_LBL, cipherProvider);
-        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key.encKey, "AES"), new GCMParameterSpec(key.keySize.getKeySizeBits(), iv));
+        int n;
+        if (cipherTextLen > CHUNK_SIZE) {
+            for (int i = cipherTextPos; i < end; i += CHUNK_SIZE) {
+                int chunkEnd = Math.min(i + CHUNK_SIZE, end);
 
-        return cipher.doFinal(encryptedMessage, cipherTextPos, cipherTextLen);
+                hmac.update(src, i, chunkEnd);
+
+                Buffers.limit(src, chunkEnd);
+                Buffers.position(src, i);
+                zeroIvCipher.update(src, dst);
+            }
+            Buffers.limit(src, end);
+            zeroIvCipher.doFinal(src, dst);
+            hmac.doFinal(mac, 0);
+
+            n = dst.position() - dstPos;
+
+            if (!isEqual(mac, src, ivPos + CBC_IV_LENGTH + 1, hmac.getMacLength())) {
+                zero(dst, dstPos, n);
+                throw new SecurityException("could not authenticate");
+            }
+        } else {
+            // Before we decrypt we must validate the HMAC
+            hmac.update(src, cipherTextPos, end);
+            hmac.doFinal(mac, 0);
+
+            if (!isEqual(mac, src, ivPos + CBC_IV_LENGTH + 1, hmac.getMacLength())) {
+                throw new SecurityException("could not authenticate");
+            }
+
+            checkCBCCipherTextLength(cipherTextLen);
+
+            Buffers.position(src, cipherTextPos);
+            n = zeroIvCipher.doFinal(src, dst);
+        }
+
+        for (int i = 0; i < CBC_IV_LENGTH; i++) {
+            dst.put(dstPos + i, (byte) (dst.get(dstPos + i) ^ src.get(ivPos + i)));
+        }
+
+        int plainTextLen = n - paddingLength(dst.get(dstPos + n - 1), dst, dstPos, n);
+        Buffers.position(dst, dstPos + plainTextLen);
+
+        return plainTextLen;
+    }
+
+    /**
+     * Zeroes the plain text written to dst[pos:pos+len] before a failed authentication and moves the position back to pos.
+     */
+    private static void zero(ByteBuffer dst, int pos, int len) {
+        for (int i = pos; i < pos + len; i++) {
+            dst.put(i, (byte) 0);
+        }
+        Buffers.position(dst, pos);
+    }
+
+    private static void checkCBCCipherTextLength(int cipherTextLen) throws IllegalBlockSizeException {
+        // checked before doFinal so that the cipher is never left in a failed state
+        if (cipherTextLen == 0 || cipherTextLen % CBC_IV_LENGTH != 0) {
+            throw new IllegalBlockSizeException("Input length must be a multiple of 16 when decrypting with padded cipher");
+        }
+    }
+
+    /**
+     * The PKCS5 padding length of the n decrypted bytes at plainText[off:off+n], the hmac has already been verified.
+     */
+    private static int paddingLength(byte last, byte[] plainText, int off, int n) throws BadPaddingException {
+        int padding = last & 0xFF;
+        if (padding < 1 || padding > CBC_IV_LENGTH) {
+            throw new BadPaddingException("Given final block not properly padded");
+        }
+
+        for (int i = n - padding; i < n; i++) {
+            if (plainText[off + i] != last) {
+                throw new BadPaddingException("Given final block not properly padded");
+            }
+        }
+        return padding;
+    }
+
+    private static int paddingLength(byte last, ByteBuffer plainText, int off, int n) throws BadPaddingException {
+        int padding = last & 0xFF;
+        if (padding < 1 || padding > CBC_IV_LENGTH) {
+            throw new BadPaddingException("Given final block not properly padded");
+        }
+
+        for (int i = n - padding; i < n; i++) {
+            if (plainText.get(off + i) != last) {
+                throw new BadPaddingException("Given final block not properly padded");
+            }
+        }
+        return padding;
+    }
+
+    /**
+     * Checks the version, iv length and mac length of a CBC message.
+     *
+     * @return the position of the cipher text
+     */
+    static int checkCBCHeader(byte version, Key.KeySize keySize, byte[] encryptedMessage, int off, int len) {
+        if (len < 3 + CBC_IV_LENGTH) {
+            throw new IllegalArgumentException("invalid message length: " + len);
+        }
+
+        int i = off;
+        int cipherVersion = encryptedMessage[i++];
+        if (cipherVersion != version) {
+            throw new RuntimeException("Version " + version + " was expected but the cipher message has " + cipherVersion);
+        }
+
+        int ivLength = encryptedMessage[i++];
+
+        if (ivLength != CBC_IV_LENGTH) { // check input parameter
+            throw new IllegalArgumentException("invalid iv length");
+        }
+
+        i += ivLength;
+
+        int macLength = encryptedMessage[i++];
+
+        if (macLength != keySize.getHMacSizeBytes() || off + len < i + macLength) { // check input parameter
+            throw new IllegalArgumentException("invalid mac length");
+        }
+
+        return i + macLength;
+    }
+
+    static int checkCBCHeader(byte version, Key.KeySize keySize, ByteBuffer encryptedMessage, int off, int len) {
+        if (len < 3 + CBC_IV_LENGTH) {
+            throw new IllegalArgumentException("invalid message length: " + len);
+        }
+
+        int cipherVersion = encryptedMessage.get(off);
+        if (cipherVersion != version) {
+            throw new RuntimeException("Version " + version + " was expected but the cipher message has " + cipherVersion);
+        }
+
+        int ivLength = encryptedMessage.get(off + 1);
+
+        if (ivLength != CBC_IV_LENGTH) { // check input parameter
+            throw new IllegalArgumentException("invalid iv length");
+        }
+
+        int i = off + 2 + ivLength;
+
+        int macLength = encryptedMessage.get(i++);
+
+        if (macLength != keySize.getHMacSizeBytes() || off + len < i + macLength) { // check input parameter
+            throw new IllegalArgumentException("invalid mac length");
+        }
+
+        return i + macLength;
+    }
+
+    /**
+     * Calculates the hmac over the iv and cipher text and compares it to the mac in the message.
+     *
+     * @param mac scratch array for the calculated hmac
+     * @throws SecurityException if the mac does not match
+     */
+    static void verifyCBC(Mac hmac, byte[] mac, ByteBuffer aad, byte[] encryptedMessage, int off, int cipherTextPos, int end) {
+        int ivPos = off + 2;
+        int macPos = ivPos + CBC_IV_LENGTH + 1;
+
+        updateAAD(hmac, aad);
+        hmac.update(encryptedMessage, ivPos, CBC_IV_LENGTH);
+        hmac.update(encryptedMessage, cipherTextPos, end - cipherTextPos);
+
+        try {
+            hmac.doFinal(mac, 0);
+        } catch (ShortBufferException e) {
+            throw new RuntimeException(e);
+        }
+
+        // Important, we must use a constant time equals method like MessageDigest
+        // to avoid side channel attacks.
+        if (!isEqual(mac, encryptedMessage, macPos, hmac.getMacLength())) {
+            throw new SecurityException("could not authenticate");
+        }
+    }
+
+    /**
+     * ByteBuffer version of {@link #verifyCBC(Mac, byte[], ByteBuffer, byte[], int, int, int)}, the buffer position is not changed.
+     */
+    static void verifyCBC(Mac hmac, byte[] mac, ByteBuffer aad, ByteBuffer encryptedMessage, int off, int cipherTextPos, int end) throws ShortBufferException {
+        int ivPos = off + 2;
+        int macPos = ivPos + CBC_IV_LENGTH + 1;
+
+        updateAAD(hmac, aad);
+        Buffers.update(hmac, encryptedMessage, ivPos, ivPos + CBC_IV_LENGTH);
+        Buffers.update(hmac, encryptedMessage, cipherTextPos, end);
+        hmac.doFinal(mac, 0);
+
+        if (!isEqual(mac, encryptedMessage, macPos, hmac.getMacLength())) {
+            throw new SecurityException("could not authenticate");
+        }
+    }
+
+    public static final byte[] encryptGCM(Key.ExpandedKey key, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        return encryptGCM((byte) 0, key, txt);
+    }
+
+    /**
+     * Encryp a AES GCM message encrypted with {@link #encryptGCM}
+     * The output message is:
+     * <p>
+     * [ version:byte, iv-len:byte, iv:byte-array[iv-len], encrypted-text:byte-array ]
+     *
+     * @param version any custom version you want to add to the output array
+     * @param key the key to use for encryption
+     * @param txt the text to encrypt
+     * @return the encrypted data
+     * @throws NoSuchPaddingException
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidAlgorithmParameterException
+     * @throws InvalidKeyException
+     * @throws BadPaddingException
+     * @throws IllegalBlockSizeException
+     * @throws NoSuchProviderException
+     */
+    public static final byte[] encryptGCM(byte version, Key.ExpandedKey key, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        return encryptGCM(version, null, key, txt);
+    }
+
+    /**
+     * This method allows to pass in a custom cipher.
+     * By default please use {@link #decryptGCM(byte, Key.ExpandedKey, byte[])}, which uses the backend selected by {@link CryptoBackends}.
+     *
+     * @param version any custom version you want to add to the output array
+     * @param cipherProvider JCE provider, null to use the backend selected by {@link CryptoBackends}
+     * @param key the key to use for encryption
+     * @param txt the plain text
+     * @return the encrypted data
+     * @throws NoSuchPaddingException
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidAlgorithmParameterException
+     * @throws InvalidKeyException
+     * @throws BadPaddingException
+     * @throws IllegalBlockSizeException
+     * @throws NoSuchProviderException
+     */
+    public static final byte[] encryptGCM(byte version, String cipherProvider, Key.ExpandedKey key, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        return encryptGCM(version, cipherProvider, NonceSource.THREAD_LOCAL_RANDOM, key, txt);
+    }
+
+    /**
+     * Same as {@link #encryptGCM(byte, String, Key.ExpandedKey, byte[])} but takes the iv from nonces,
+     * e.g. a {@link CounterNonceSource} that is only used with this key.
+     */
+    public static final byte[] encryptGCM(byte version, String cipherProvider, NonceSource nonces, Key.ExpandedKey key, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        CryptoEvents.CipherEvent event = CryptoEvents.beginEncrypt();
+        long start = metrics == null ? 0 : System.nanoTime();
+        Throwable failure = null;
+
+        try {
+            if (cipherProvider == null) {
+                return CryptoBackends.get(CryptoBackend.Mode.GCM, key.keySize).encryptGCM(version, nonces, key, txt);
+            }
+
+            final Cipher cipher = Cipher.getInstance(AES_GCM_CIPHER_LBL, cipherProvider);
+
+            return encryptGCM(version, cipher, key.encKeySpec(), nonces, null, txt);
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (metrics != null || event != null) {
+                record(metrics, event, CryptoMetrics.Operation.ENCRYPT, CryptoMetrics.Mode.GCM, key.keySize, metricsProvider(CryptoBackend.Mode.GCM, key.keySize, cipherProvider), txt.length, start, failure);
+            }
+        }
+    }
+
+    /**
+     * Performs a AES GCM encryption that also authenticates the associated data aad.
+     * The aad is authenticated but not encrypted and not part of the message, the same aad must be passed to
+     * {@link #decryptGCM(byte, Key.ExpandedKey, byte[], byte[])}.
+     * A null or empty aad gives the same message as {@link #encryptGCM(byte, Key.ExpandedKey, byte[])}.
+     * <p>
+     * Runs on the default JCE provider with the cipher kept by the key.
+     *
+     * @param version any custom version you want to add to the output array
+     * @param key the key to use
+     * @param aad the associated data, e.g. routing headers, may be null
+     * @param txt the text to encrypt
+     * @return the encrypted byte array
+     */
+    public static final byte[] encryptGCM(byte version, Key.ExpandedKey key, byte[] aad, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        CryptoEvents.CipherEvent event = CryptoEvents.beginEncrypt();
+        long start = metrics == null ? 0 : System.nanoTime();
+        Throwable failure = null;
+
+        try {
+            return encryptGCM(version, key.gcmCipher(), key.encKeySpec(), NonceSource.THREAD_LOCAL_RANDOM, wrap(aad), txt);
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (metrics != null || event != null) {
+                record(metrics, event, CryptoMetrics.Operation.ENCRYPT, CryptoMetrics.Mode.GCM, key.keySize, CryptoBackends.JCE.name(), txt.length, start, failure);
+            }
+        }
+    }
+
+    /**
+     * Encrypts with an already created cipher, the cipher is re-initialised with a new iv so that it can be reused.
+     */
+    static final byte[] encryptGCM(byte version, Cipher cipher, SecretKey encKey, NonceSource nonces, ByteBuffer aad, byte[] txt) throws InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        byte[] output = new byte[outputSizeGCM(txt.length)];
+
+        try {
+            encryptGCM(version, cipher, encKey, nonces, new byte[GCM_IV_LENGTH], aad, txt, 0, txt.length, output, 0);
+        } catch (ShortBufferException e) {
+            // the output is sized with outputSizeGCM, this can only happen if the size calculation is wrong
+            throw new RuntimeException(e);
+        }
+
+        return output;
+    }
+
+    /**
+     * Encrypts src[off:off+len] and writes the message to dst starting at dstOff.
+     *
+     * @param nonces the source of the iv
+     * @param iv a GCM_IV_LENGTH scratch array that is filled with the next iv
+     * @return the number of bytes written to dst
+     */
+    static final int encryptGCM(byte version, Cipher cipher, SecretKey encKey, NonceSource nonces, byte[] iv, ByteBuffer aad, byte[] src, int off, int len, byte[] dst, int dstOff) throws InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+        nonces.nextNonce(iv);
+        return encryptGCM(version, cipher, encKey, iv, 0, aad, src, off, len, dst, dstOff);
+    }
+
+    /**
+     * Same as {@link #encryptGCM(byte, Cipher, SecretKey, NonceSource, byte[], ByteBuffer, byte[], int, int, byte[], int)} but uses the
+     * already generated iv in ivs[ivOff:ivOff+GCM_IV_LENGTH], so that the ivs for many messages can be filled in one call.
+     */
+    static final int encryptGCM(byte version, Cipher cipher, SecretKey encKey, byte[] ivs, int ivOff, ByteBuffer aad, byte[] src, int off, int len, byte[] dst, int dstOff) throws InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+
+        if (dst.length - dstOff < outputSizeGCM(len)) {
+            throw new ShortBufferException("Output buffer requires " + outputSizeGCM(len) + " bytes");
+        }
+
+        int i = dstOff;
+        dst[i++] = version;
+        dst[i++] = (byte) GCM_IV_LENGTH;
+        System.arraycopy(ivs, ivOff, dst, i, GCM_IV_LENGTH);
+        i += GCM_IV_LENGTH;
+
+        cipher.init(Cipher.ENCRYPT_MODE, encKey, new GCMParameterSpec(GCM_TAG_LENGTH_BITS, ivs, ivOff, GCM_IV_LENGTH));
+        updateAAD(cipher, aad);
+        int cipherTextLen = cipher.doFinal(src, off, len, dst, i);
+
+        return i + cipherTextLen - dstOff;
+    }
+
+    /**
+     * ByteBuffer version of {@link #encryptGCM(byte, Cipher, SecretKey, NonceSource, byte[], ByteBuffer, byte[], int, int, byte[], int)}.
+     * Reads the remaining bytes of src and writes the message at the position of dst, both positions are moved forward.
+     */
+    static final int encryptGCM(byte version, Cipher cipher, SecretKey encKey, NonceSource nonces, byte[] iv, ByteBuffer aad, ByteBuffer src, ByteBuffer dst) throws InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+
+        if (dst.remaining() < outputSizeGCM(src.remaining())) {
+            throw new ShortBufferException("Output buffer requires " + outputSizeGCM(src.remaining()) + " bytes");
+        }
+
+        nonces.nextNonce(iv);
+
+        dst.put(version);
+        dst.put((byte) iv.length);
+        dst.put(iv);
+
+        cipher.init(Cipher.ENCRYPT_MODE, encKey, new GCMParameterSpec(GCM_TAG_LENGTH_BITS, iv));
+        updateAAD(cipher, aad);
+
+        return 2 + iv.length + cipher.doFinal(src, dst);
+    }
+
+    /**
+     *
+     * @param key the key used for encryption
+     * @param encryptedMessage the encrypted data
+     * @return the decrypted data
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException
+     * @throws BadPaddingException
+     * @throws IllegalBlockSizeException
+     * @throws InvalidAlgorithmParameterException
+     * @throws NoSuchPaddingException
+     * @throws NoSuchProviderException
+     */
+    public static final byte[] decryptGCM(Key.ExpandedKey key, byte[] encryptedMessage) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException {
+        return decryptGCM((byte) 0, key, encryptedMessage);
+    }
+
+    /**
+     * Decrypt a AES GCM message encrypted with {@link #encryptGCM}
+     * The expected message is:
+     * <p>
+     * [ version:byte, iv-len:byte, iv:byte-array[iv-len], encrypted-text:byte-array ]
+     *
+     * @param version any custom version you want to add to the output array
+     * @param key the key used for encrypt the data
+     * @param encryptedMessage the encrypted data
+     * @return the decrypted data
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException
+     * @throws BadPaddingException
+     * @throws IllegalBlockSizeException
+     * @throws InvalidAlgorithmParameterException
+     * @throws NoSuchPaddingException
+     * @throws NoSuchProviderException
+     */
+    public static final byte[] decryptGCM(byte version, Key.ExpandedKey key, byte[] encryptedMessage) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException {
+        return decryptGCM(version, null, key, encryptedMessage);
+    }
+
+
+    /**
+     * This method allows to pass in a custom cipher.
+     * By default please use {@link #decryptGCM(byte, Key.ExpandedKey, byte[])}, which uses the backend selected by {@link CryptoBackends}.
+     *
+     * @param version any custom version you want to add to the output array
+     * @param cipherProvider JCE provider, null to use the backend selected by {@link CryptoBackends}
+     * @param key the key used to encrypt the data
+     * @param encryptedMessage the encrypted data
+     * @return the decrypted data
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException
+     * @throws BadPaddingException
+     * @throws IllegalBlockSizeException
+     * @throws InvalidAlgorithmParameterException
+     * @throws NoSuchPaddingException
+     * @throws NoSuchProviderException
+     */
+    public static final byte[] decryptGCM(byte version, String cipherProvider, Key.ExpandedKey key, byte[] encryptedMessage) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException {
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        CryptoEvents.CipherEvent event = CryptoEvents.beginDecrypt();
+        long start = metrics == null ? 0 : System.nanoTime();
+        Throwable failure = null;
+
+        try {
+            if (cipherProvider == null) {
+                return CryptoBackends.get(CryptoBackend.Mode.GCM, key.keySize).decryptGCM(version, key, encryptedMessage);
+            }
+
+            final Cipher cipher = Cipher.getInstance(AES_GCM_CIPHER_LBL, cipherProvider);
+
+            return decryptGCM(version, cipher, key.encKeySpec(), null, encryptedMessage);
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (metrics != null || event != null) {
+                record(metrics, event, CryptoMetrics.Operation.DECRYPT, CryptoMetrics.Mode.GCM, key.keySize, metricsProvider(CryptoBackend.Mode.GCM, key.keySize, cipherProvider), encryptedMessage.length, start, failure);
+            }
+        }
+    }
+
+    /**
+     * Decrypts a message from {@link #encryptGCM(byte, Key.ExpandedKey, byte[], byte[])}.
+     *
+     * @param aad the associated data the message was encrypted with, may be null
+     * @throws javax.crypto.AEADBadTagException if the message or the aad could not be authenticated
+     */
+    public static final byte[] decryptGCM(byte version, Key.ExpandedKey key, byte[] aad, byte[] encryptedMessage) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException {
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        CryptoEvents.CipherEvent event = CryptoEvents.beginDecrypt();
+        long start = metrics == null ? 0 : System.nanoTime();
+        Throwable failure = null;
+
+        try {
+            return decryptGCM(version, key.gcmCipher(), key.encKeySpec(), wrap(aad), encryptedMessage);
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (metrics != null || event != null) {
+                record(metrics, event, CryptoMetrics.Operation.DECRYPT, CryptoMetrics.Mode.GCM, key.keySize, CryptoBackends.JCE.name(), encryptedMessage.length, start, failure);
+            }
+        }
+    }
+
+    /**
+     * Decrypts with an already created cipher, see {@link #encryptGCM(byte, Cipher, SecretKey, NonceSource, ByteBuffer, byte[])}.
+     */
+    static final byte[] decryptGCM(byte version, Cipher cipher, SecretKey encKey, ByteBuffer aad, byte[] encryptedMessage) throws InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException {
+
+        int cipherTextPos = checkGCMHeader(version, encryptedMessage, 0, encryptedMessage.length);
+        int cipherTextLen = encryptedMessage.length - cipherTextPos;
+
+        cipher.init(Cipher.DECRYPT_MODE, encKey, new GCMParameterSpec(GCM_TAG_LENGTH_BITS, encryptedMessage, 2, GCM_IV_LENGTH));
+        updateAAD(cipher, aad);
+
+        return cipher.doFinal(encryptedMessage, cipherTextPos, cipherTextLen);
+    }
+
+    /**
+     * Decrypts the message in src[off:off+len] and writes the plain text to dst starting at dstOff.
+     * The iv is read in place from src.
+     *
+     * @return the number of bytes written to dst
+     */
+    static final int decryptGCM(byte version, Cipher cipher, SecretKey encKey, ByteBuffer aad, byte[] src, int off, int len, byte[] dst, int dstOff) throws InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, ShortBufferException {
+
+        int cipherTextPos = checkGCMHeader(version, src, off, len);
+        int cipherTextLen = off + len - cipherTextPos;
+
+        if (dst.length - dstOff < cipherTextLen - GCM_TAG_LENGTH_BITS / 8) {
+            throw new ShortBufferException("Output buffer requires " + (cipherTextLen - GCM_TAG_LENGTH_BITS / 8) + " bytes");
+        }
+
+        cipher.init(Cipher.DECRYPT_MODE, encKey, new GCMParameterSpec(GCM_TAG_LENGTH_BITS, src, off + 2, GCM_IV_LENGTH));
+        updateAAD(cipher, aad);
+
+        return cipher.doFinal(src, cipherTextPos, cipherTextLen, dst, dstOff);
+    }
+
+    /**
+     * ByteBuffer version of {@link #decryptGCM(byte, Cipher, SecretKey, ByteBuffer, byte[], int, int, byte[], int)}.
+     * Reads the remaining bytes of src and writes the plain text at the position of dst, both positions are moved forward.
+     *
+     * @param iv a GCM_IV_LENGTH scratch array
+     */
+    static final int decryptGCM(byte version, Cipher cipher, SecretKey encKey, byte[] iv, ByteBuffer aad, ByteBuffer src, ByteBuffer dst) throws InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, ShortBufferException {
+
+        int off = src.position();
+        int len = src.remaining();
+
+        int cipherTextPos = checkGCMHeader(version, src, off, len);
+        int cipherTextLen = off + len - cipherTextPos;
+
+        if (dst.remaining() < cipherTextLen - GCM_TAG_LENGTH_BITS / 8) {
+            throw new ShortBufferException("Output buffer requires " + (cipherTextLen - GCM_TAG_LENGTH_BITS / 8) + " bytes");
+        }
+
+        for (int i = 0; i < GCM_IV_LENGTH; i++) {
+            iv[i] = src.get(off + 2 + i);
+        }
+
+        cipher.init(Cipher.DECRYPT_MODE, encKey, new GCMParameterSpec(GCM_TAG_LENGTH_BITS, iv));
+        updateAAD(cipher, aad);
+
+        Buffers.position(src, cipherTextPos);
+        return cipher.doFinal(src, dst);
+    }
+
+    /**
+     * Checks the version and iv length of a GCM message.
+     *
+     * @return the position of the cipher text
+     */
+    static int checkGCMHeader(byte version, byte[] encryptedMessage, int off, int len) {
+        if (len < 2 + GCM_IV_LENGTH + GCM_TAG_LENGTH_BITS / 8) {
+            throw new IllegalArgumentException("invalid message length: " + len);
+        }
+
+        int cipherVersion = encryptedMessage[off];
+        if (cipherVersion != version) {
+            throw new RuntimeException("Version " + version + " was expected but the cipher message has " + cipherVersion);
+        }
+
+        int ivLength = encryptedMessage[off + 1];
+
+        if (ivLength != GCM_IV_LENGTH) { // check input parameter
+            throw new IllegalArgumentException("invalid iv length: " + ivLength);
+        }
+
+        return off + 2 + ivLength;
+    }
+
+    static int checkGCMHeader(byte version, ByteBuffer encryptedMessage, int off, int len) {
+        if (len < 2 + GCM_IV_LENGTH + GCM_TAG_LENGTH_BITS / 8) {
+            throw new IllegalArgumentException("invalid message length: " + len);
+        }
+
+        int cipherVersion = encryptedMessage.get(off);
+        if (cipherVersion != version) {
+            throw new RuntimeException("Version " + version + " was expected but the cipher message has " + cipherVersion);
+        }
+
+        int ivLength = encryptedMessage.get(off + 1);
+
+        if (ivLength != GCM_IV_LENGTH) { // check input parameter
+            throw new IllegalArgumentException("invalid iv length: " + ivLength);
+        }
+
+        return off + 2 + ivLength;
+    }
+
+    public static final byte[] encryptSIV(Key.ExpandedKey key, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        return encryptSIV((byte) 0, key, txt);
+    }
+
+    /**
+     * Performs an AES-SIV (RFC 5297) encryption with a random nonce.
+     * The result is a byte array with
+     * [ version:byte, nonce-len:byte, nonce:byte-array[nonce-len], siv:byte-array[16], encrypted-text:byte-array ]
+     * <p>
+     * Unlike GCM a repeated nonce does not leak the key stream or allow forgeries, it only shows that the same
+     * plain text was encrypted twice.
+     * The SIV keys are derived from the encKey.
+     *
+     * @param version any custom version you want to add to the output array
+     * @param key the key to use
+     * @param txt the text to encrypt
+     * @return the encrypted byte array
+     * @throws NoSuchPaddingException
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidAlgorithmParameterException
+     * @throws InvalidKeyException
+     * @throws BadPaddingException
+     * @throws IllegalBlockSizeException
+     */
+    public static final byte[] encryptSIV(byte version, Key.ExpandedKey key, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        byte[] nonce = new byte[SIV_NONCE_LENGTH];
+        NonceSource.THREAD_LOCAL_RANDOM.nextNonce(nonce);
+
+        return encryptSIV(version, key, null, nonce, txt);
+    }
+
+    /**
+     * Same as {@link #encryptSIV(byte, Key.ExpandedKey, byte[])} but also authenticates the associated data aad.
+     * The aad is not part of the message, the same aad must be passed to {@link #decryptSIV(byte, Key.ExpandedKey, byte[], byte[])}.
+     *
+     * @param aad the associated data, null or empty for none
+     */
+    public static final byte[] encryptSIV(byte version, Key.ExpandedKey key, byte[] aad, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        byte[] nonce = new byte[SIV_NONCE_LENGTH];
+        NonceSource.THREAD_LOCAL_RANDOM.nextNonce(nonce);
+
+        return encryptSIV(version, key, aad, nonce, txt);
+    }
+
+    public static final byte[] encryptSIVDeterministic(Key.ExpandedKey key, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        return encryptSIVDeterministic((byte) 0, key, txt);
+    }
+
+    /**
+     * Performs a deterministic AES-SIV (RFC 5297) encryption, the same key and plain text always give the same message.
+     * Use for content addressed storage and deduplication, where equal plain texts must map to equal messages.
+     * The message format is the same as {@link #encryptSIV(byte, Key.ExpandedKey, byte[])} with an empty nonce
+     * and is decrypted with {@link #decryptSIV(byte, Key.ExpandedKey, byte[])}.
+     *
+     * @param version any custom version you want to add to the output array
+     * @param key the key to use
+     * @param txt the text to encrypt
+     * @return the encrypted byte array
+     * @throws NoSuchPaddingException
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidAlgorithmParameterException
+     * @throws InvalidKeyException
+     * @throws BadPaddingException
+     * @throws IllegalBlockSizeException
+     */
+    public static final byte[] encryptSIVDeterministic(byte version, Key.ExpandedKey key, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        return encryptSIV(version, key, null, new byte[0], txt);
+    }
+
+    /**
+     * Same as {@link #encryptSIVDeterministic(byte, Key.ExpandedKey, byte[])} but also authenticates the associated data aad,
+     * the message only depends on the key, the aad and the plain text.
+     *
+     * @param aad the associated data, null or empty for none
+     */
+    public static final byte[] encryptSIVDeterministic(byte version, Key.ExpandedKey key, byte[] aad, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        return encryptSIV(version, key, aad, new byte[0], txt);
+    }
+
+    private static byte[] encryptSIV(byte version, Key.ExpandedKey key, byte[] aad, byte[] nonce, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        CryptoEvents.CipherEvent event = CryptoEvents.beginEncrypt();
+        long start = metrics == null ? 0 : System.nanoTime();
+        Throwable failure = null;
+
+        try {
+            byte[] output = new byte[AesSiv.outputSize(nonce.length, txt.length)];
+
+            try {
+                AesSiv.encrypt(version, key.sivKeys(), key.sivMacCipher(), key.sivCtrCipher(), aad, nonce, txt, 0, txt.length, output, 0);
+            } catch (ShortBufferException e) {
+                // the output is sized with outputSizeSIV, this can only happen if the size calculation is wrong
+                throw new RuntimeException(e);
+            }
+
+            return output;
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (metrics != null || event != null) {
+                record(metrics, event, CryptoMetrics.Operation.ENCRYPT, CryptoMetrics.Mode.SIV, key.keySize, CryptoBackends.JCE.name(), txt.length, start, failure);
+            }
+        }
+    }
+
+    public static final byte[] decryptSIV(Key.ExpandedKey key, byte[] encryptedMessage) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        return decryptSIV((byte) 0, key, encryptedMessage);
+    }
+
+    /**
+     * Decrypts messages from {@link #encryptSIV(byte, Key.ExpandedKey, byte[])} and {@link #encryptSIVDeterministic(byte, Key.ExpandedKey, byte[])}.
+     *
+     * @param version the version the message must have
+     * @param key the key used to encrypt the data
+     * @param encryptedMessage the encrypted data
+     * @return the decrypted data
+     * @throws SecurityException if the message could not be authenticated
+     * @throws NoSuchPaddingException
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidAlgorithmParameterException
+     * @throws InvalidKeyException
+     * @throws BadPaddingException
+     * @throws IllegalBlockSizeException
+     */
+    public static final byte[] decryptSIV(byte version, Key.ExpandedKey key, byte[] encryptedMessage) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        return decryptSIV(version, key, null, encryptedMessage);
+    }
+
+    /**
+     * Decrypts SIV messages that were encrypted with the associated data aad.
+     *
+     * @param aad the associated data the message was encrypted with, null or empty for none
+     * @throws SecurityException if the message or the aad could not be authenticated
+     */
+    public static final byte[] decryptSIV(byte version, Key.ExpandedKey key, byte[] aad, byte[] encryptedMessage) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        CryptoEvents.CipherEvent event = CryptoEvents.beginDecrypt();
+        long start = metrics == null ? 0 : System.nanoTime();
+        Throwable failure = null;
+
+        try {
+            int cipherTextPos = AesSiv.checkHeader(version, encryptedMessage, 0, encryptedMessage.length) + AesSiv.SIV_LENGTH;
+            byte[] output = new byte[encryptedMessage.length - cipherTextPos];
+
+            try {
+                AesSiv.decrypt(version, key.sivKeys(), key.sivMacCipher(), key.sivCtrCipher(), aad, encryptedMessage, 0, encryptedMessage.length, output, 0);
+            } catch (ShortBufferException e) {
+                // the output is sized from the message, this can only happen if the size calculation is wrong
+                throw new RuntimeException(e);
+            }
+
+            return output;
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (metrics != null || event != null) {
+                record(metrics, event, CryptoMetrics.Operation.DECRYPT, CryptoMetrics.Mode.SIV, key.keySize, CryptoBackends.JCE.name(), encryptedMessage.length, start, failure);
+            }
+        }
+    }
+
+    public static final byte[][] encryptGCMBatch(Key.ExpandedKey key, byte[][] messages) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        return encryptGCMBatch((byte) 0, null, key, messages);
+    }
+
+    /**
+     * Encrypts each message with {@link #encryptGCM(byte, String, Key.ExpandedKey, byte[])}.
+     * The cipher and key spec are created once for the batch and the ivs of all messages are filled with one random call.
+     */
+    public static final byte[][] encryptGCMBatch(byte version, String cipherProvider, Key.ExpandedKey key, byte[][] messages) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        final Cipher cipher = cipherProvider == null ? key.gcmCipher() : Cipher.getInstance(AES_GCM_CIPHER_LBL, cipherProvider);
+        final SecretKey encKey = key.encKeySpec();
+
+        byte[] ivs = new byte[messages.length * GCM_IV_LENGTH];
+        NonceSource.THREAD_LOCAL_RANDOM.nextNonces(ivs, 0, GCM_IV_LENGTH, messages.length);
+
+        byte[][] output = new byte[messages.length][];
+
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        String provider = cipherProvider == null ? CryptoBackends.JCE.name() : cipherProvider;
+
+        try {
+            for (int i = 0; i < messages.length; i++) {
+                byte[] txt = messages[i];
+                output[i] = new byte[outputSizeGCM(txt.length)];
+
+                CryptoEvents.CipherEvent event = CryptoEvents.beginEncrypt();
+                long start = metrics == null ? 0 : System.nanoTime();
+                Throwable failure = null;
+
+                try {
+                    encryptGCM(version, cipher, encKey, ivs, i * GCM_IV_LENGTH, null, txt, 0, txt.length, output[i], 0);
+                } catch (Throwable t) {
+                    failure = t;
+                    throw t;
+                } finally {
+                    if (metrics != null || event != null) {
+                        record(metrics, event, CryptoMetrics.Operation.ENCRYPT, CryptoMetrics.Mode.GCM, key.keySize, provider, txt.length, start, failure);
+                    }
+                }
+            }
+        } catch (ShortBufferException e) {
+            // the output is sized with outputSizeGCM, this can only happen if the size calculation is wrong
+            throw new RuntimeException(e);
+        }
+
+        return output;
+    }
+
+    /**
+     * Encrypts all messages into dst one after the other starting at dstOff,
+     * message i is written to dst[offsets[i]:offsets[i+1]].
+     *
+     * @param dst use {@link #outputSizeGCMBatch(byte[][])} to size the buffer
+     * @param offsets an array of at least messages.length + 1 entries that receives the message offsets
+     * @return the number of bytes written to dst
+     */
+    public static final int encryptGCMBatch(byte version, String cipherProvider, Key.ExpandedKey key, byte[][] messages, byte[] dst, int dstOff, int[] offsets) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException, ShortBufferException {
+        checkBatchOutput(outputSizeGCMBatch(messages), messages, dst, dstOff, offsets);
+
+        final Cipher cipher = cipherProvider == null ? key.gcmCipher() : Cipher.getInstance(AES_GCM_CIPHER_LBL, cipherProvider);
+        final SecretKey encKey = key.encKeySpec();
+
+        byte[] ivs = new byte[messages.length * GCM_IV_LENGTH];
+        NonceSource.THREAD_LOCAL_RANDOM.nextNonces(ivs, 0, GCM_IV_LENGTH, messages.length);
+
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        String provider = cipherProvider == null ? CryptoBackends.JCE.name() : cipherProvider;
+
+        int pos = dstOff;
+        for (int i = 0; i < messages.length; i++) {
+            byte[] txt = messages[i];
+
+            offsets[i] = pos;
+            CryptoEvents.CipherEvent event = CryptoEvents.beginEncrypt();
+            long start = metrics == null ? 0 : System.nanoTime();
+            Throwable failure = null;
+
+            try {
+                pos += encryptGCM(version, cipher, encKey, ivs, i * GCM_IV_LENGTH, null, txt, 0, txt.length, dst, pos);
+            } catch (Throwable t) {
+                failure = t;
+                throw t;
+            } finally {
+                if (metrics != null || event != null) {
+                    record(metrics, event, CryptoMetrics.Operation.ENCRYPT, CryptoMetrics.Mode.GCM, key.keySize, provider, txt.length, start, failure);
+                }
+            }
+        }
+        offsets[messages.length] = pos;
+
+        return pos - dstOff;
+    }
+
+    public static final byte[][] decryptGCMBatch(Key.ExpandedKey key, byte[][] encryptedMessages) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException {
+        return decryptGCMBatch((byte) 0, null, key, encryptedMessages);
+    }
+
+    /**
+     * Decrypts each message with {@link #decryptGCM(byte, String, Key.ExpandedKey, byte[])}, reusing the cipher and key spec.
+     */
+    public static final byte[][] decryptGCMBatch(byte version, String cipherProvider, Key.ExpandedKey key, byte[][] encryptedMessages) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException {
+        final Cipher cipher = cipherProvider == null ? key.gcmCipher() : Cipher.getInstance(AES_GCM_CIPHER_LBL, cipherProvider);
+        final SecretKey encKey = key.encKeySpec();
+
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        String provider = cipherProvider == null ? CryptoBackends.JCE.name() : cipherProvider;
+
+        byte[][] output = new byte[encryptedMessages.length][];
+        for (int i = 0; i < encryptedMessages.length; i++) {
+            CryptoEvents.CipherEvent event = CryptoEvents.beginDecrypt();
+            long start = metrics == null ? 0 : System.nanoTime();
+            Throwable failure = null;
+
+            try {
+                output[i] = decryptGCM(version, cipher, encKey, null, encryptedMessages[i]);
+            } catch (Throwable t) {
+                failure = t;
+                throw t;
+            } finally {
+                if (metrics != null || event != null) {
+                    record(metrics, event, CryptoMetrics.Operation.DECRYPT, CryptoMetrics.Mode.GCM, key.keySize, provider, encryptedMessages[i].length, start, failure);
+                }
+            }
+        }
+
+        return output;
+    }
+
+    /**
+     * Decrypts the messages written by {@link #encryptGCMBatch(byte, String, Key.ExpandedKey, byte[][], byte[], int, int[])},
+     * message i is read from src[offsets[i]:offsets[i+1]].
+     *
+     * @param count the number of messages
+     */
+    public static final byte[][] decryptGCMBatch(byte version, String cipherProvider, Key.ExpandedKey key, byte[] src, int[] offsets, int count) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException {
+        final Cipher cipher = cipherProvider == null ? key.gcmCipher() : Cipher.getInstance(AES_GCM_CIPHER_LBL, cipherProvider);
+        final SecretKey encKey = key.encKeySpec();
+
+        byte[][] output = new byte[count][];
+
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        String provider = cipherProvider == null ? CryptoBackends.JCE.name() : cipherProvider;
+
+        try {
+            for (int i = 0; i < count; i++) {
+                int len = offsets[i + 1] - offsets[i];
+
+                output[i] = new byte[decryptedSizeGCM(len)];
+                CryptoEvents.CipherEvent event = CryptoEvents.beginDecrypt();
+                long start = metrics == null ? 0 : System.nanoTime();
+                Throwable failure = null;
+
+                try {
+                    decryptGCM(version, cipher, encKey, null, src, offsets[i], len, output[i], 0);
+                } catch (Throwable t) {
+                    failure = t;
+                    throw t;
+                } finally {
+                    if (metrics != null || event != null) {
+                        record(metrics, event, CryptoMetrics.Operation.DECRYPT, CryptoMetrics.Mode.GCM, key.keySize, provider, len, start, failure);
+                    }
+                }
+            }
+        } catch (ShortBufferException e) {
+            // the output is sized with decryptedSizeGCM, this can only happen if the size calculation is wrong
+            throw new RuntimeException(e);
+        }
+
+        return output;
+    }
+
+    public static final byte[][] encryptCBCBatch(Key.ExpandedKey key, byte[][] messages) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        return encryptCBCBatch((byte) 0, null, key, messages);
+    }
+
+    /**
+     * Encrypts each message with {@link #encryptCBC(byte, String, Key.ExpandedKey, byte[])}.
+     * The cipher, hmac and key specs are created once for the batch and the ivs of all messages are filled with one random call.
+     */
+    public static final byte[][] encryptCBCBatch(byte version, String cipherProvider, Key.ExpandedKey key, byte[][] messages) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        final Cipher cipher = cipherProvider == null ? key.cbcCipher() : Cipher.getInstance(AES_CBC_CIPHER_LBL, cipherProvider);
+        final SecretKey encKey = key.encKeySpec();
+
+        Mac hmac = key.hmac();
+
+        byte[] ivs = new byte[messages.length * CBC_IV_LENGTH];
+        NonceSource.THREAD_LOCAL_RANDOM.nextNonces(ivs, 0, CBC_IV_LENGTH, messages.length);
+
+        byte[][] output = new byte[messages.length][];
+
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        String provider = cipherProvider == null ? CryptoBackends.JCE.name() : cipherProvider;
+
+        try {
+            for (int i = 0; i < messages.length; i++) {
+                byte[] txt = messages[i];
+                output[i] = new byte[outputSizeCBC(hmac.getMacLength(), txt.length)];
+
+                CryptoEvents.CipherEvent event = CryptoEvents.beginEncrypt();
+                long start = metrics == null ? 0 : System.nanoTime();
+                Throwable failure = null;
+
+                try {
+                    encryptCBC(version, cipher, encKey, hmac, ivs, i * CBC_IV_LENGTH, null, txt, 0, txt.length, output[i], 0);
+                } catch (Throwable t) {
+                    failure = t;
+                    throw t;
+                } finally {
+                    if (metrics != null || event != null) {
+                        record(metrics, event, CryptoMetrics.Operation.ENCRYPT, CryptoMetrics.Mode.CBC, key.keySize, provider, txt.length, start, failure);
+                    }
+                }
+            }
+        } catch (ShortBufferException e) {
+            // the output is sized with outputSizeCBC, this can only happen if the size calculation is wrong
+            throw new RuntimeException(e);
+        }
+
+        return output;
+    }
+
+    /**
+     * Encrypts all messages into dst one after the other starting at dstOff,
+     * message i is written to dst[offsets[i]:offsets[i+1]].
+     *
+     * @param dst use {@link #outputSizeCBCBatch(Key.KeySize, byte[][])} to size the buffer
+     * @param offsets an array of at least messages.length + 1 entries that receives the message offsets
+     * @return the number of bytes written to dst
+     */
+    public static final int encryptCBCBatch(byte version, String cipherProvider, Key.ExpandedKey key, byte[][] messages, byte[] dst, int dstOff, int[] offsets) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException, ShortBufferException {
+        checkBatchOutput(outputSizeCBCBatch(key.keySize, messages), messages, dst, dstOff, offsets);
+
+        final Cipher cipher = cipherProvider == null ? key.cbcCipher() : Cipher.getInstance(AES_CBC_CIPHER_LBL, cipherProvider);
+        final SecretKey encKey = key.encKeySpec();
+
+        Mac hmac = key.hmac();
+
+        byte[] ivs = new byte[messages.length * CBC_IV_LENGTH];
+        NonceSource.THREAD_LOCAL_RANDOM.nextNonces(ivs, 0, CBC_IV_LENGTH, messages.length);
+
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        String provider = cipherProvider == null ? CryptoBackends.JCE.name() : cipherProvider;
+
+        int pos = dstOff;
+        for (int i = 0; i < messages.length; i++) {
+            byte[] txt = messages[i];
+
+            offsets[i] = pos;
+            CryptoEvents.CipherEvent event = CryptoEvents.beginEncrypt();
+            long start = metrics == null ? 0 : System.nanoTime();
+            Throwable failure = null;
+
+            try {
+                pos += encryptCBC(version, cipher, encKey, hmac, ivs, i * CBC_IV_LENGTH, null, txt, 0, txt.length, dst, pos);
+            } catch (Throwable t) {
+                failure = t;
+                throw t;
+            } finally {
+                if (metrics != null || event != null) {
+                    record(metrics, event, CryptoMetrics.Operation.ENCRYPT, CryptoMetrics.Mode.CBC, key.keySize, provider, txt.length, start, failure);
+                }
+            }
+        }
+        offsets[messages.length] = pos;
+
+        return pos - dstOff;
+    }
+
+    public static final byte[][] decryptCBCBatch(Key.ExpandedKey key, byte[][] encryptedMessages) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException {
+        return decryptCBCBatch((byte) 0, null, key, encryptedMessages);
+    }
+
+    /**
+     * Decrypts each message with {@link #decryptCBC(byte, String, Key.ExpandedKey, byte[])}, reusing the cipher, hmac and key specs.
+     */
+    public static final byte[][] decryptCBCBatch(byte version, String cipherProvider, Key.ExpandedKey key, byte[][] encryptedMessages) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException {
+        final Cipher cipher = cipherProvider == null ? key.cbcCipher() : Cipher.getInstance(AES_CBC_CIPHER_LBL, cipherProvider);
+        final SecretKey encKey = key.encKeySpec();
+
+        Mac hmac = key.hmac();
+
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        String provider = cipherProvider == null ? CryptoBackends.JCE.name() : cipherProvider;
+
+        byte[][] output = new byte[encryptedMessages.length][];
+        for (int i = 0; i < encryptedMessages.length; i++) {
+            CryptoEvents.CipherEvent event = CryptoEvents.beginDecrypt();
+            long start = metrics == null ? 0 : System.nanoTime();
+            Throwable failure = null;
+
+            try {
+                output[i] = decryptCBC(version, cipher, encKey, hmac, key.keySize, null, encryptedMessages[i]);
+            } catch (Throwable t) {
+                failure = t;
+                throw t;
+            } finally {
+                if (metrics != null || event != null) {
+                    record(metrics, event, CryptoMetrics.Operation.DECRYPT, CryptoMetrics.Mode.CBC, key.keySize, provider, encryptedMessages[i].length, start, failure);
+                }
+            }
+        }
+
+        return output;
+    }
+
+    /**
+     * Encrypts with the active key of the key ring, see {@link KeyRing#encrypt(byte[])}.
+     */
+    public static final byte[] encrypt(KeyRing keyRing, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        return keyRing.encrypt(txt);
+    }
+
+    /**
+     * Decrypts with the key for the version in the first byte of the message, see {@link KeyRing#decrypt(byte[])}.
+     */
+    public static final byte[] decrypt(KeyRing keyRing, byte[] encryptedMessage) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        return keyRing.decrypt(encryptedMessage);
+    }
+
+    /**
+     * Records an operation in the metrics and the JFR event, either may be null.
+     */
+    static void record(CryptoMetrics.Listener metrics, CryptoEvents.CipherEvent event, CryptoMetrics.Operation operation, CryptoMetrics.Mode mode, Key.KeySize keySize, String provider, int bytes, long start, Throwable failure) {
+        if (metrics != null) {
+            CryptoMetrics.record(metrics, operation, mode, keySize, provider, bytes, start, failure);
+        }
+        if (event != null) {
+            event.end(mode, keySize, provider, bytes, failure);
+        }
+    }
+
+    /**
+     * The provider recorded by {@link CryptoMetrics} and {@link CryptoEvents}, the name of the selected backend if cipherProvider is null.
+     */
+    private static String metricsProvider(CryptoBackend.Mode mode, Key.KeySize keySize, String cipherProvider) {
+        return cipherProvider == null ? CryptoBackends.get(mode, keySize).name() : cipherProvider;
+    }
+
+    private static void checkBatchOutput(int size, byte[][] messages, byte[] dst, int dstOff, int[] offsets) throws ShortBufferException {
+        if (offsets.length < messages.length + 1) {
+            throw new IllegalArgumentException("offsets requires " + (messages.length + 1) + " entries");
+        }
+
+        if (dst.length - dstOff < size) {
+            throw new ShortBufferException("Output buffer requires " + size + " bytes");
+        }
+    }
+
+    /**
+     * The exact size of a CBC message for a plain text of len bytes.
+     * Use to size the output buffer for the offset and ByteBuffer encrypt functions of {@link AesEngine}.
+     */
+    public static final int outputSizeCBC(Key.KeySize keySize, int len) {
+        return outputSizeCBC(keySize.getHMacSizeBytes(), len);
+    }
+
+    /**
+     * The exact size of a GCM message for a plain text of len bytes.
+     * Use to size the output buffer for the offset and ByteBuffer encrypt functions of {@link AesEngine}.
+     */
+    public static final int outputSizeGCM(int len) {
+        return 1 + 1 + GCM_IV_LENGTH + len + GCM_TAG_LENGTH_BITS / 8;
+    }
+
+    /**
+     * The exact size of a {@link #encryptSIV(byte, Key.ExpandedKey, byte[])} message for a plain text of len bytes.
+     */
+    public static final int outputSizeSIV(int len) {
+        return AesSiv.outputSize(SIV_NONCE_LENGTH, len);
+    }
+
+    /**
+     * The exact size of a {@link #encryptSIVDeterministic(byte, Key.ExpandedKey, byte[])} message for a plain text of len bytes.
+     */
+    public static final int outputSizeSIVDeterministic(int len) {
+        return AesSiv.outputSize(0, len);
+    }
+
+    /**
+     * The total size of the contiguous output of {@link #encryptCBCBatch(byte, String, Key.ExpandedKey, byte[][], byte[], int, int[])}.
+     */
+    public static final int outputSizeCBCBatch(Key.KeySize keySize, byte[][] messages) {
+        long size = 0;
+        for (byte[] txt : messages) {
+            size += outputSizeCBC(keySize, txt.length);
+        }
+        return batchSize(size);
+    }
+
+    /**
+     * The total size of the contiguous output of {@link #encryptGCMBatch(byte, String, Key.ExpandedKey, byte[][], byte[], int, int[])}.
+     */
+    public static final int outputSizeGCMBatch(byte[][] messages) {
+        long size = 0;
+        for (byte[] txt : messages) {
+            size += outputSizeGCM(txt.length);
+        }
+        return batchSize(size);
+    }
+
+    private static int batchSize(long size) {
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The batch output of " + size + " bytes does not fit into a byte array");
+        }
+        return (int) size;
+    }
+
+    /**
+     * The maximum plain text size of a CBC message of len bytes, the padding makes the exact size only known after decryption.
+     */
+    public static final int maxDecryptedSizeCBC(Key.KeySize keySize, int len) {
+        return Math.max(0, len - (1 + 1 + CBC_IV_LENGTH + 1 + keySize.getHMacSizeBytes()));
+    }
+
+    /**
+     * The exact plain text size of a GCM message of len bytes.
+     */
+    public static final int decryptedSizeGCM(int len) {
+        return Math.max(0, len - outputSizeGCM(0));
+    }
+
+    private static int outputSizeCBC(int macLength, int len) {
+        // PKCS5 padding always adds between 1 and 16 bytes
+        return 1 + 1 + CBC_IV_LENGTH + 1 + macLength + (len / 16 + 1) * 16;
+    }
+
+    static ByteBuffer wrap(byte[] aad) {
+        return aad == null ? null : ByteBuffer.wrap(aad);
+    }
+
+    /**
+     * Adds the remaining bytes of aad to the GCM tag, the position of aad is not changed.
+     */
+    static void updateAAD(Cipher cipher, ByteBuffer aad) {
+        if (aad != null && aad.hasRemaining()) {
+            int position = aad.position();
+            cipher.updateAAD(aad);
+            Buffers.position(aad, position);
+        }
+    }
+
+    /**
+     * Adds the length and the remaining bytes of aad to the hmac, the position of aad is not changed.
+     * The length makes sure the aad can't be moved into the iv, no aad leaves the hmac as it was without aad.
+     */
+    static void updateAAD(Mac hmac, ByteBuffer aad) {
+        if (aad != null && aad.hasRemaining()) {
+            long len = aad.remaining();
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                hmac.update((byte) (len >>> shift));
+            }
+            Buffers.update(hmac, aad, aad.position(), aad.limit());
+        }
+    }
+
+    static void updateAAD(DigestHmac hmac, ByteBuffer aad) {
+        if (aad != null && aad.hasRemaining()) {
+            long len = aad.remaining();
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                hmac.update((byte) (len >>> shift));
+            }
+            hmac.update(aad, aad.position(), aad.limit());
+        }
+    }
+
+    /**
+     * Constant time comparison of mac[0:len] with buff[off:off+len], same as {@link MessageDigest#isEqual(byte[], byte[])}
+     * but without having to copy the mac out of the message first.
+     */
+    static boolean isEqual(byte[] mac, byte[] buff, int off, int len) {
+        int result = 0;
+        for (int i = 0; i < len; i++) {
+            result |= mac[i] ^ buff[off + i];
+        }
+        return result == 0;
+    }
+
+    static boolean isEqual(byte[] mac, ByteBuffer buff, int off, int len) {
+        int result = 0;
+        for (int i = 0; i < len; i++) {
+            result |= mac[i] ^ buff.get(off + i);
+        }
+        return result == 0;
     }
 
 }
@@ -0,0 +1,144 @@
+package crypto;
+
+import javax.crypto.*;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+
+/**
+ * The authenticated encryption algorithms, selectable by name and usable per version in a {@link KeyRing}.
+ * <p>
+ * AES GCM and ChaCha20-Poly1305 have the [ version, nonce-len, nonce, encrypted-text-and-tag ] message layout.
+ * Choose per host, e.g. from configuration with {@code Aead.valueOf(name)}, ChaCha20-Poly1305 is the better choice
+ * on hosts without AES instructions. The messages of the two algorithms have the same size but can't be read by the other.
+ * <p>
+ * {@link #AES_CBC_HMAC} and {@link #AES_SIV} are the messages of {@link AES#encryptCBC(byte, Key.ExpandedKey, byte[])}
+ * and {@link AES#encryptSIV(byte, Key.ExpandedKey, byte[])}, e.g. to keep reading and re-encrypt data written before
+ * GCM was used. A CBC message's size depends on the key size, use {@link #outputSize(Key.KeySize, int)} for it.
+ */
+public enum Aead {
+    AES_GCM(AES.AES_GCM_CIPHER_LBL) {
+        @Override
+        public byte[] encrypt(byte version, Key.ExpandedKey key, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+            return AES.encryptGCM(version, key, txt);
+        }
+
+        @Override
+        public byte[] decrypt(byte version, Key.ExpandedKey key, byte[] encryptedMessage) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+            return AES.decryptGCM(version, key, encryptedMessage);
+        }
+    },
+    CHACHA20_POLY1305(ChaCha20Poly1305.CHACHA20_POLY1305_CIPHER_LBL) {
+        @Override
+        public byte[] encrypt(byte version, Key.ExpandedKey key, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+            return ChaCha20Poly1305.encrypt(version, key, txt);
+        }
+
+        @Override
+        public byte[] decrypt(byte version, Key.ExpandedKey key, byte[] encryptedMessage) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+            return ChaCha20Poly1305.decrypt(version, key, encryptedMessage);
+        }
+    },
+    AES_CBC_HMAC(AES.AES_CBC_CIPHER_LBL) {
+        @Override
+        public byte[] encrypt(byte version, Key.ExpandedKey key, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+            return AES.encryptCBC(version, key, txt);
+        }
+
+        @Override
+        public byte[] decrypt(byte version, Key.ExpandedKey key, byte[] encryptedMessage) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+            return AES.decryptCBC(version, key, encryptedMessage);
+        }
+
+        @Override
+        public int outputSize(Key.KeySize keySize, int len) {
+            return AES.outputSizeCBC(keySize, len);
+        }
+
+        /**
+         * @throws UnsupportedOperationException the size depends on the key size, use {@link #outputSize(Key.KeySize, int)}
+         */
+        @Override
+        public int outputSize(int len) {
+            throw new UnsupportedOperationException("The CBC message size depends on the key size");
+        }
+
+        /**
+         * @throws UnsupportedOperationException the padding makes the size only known after decryption,
+         *                                       see {@link AES#maxDecryptedSizeCBC(Key.KeySize, int)}
+         */
+        @Override
+        public int decryptedSize(int len) {
+            throw new UnsupportedOperationException("The CBC plain text size is only known after decryption");
+        }
+    },
+    AES_SIV(AesSiv.AES_CTR_CIPHER_LBL) {
+        @Override
+        public byte[] encrypt(byte version, Key.ExpandedKey key, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+            return AES.encryptSIV(version, key, txt);
+        }
+
+        @Override
+        public byte[] decrypt(byte version, Key.ExpandedKey key, byte[] encryptedMessage) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+            return AES.decryptSIV(version, key, encryptedMessage);
+        }
+
+        @Override
+        public int outputSize(int len) {
+            return AES.outputSizeSIV(len);
+        }
+
+        @Override
+        public int decryptedSize(int len) {
+            return Math.max(0, len - AES.outputSizeSIV(0));
+        }
+    };
+
+    private final String cipherLbl;
+
+    Aead(String cipherLbl) {
+        this.cipherLbl = cipherLbl;
+    }
+
+    public String cipherLbl() {
+        return cipherLbl;
+    }
+
+    /**
+     * @return true if the default provider has the cipher, ChaCha20-Poly1305 needs Java 11 or later
+     */
+    public boolean isAvailable() {
+        try {
+            Cipher.getInstance(cipherLbl);
+            return true;
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The exact size of a message for a plain text of len bytes, the same for AES GCM and ChaCha20-Poly1305.
+     */
+    public int outputSize(int len) {
+        return AES.outputSizeGCM(len);
+    }
+
+    /**
+     * The exact size of a message for a plain text of len bytes encrypted with a key of keySize, works for all algorithms.
+     */
+    public int outputSize(Key.KeySize keySize, int len) {
+        return outputSize(len);
+    }
+
+    /**
+     * The exact plain text size of a message of len bytes.
+     */
+    public int decryptedSize(int len) {
+        return AES.decryptedSizeGCM(len);
+    }
+
+    public abstract byte[] encrypt(byte version, Key.ExpandedKey key, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException;
+
+    public abstract byte[] decrypt(byte version, Key.ExpandedKey key, byte[] encryptedMessage) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException;
+}
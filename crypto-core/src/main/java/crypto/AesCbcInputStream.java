@@ -0,0 +1,280 @@
+package crypto;
+
+import javax.crypto.*;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+
+/**
+ * Decrypts a stream written by {@link AesCbcOutputStream} in a single pass, using a fixed size working buffer.
+ * <p>
+ * Each chunk of cipher text is fed to the HMAC and decrypted in the same pass. The last mac-len bytes
+ * read are held back as they may be the mac trailer.
+ * <p>
+ * Important: the mac can only be checked at the end of the stream, so plain text is returned before the data is
+ * authenticated. When the end of the stream throws a {@link SecurityException} everything read before must be
+ * discarded, every later read throws it again so the stream never ends cleanly. The padding of the last block is
+ * only checked after the mac, so a modified stream never gives a padding error. If each part must be authenticated
+ * before it is used, use {@link AesGcmInputStream}.
+ * <p>
+ * Can be used as an {@link InputStream} or a {@link ReadableByteChannel}. Not thread safe.
+ */
+public class AesCbcInputStream extends InputStream implements ReadableByteChannel {
+
+    private final InputStream in;
+    private final byte version;
+    private final Key.ExpandedKey key;
+
+    private final Cipher cipher;
+    private final Mac hmac;
+
+    private final int macLength;
+
+    /**
+     * Cipher text read from the stream, the last macLength bytes are kept back as they may be the mac.
+     */
+    private final byte[] encrypted;
+    private int count;
+
+    private final byte[] buffer;
+    private int pos;
+    private int limit;
+
+    private boolean started;
+    private boolean finished;
+    private boolean closed;
+
+    /**
+     * Why the header could not be read or the end of the stream could not be authenticated or decrypted,
+     * thrown again by every later read.
+     */
+    private Exception failure;
+
+    public AesCbcInputStream(InputStream in, Key.ExpandedKey key) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException {
+        this(in, (byte) 0, null, key);
+    }
+
+    public AesCbcInputStream(ReadableByteChannel in, byte version, Key.ExpandedKey key) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException {
+        this(Channels.newInputStream(in), version, null, key);
+    }
+
+    /**
+     * The header is only read on the first read call.
+     *
+     * @param in the encrypted stream, it is closed when this stream is closed
+     * @param version the version the data was encrypted with
+     * @param cipherProviderName a JCE provider name, null to use the default JCE provider
+     * @param key the key used to encrypt the data
+     */
+    public AesCbcInputStream(InputStream in, byte version, String cipherProviderName, Key.ExpandedKey key) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException {
+        this.in = in;
+        this.version = version;
+        this.key = key;
+
+        this.cipher = cipherProviderName == null ? Cipher.getInstance(AES.AES_CBC_CIPHER_LBL) : Cipher.getInstance(AES.AES_CBC_CIPHER_LBL, cipherProviderName);
+
+        this.hmac = key.newHmac();
+
+        this.macLength = hmac.getMacLength();
+
+        this.encrypted = new byte[AES.CHUNK_SIZE + macLength];
+        this.buffer = new byte[AES.CHUNK_SIZE + 2 * AES.CBC_IV_LENGTH];
+    }
+
+    @Override
+    public int read() throws IOException {
+        ensureOpen();
+
+        if (!fill()) {
+            return -1;
+        }
+
+        return buffer[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+
+        if (len == 0) {
+            return 0;
+        }
+
+        if (!fill()) {
+            return -1;
+        }
+
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(buffer, pos, b, off, n);
+        pos += n;
+
+        return n;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+
+        if (!fill()) {
+            return -1;
+        }
+
+        int n = Math.min(dst.remaining(), limit - pos);
+        dst.put(buffer, pos, n);
+        pos += n;
+
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return limit - pos;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            in.close();
+        }
+    }
+
+    /**
+     * Make sure there is plain text in the buffer, reading and decrypting the next chunk if needed.
+     *
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        if (failure instanceof SecurityException) {
+            throw (SecurityException) failure;
+        } else if (failure != null) {
+            throw new IOException(failure);
+        }
+
+        if (!started) {
+            try {
+                readHeader();
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+            started = true;
+        }
+
+        try {
+            while (pos == limit) {
+                if (finished) {
+                    return false;
+                }
+
+                pos = 0;
+                limit = 0;
+
+                int n = in.read(encrypted, count, encrypted.length - count);
+
+                if (n < 0) {
+                    try {
+                        finish();
+                    } catch (SecurityException | GeneralSecurityException e) {
+                        failure = e;
+                        throw e;
+                    }
+                } else {
+                    count += n;
+
+                    if (count > macLength) {
+                        // everything except the last macLength bytes is cipher text, mac and decrypt it in the same pass
+                        int len = count - macLength;
+
+                        hmac.update(encrypted, 0, len);
+                        limit = cipher.update(encrypted, 0, len, buffer, 0);
+
+                        System.arraycopy(encrypted, len, encrypted, 0, macLength);
+                        count = macLength;
+                    }
+                }
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+
+        return true;
+    }
+
+    private void finish() throws GeneralSecurityException {
+        if (count < macLength) {
+            throw new SecurityException("could not authenticate, the input is truncated");
+        }
+
+        byte[] refMac = hmac.doFinal();
+
+        // Important, we must use a constant time equals method to avoid side channel attacks.
+        if (!AES.isEqual(refMac, encrypted, 0, macLength)) {
+            throw new SecurityException("could not authenticate");
+        }
+
+        // only check the padding once the data is authenticated
+        limit = cipher.doFinal(buffer, 0);
+        finished = true;
+    }
+
+    private void readHeader() throws IOException {
+        byte[] header = new byte[1 + 1 + AES.CBC_IV_LENGTH + 1];
+
+        int total = 0;
+        while (total < header.length) {
+            int n = in.read(header, total, header.length - total);
+            if (n < 0) {
+                throw new EOFException("The stream is too short to contain a header");
+            }
+            total += n;
+        }
+
+        int cipherVersion = header[0];
+        if (cipherVersion != version) {
+            throw new IOException("Version " + version + " was expected but the cipher message has " + cipherVersion);
+        }
+
+        if (header[1] != AES.CBC_IV_LENGTH) { // check input parameter
+            throw new IOException("invalid iv length");
+        }
+
+        if (header[header.length - 1] != macLength) { // check input parameter
+            throw new IOException("invalid mac length");
+        }
+
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key.encKeySpec(), new IvParameterSpec(header, 2, AES.CBC_IV_LENGTH));
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+
+        hmac.update(header);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+}
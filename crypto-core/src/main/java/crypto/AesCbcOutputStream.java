@@ -0,0 +1,177 @@
+package crypto;
+
+import javax.crypto.*;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+
+/**
+ * Encrypts a stream of any length with AES CBC and HMAC in a single pass, using a fixed size working buffer.
+ * <p>
+ * Each chunk of cipher text is fed to the HMAC and written to the output straight away,
+ * the mac is written as a trailer when the stream is closed (encrypt then mac):
+ * <p>
+ * [ version:byte, iv-len:byte, iv:byte-array[iv-len], mac-len:byte, encrypted-text:byte-array, mac:byte-array[mac-len] ]
+ * <p>
+ * The mac covers the header and the cipher text. Use {@link AesCbcInputStream} to decrypt.
+ * This is not the same layout as {@link AES#encryptCBC}, which needs the mac before the cipher text.
+ * <p>
+ * Can be used as an {@link OutputStream} or a {@link WritableByteChannel}. Not thread safe.
+ */
+public class AesCbcOutputStream extends OutputStream implements WritableByteChannel {
+
+    private final OutputStream out;
+
+    private final Cipher cipher;
+    private final Mac hmac;
+
+    private final byte[] encrypted = new byte[AES.CHUNK_SIZE + AES.CBC_IV_LENGTH];
+    private final ByteBuffer encryptedBuffer = ByteBuffer.wrap(encrypted);
+    private final byte[] single = new byte[1];
+
+    private boolean closed;
+
+    public AesCbcOutputStream(OutputStream out, Key.ExpandedKey key) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException, InvalidAlgorithmParameterException, IOException {
+        this(out, (byte) 0, null, key);
+    }
+
+    public AesCbcOutputStream(WritableByteChannel out, byte version, Key.ExpandedKey key) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException, InvalidAlgorithmParameterException, IOException {
+        this(Channels.newOutputStream(out), version, null, key);
+    }
+
+    /**
+     * @param out the stream the encrypted data is written to, it is closed when this stream is closed
+     * @param version any custom version you want to add to the output
+     * @param cipherProviderName a JCE provider name, null to use the default JCE provider
+     * @param key the key to use for encryption and authentication
+     */
+    public AesCbcOutputStream(OutputStream out, byte version, String cipherProviderName, Key.ExpandedKey key) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException, InvalidAlgorithmParameterException, IOException {
+        this.out = out;
+
+        this.cipher = cipherProviderName == null ? Cipher.getInstance(AES.AES_CBC_CIPHER_LBL) : Cipher.getInstance(AES.AES_CBC_CIPHER_LBL, cipherProviderName);
+
+        this.hmac = key.newHmac();
+
+        byte[] iv = new byte[AES.CBC_IV_LENGTH];
+        NonceSource.THREAD_LOCAL_RANDOM.nextNonce(iv);
+
+        cipher.init(Cipher.ENCRYPT_MODE, key.encKeySpec(), new IvParameterSpec(iv));
+
+        byte[] header = new byte[1 + 1 + iv.length + 1];
+        int i = 0;
+        header[i++] = version;
+        header[i++] = (byte) iv.length;
+        System.arraycopy(iv, 0, header, i, iv.length);
+        i += iv.length;
+        header[i] = (byte) hmac.getMacLength();
+
+        hmac.update(header);
+        out.write(header);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+
+        try {
+            while (len > 0) {
+                int n = Math.min(len, AES.CHUNK_SIZE);
+
+                int encryptedLen = cipher.update(b, off, n, encrypted, 0);
+                writeEncrypted(encryptedLen);
+
+                off += n;
+                len -= n;
+            }
+        } catch (ShortBufferException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+
+        int written = src.remaining();
+        int limit = src.limit();
+
+        try {
+            while (src.hasRemaining()) {
+                Buffers.limit(src, Math.min(limit, src.position() + AES.CHUNK_SIZE));
+                Buffers.clear(encryptedBuffer);
+
+                int encryptedLen = cipher.update(src, encryptedBuffer);
+                Buffers.limit(src, limit);
+
+                writeEncrypted(encryptedLen);
+            }
+        } catch (ShortBufferException e) {
+            throw new IOException(e);
+        } finally {
+            Buffers.limit(src, limit);
+        }
+
+        return written;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Writes the last block and the mac trailer and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        try {
+            writeEncrypted(cipher.doFinal(encrypted, 0));
+            out.write(hmac.doFinal());
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeEncrypted(int len) throws IOException {
+        if (len > 0) {
+            hmac.update(encrypted, 0, len);
+            out.write(encrypted, 0, len);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+}
@@ -0,0 +1,570 @@
+package crypto;
+
+import javax.crypto.*;
+import javax.crypto.spec.IvParameterSpec;
+import java.nio.ByteBuffer;
+import java.security.*;
+
+/**
+ * Encrypts and decrypts with a single {@link Key.ExpandedKey}, reusing the Cipher and Mac instances.
+ * <p>
+ * {@link AES} looks up a new Cipher and Mac from the JCE providers and sets up the keys on every call,
+ * for small messages this costs more than the encryption itself.
+ * The engine creates them once per thread and reuses them for every message after that.
+ * <p>
+ * The messages written and read are exactly the same as those of {@link AES},
+ * a message encrypted with {@link AES#encryptGCM} can be decrypted with {@link #decryptGCM} and vice versa.
+ * <p>
+ * The offset and ByteBuffer functions write into a caller supplied buffer and return the number of bytes written,
+ * use {@link AES#outputSizeCBC(Key.KeySize, int)} and {@link AES#outputSizeGCM(int)} to size the output buffers.
+ * Apart from the JCE parameter specs (and a ByteBuffer view of an aad slice) they do not allocate, the iv and mac scratch arrays are kept per thread.
+ * CBC decryption into a byte array or heap buffer does not allocate at all once warm, the cipher is never re-initialised
+ * and the hmac runs on a MessageDigest. The JDK GCM cipher creates its internal state on every init, about 1KB per message.
+ * The source and destination must not overlap.
+ * <p>
+ * All functions have a variant that takes associated data (aad), e.g. headers that must be authenticated but stay
+ * in the clear. The aad is not part of the message and must be given again to decrypt.
+ * <p>
+ * GCM ivs come from the {@link NonceSource} given to the constructor, {@link NonceSource#THREAD_LOCAL_RANDOM} by default.
+ * A {@link CounterNonceSource} can be used as the engine is created per key. CBC ivs always come from a CSPRNG.
+ * <p>
+ * The engine is thread safe, create one per key and share it between threads.
+ */
+public class AesEngine {
+
+    private final Key.ExpandedKey key;
+    private final String cipherProviderName;
+    private final NonceSource gcmNonces;
+
+    private final SecretKey encKey;
+
+    /**
+     * The provider recorded by {@link CryptoMetrics} and {@link CryptoEvents}.
+     */
+    private final String metricsProvider;
+
+    private final ThreadLocal<State> state = new ThreadLocal<>();
+
+    public AesEngine(Key.ExpandedKey key) {
+        this(null, key);
+    }
+
+    /**
+     * @param cipherProviderName a JCE provider name, null to use the default JCE provider
+     * @param key the key used for encryption and authentication
+     */
+    public AesEngine(String cipherProviderName, Key.ExpandedKey key) {
+        this(cipherProviderName, key, NonceSource.THREAD_LOCAL_RANDOM);
+    }
+
+    /**
+     * @param cipherProviderName a JCE provider name, null to use the default JCE provider
+     * @param key the key used for encryption and authentication
+     * @param gcmNonces the source of the GCM ivs
+     */
+    public AesEngine(String cipherProviderName, Key.ExpandedKey key, NonceSource gcmNonces) {
+        this.key = key;
+        this.cipherProviderName = cipherProviderName;
+        this.gcmNonces = gcmNonces;
+
+        this.encKey = key.encKeySpec();
+        this.metricsProvider = cipherProviderName == null ? CryptoBackends.JCE.name() : cipherProviderName;
+    }
+
+    public Key.ExpandedKey getKey() {
+        return key;
+    }
+
+    public byte[] encryptCBC(byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        return encryptCBC((byte) 0, txt);
+    }
+
+    /**
+     * Same as {@link AES#encryptCBC(byte, Key.ExpandedKey, byte[])}
+     */
+    public byte[] encryptCBC(byte version, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        return encryptCBC(version, (ByteBuffer) null, txt);
+    }
+
+    /**
+     * Same as {@link AES#encryptCBC(byte, Key.ExpandedKey, byte[], byte[])}
+     */
+    public byte[] encryptCBC(byte version, byte[] aad, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        return encryptCBC(version, AES.wrap(aad), txt);
+    }
+
+    private byte[] encryptCBC(byte version, ByteBuffer aad, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        CryptoEvents.CipherEvent event = CryptoEvents.beginEncrypt();
+        long start = metrics == null ? 0 : System.nanoTime();
+        Throwable failure = null;
+
+        try {
+            State st = state();
+            return AES.encryptCBC(version, st.cbcCipher(), encKey, st.hmac(), aad, txt);
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (metrics != null || event != null) {
+                AES.record(metrics, event, CryptoMetrics.Operation.ENCRYPT, CryptoMetrics.Mode.CBC, key.keySize, metricsProvider, txt.length, start, failure);
+            }
+        }
+    }
+
+    /**
+     * Encrypts src[off:off+len] and writes the CBC message to dst starting at dstOff.
+     *
+     * @return the number of bytes written to dst, always {@link AES#outputSizeCBC(Key.KeySize, int)}
+     * @throws ShortBufferException if dst does not have enough space after dstOff
+     */
+    public int encryptCBC(byte version, byte[] src, int off, int len, byte[] dst, int dstOff) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException, ShortBufferException {
+        return encryptCBC(version, (ByteBuffer) null, src, off, len, dst, dstOff);
+    }
+
+    /**
+     * Same as {@link #encryptCBC(byte, byte[], int, int, byte[], int)}, the hmac also covers the associated data aad[aadOff:aadOff+aadLen].
+     */
+    public int encryptCBC(byte version, byte[] aad, int aadOff, int aadLen, byte[] src, int off, int len, byte[] dst, int dstOff) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException, ShortBufferException {
+        return encryptCBC(version, ByteBuffer.wrap(aad, aadOff, aadLen), src, off, len, dst, dstOff);
+    }
+
+    private int encryptCBC(byte version, ByteBuffer aad, byte[] src, int off, int len, byte[] dst, int dstOff) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException, ShortBufferException {
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        CryptoEvents.CipherEvent event = CryptoEvents.beginEncrypt();
+        long start = metrics == null ? 0 : System.nanoTime();
+        Throwable failure = null;
+
+        try {
+            State st = state();
+            return AES.encryptCBC(version, st.cbcCipher(), encKey, st.hmac(), st.cbcIv, aad, src, off, len, dst, dstOff);
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (metrics != null || event != null) {
+                AES.record(metrics, event, CryptoMetrics.Operation.ENCRYPT, CryptoMetrics.Mode.CBC, key.keySize, metricsProvider, len, start, failure);
+            }
+        }
+    }
+
+    /**
+     * Encrypts the remaining bytes of src and writes the CBC message at the position of dst.
+     * Both buffer positions are moved forward, heap and direct buffers are supported.
+     *
+     * @return the number of bytes written to dst
+     */
+    public int encryptCBC(byte version, ByteBuffer src, ByteBuffer dst) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException, ShortBufferException {
+        return encryptCBC(version, null, src, dst);
+    }
+
+    /**
+     * Same as {@link #encryptCBC(byte, ByteBuffer, ByteBuffer)}, the hmac also covers the remaining bytes of aad.
+     * The position of aad is not changed.
+     */
+    public int encryptCBC(byte version, ByteBuffer aad, ByteBuffer src, ByteBuffer dst) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException, ShortBufferException {
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        CryptoEvents.CipherEvent event = CryptoEvents.beginEncrypt();
+        int len = src.remaining();
+        long start = metrics == null ? 0 : System.nanoTime();
+        Throwable failure = null;
+
+        try {
+            State st = state();
+            return AES.encryptCBC(version, st.cbcCipher(), encKey, st.hmac(), st.cbcIv, st.mac, aad, src, dst);
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (metrics != null || event != null) {
+                AES.record(metrics, event, CryptoMetrics.Operation.ENCRYPT, CryptoMetrics.Mode.CBC, key.keySize, metricsProvider, len, start, failure);
+            }
+        }
+    }
+
+    public byte[] decryptCBC(byte[] encryptedMessage) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException {
+        return decryptCBC((byte) 0, encryptedMessage);
+    }
+
+    /**
+     * Same as {@link AES#decryptCBC(byte, Key.ExpandedKey, byte[])}
+     */
+    public byte[] decryptCBC(byte version, byte[] encryptedMessage) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException {
+        return decryptCBC(version, (ByteBuffer) null, encryptedMessage);
+    }
+
+    /**
+     * Same as {@link AES#decryptCBC(byte, Key.ExpandedKey, byte[], byte[])}
+     */
+    public byte[] decryptCBC(byte version, byte[] aad, byte[] encryptedMessage) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException {
+        return decryptCBC(version, AES.wrap(aad), encryptedMessage);
+    }
+
+    private byte[] decryptCBC(byte version, ByteBuffer aad, byte[] encryptedMessage) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException {
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        CryptoEvents.CipherEvent event = CryptoEvents.beginDecrypt();
+        long start = metrics == null ? 0 : System.nanoTime();
+        Throwable failure = null;
+
+        try {
+            State st = state();
+            return AES.decryptCBC(version, st.cbcCipher(), encKey, st.hmac(), key.keySize, aad, encryptedMessage);
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (metrics != null || event != null) {
+                AES.record(metrics, event, CryptoMetrics.Operation.DECRYPT, CryptoMetrics.Mode.CBC, key.keySize, metricsProvider, encryptedMessage.length, start, failure);
+            }
+        }
+    }
+
+    /**
+     * Decrypts the CBC message in src[off:off+len] and writes the plain text to dst starting at dstOff.
+     * dst must have at least {@link AES#maxDecryptedSizeCBC(Key.KeySize, int)} bytes available.
+     *
+     * @return the number of bytes written to dst
+     */
+    public int decryptCBC(byte version, byte[] src, int off, int len, byte[] dst, int dstOff) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException, ShortBufferException {
+        return decryptCBC(version, (ByteBuffer) null, src, off, len, dst, dstOff);
+    }
+
+    /**
+     * Same as {@link #decryptCBC(byte, byte[], int, int, byte[], int)} for a message encrypted with the associated data aad[aadOff:aadOff+aadLen].
+     */
+    public int decryptCBC(byte version, byte[] aad, int aadOff, int aadLen, byte[] src, int off, int len, byte[] dst, int dstOff) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException, ShortBufferException {
+        return decryptCBC(version, ByteBuffer.wrap(aad, aadOff, aadLen), src, off, len, dst, dstOff);
+    }
+
+    private int decryptCBC(byte version, ByteBuffer aad, byte[] src, int off, int len, byte[] dst, int dstOff) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException, ShortBufferException {
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        CryptoEvents.CipherEvent event = CryptoEvents.beginDecrypt();
+        long start = metrics == null ? 0 : System.nanoTime();
+        Throwable failure = null;
+
+        try {
+            State st = state();
+            return AES.decryptCBC(version, st.zeroIvCbcCipher(), st.digestHmac(), key.keySize, st.mac, aad, src, off, len, dst, dstOff);
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (metrics != null || event != null) {
+                AES.record(metrics, event, CryptoMetrics.Operation.DECRYPT, CryptoMetrics.Mode.CBC, key.keySize, metricsProvider, len, start, failure);
+            }
+        }
+    }
+
+    /**
+     * Decrypts the remaining bytes of src as a CBC message and writes the plain text at the position of dst.
+     * Both buffer positions are moved forward.
+     *
+     * @return the number of bytes written to dst
+     */
+    public int decryptCBC(byte version, ByteBuffer src, ByteBuffer dst) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException, ShortBufferException {
+        return decryptCBC(version, null, src, dst);
+    }
+
+    /**
+     * Same as {@link #decryptCBC(byte, ByteBuffer, ByteBuffer)} for a message encrypted with the remaining bytes of aad.
+     * The position of aad is not changed.
+     */
+    public int decryptCBC(byte version, ByteBuffer aad, ByteBuffer src, ByteBuffer dst) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException, ShortBufferException {
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        CryptoEvents.CipherEvent event = CryptoEvents.beginDecrypt();
+        int len = src.remaining();
+        long start = metrics == null ? 0 : System.nanoTime();
+        Throwable failure = null;
+
+        try {
+            State st = state();
+            return AES.decryptCBC(version, st.zeroIvCbcCipher(), st.digestHmac(), key.keySize, st.mac, aad, src, dst);
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (metrics != null || event != null) {
+                AES.record(metrics, event, CryptoMetrics.Operation.DECRYPT, CryptoMetrics.Mode.CBC, key.keySize, metricsProvider, len, start, failure);
+            }
+        }
+    }
+
+    public byte[] encryptGCM(byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        return encryptGCM((byte) 0, txt);
+    }
+
+    /**
+     * Same as {@link AES#encryptGCM(byte, Key.ExpandedKey, byte[])}
+     */
+    public byte[] encryptGCM(byte version, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        return encryptGCM(version, (ByteBuffer) null, txt);
+    }
+
+    /**
+     * Same as {@link AES#encryptGCM(byte, Key.ExpandedKey, byte[], byte[])}
+     */
+    public byte[] encryptGCM(byte version, byte[] aad, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        return encryptGCM(version, AES.wrap(aad), txt);
+    }
+
+    private byte[] encryptGCM(byte version, ByteBuffer aad, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        CryptoEvents.CipherEvent event = CryptoEvents.beginEncrypt();
+        long start = metrics == null ? 0 : System.nanoTime();
+        Throwable failure = null;
+
+        try {
+            return AES.encryptGCM(version, state().gcmCipher(), encKey, gcmNonces, aad, txt);
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (metrics != null || event != null) {
+                AES.record(metrics, event, CryptoMetrics.Operation.ENCRYPT, CryptoMetrics.Mode.GCM, key.keySize, metricsProvider, txt.length, start, failure);
+            }
+        }
+    }
+
+    /**
+     * Encrypts src[off:off+len] and writes the GCM message to dst starting at dstOff.
+     *
+     * @return the number of bytes written to dst, always {@link AES#outputSizeGCM(int)}
+     * @throws ShortBufferException if dst does not have enough space after dstOff
+     */
+    public int encryptGCM(byte version, byte[] src, int off, int len, byte[] dst, int dstOff) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException, ShortBufferException {
+        return encryptGCM(version, (ByteBuffer) null, src, off, len, dst, dstOff);
+    }
+
+    /**
+     * Same as {@link #encryptGCM(byte, byte[], int, int, byte[], int)}, also authenticates the associated data aad[aadOff:aadOff+aadLen].
+     */
+    public int encryptGCM(byte version, byte[] aad, int aadOff, int aadLen, byte[] src, int off, int len, byte[] dst, int dstOff) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException, ShortBufferException {
+        return encryptGCM(version, ByteBuffer.wrap(aad, aadOff, aadLen), src, off, len, dst, dstOff);
+    }
+
+    private int encryptGCM(byte version, ByteBuffer aad, byte[] src, int off, int len, byte[] dst, int dstOff) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException, ShortBufferException {
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        CryptoEvents.CipherEvent event = CryptoEvents.beginEncrypt();
+        long start = metrics == null ? 0 : System.nanoTime();
+        Throwable failure = null;
+
+        try {
+            State st = state();
+            return AES.encryptGCM(version, st.gcmCipher(), encKey, gcmNonces, st.gcmIv, aad, src, off, len, dst, dstOff);
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (metrics != null || event != null) {
+                AES.record(metrics, event, CryptoMetrics.Operation.ENCRYPT, CryptoMetrics.Mode.GCM, key.keySize, metricsProvider, len, start, failure);
+            }
+        }
+    }
+
+    /**
+     * Encrypts the remaining bytes of src and writes the GCM message at the position of dst.
+     * Both buffer positions are moved forward, heap and direct buffers are supported.
+     *
+     * @return the number of bytes written to dst
+     */
+    public int encryptGCM(byte version, ByteBuffer src, ByteBuffer dst) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException, ShortBufferException {
+        return encryptGCM(version, null, src, dst);
+    }
+
+    /**
+     * Same as {@link #encryptGCM(byte, ByteBuffer, ByteBuffer)}, also authenticates the remaining bytes of aad.
+     * The position of aad is not changed.
+     */
+    public int encryptGCM(byte version, ByteBuffer aad, ByteBuffer src, ByteBuffer dst) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException, ShortBufferException {
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        CryptoEvents.CipherEvent event = CryptoEvents.beginEncrypt();
+        int len = src.remaining();
+        long start = metrics == null ? 0 : System.nanoTime();
+        Throwable failure = null;
+
+        try {
+            State st = state();
+            return AES.encryptGCM(version, st.gcmCipher(), encKey, gcmNonces, st.gcmIv, aad, src, dst);
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (metrics != null || event != null) {
+                AES.record(metrics, event, CryptoMetrics.Operation.ENCRYPT, CryptoMetrics.Mode.GCM, key.keySize, metricsProvider, len, start, failure);
+            }
+        }
+    }
+
+    public byte[] decryptGCM(byte[] encryptedMessage) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException {
+        return decryptGCM((byte) 0, encryptedMessage);
+    }
+
+    /**
+     * Same as {@link AES#decryptGCM(byte, Key.ExpandedKey, byte[])}
+     */
+    public byte[] decryptGCM(byte version, byte[] encryptedMessage) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException {
+        return decryptGCM(version, (ByteBuffer) null, encryptedMessage);
+    }
+
+    /**
+     * Same as {@link AES#decryptGCM(byte, Key.ExpandedKey, byte[], byte[])}
+     */
+    public byte[] decryptGCM(byte version, byte[] aad, byte[] encryptedMessage) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException {
+        return decryptGCM(version, AES.wrap(aad), encryptedMessage);
+    }
+
+    private byte[] decryptGCM(byte version, ByteBuffer aad, byte[] encryptedMessage) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException {
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        CryptoEvents.CipherEvent event = CryptoEvents.beginDecrypt();
+        long start = metrics == null ? 0 : System.nanoTime();
+        Throwable failure = null;
+
+        try {
+            return AES.decryptGCM(version, state().gcmCipher(), encKey, aad, encryptedMessage);
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (metrics != null || event != null) {
+                AES.record(metrics, event, CryptoMetrics.Operation.DECRYPT, CryptoMetrics.Mode.GCM, key.keySize, metricsProvider, encryptedMessage.length, start, failure);
+            }
+        }
+    }
+
+    /**
+     * Decrypts the GCM message in src[off:off+len] and writes the plain text to dst starting at dstOff.
+     * dst must have at least {@link AES#decryptedSizeGCM(int)} bytes available.
+     *
+     * @return the number of bytes written to dst
+     */
+    public int decryptGCM(byte version, byte[] src, int off, int len, byte[] dst, int dstOff) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException, ShortBufferException {
+        return decryptGCM(version, (ByteBuffer) null, src, off, len, dst, dstOff);
+    }
+
+    /**
+     * Same as {@link #decryptGCM(byte, byte[], int, int, byte[], int)} for a message encrypted with the associated data aad[aadOff:aadOff+aadLen].
+     */
+    public int decryptGCM(byte version, byte[] aad, int aadOff, int aadLen, byte[] src, int off, int len, byte[] dst, int dstOff) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException, ShortBufferException {
+        return decryptGCM(version, ByteBuffer.wrap(aad, aadOff, aadLen), src, off, len, dst, dstOff);
+    }
+
+    private int decryptGCM(byte version, ByteBuffer aad, byte[] src, int off, int len, byte[] dst, int dstOff) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException, ShortBufferException {
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        CryptoEvents.CipherEvent event = CryptoEvents.beginDecrypt();
+        long start = metrics == null ? 0 : System.nanoTime();
+        Throwable failure = null;
+
+        try {
+            return AES.decryptGCM(version, state().gcmCipher(), encKey, aad, src, off, len, dst, dstOff);
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (metrics != null || event != null) {
+                AES.record(metrics, event, CryptoMetrics.Operation.DECRYPT, CryptoMetrics.Mode.GCM, key.keySize, metricsProvider, len, start, failure);
+            }
+        }
+    }
+
+    /**
+     * Decrypts the remaining bytes of src as a GCM message and writes the plain text at the position of dst.
+     * Both buffer positions are moved forward.
+     *
+     * @return the number of bytes written to dst
+     */
+    public int decryptGCM(byte version, ByteBuffer src, ByteBuffer dst) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException, ShortBufferException {
+        return decryptGCM(version, null, src, dst);
+    }
+
+    /**
+     * Same as {@link #decryptGCM(byte, ByteBuffer, ByteBuffer)} for a message encrypted with the remaining bytes of aad.
+     * The position of aad is not changed.
+     */
+    public int decryptGCM(byte version, ByteBuffer aad, ByteBuffer src, ByteBuffer dst) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException, ShortBufferException {
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        CryptoEvents.CipherEvent event = CryptoEvents.beginDecrypt();
+        int len = src.remaining();
+        long start = metrics == null ? 0 : System.nanoTime();
+        Throwable failure = null;
+
+        try {
+            State st = state();
+            return AES.decryptGCM(version, st.gcmCipher(), encKey, st.gcmIv, aad, src, dst);
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (metrics != null || event != null) {
+                AES.record(metrics, event, CryptoMetrics.Operation.DECRYPT, CryptoMetrics.Mode.GCM, key.keySize, metricsProvider, len, start, failure);
+            }
+        }
+    }
+
+    private State state() {
+        State st = state.get();
+        if (st == null) {
+            st = new State();
+            state.set(st);
+        }
+        return st;
+    }
+
+    /**
+     * The Cipher and Mac instances and scratch arrays of a single thread, the instances are only created the first time they are used.
+     */
+    private final class State {
+        private final byte[] cbcIv = new byte[AES.CBC_IV_LENGTH];
+        private final byte[] gcmIv = new byte[AES.GCM_IV_LENGTH];
+        private final byte[] mac = new byte[key.keySize.getHMacSizeBytes()];
+
+        private Cipher cbcCipher;
+        private Cipher gcmCipher;
+        private Mac hmac;
+        private Cipher zeroIvCbcCipher;
+        private DigestHmac digestHmac;
+
+        Cipher cbcCipher() throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException {
+            if (cbcCipher == null) {
+                cbcCipher = newCipher(AES.AES_CBC_CIPHER_LBL);
+            }
+            return cbcCipher;
+        }
+
+        Cipher gcmCipher() throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException {
+            if (gcmCipher == null) {
+                gcmCipher = newCipher(AES.AES_GCM_CIPHER_LBL);
+            }
+            return gcmCipher;
+        }
+
+        Mac hmac() throws NoSuchAlgorithmException, InvalidKeyException {
+            if (hmac == null) {
+                hmac = key.newHmac();
+            }
+            return hmac;
+        }
+
+        /**
+         * Kept initialised with a zero iv, see {@link AES#decryptCBC(byte, Cipher, DigestHmac, Key.KeySize, byte[], ByteBuffer, byte[], int, int, byte[], int)}.
+         */
+        Cipher zeroIvCbcCipher() throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException, InvalidAlgorithmParameterException {
+            if (zeroIvCbcCipher == null) {
+                Cipher cipher = newCipher(AES.AES_CBC_NO_PADDING_CIPHER_LBL);
+                cipher.init(Cipher.DECRYPT_MODE, encKey, new IvParameterSpec(new byte[AES.CBC_IV_LENGTH]));
+                zeroIvCbcCipher = cipher;
+            }
+            return zeroIvCbcCipher;
+        }
+
+        DigestHmac digestHmac() throws NoSuchAlgorithmException {
+            if (digestHmac == null) {
+                digestHmac = new DigestHmac(key.keySize, key.authKey);
+            }
+            return digestHmac;
+        }
+
+        private Cipher newCipher(String lbl) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException {
+            return cipherProviderName == null ? Cipher.getInstance(lbl) : Cipher.getInstance(lbl, cipherProviderName);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+
+/**
+ * Decrypts a stream written by {@link AesGcmOutputStream}, using a fixed amount of memory.
+ * <p>
+ * Each segment is authenticated before any of its plain text is returned.
+ * A {@link SecurityException} is thrown when a segment was modified, reordered or dropped,
+ * or when the stream was truncated. Plain text from the segments before a failed segment has
+ * already been returned, discard everything read from the stream when this happens.
+ * <p>
+ * Can be used as an {@link InputStream} or a {@link ReadableByteChannel}. Not thread safe.
+ */
+public class AesGcmInputStream extends InputStream implements ReadableByteChannel {
+
+    private final InputStream in;
+    private final byte version;
+
+    private final Cipher cipher;
+    private final SecretKey encKey;
+
+    private final byte[] header = new byte[GcmSegments.HEADER_LENGTH];
+    private final byte[] nonce = new byte[AES.GCM_IV_LENGTH];
+
+    private byte[] buffer;
+    private byte[] encrypted;
+
+    private int pos;
+    private int limit;
+
+    /**
+     * Bytes already read into encrypted, this is the one byte read ahead to find the last segment.
+     */
+    private int pending;
+    private long segment;
+    private boolean lastSegment;
+
+    private boolean closed;
+
+    public AesGcmInputStream(InputStream in, Key.ExpandedKey key) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException {
+        this(in, (byte) 0, key);
+    }
+
+    public AesGcmInputStream(InputStream in, byte version, Key.ExpandedKey key) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException {
+        this(in, version, null, key);
+    }
+
+    public AesGcmInputStream(ReadableByteChannel in, byte version, Key.ExpandedKey key) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException {
+        this(Channels.newInputStream(in), version, null, key);
+    }
+
+    /**
+     * The header is only read on the first read call.
+     *
+     * @param in the encrypted stream, it is closed when this stream is closed
+     * @param version the version the data was encrypted with
+     * @param cipherProviderName a JCE provider name, null to use the default JCE provider
+     * @param key the key used to encrypt the data
+     */
+    public AesGcmInputStream(InputStream in, byte version, String cipherProviderName, Key.ExpandedKey key) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException {
+        this.in = in;
+        this.version = version;
+        this.cipher = cipherProviderName == null ? Cipher.getInstance(AES.AES_GCM_CIPHER_LBL) : Cipher.getInstance(AES.AES_GCM_CIPHER_LBL, cipherProviderName);
+        this.encKey = key.encKeySpec();
+    }
+
+    @Override
+    public int read() throws IOException {
+        ensureOpen();
+
+        if (!fill()) {
+            return -1;
+        }
+
+        return buffer[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+
+        if (len == 0) {
+            return 0;
+        }
+
+        if (!fill()) {
+            return -1;
+        }
+
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(buffer, pos, b, off, n);
+        pos += n;
+
+        return n;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+
+        if (!fill()) {
+            return -1;
+        }
+
+        int n = Math.min(dst.remaining(), limit - pos);
+        dst.put(buffer, pos, n);
+        pos += n;
+
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        ensureOpen();
+
+        long skipped = 0;
+
+        while (skipped < n && fill()) {
+            int k = (int) Math.min(n - skipped, limit - pos);
+            pos += k;
+            skipped += k;
+        }
+
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return limit - pos;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            in.close();
+        }
+    }
+
+    /**
+     * Make sure there is plain text in the buffer, decrypting the next segment if needed.
+     *
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        while (pos == limit) {
+            if (lastSegment) {
+                return false;
+            }
+
+            if (buffer == null) {
+                readHeader();
+            }
+
+            readSegment();
+        }
+
+        return true;
+    }
+
+    private void readHeader() throws IOException {
+        int n = readFully(header, 0, header.length);
+        if (n < header.length) {
+            throw new EOFException("The stream is too short to contain a header");
+        }
+
+        int segmentSize = GcmSegments.checkHeader(version, header);
+
+        buffer = new byte[segmentSize];
+        // one extra byte to look ahead and find out if a segment is the last one
+        encrypted = new byte[segmentSize + GcmSegments.TAG_LENGTH + 1];
+    }
+
+    private void readSegment() throws IOException {
+        int segmentLength = encrypted.length - 1;
+
+        pending += readFully(encrypted, pending, encrypted.length - pending);
+
+        boolean last = pending <= segmentLength;
+        int len = last ? pending : segmentLength;
+
+        try {
+            limit = GcmSegments.decryptSegment(cipher, encKey, header, nonce, segment, last, encrypted, 0, len, buffer, 0);
+            pos = 0;
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+
+        segment++;
+
+        if (last) {
+            lastSegment = true;
+            pending = 0;
+        } else {
+            encrypted[0] = encrypted[segmentLength];
+            pending = 1;
+        }
+    }
+
+    private int readFully(byte[] b, int off, int len) throws IOException {
+        int total = 0;
+
+        while (total < len) {
+            int n = in.read(b, off + total, len - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+
+        return total;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+
+/**
+ * Encrypts a stream of any length with AES GCM, using a fixed amount of memory.
+ * <p>
+ * The plain text is split into segments of segment-size bytes that are each encrypted and authenticated,
+ * the output is:
+ * <p>
+ * [ version:byte, iv-len:byte, iv:byte-array[iv-len], segment-size:int, segment-0, segment-1, ..., segment-n ]
+ * <p>
+ * Each segment has its own nonce derived from the iv and the segment number. Use {@link AesGcmInputStream} to decrypt.
+ * <p>
+ * The last segment is only written on {@link #close()}, a stream that is not closed cannot be decrypted.
+ * {@link #flush()} only flushes the segments already written, it does not end the current segment.
+ * <p>
+ * Can be used as an {@link OutputStream} or a {@link WritableByteChannel}. Not thread safe.
+ */
+public class AesGcmOutputStream extends OutputStream implements WritableByteChannel {
+
+    public static final int DEFAULT_SEGMENT_SIZE = GcmSegments.DEFAULT_SEGMENT_SIZE;
+
+    private final OutputStream out;
+
+    private final Cipher cipher;
+    private final SecretKey encKey;
+
+    private final byte[] header;
+    private final byte[] nonce = new byte[AES.GCM_IV_LENGTH];
+
+    private final byte[] buffer;
+    private final byte[] encrypted;
+
+    private int count;
+    private long segment;
+
+    private boolean closed;
+
+    public AesGcmOutputStream(OutputStream out, Key.ExpandedKey key) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, IOException {
+        this(out, (byte) 0, key);
+    }
+
+    public AesGcmOutputStream(OutputStream out, byte version, Key.ExpandedKey key) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, IOException {
+        this(out, version, null, key, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public AesGcmOutputStream(WritableByteChannel out, byte version, Key.ExpandedKey key) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, IOException {
+        this(Channels.newOutputStream(out), version, null, key, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param out the stream the encrypted data is written to, it is closed when this stream is closed
+     * @param version any custom version you want to add to the output
+     * @param cipherProviderName a JCE provider name, null to use the default JCE provider
+     * @param key the key to use for encryption
+     * @param segmentSize the plain text bytes per segment, each segment adds a 16 byte tag.
+     *                    The memory used is roughly twice the segment size.
+     */
+    public AesGcmOutputStream(OutputStream out, byte version, String cipherProviderName, Key.ExpandedKey key, int segmentSize) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, IOException {
+        this.out = out;
+        this.cipher = cipherProviderName == null ? Cipher.getInstance(AES.AES_GCM_CIPHER_LBL) : Cipher.getInstance(AES.AES_GCM_CIPHER_LBL, cipherProviderName);
+        this.encKey = key.encKeySpec();
+
+        this.header = GcmSegments.newHeader(version, segmentSize);
+
+        this.buffer = new byte[segmentSize];
+        this.encrypted = new byte[segmentSize + GcmSegments.TAG_LENGTH];
+
+        out.write(header);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+
+        if (count == buffer.length) {
+            writeSegment(buffer, 0, count, false);
+            count = 0;
+        }
+
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+
+        while (len > 0) {
+            if (count == buffer.length) {
+                writeSegment(buffer, 0, count, false);
+                count = 0;
+            }
+
+            if (count == 0 && len > buffer.length) {
+                // a full segment with more data following, encrypt directly from the input
+                writeSegment(b, off, buffer.length, false);
+                off += buffer.length;
+                len -= buffer.length;
+                continue;
+            }
+
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+
+        int written = src.remaining();
+
+        while (src.hasRemaining()) {
+            if (count == buffer.length) {
+                writeSegment(buffer, 0, count, false);
+                count = 0;
+            }
+
+            int n = Math.min(src.remaining(), buffer.length - count);
+            src.get(buffer, count, n);
+            count += n;
+        }
+
+        return written;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Writes the last segment and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        try {
+            writeSegment(buffer, 0, count, true);
+            count = 0;
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeSegment(byte[] src, int off, int len, boolean last) throws IOException {
+        try {
+            int n = GcmSegments.encryptSegment(cipher, encKey, header, nonce, segment, last, src, off, len, encrypted, 0);
+            segment++;
+
+            out.write(encrypted, 0, n);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+}
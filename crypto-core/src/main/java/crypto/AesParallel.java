@@ -0,0 +1,248 @@
+package crypto;
+
+import javax.crypto.*;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Encrypts and decrypts large messages with AES GCM using all cores.
+ * <p>
+ * A single GCM operation can only run on one core. The message is split into independently authenticated segments,
+ * each with its own nonce derived from the message iv and the segment index, which are encrypted and decrypted
+ * in parallel on a {@link ForkJoinPool}. Every segment is authenticated on its own when decrypting.
+ * <p>
+ * The output is the segmented GCM format written by {@link AesGcmOutputStream} and {@link FileCrypto}:
+ * <p>
+ * [ version:byte, iv-len:byte, iv:byte-array[iv-len], segment-size:int, segment-0, segment-1, ..., segment-n ]
+ * <p>
+ * The segment size in the header gives the position of every segment, so no per segment index needs to be stored.
+ * Messages smaller than the threshold are processed on the calling thread.
+ * <p>
+ * Thread safe, create one per key and share it between threads.
+ */
+public class AesParallel {
+
+    public static final int DEFAULT_SEGMENT_SIZE = GcmSegments.DEFAULT_SEGMENT_SIZE;
+
+    /**
+     * Messages up to this size are not split over threads, it is also the smallest amount of work given to a task.
+     */
+    public static final int DEFAULT_THRESHOLD = 1024 * 1024;
+
+    private final Key.ExpandedKey key;
+    private final String cipherProviderName;
+    private final ForkJoinPool pool;
+    private final int segmentSize;
+    private final int threshold;
+
+    private final SecretKey encKey;
+
+    private final ThreadLocal<Cipher> cipher = new ThreadLocal<>();
+
+    public AesParallel(Key.ExpandedKey key) {
+        this(null, key, ForkJoinPool.commonPool(), DEFAULT_SEGMENT_SIZE, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param cipherProviderName a JCE provider name, null to use the default JCE provider
+     * @param key the key used for encryption
+     * @param pool the pool the segments are encrypted and decrypted on
+     * @param segmentSize the plain text bytes per authenticated segment
+     * @param threshold messages up to this many bytes are processed on the calling thread
+     */
+    public AesParallel(String cipherProviderName, Key.ExpandedKey key, ForkJoinPool pool, int segmentSize, int threshold) {
+        GcmSegments.checkSegmentSize(segmentSize);
+
+        if (threshold < 0) {
+            throw new IllegalArgumentException("invalid threshold: " + threshold);
+        }
+
+        this.key = key;
+        this.cipherProviderName = cipherProviderName;
+        this.pool = pool;
+        this.segmentSize = segmentSize;
+        this.threshold = threshold;
+
+        this.encKey = key.encKeySpec();
+    }
+
+    public Key.ExpandedKey getKey() {
+        return key;
+    }
+
+    public byte[] encryptGCM(byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, BadPaddingException, IllegalBlockSizeException {
+        return encryptGCM((byte) 0, txt);
+    }
+
+    public byte[] encryptGCM(byte version, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, BadPaddingException, IllegalBlockSizeException {
+        long size = GcmSegments.encryptedSize(txt.length, segmentSize);
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("The encrypted message does not fit into a byte array, use FileCrypto or AesGcmOutputStream");
+        }
+
+        byte[] header = GcmSegments.newHeader(version, segmentSize);
+
+        byte[] msg = new byte[(int) size];
+        System.arraycopy(header, 0, msg, 0, header.length);
+
+        int segments = (int) GcmSegments.segments(txt.length, segmentSize);
+        run(new SegmentTask(true, header, segmentSize, segments, txt, msg, 0, segments), txt.length);
+
+        return msg;
+    }
+
+    public byte[] decryptGCM(byte[] encryptedMessage) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, BadPaddingException, IllegalBlockSizeException {
+        return decryptGCM((byte) 0, encryptedMessage);
+    }
+
+    /**
+     * Decrypt a message written by {@link #encryptGCM(byte, byte[])}, the segment size is read from the message.
+     *
+     * @throws SecurityException if any segment could not be authenticated or the message is truncated
+     */
+    public byte[] decryptGCM(byte version, byte[] encryptedMessage) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, BadPaddingException, IllegalBlockSizeException {
+        if (encryptedMessage.length < GcmSegments.HEADER_LENGTH) {
+            throw new SecurityException("could not authenticate, the input is truncated");
+        }
+
+        byte[] header = new byte[GcmSegments.HEADER_LENGTH];
+        System.arraycopy(encryptedMessage, 0, header, 0, header.length);
+
+        int msgSegmentSize = GcmSegments.checkHeader(version, header);
+
+        int len = encryptedMessage.length - GcmSegments.HEADER_LENGTH;
+        int segments = (int) GcmSegments.encryptedSegments(len, msgSegmentSize);
+
+        byte[] txt = new byte[len - segments * GcmSegments.TAG_LENGTH];
+
+        run(new SegmentTask(false, header, msgSegmentSize, segments, encryptedMessage, txt, 0, segments), len);
+
+        return txt;
+    }
+
+    private void run(SegmentTask task, int len) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, BadPaddingException, IllegalBlockSizeException {
+        try {
+            if (len <= threshold) {
+                task.process();
+            } else {
+                pool.invoke(task);
+            }
+        } catch (TaskException e) {
+            rethrow(e.getCause());
+        }
+    }
+
+    private Cipher cipher() throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException {
+        Cipher c = cipher.get();
+        if (c == null) {
+            c = cipherProviderName == null ? Cipher.getInstance(AES.AES_GCM_CIPHER_LBL) : Cipher.getInstance(AES.AES_GCM_CIPHER_LBL, cipherProviderName);
+            cipher.set(c);
+        }
+        return c;
+    }
+
+    static void rethrow(Throwable e) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, BadPaddingException, IllegalBlockSizeException {
+        if (e instanceof NoSuchPaddingException) {
+            throw (NoSuchPaddingException) e;
+        } else if (e instanceof NoSuchAlgorithmException) {
+            throw (NoSuchAlgorithmException) e;
+        } else if (e instanceof NoSuchProviderException) {
+            throw (NoSuchProviderException) e;
+        } else if (e instanceof InvalidAlgorithmParameterException) {
+            throw (InvalidAlgorithmParameterException) e;
+        } else if (e instanceof InvalidKeyException) {
+            throw (InvalidKeyException) e;
+        } else if (e instanceof ShortBufferException) {
+            throw (ShortBufferException) e;
+        } else if (e instanceof BadPaddingException) {
+            throw (BadPaddingException) e;
+        } else if (e instanceof IllegalBlockSizeException) {
+            throw (IllegalBlockSizeException) e;
+        }
+
+        throw new RuntimeException(e);
+    }
+
+    /**
+     * Carries checked exceptions out of the fork join tasks.
+     */
+    static final class TaskException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        TaskException(GeneralSecurityException cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * Encrypts or decrypts the segments [from, to), splitting the range until a task has at most threshold bytes.
+     */
+    private final class SegmentTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final boolean encrypt;
+        private final byte[] header;
+        private final int segmentSize;
+        private final int segments;
+        private final byte[] src;
+        private final byte[] dst;
+        private final int from;
+        private final int to;
+
+        SegmentTask(boolean encrypt, byte[] header, int segmentSize, int segments, byte[] src, byte[] dst, int from, int to) {
+            this.encrypt = encrypt;
+            this.header = header;
+            this.segmentSize = segmentSize;
+            this.segments = segments;
+            this.src = src;
+            this.dst = dst;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1 && (long) (to - from) * segmentSize > threshold) {
+                int mid = (from + to) >>> 1;
+
+                invokeAll(new SegmentTask(encrypt, header, segmentSize, segments, src, dst, from, mid),
+                        new SegmentTask(encrypt, header, segmentSize, segments, src, dst, mid, to));
+            } else {
+                process();
+            }
+        }
+
+        void process() {
+            try {
+                Cipher c = cipher();
+                byte[] nonce = new byte[AES.GCM_IV_LENGTH];
+
+                int encryptedSegmentSize = segmentSize + GcmSegments.TAG_LENGTH;
+
+                for (int i = from; i < to; i++) {
+                    boolean last = i == segments - 1;
+
+                    if (encrypt) {
+                        int off = i * segmentSize;
+                        GcmSegments.encryptSegment(c, encKey, header, nonce, i, last,
+                                src, off, Math.min(segmentSize, src.length - off),
+                                dst, GcmSegments.HEADER_LENGTH + i * encryptedSegmentSize);
+                    } else {
+                        int off = GcmSegments.HEADER_LENGTH + i * encryptedSegmentSize;
+                        GcmSegments.decryptSegment(c, encKey, header, nonce, i, last,
+                                src, off, Math.min(encryptedSegmentSize, src.length - off),
+                                dst, i * segmentSize);
+                    }
+                }
+            } catch (GeneralSecurityException e) {
+                throw new TaskException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package crypto;
+
+import javax.crypto.*;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+
+/**
+ * AES-SIV (RFC 5297), deterministic and nonce misuse resistant authenticated encryption.
+ * <p>
+ * The message is:
+ * <p>
+ * [ version:byte, nonce-len:byte, nonce:byte-array[nonce-len], siv:byte-array[16], encrypted-text:byte-array ]
+ * <p>
+ * The synthetic iv is S2V over the associated data and the nonce (when there are) and the plain text, and is the iv for AES-CTR.
+ * The associated data is authenticated but not part of the message.
+ * Without a nonce the same plain text always gives the same message, with a repeated nonce only equal
+ * plain texts can be recognised, nothing else is lost.
+ * <p>
+ * CMAC is computed with the CBC cipher of the provider so that it runs on the AES instructions,
+ * the per key constants of CMAC (the two subkeys and the CMAC of the zero block) are computed once per key.
+ */
+final class AesSiv {
+
+    static final int SIV_LENGTH = 16;
+
+    static final String AES_CBC_MAC_CIPHER_LBL = "AES/CBC/NoPadding";
+    static final String AES_CTR_CIPHER_LBL = "AES/CTR/NoPadding";
+
+    private static final int BLOCK = 16;
+    private static final byte[] ZERO_BLOCK = new byte[BLOCK];
+
+    /**
+     * CBC output that is only needed for its last block goes here, plus room for the last two blocks of the input.
+     */
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[AES.CHUNK_SIZE + 2 * BLOCK]);
+
+    private AesSiv() {
+    }
+
+    /**
+     * The S2V key and the CTR key, with the CMAC constants of the S2V key.
+     */
+    static final class Keys {
+        final SecretKey macKey;
+        final SecretKey ctrKey;
+
+        final byte[] subkey1;
+        final byte[] subkey2;
+
+        /**
+         * CMAC of the zero block, the start value of S2V.
+         */
+        final byte[] cmacZero;
+
+        /**
+         * @param sivKey two AES keys, the left half is used for S2V and the right half for CTR
+         * @param cbc a CBC cipher without padding
+         */
+        Keys(byte[] sivKey, Cipher cbc) throws InvalidAlgorithmParameterException, InvalidKeyException {
+            int half = sivKey.length / 2;
+            this.macKey = new SecretKeySpec(sivKey, 0, half, "AES");
+            this.ctrKey = new SecretKeySpec(sivKey, half, half, "AES");
+
+            byte[] l = new byte[BLOCK];
+            encryptBlock(cbc, macKey, ZERO_BLOCK, l);
+
+            this.subkey1 = dbl(l.clone());
+            this.subkey2 = dbl(subkey1.clone());
+
+            Arrays.fill(l, (byte) 0);
+
+            this.cmacZero = new byte[BLOCK];
+            cmac(this, cbc, ZERO_BLOCK, 0, BLOCK, null, cmacZero, 0);
+        }
+
+        void destroy() {
+            Arrays.fill(subkey1, (byte) 0);
+            Arrays.fill(subkey2, (byte) 0);
+            Arrays.fill(cmacZero, (byte) 0);
+        }
+    }
+
+    static int outputSize(int nonceLength, int len) {
+        return 2 + nonceLength + SIV_LENGTH + len;
+    }
+
+    /**
+     * Encrypts src[off:off+len] and writes the message to dst starting at dstOff, src and dst must not overlap.
+     *
+     * @param aad the associated data, null or empty for none
+     * @param nonce the nonce, empty for deterministic encryption
+     * @return the number of bytes written to dst
+     */
+    static int encrypt(byte version, Keys keys, Cipher cbc, Cipher ctr, byte[] aad, byte[] nonce, byte[] src, int off, int len, byte[] dst, int dstOff) throws InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+        if (nonce.length > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("invalid nonce length: " + nonce.length);
+        }
+
+        if (dst.length - dstOff < outputSize(nonce.length, len)) {
+            throw new ShortBufferException("Output buffer requires " + outputSize(nonce.length, len) + " bytes");
+        }
+
+        int i = dstOff;
+        dst[i++] = version;
+        dst[i++] = (byte) nonce.length;
+        System.arraycopy(nonce, 0, dst, i, nonce.length);
+        i += nonce.length;
+
+        int sivPos = i;
+        int cipherTextPos = sivPos + SIV_LENGTH;
+
+        s2v(keys, cbc, aad, dst, dstOff + 2, nonce.length, src, off, len, dst, sivPos);
+
+        ctr.init(Cipher.ENCRYPT_MODE, keys.ctrKey, new IvParameterSpec(counter(dst, sivPos)));
+        ctr.doFinal(src, off, len, dst, cipherTextPos);
+
+        return cipherTextPos + len - dstOff;
+    }
+
+    /**
+     * Decrypts the message in src[off:off+len] and writes the plain text to dst starting at dstOff.
+     * The plain text is only left in dst if the message is authentic.
+     *
+     * @param aad the associated data the message was encrypted with, null or empty for none
+     * @return the number of bytes written to dst
+     * @throws SecurityException if the message could not be authenticated
+     */
+    static int decrypt(byte version, Keys keys, Cipher cbc, Cipher ctr, byte[] aad, byte[] src, int off, int len, byte[] dst, int dstOff) throws InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+        int sivPos = checkHeader(version, src, off, len);
+        int cipherTextPos = sivPos + SIV_LENGTH;
+        int cipherTextLen = off + len - cipherTextPos;
+
+        if (dst.length - dstOff < cipherTextLen) {
+            throw new ShortBufferException("Output buffer requires " + cipherTextLen + " bytes");
+        }
+
+        ctr.init(Cipher.DECRYPT_MODE, keys.ctrKey, new IvParameterSpec(counter(src, sivPos)));
+        ctr.doFinal(src, cipherTextPos, cipherTextLen, dst, dstOff);
+
+        byte[] siv = new byte[SIV_LENGTH];
+        s2v(keys, cbc, aad, src, off + 2, sivPos - off - 2, dst, dstOff, cipherTextLen, siv, 0);
+
+        // Important, we must use a constant time equals method to avoid side channel attacks.
+        if (!AES.isEqual(siv, src, sivPos, SIV_LENGTH)) {
+            Arrays.fill(dst, dstOff, dstOff + cipherTextLen, (byte) 0);
+            throw new SecurityException("could not authenticate");
+        }
+
+        return cipherTextLen;
+    }
+
+    /**
+     * Checks the version and nonce length of a message.
+     *
+     * @return the position of the synthetic iv
+     */
+    static int checkHeader(byte version, byte[] encryptedMessage, int off, int len) {
+        if (len < 2 + SIV_LENGTH) {
+            throw new IllegalArgumentException("invalid message length: " + len);
+        }
+
+        int cipherVersion = encryptedMessage[off];
+        if (cipherVersion != version) {
+            throw new RuntimeException("Version " + version + " was expected but the cipher message has " + cipherVersion);
+        }
+
+        int nonceLength = encryptedMessage[off + 1];
+
+        if (nonceLength < 0 || len < 2 + nonceLength + SIV_LENGTH) { // check input parameter
+            throw new IllegalArgumentException("invalid nonce length: " + nonceLength);
+        }
+
+        return off + 2 + nonceLength;
+    }
+
+    /**
+     * S2V over the associated data and the nonce (each skipped when empty) and the plain text, written to out[outOff:outOff+16].
+     */
+    static void s2v(Keys keys, Cipher cbc, byte[] aad, byte[] nonce, int nonceOff, int nonceLen, byte[] txt, int off, int len, byte[] out, int outOff) throws InvalidAlgorithmParameterException, InvalidKeyException {
+        byte[] scratch = SCRATCH.get();
+
+        // the running value D is kept in out
+        System.arraycopy(keys.cmacZero, 0, out, outOff, BLOCK);
+
+        if (aad != null && aad.length > 0) {
+            component(keys, cbc, aad, 0, aad.length, out, outOff);
+        }
+
+        if (nonceLen > 0) {
+            component(keys, cbc, nonce, nonceOff, nonceLen, out, outOff);
+        }
+
+        if (len >= BLOCK) {
+            // T = txt xorend D
+            byte[] d = Arrays.copyOfRange(out, outOff, outOff + BLOCK);
+            cmac(keys, cbc, txt, off, len, d, out, outOff);
+        } else {
+            // T = dbl(D) xor pad(txt)
+            dbl(out, outOff);
+
+            int t = AES.CHUNK_SIZE;
+            Arrays.fill(scratch, t, t + BLOCK, (byte) 0);
+            System.arraycopy(txt, off, scratch, t, len);
+            scratch[t + len] = (byte) 0x80;
+            xor(scratch, t, out, outOff);
+
+            cmac(keys, cbc, scratch, t, BLOCK, null, out, outOff);
+        }
+    }
+
+    /**
+     * D = dbl(D) xor CMAC(component), with D in out[outOff:outOff+16].
+     */
+    private static void component(Keys keys, Cipher cbc, byte[] src, int off, int len, byte[] out, int outOff) throws InvalidAlgorithmParameterException, InvalidKeyException {
+        dbl(out, outOff);
+
+        byte[] mac = new byte[BLOCK];
+        cmac(keys, cbc, src, off, len, null, mac, 0);
+        xor(out, outOff, mac, 0);
+    }
+
+    /**
+     * CMAC (RFC 4493) of src[off:off+len], with xorEnd xored into the last 16 bytes when it is not null.
+     * The input is never modified, the bulk of it is run through the CBC cipher chunk by chunk.
+     */
+    static void cmac(Keys keys, Cipher cbc, byte[] src, int off, int len, byte[] xorEnd, byte[] out, int outOff) throws InvalidAlgorithmParameterException, InvalidKeyException {
+        byte[] scratch = SCRATCH.get();
+        int tail = AES.CHUNK_SIZE;
+
+        cbc.init(Cipher.ENCRYPT_MODE, keys.macKey, new IvParameterSpec(ZERO_BLOCK));
+
+        try {
+            // all complete blocks before the last block, and before the bytes xorEnd applies to
+            int lastBlock = len == 0 ? 0 : ((len - 1) / BLOCK) * BLOCK;
+            int bulk = xorEnd == null ? lastBlock : Math.min(lastBlock, ((len - BLOCK) / BLOCK) * BLOCK);
+
+            for (int i = 0; i < bulk; i += AES.CHUNK_SIZE) {
+                cbc.update(src, off + i, Math.min(AES.CHUNK_SIZE, bulk - i), scratch, 0);
+            }
+
+            // the remaining 0 to 31 bytes
+            int tailLen = len - bulk;
+            System.arraycopy(src, off + bulk, scratch, tail, tailLen);
+
+            if (xorEnd != null) {
+                xor(scratch, tail + tailLen - BLOCK, xorEnd, 0);
+            }
+
+            if (tailLen > BLOCK) {
+                cbc.update(scratch, tail, BLOCK, scratch, 0);
+                tail += BLOCK;
+                tailLen -= BLOCK;
+            }
+
+            if (tailLen == BLOCK) {
+                xor(scratch, tail, keys.subkey1, 0);
+            } else {
+                scratch[tail + tailLen] = (byte) 0x80;
+                Arrays.fill(scratch, tail + tailLen + 1, tail + BLOCK, (byte) 0);
+                xor(scratch, tail, keys.subkey2, 0);
+            }
+
+            cbc.doFinal(scratch, tail, BLOCK, out, outOff);
+        } catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+            // whole blocks without padding into a big enough buffer
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void encryptBlock(Cipher cbc, SecretKey key, byte[] block, byte[] out) throws InvalidAlgorithmParameterException, InvalidKeyException {
+        cbc.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(ZERO_BLOCK));
+        try {
+            cbc.doFinal(block, 0, BLOCK, out, 0);
+        } catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The CTR counter is the synthetic iv with the top bit of the two last 32 bit words cleared.
+     */
+    private static byte[] counter(byte[] siv, int off) {
+        byte[] q = Arrays.copyOfRange(siv, off, off + SIV_LENGTH);
+        q[8] &= 0x7F;
+        q[12] &= 0x7F;
+        return q;
+    }
+
+    private static byte[] dbl(byte[] block) {
+        dbl(block, 0);
+        return block;
+    }
+
+    /**
+     * Multiply by x in GF(2^128), in place.
+     */
+    private static void dbl(byte[] block, int off) {
+        int carry = (block[off] & 0x80) != 0 ? 0x87 : 0;
+
+        for (int i = 0; i < BLOCK - 1; i++) {
+            block[off + i] = (byte) ((block[off + i] << 1) | ((block[off + i + 1] & 0xFF) >>> 7));
+        }
+        block[off + BLOCK - 1] = (byte) ((block[off + BLOCK - 1] << 1) ^ carry);
+    }
+
+    private static void xor(byte[] dst, int dstOff, byte[] src, int srcOff) {
+        for (int i = 0; i < BLOCK; i++) {
+            dst[dstOff + i] ^= src[srcOff + i];
+        }
+    }
+}
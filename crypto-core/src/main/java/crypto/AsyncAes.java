@@ -0,0 +1,247 @@
+package crypto;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encrypts and decrypts off the calling thread, for event loops (Netty, Vert.x) that must not block on large messages.
+ * <p>
+ * Every function returns a {@link CompletableFuture}: the message for the byte[] functions, the number of bytes written
+ * for the ByteBuffer functions, which write into the caller's dst buffer. A failure completes the future exceptionally
+ * with the exception the {@link AesEngine} function would have thrown, e.g. an {@link javax.crypto.AEADBadTagException}
+ * or a {@link SecurityException} when a message cannot be authenticated. When the executor is full the future
+ * completes with a {@link RejectedExecutionException}, the caller decides whether to retry, wait or fail the request.
+ * <p>
+ * Inputs up to the inline threshold are processed on the calling thread and return a completed future, handing them to
+ * another thread would cost more than the encryption. The future's callbacks run on the thread that completed it,
+ * use the async variants, e.g. thenAcceptAsync(f, eventLoop), to continue on the event loop.
+ * <p>
+ * The executor is either a bounded pool from {@link #newBoundedExecutor(int, int)}, shared by default, or virtual threads
+ * from {@link #newVirtualThreadExecutor()} on Java 21+. AES is CPU bound, virtual threads do not make it faster, they
+ * save the pool sizing. No monitor is held while waiting on the encryption path: the ivs and nonces come from
+ * {@link NonceSource#THREAD_LOCAL_RANDOM}, which does not synchronize on a shared SecureRandom and gives virtual threads
+ * buffers behind a ReentrantLock. Virtual threads do not keep the engine's per thread ciphers between tasks,
+ * every task sets up its cipher, a few microseconds that matter only for messages close to the threshold.
+ * <p>
+ * src, aad and dst must not be changed or read by the caller until the future completes.
+ * <p>
+ * Thread safe, create one per key and share it between threads.
+ */
+public class AsyncAes {
+
+    /**
+     * About 10 microseconds of GCM with AES-NI, about what an event loop can spend without delaying other connections.
+     */
+    public static final int DEFAULT_INLINE_THRESHOLD = 16 * 1024;
+
+    /**
+     * The tasks queued per thread of the shared pool before new ones are rejected.
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+    private final AesEngine engine;
+    private final Executor executor;
+    private final int inlineThreshold;
+
+    /**
+     * On the shared bounded pool with the default inline threshold.
+     */
+    public AsyncAes(Key.ExpandedKey key) {
+        this(new AesEngine(key), SharedExecutor.INSTANCE, DEFAULT_INLINE_THRESHOLD);
+    }
+
+    /**
+     * @param engine the engine that does the work, its provider and GCM nonce source are used
+     * @param executor runs the inputs larger than inlineThreshold
+     * @param inlineThreshold inputs up to this many bytes are processed on the calling thread, 0 to never inline
+     *                        an empty input, -1 to always use the executor
+     */
+    public AsyncAes(AesEngine engine, Executor executor, int inlineThreshold) {
+        if (engine == null || executor == null) {
+            throw new IllegalArgumentException("engine and executor must not be null");
+        }
+        if (inlineThreshold < -1) {
+            throw new IllegalArgumentException("invalid inline threshold: " + inlineThreshold);
+        }
+
+        this.engine = engine;
+        this.executor = executor;
+        this.inlineThreshold = inlineThreshold;
+    }
+
+    /**
+     * A fixed pool of daemon threads, crypto-async-n, with a queue of queueSize tasks.
+     * Tasks are rejected when the queue is full, threads stop after a minute without work.
+     */
+    public static ExecutorService newBoundedExecutor(int threads, int queueSize) {
+        if (threads < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("threads and queueSize must be positive: " + threads + ", " + queueSize);
+        }
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), new DaemonThreadFactory(), new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * A new virtual thread per task, the tasks are spread over the JVM's carrier threads.
+     *
+     * @throws UnsupportedOperationException before Java 21, see {@link #virtualThreadsAvailable()}
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        return VirtualThreads.newExecutor();
+    }
+
+    /**
+     * True on Java 21+, where {@link #newVirtualThreadExecutor()} can be used.
+     */
+    public static boolean virtualThreadsAvailable() {
+        return VirtualThreads.AVAILABLE;
+    }
+
+    public AesEngine getEngine() {
+        return engine;
+    }
+
+    public CompletableFuture<byte[]> encryptGCM(byte[] txt) {
+        return encryptGCM((byte) 0, null, txt);
+    }
+
+    /**
+     * See {@link AesEngine#encryptGCM(byte, byte[], byte[])}, aad may be null.
+     */
+    public CompletableFuture<byte[]> encryptGCM(byte version, byte[] aad, byte[] txt) {
+        return submit(txt.length, () -> engine.encryptGCM(version, aad, txt));
+    }
+
+    public CompletableFuture<byte[]> decryptGCM(byte[] encryptedMessage) {
+        return decryptGCM((byte) 0, null, encryptedMessage);
+    }
+
+    /**
+     * See {@link AesEngine#decryptGCM(byte, byte[], byte[])}, aad may be null.
+     */
+    public CompletableFuture<byte[]> decryptGCM(byte version, byte[] aad, byte[] encryptedMessage) {
+        return submit(encryptedMessage.length, () -> engine.decryptGCM(version, aad, encryptedMessage));
+    }
+
+    public CompletableFuture<byte[]> encryptCBC(byte[] txt) {
+        return encryptCBC((byte) 0, null, txt);
+    }
+
+    /**
+     * See {@link AesEngine#encryptCBC(byte, byte[], byte[])}, aad may be null.
+     */
+    public CompletableFuture<byte[]> encryptCBC(byte version, byte[] aad, byte[] txt) {
+        return submit(txt.length, () -> engine.encryptCBC(version, aad, txt));
+    }
+
+    public CompletableFuture<byte[]> decryptCBC(byte[] encryptedMessage) {
+        return decryptCBC((byte) 0, null, encryptedMessage);
+    }
+
+    /**
+     * See {@link AesEngine#decryptCBC(byte, byte[], byte[])}, aad may be null.
+     */
+    public CompletableFuture<byte[]> decryptCBC(byte version, byte[] aad, byte[] encryptedMessage) {
+        return submit(encryptedMessage.length, () -> engine.decryptCBC(version, aad, encryptedMessage));
+    }
+
+    /**
+     * Encrypts the remaining bytes of src into dst, see {@link AesEngine#encryptGCM(byte, ByteBuffer, ByteBuffer, ByteBuffer)}.
+     * dst needs {@link AES#outputSizeGCM(int)} bytes remaining.
+     *
+     * @param aad may be null
+     * @return the number of bytes written to dst
+     */
+    public CompletableFuture<Integer> encryptGCM(byte version, ByteBuffer aad, ByteBuffer src, ByteBuffer dst) {
+        return submit(src.remaining(), () -> engine.encryptGCM(version, aad, src, dst));
+    }
+
+    /**
+     * Decrypts the remaining bytes of src into dst, see {@link AesEngine#decryptGCM(byte, ByteBuffer, ByteBuffer, ByteBuffer)}.
+     *
+     * @param aad may be null
+     * @return the number of bytes written to dst
+     */
+    public CompletableFuture<Integer> decryptGCM(byte version, ByteBuffer aad, ByteBuffer src, ByteBuffer dst) {
+        return submit(src.remaining(), () -> engine.decryptGCM(version, aad, src, dst));
+    }
+
+    /**
+     * Encrypts the remaining bytes of src into dst, see {@link AesEngine#encryptCBC(byte, ByteBuffer, ByteBuffer, ByteBuffer)}.
+     * dst needs {@link AES#outputSizeCBC(Key.KeySize, int)} bytes remaining.
+     *
+     * @param aad may be null
+     * @return the number of bytes written to dst
+     */
+    public CompletableFuture<Integer> encryptCBC(byte version, ByteBuffer aad, ByteBuffer src, ByteBuffer dst) {
+        return submit(src.remaining(), () -> engine.encryptCBC(version, aad, src, dst));
+    }
+
+    /**
+     * Decrypts the remaining bytes of src into dst, see {@link AesEngine#decryptCBC(byte, ByteBuffer, ByteBuffer, ByteBuffer)}.
+     *
+     * @param aad may be null
+     * @return the number of bytes written to dst
+     */
+    public CompletableFuture<Integer> decryptCBC(byte version, ByteBuffer aad, ByteBuffer src, ByteBuffer dst) {
+        return submit(src.remaining(), () -> engine.decryptCBC(version, aad, src, dst));
+    }
+
+    private <T> CompletableFuture<T> submit(int len, Operation<T> operation) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+
+        if (len <= inlineThreshold) {
+            complete(future, operation);
+        } else {
+            try {
+                executor.execute(() -> complete(future, operation));
+            } catch (RejectedExecutionException e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        return future;
+    }
+
+    private static <T> void complete(CompletableFuture<T> future, Operation<T> operation) {
+        try {
+            future.complete(operation.run());
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+        }
+    }
+
+    private interface Operation<T> {
+        T run() throws Exception;
+    }
+
+    /**
+     * The pool of {@link #AsyncAes(Key.ExpandedKey)}, one thread per processor, created on first use.
+     */
+    private static final class SharedExecutor {
+        static final ExecutorService INSTANCE = newBoundedExecutor(Runtime.getRuntime().availableProcessors(),
+                DEFAULT_QUEUE_SIZE * Runtime.getRuntime().availableProcessors());
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+        private static final AtomicInteger COUNTER = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "crypto-async-" + COUNTER.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package crypto;
+
+import javax.crypto.Mac;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * ByteBuffer helpers.
+ * <p>
+ * The position and limit calls are made through {@link Buffer} so that classes compiled with a newer JDK
+ * still run on Java 8, where ByteBuffer does not override these methods.
+ */
+final class Buffers {
+
+    private Buffers() {
+    }
+
+    static void position(ByteBuffer buff, int position) {
+        ((Buffer) buff).position(position);
+    }
+
+    static void limit(ByteBuffer buff, int limit) {
+        ((Buffer) buff).limit(limit);
+    }
+
+    static void clear(ByteBuffer buff) {
+        ((Buffer) buff).clear();
+    }
+
+    static void flip(ByteBuffer buff) {
+        ((Buffer) buff).flip();
+    }
+
+    /**
+     * Update the mac with buff[from:to] without changing the position or limit of buff.
+     */
+    static void update(Mac mac, ByteBuffer buff, int from, int to) {
+        int position = buff.position();
+        int limit = buff.limit();
+
+        limit(buff, to);
+        position(buff, from);
+        mac.update(buff);
+
+        limit(buff, limit);
+        position(buff, position);
+    }
+
+    /**
+     * Update the digest with buff[from:to] without changing the position or limit of buff.
+     */
+    static void update(MessageDigest md, ByteBuffer buff, int from, int to) {
+        int position = buff.position();
+        int limit = buff.limit();
+
+        limit(buff, to);
+        position(buff, from);
+        md.update(buff);
+
+        limit(buff, limit);
+        position(buff, position);
+    }
+}
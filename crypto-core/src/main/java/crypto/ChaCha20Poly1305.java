@@ -0,0 +1,192 @@
+package crypto;
+
+import javax.crypto.*;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+
+/**
+ * ChaCha20-Poly1305 (RFC 8439) authenticated encryption with the same message layout as {@link AES#encryptGCM(Key.ExpandedKey, byte[])}.
+ * <p>
+ * ChaCha20 does not need AES instructions, on hosts without AES-NI (or where it is masked) it is usually faster than
+ * the software AES GCM path, and for small messages it is often faster anyway. Use {@link Aead} to choose per host.
+ * <p>
+ * The 256 bit ChaCha20 key is derived from the encKey, so both {@link Key.KeySize}s can be used.
+ * The default provider supports ChaCha20-Poly1305 from Java 11, on older JVMs pass a provider like Conscrypt.
+ */
+public final class ChaCha20Poly1305 {
+
+    public static final String CHACHA20_POLY1305_CIPHER_LBL = "ChaCha20-Poly1305";
+
+    public static final int NONCE_LENGTH = 12;
+    public static final int TAG_LENGTH = 16;
+
+    /**
+     * A random key that the cipher is initialised with before every decrypt init, see {@link #decrypt(byte, String, Key.ExpandedKey, byte[])}.
+     */
+    private static final SecretKey THROWAWAY_KEY = throwawayKey();
+
+    private ChaCha20Poly1305() {
+    }
+
+    public static final byte[] encrypt(Key.ExpandedKey key, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        return encrypt((byte) 0, key, txt);
+    }
+
+    /**
+     * Performs a ChaCha20-Poly1305 encryption.
+     * The result is a byte array with
+     * [ version:byte, nonce-len:byte, nonce:byte-array[nonce-len], encrypted-text-and-tag:byte-array ]
+     *
+     * @param version any custom version you want to add to the output array
+     * @param key the key to use
+     * @param txt the text to encrypt
+     * @return the encrypted byte array
+     * @throws NoSuchPaddingException
+     * @throws NoSuchAlgorithmException if the JVM does not have ChaCha20-Poly1305
+     * @throws InvalidAlgorithmParameterException
+     * @throws InvalidKeyException
+     * @throws BadPaddingException
+     * @throws IllegalBlockSizeException
+     * @throws NoSuchProviderException
+     */
+    public static final byte[] encrypt(byte version, Key.ExpandedKey key, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        return encrypt(version, null, NonceSource.THREAD_LOCAL_RANDOM, key, txt);
+    }
+
+    /**
+     * This method allows to pass in a custom cipher provider and nonce source.
+     * By default please use {@link #encrypt(byte, Key.ExpandedKey, byte[])}.
+     * <p>
+     * Nonces must never repeat for the same key, with a {@link CounterNonceSource} use a different fixed field than
+     * for AES GCM with the same key.
+     *
+     * @param cipherProvider JCE provider, null to use the default provider
+     */
+    public static final byte[] encrypt(byte version, String cipherProvider, NonceSource nonces, Key.ExpandedKey key, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        CryptoEvents.CipherEvent event = CryptoEvents.beginEncrypt();
+        long start = metrics == null ? 0 : System.nanoTime();
+        Throwable failure = null;
+
+        try {
+            final Cipher cipher = cipher(cipherProvider, key);
+
+            byte[] output = new byte[outputSize(txt.length)];
+            output[0] = version;
+            output[1] = NONCE_LENGTH;
+            nonces.nextNonces(output, 2, NONCE_LENGTH, 1);
+
+            cipher.init(Cipher.ENCRYPT_MODE, key.chaChaKeySpec(), new IvParameterSpec(output, 2, NONCE_LENGTH));
+
+            try {
+                cipher.doFinal(txt, 0, txt.length, output, 2 + NONCE_LENGTH);
+            } catch (ShortBufferException e) {
+                // the output is sized with outputSize, this can only happen if the size calculation is wrong
+                throw new RuntimeException(e);
+            }
+
+            return output;
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (metrics != null || event != null) {
+                AES.record(metrics, event, CryptoMetrics.Operation.ENCRYPT, CryptoMetrics.Mode.CHACHA20_POLY1305, key.keySize, metricsProvider(cipherProvider), txt.length, start, failure);
+            }
+        }
+    }
+
+    public static final byte[] decrypt(Key.ExpandedKey key, byte[] encryptedMessage) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException {
+        return decrypt((byte) 0, key, encryptedMessage);
+    }
+
+    /**
+     * Decrypts messages from {@link #encrypt(byte, Key.ExpandedKey, byte[])}.
+     *
+     * @param version the version the message must have
+     * @param key the key used to encrypt the data
+     * @param encryptedMessage the encrypted data
+     * @return the decrypted data
+     * @throws NoSuchAlgorithmException if the JVM does not have ChaCha20-Poly1305
+     * @throws InvalidKeyException
+     * @throws BadPaddingException if the message could not be authenticated
+     * @throws IllegalBlockSizeException
+     * @throws InvalidAlgorithmParameterException
+     * @throws NoSuchPaddingException
+     * @throws NoSuchProviderException
+     */
+    public static final byte[] decrypt(byte version, Key.ExpandedKey key, byte[] encryptedMessage) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException {
+        return decrypt(version, null, key, encryptedMessage);
+    }
+
+    /**
+     * This method allows to pass in a custom cipher provider.
+     * By default please use {@link #decrypt(byte, Key.ExpandedKey, byte[])}.
+     *
+     * @param cipherProvider JCE provider, null to use the default provider
+     */
+    public static final byte[] decrypt(byte version, String cipherProvider, Key.ExpandedKey key, byte[] encryptedMessage) throws NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException {
+        CryptoMetrics.Listener metrics = CryptoMetrics.listener();
+        CryptoEvents.CipherEvent event = CryptoEvents.beginDecrypt();
+        long start = metrics == null ? 0 : System.nanoTime();
+        Throwable failure = null;
+
+        try {
+            // same layout and minimum length as a GCM message
+            int cipherTextPos = AES.checkGCMHeader(version, encryptedMessage, 0, encryptedMessage.length);
+
+            final Cipher cipher = cipher(cipherProvider, key);
+            IvParameterSpec nonce = new IvParameterSpec(encryptedMessage, 2, NONCE_LENGTH);
+
+            // the JDK cipher refuses to be initialised twice in a row with the same key and nonce,
+            // which happens when the message was just encrypted or decrypted on this thread.
+            // After an init with the throwaway key the init with the message's key and nonce is never a repeat.
+            cipher.init(Cipher.DECRYPT_MODE, THROWAWAY_KEY, nonce);
+            cipher.init(Cipher.DECRYPT_MODE, key.chaChaKeySpec(), nonce);
+
+            return cipher.doFinal(encryptedMessage, cipherTextPos, encryptedMessage.length - cipherTextPos);
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (metrics != null || event != null) {
+                AES.record(metrics, event, CryptoMetrics.Operation.DECRYPT, CryptoMetrics.Mode.CHACHA20_POLY1305, key.keySize, metricsProvider(cipherProvider), encryptedMessage.length, start, failure);
+            }
+        }
+    }
+
+    /**
+     * The exact size of a message for a plain text of len bytes.
+     */
+    public static final int outputSize(int len) {
+        return 1 + 1 + NONCE_LENGTH + len + TAG_LENGTH;
+    }
+
+    /**
+     * The exact plain text size of a message of len bytes.
+     */
+    public static final int decryptedSize(int len) {
+        return Math.max(0, len - outputSize(0));
+    }
+
+    /**
+     * The provider recorded by {@link CryptoMetrics} and {@link CryptoEvents}.
+     */
+    private static String metricsProvider(String cipherProvider) {
+        return cipherProvider == null ? CryptoBackends.JCE.name() : cipherProvider;
+    }
+
+    private static SecretKey throwawayKey() {
+        byte[] bts = new byte[32];
+        Random.nextBytes(bts);
+        return new SecretKeySpec(bts, "ChaCha20");
+    }
+
+    private static Cipher cipher(String cipherProvider, Key.ExpandedKey key) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException {
+        return cipherProvider == null ? key.chaChaCipher() : Cipher.getInstance(CHACHA20_POLY1305_CIPHER_LBL, cipherProvider);
+    }
+}
@@ -0,0 +1,362 @@
+package crypto;
+
+import org.apache.commons.crypto.Crypto;
+import org.apache.commons.crypto.cipher.CryptoCipher;
+import org.apache.commons.crypto.cipher.CryptoCipherFactory;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A backend on the OpenSSL ciphers of Apache Commons Crypto (libcrypto through JNI).
+ * <p>
+ * The ByteBuffer functions pass direct buffers straight to OpenSSL, heap buffers go through {@link CryptoBackends#JCE}.
+ * The hmac for CBC comes from the default JCE provider.
+ * <p>
+ * Commons Crypto is an optional dependency, this class is only loaded by {@link CryptoBackends} when it is on the classpath.
+ * If libcrypto cannot be loaded the backend reports that it supports nothing, so it is never selected,
+ * and any call made to it directly is done by {@link CryptoBackends#JCE}.
+ */
+final class CommonsCryptoBackend implements CryptoBackend {
+
+    static final String NAME = "Commons";
+
+    private static final Logger LOG = Logger.getLogger(CommonsCryptoBackend.class.getName());
+
+    private static final int GCM_TAG_LENGTH = AES.GCM_TAG_LENGTH_BITS / 8;
+
+    private final Properties properties = new Properties();
+
+    private final boolean cbc;
+    private final boolean gcm;
+
+    private final ThreadLocal<CryptoCipher> cbcCipher = new ThreadLocal<>();
+    private final ThreadLocal<CryptoCipher> gcmCipher = new ThreadLocal<>();
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    CommonsCryptoBackend() {
+        // only OpenSSL, the JCE fallback of Commons Crypto would hide that libcrypto is missing
+        properties.setProperty(CryptoCipherFactory.CLASSES_KEY, CryptoCipherFactory.CipherProvider.OPENSSL.getClassName());
+
+        this.cbc = isAvailable(AES.AES_CBC_CIPHER_LBL);
+        this.gcm = isAvailable(AES.AES_GCM_CIPHER_LBL);
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public boolean supports(Mode mode, Key.KeySize keySize) {
+        return mode == Mode.CBC ? cbc : gcm;
+    }
+
+    @Override
+    public byte[] encryptCBC(byte version, Key.ExpandedKey key, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        if (!cbc) {
+            return CryptoBackends.JCE.encryptCBC(version, key, txt);
+        }
+
+        Mac hmac = key.hmac();
+        int macLength = hmac.getMacLength();
+
+        byte[] dst = new byte[AES.outputSizeCBC(key.keySize, txt.length)];
+
+        int i = 0;
+        dst[i++] = version;
+        dst[i++] = (byte) AES.CBC_IV_LENGTH;
+
+        int ivPos = i;
+        NonceSource.THREAD_LOCAL_RANDOM.nextNonces(dst, ivPos, AES.CBC_IV_LENGTH, 1);
+        i += AES.CBC_IV_LENGTH;
+
+        dst[i++] = (byte) macLength;
+
+        int macPos = i;
+        int cipherTextPos = macPos + macLength;
+
+        CryptoCipher cipher = cipher(cbcCipher, AES.AES_CBC_CIPHER_LBL);
+        cipher.init(Cipher.ENCRYPT_MODE, key.encKeySpec(), new IvParameterSpec(dst, ivPos, AES.CBC_IV_LENGTH));
+
+        try {
+            int cipherTextLen = cipher.doFinal(txt, 0, txt.length, dst, cipherTextPos);
+
+            hmac.update(dst, ivPos, AES.CBC_IV_LENGTH);
+            hmac.update(dst, cipherTextPos, cipherTextLen);
+            hmac.doFinal(dst, macPos);
+        } catch (ShortBufferException e) {
+            // the output is sized with outputSizeCBC, this can only happen if the size calculation is wrong
+            throw new RuntimeException(e);
+        }
+
+        return dst;
+    }
+
+    @Override
+    public byte[] decryptCBC(byte version, Key.ExpandedKey key, byte[] encryptedMessage) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        if (!cbc) {
+            return CryptoBackends.JCE.decryptCBC(version, key, encryptedMessage);
+        }
+
+        int cipherTextPos = AES.checkCBCHeader(version, key.keySize, encryptedMessage, 0, encryptedMessage.length);
+        int cipherTextLen = encryptedMessage.length - cipherTextPos;
+
+        // Before we decrypt we must validate the HMAC
+        Mac hmac = key.hmac();
+        AES.verifyCBC(hmac, scratch.get().mac, null, encryptedMessage, 0, cipherTextPos, encryptedMessage.length);
+
+        CryptoCipher cipher = cipher(cbcCipher, AES.AES_CBC_CIPHER_LBL);
+        cipher.init(Cipher.DECRYPT_MODE, key.encKeySpec(), new IvParameterSpec(encryptedMessage, 2, AES.CBC_IV_LENGTH));
+
+        byte[] txt = new byte[cipherTextLen];
+
+        try {
+            int len = cipher.doFinal(encryptedMessage, cipherTextPos, cipherTextLen, txt, 0);
+            return len == txt.length ? txt : Arrays.copyOf(txt, len);
+        } catch (ShortBufferException e) {
+            // the plain text is never longer than the cipher text
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public byte[] encryptGCM(byte version, NonceSource nonces, Key.ExpandedKey key, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        if (!gcm) {
+            return CryptoBackends.JCE.encryptGCM(version, nonces, key, txt);
+        }
+
+        byte[] dst = new byte[AES.outputSizeGCM(txt.length)];
+
+        dst[0] = version;
+        dst[1] = (byte) AES.GCM_IV_LENGTH;
+        nonces.nextNonces(dst, 2, AES.GCM_IV_LENGTH, 1);
+
+        CryptoCipher cipher = cipher(gcmCipher, AES.AES_GCM_CIPHER_LBL);
+        cipher.init(Cipher.ENCRYPT_MODE, key.encKeySpec(), new GCMParameterSpec(AES.GCM_TAG_LENGTH_BITS, dst, 2, AES.GCM_IV_LENGTH));
+
+        try {
+            cipher.doFinal(txt, 0, txt.length, dst, 2 + AES.GCM_IV_LENGTH);
+        } catch (ShortBufferException e) {
+            // the output is sized with outputSizeGCM, this can only happen if the size calculation is wrong
+            throw new RuntimeException(e);
+        }
+
+        return dst;
+    }
+
+    @Override
+    public byte[] decryptGCM(byte version, Key.ExpandedKey key, byte[] encryptedMessage) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        if (!gcm) {
+            return CryptoBackends.JCE.decryptGCM(version, key, encryptedMessage);
+        }
+
+        int cipherTextPos = AES.checkGCMHeader(version, encryptedMessage, 0, encryptedMessage.length);
+        int cipherTextLen = encryptedMessage.length - cipherTextPos;
+
+        CryptoCipher cipher = cipher(gcmCipher, AES.AES_GCM_CIPHER_LBL);
+        cipher.init(Cipher.DECRYPT_MODE, key.encKeySpec(), new GCMParameterSpec(AES.GCM_TAG_LENGTH_BITS, encryptedMessage, 2, AES.GCM_IV_LENGTH));
+
+        byte[] txt = new byte[cipherTextLen - GCM_TAG_LENGTH];
+
+        try {
+            cipher.doFinal(encryptedMessage, cipherTextPos, cipherTextLen, txt, 0);
+        } catch (ShortBufferException e) {
+            throw new RuntimeException(e);
+        }
+
+        return txt;
+    }
+
+    @Override
+    public int encryptCBC(byte version, Key.ExpandedKey key, ByteBuffer src, ByteBuffer dst) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException, ShortBufferException {
+        if (!cbc || !direct(src, dst)) {
+            return CryptoBackends.JCE.encryptCBC(version, key, src, dst);
+        }
+
+        Mac hmac = key.hmac();
+        int macLength = hmac.getMacLength();
+
+        if (dst.remaining() < AES.outputSizeCBC(key.keySize, src.remaining())) {
+            throw new ShortBufferException("Output buffer requires " + AES.outputSizeCBC(key.keySize, src.remaining()) + " bytes");
+        }
+
+        Scratch st = scratch.get();
+        byte[] iv = st.cbcIv;
+        NonceSource.THREAD_LOCAL_RANDOM.nextNonce(iv);
+
+        int start = dst.position();
+
+        dst.put(version);
+        dst.put((byte) iv.length);
+        dst.put(iv);
+        dst.put((byte) macLength);
+
+        int macPos = dst.position();
+        int cipherTextPos = macPos + macLength;
+        Buffers.position(dst, cipherTextPos);
+
+        CryptoCipher cipher = cipher(cbcCipher, AES.AES_CBC_CIPHER_LBL);
+        cipher.init(Cipher.ENCRYPT_MODE, key.encKeySpec(), new IvParameterSpec(iv));
+        cipher.doFinal(src, dst);
+
+        int end = dst.position();
+
+        byte[] mac = st.mac;
+        hmac.update(iv);
+        Buffers.update(hmac, dst, cipherTextPos, end);
+        hmac.doFinal(mac, 0);
+
+        Buffers.position(dst, macPos);
+        dst.put(mac, 0, macLength);
+        Buffers.position(dst, end);
+
+        return end - start;
+    }
+
+    @Override
+    public int decryptCBC(byte version, Key.ExpandedKey key, ByteBuffer src, ByteBuffer dst) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException, ShortBufferException {
+        if (!cbc || !direct(src, dst)) {
+            return CryptoBackends.JCE.decryptCBC(version, key, src, dst);
+        }
+
+        int off = src.position();
+        int end = src.limit();
+
+        int cipherTextPos = AES.checkCBCHeader(version, key.keySize, src, off, end - off);
+        int cipherTextLen = end - cipherTextPos;
+
+        if (dst.remaining() < cipherTextLen) {
+            throw new ShortBufferException("Output buffer requires " + cipherTextLen + " bytes");
+        }
+
+        // Before we decrypt we must validate the HMAC
+        Scratch st = scratch.get();
+        Mac hmac = key.hmac();
+        AES.verifyCBC(hmac, st.mac, null, src, off, cipherTextPos, end);
+
+        byte[] iv = st.cbcIv;
+        for (int i = 0; i < iv.length; i++) {
+            iv[i] = src.get(off + 2 + i);
+        }
+
+        CryptoCipher cipher = cipher(cbcCipher, AES.AES_CBC_CIPHER_LBL);
+        cipher.init(Cipher.DECRYPT_MODE, key.encKeySpec(), new IvParameterSpec(iv));
+
+        Buffers.position(src, cipherTextPos);
+        return cipher.doFinal(src, dst);
+    }
+
+    @Override
+    public int encryptGCM(byte version, NonceSource nonces, Key.ExpandedKey key, ByteBuffer src, ByteBuffer dst) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException, ShortBufferException {
+        if (!gcm || !direct(src, dst)) {
+            return CryptoBackends.JCE.encryptGCM(version, nonces, key, src, dst);
+        }
+
+        if (dst.remaining() < AES.outputSizeGCM(src.remaining())) {
+            throw new ShortBufferException("Output buffer requires " + AES.outputSizeGCM(src.remaining()) + " bytes");
+        }
+
+        byte[] iv = scratch.get().gcmIv;
+        nonces.nextNonce(iv);
+
+        dst.put(version);
+        dst.put((byte) iv.length);
+        dst.put(iv);
+
+        CryptoCipher cipher = cipher(gcmCipher, AES.AES_GCM_CIPHER_LBL);
+        cipher.init(Cipher.ENCRYPT_MODE, key.encKeySpec(), new GCMParameterSpec(AES.GCM_TAG_LENGTH_BITS, iv));
+
+        return 2 + iv.length + cipher.doFinal(src, dst);
+    }
+
+    @Override
+    public int decryptGCM(byte version, Key.ExpandedKey key, ByteBuffer src, ByteBuffer dst) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException, ShortBufferException {
+        if (!gcm || !direct(src, dst)) {
+            return CryptoBackends.JCE.decryptGCM(version, key, src, dst);
+        }
+
+        int off = src.position();
+        int len = src.remaining();
+
+        int cipherTextPos = AES.checkGCMHeader(version, src, off, len);
+        int cipherTextLen = off + len - cipherTextPos;
+
+        if (dst.remaining() < cipherTextLen - GCM_TAG_LENGTH) {
+            throw new ShortBufferException("Output buffer requires " + (cipherTextLen - GCM_TAG_LENGTH) + " bytes");
+        }
+
+        byte[] iv = scratch.get().gcmIv;
+        for (int i = 0; i < iv.length; i++) {
+            iv[i] = src.get(off + 2 + i);
+        }
+
+        CryptoCipher cipher = cipher(gcmCipher, AES.AES_GCM_CIPHER_LBL);
+        cipher.init(Cipher.DECRYPT_MODE, key.encKeySpec(), new GCMParameterSpec(AES.GCM_TAG_LENGTH_BITS, iv));
+
+        Buffers.position(src, cipherTextPos);
+        return cipher.doFinal(src, dst);
+    }
+
+    /**
+     * The iv and mac arrays of the ByteBuffer functions, kept per thread like the ciphers.
+     * The parameter specs copy the iv, so the arrays can be reused as soon as init returns.
+     */
+    private static final class Scratch {
+        private final byte[] cbcIv = new byte[AES.CBC_IV_LENGTH];
+        private final byte[] gcmIv = new byte[AES.GCM_IV_LENGTH];
+        private final byte[] mac = new byte[Key.KeySize.AES_256.getHMacSizeBytes()];
+    }
+
+    private static boolean direct(ByteBuffer src, ByteBuffer dst) {
+        return src.isDirect() && dst.isDirect();
+    }
+
+    private CryptoCipher cipher(ThreadLocal<CryptoCipher> ciphers, String transformation) throws NoSuchAlgorithmException {
+        CryptoCipher cipher = ciphers.get();
+        if (cipher == null) {
+            try {
+                cipher = CryptoCipherFactory.getCryptoCipher(transformation, properties);
+            } catch (GeneralSecurityException e) {
+                throw new NoSuchAlgorithmException("OpenSSL does not support " + transformation, e);
+            }
+            ciphers.set(cipher);
+        }
+        return cipher;
+    }
+
+    private boolean isAvailable(String transformation) {
+        try {
+            CryptoCipher cipher = CryptoCipherFactory.getCryptoCipher(transformation, properties);
+            cipher.close();
+            return true;
+        } catch (GeneralSecurityException | IOException | RuntimeException | LinkageError e) {
+            LOG.info("Commons Crypto " + transformation + " is not available, using JCE: "
+                    + (Crypto.getLoadingError() == null ? e : Crypto.getLoadingError()));
+            LOG.log(Level.FINE, "Commons Crypto " + transformation + " is not available", e);
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return NAME;
+    }
+}
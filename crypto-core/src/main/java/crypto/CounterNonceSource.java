@@ -0,0 +1,92 @@
+package crypto;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deterministic GCM nonces, NIST SP 800-38D section 8.2.1:
+ * <p>
+ * [ fixed-field:byte-array[4], invocation-counter:long ]
+ * <p>
+ * Every nonce is unique for as long as the same instance is used, the counter is advanced without locks.
+ * Once maxInvocations nonces have been handed out an {@link IllegalStateException} is thrown and the key must be rotated.
+ * <p>
+ * Important: use one instance per key and never create a second instance for the same key with the same fixed field,
+ * e.g. after a restart, the counter starts at zero again and the nonces would repeat.
+ * Give each instance (device, process) its own fixed field or use a new key.
+ * Only for GCM, CBC ivs must be unpredictable.
+ */
+public final class CounterNonceSource implements NonceSource {
+
+    public static final int FIXED_FIELD_LENGTH = 4;
+
+    public static final long DEFAULT_MAX_INVOCATIONS = Long.MAX_VALUE;
+
+    private final byte[] fixedField;
+    private final long maxInvocations;
+
+    private final AtomicLong counter = new AtomicLong();
+
+    /**
+     * A random fixed field and no limit other than the size of the counter.
+     */
+    public CounterNonceSource() {
+        this(randomFixedField(), DEFAULT_MAX_INVOCATIONS);
+    }
+
+    /**
+     * @param fixedField FIXED_FIELD_LENGTH bytes that identify this instance
+     * @param maxInvocations the maximum number of nonces for the key this instance is used with
+     */
+    public CounterNonceSource(byte[] fixedField, long maxInvocations) {
+        if (fixedField.length != FIXED_FIELD_LENGTH) {
+            throw new IllegalArgumentException("invalid fixed field length: " + fixedField.length);
+        }
+
+        if (maxInvocations < 1) {
+            throw new IllegalArgumentException("invalid max invocations: " + maxInvocations);
+        }
+
+        this.fixedField = fixedField.clone();
+        this.maxInvocations = maxInvocations;
+    }
+
+    @Override
+    public void nextNonces(byte[] dst, int off, int nonceLength, int count) {
+        if (nonceLength != AES.GCM_IV_LENGTH) {
+            throw new IllegalArgumentException("Counter nonces are " + AES.GCM_IV_LENGTH + " bytes, not " + nonceLength);
+        }
+
+        long first;
+        do {
+            first = counter.get();
+
+            if (count > maxInvocations - first) {
+                throw new IllegalStateException("The limit of " + maxInvocations + " nonces for this key has been reached, use a new key");
+            }
+        } while (!counter.compareAndSet(first, first + count));
+
+        for (int i = 0; i < count; i++) {
+            long invocation = first + i;
+
+            System.arraycopy(fixedField, 0, dst, off, FIXED_FIELD_LENGTH);
+            off += FIXED_FIELD_LENGTH;
+
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                dst[off++] = (byte) (invocation >>> shift);
+            }
+        }
+    }
+
+    /**
+     * The number of nonces handed out so far.
+     */
+    public long invocations() {
+        return counter.get();
+    }
+
+    private static byte[] randomFixedField() {
+        byte[] fixedField = new byte[FIXED_FIELD_LENGTH];
+        Random.nextBytes(fixedField);
+        return fixedField;
+    }
+}
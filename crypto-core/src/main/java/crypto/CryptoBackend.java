@@ -0,0 +1,71 @@
+package crypto;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+
+/**
+ * A cipher implementation that reads and writes the {@link AES} message formats.
+ * <p>
+ * Messages written by one backend can be read by any other backend, so the backend can be changed at any time.
+ * The backend used by the {@link AES} methods that do not take a provider name is chosen by {@link CryptoBackends}.
+ * <p>
+ * The ByteBuffer functions read the remaining bytes of src and write at the position of dst, both positions are moved
+ * forward and the number of bytes written is returned. Use {@link AES#outputSizeGCM(int)} and {@link AES#outputSizeCBC(Key.KeySize, int)}
+ * to size dst.
+ * <p>
+ * Implementations must be thread safe.
+ */
+public interface CryptoBackend {
+
+    enum Mode {
+        CBC,
+        GCM
+    }
+
+    /**
+     * The name used to select the backend in the crypto.backend system properties.
+     */
+    String name();
+
+    /**
+     * @return true if the backend can encrypt and decrypt with the mode and key size on this host
+     */
+    default boolean supports(Mode mode, Key.KeySize keySize) {
+        return true;
+    }
+
+    /**
+     * See {@link AES#encryptCBC(byte, Key.ExpandedKey, byte[])}.
+     */
+    byte[] encryptCBC(byte version, Key.ExpandedKey key, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException;
+
+    /**
+     * See {@link AES#decryptCBC(byte, Key.ExpandedKey, byte[])}.
+     */
+    byte[] decryptCBC(byte version, Key.ExpandedKey key, byte[] encryptedMessage) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException;
+
+    /**
+     * See {@link AES#encryptGCM(byte, String, NonceSource, Key.ExpandedKey, byte[])}.
+     */
+    byte[] encryptGCM(byte version, NonceSource nonces, Key.ExpandedKey key, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException;
+
+    /**
+     * See {@link AES#decryptGCM(byte, Key.ExpandedKey, byte[])}.
+     */
+    byte[] decryptGCM(byte version, Key.ExpandedKey key, byte[] encryptedMessage) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException;
+
+    int encryptCBC(byte version, Key.ExpandedKey key, ByteBuffer src, ByteBuffer dst) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException, ShortBufferException;
+
+    int decryptCBC(byte version, Key.ExpandedKey key, ByteBuffer src, ByteBuffer dst) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException, ShortBufferException;
+
+    int encryptGCM(byte version, NonceSource nonces, Key.ExpandedKey key, ByteBuffer src, ByteBuffer dst) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException, ShortBufferException;
+
+    int decryptGCM(byte version, Key.ExpandedKey key, ByteBuffer src, ByteBuffer dst) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException, ShortBufferException;
+}
@@ -0,0 +1,349 @@
+package crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Chooses the {@link CryptoBackend} used for each mode and key size by the {@link AES} methods that do not take a provider name.
+ * <p>
+ * The selection is made on first use:
+ * <ul>
+ * <li>By default the JCE default provider is used.</li>
+ * <li>With -Dcrypto.backend.calibrate=true every available backend is timed on this host, and the fastest one
+ * is used for each mode and key size. This adds around a second to the first encryption.</li>
+ * <li>-Dcrypto.backend=name uses the named backend for all modes, -Dcrypto.backend.cbc=name and
+ * -Dcrypto.backend.gcm=name for a single mode. These override the calibration.</li>
+ * </ul>
+ * The selection is logged at INFO and returned by {@link #report()}, and can be changed at runtime with
+ * {@link #select(CryptoBackend.Mode, Key.KeySize, CryptoBackend)}.
+ * <p>
+ * Registered backends are JCE, Conscrypt when it is on the classpath, and Commons (OpenSSL through Apache Commons Crypto)
+ * when commons-crypto is on the classpath. Commons is only selected when libcrypto can be loaded, otherwise JCE is used.
+ */
+public final class CryptoBackends {
+
+    public static final String BACKEND_PROPERTY = "crypto.backend";
+    public static final String CALIBRATE_PROPERTY = "crypto.backend.calibrate";
+
+    /**
+     * The size of the messages encrypted and decrypted by {@link #calibrate()}.
+     */
+    static final int CALIBRATION_MESSAGE_SIZE = 1024;
+
+    private static final long WARMUP_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long MEASURE_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final int MEASURE_ROUNDS = 3;
+
+    private static final Logger LOG = Logger.getLogger(CryptoBackends.class.getName());
+
+    public static final CryptoBackend JCE = new JceBackend("JCE", null);
+
+    /**
+     * Guarded by CryptoBackends.class, keyed on the lower case name.
+     */
+    private static final Map<String, CryptoBackend> backends = new LinkedHashMap<>();
+
+    /**
+     * Indexed by {@link #index(CryptoBackend.Mode, Key.KeySize)}, null until the first use.
+     */
+    private static volatile CryptoBackend[] selected;
+
+    /**
+     * The measurements of the last calibration, guarded by CryptoBackends.class.
+     */
+    private static List<Measurement> measurements = Collections.emptyList();
+
+    static {
+        register(JCE);
+
+        CryptoBackend conscrypt = conscrypt();
+        if (conscrypt != null) {
+            register(conscrypt);
+        }
+
+        if (onClasspath("org.apache.commons.crypto.cipher.CryptoCipher")) {
+            register(new CommonsCryptoBackend());
+        }
+    }
+
+    private CryptoBackends() {
+    }
+
+    /**
+     * The backend for the mode and key size.
+     */
+    public static CryptoBackend get(CryptoBackend.Mode mode, Key.KeySize keySize) {
+        CryptoBackend[] current = selected;
+        if (current == null) {
+            current = init();
+        }
+        return current[index(mode, keySize)];
+    }
+
+    /**
+     * Add a backend so that it can be selected by name and is included in the calibration.
+     */
+    public static synchronized void register(CryptoBackend backend) {
+        backends.put(backend.name().toLowerCase(Locale.ROOT), backend);
+    }
+
+    public static synchronized List<CryptoBackend> available() {
+        return new ArrayList<>(backends.values());
+    }
+
+    /**
+     * @throws IllegalArgumentException if no backend with the name is registered
+     */
+    public static synchronized CryptoBackend backend(String name) {
+        CryptoBackend backend = backends.get(name.trim().toLowerCase(Locale.ROOT));
+        if (backend == null) {
+            throw new IllegalArgumentException("unknown crypto backend: " + name + ", available: " + backends.values());
+        }
+        return backend;
+    }
+
+    /**
+     * Use the backend for the mode and key size.
+     *
+     * @throws IllegalArgumentException if the backend does not support the mode and key size
+     */
+    public static synchronized void select(CryptoBackend.Mode mode, Key.KeySize keySize, CryptoBackend backend) {
+        if (!backend.supports(mode, keySize)) {
+            throw new IllegalArgumentException(backend.name() + " does not support " + mode + " " + keySize);
+        }
+
+        CryptoBackend[] next = selected == null ? init() : selected;
+        next = next.clone();
+        next[index(mode, keySize)] = backend;
+        selected = next;
+    }
+
+    /**
+     * Use the backend for every mode and key size it supports.
+     */
+    public static synchronized void select(CryptoBackend backend) {
+        for (CryptoBackend.Mode mode : CryptoBackend.Mode.values()) {
+            for (Key.KeySize keySize : Key.KeySize.values()) {
+                if (backend.supports(mode, keySize)) {
+                    select(mode, keySize, backend);
+                }
+            }
+        }
+    }
+
+    /**
+     * Time every registered backend for each mode and key size on this host, and select the fastest.
+     * Backends that fail are left out.
+     *
+     * @return the measurements, the selection is given by {@link #report()}
+     */
+    public static synchronized List<Measurement> calibrate() {
+        measureAll();
+
+        LOG.info(report());
+        return measurements;
+    }
+
+    private static void measureAll() {
+        CryptoBackend[] next = defaults();
+        double[] best = new double[next.length];
+        Arrays.fill(best, Double.MAX_VALUE);
+
+        List<Measurement> results = new ArrayList<>();
+
+        byte[] txt = new byte[CALIBRATION_MESSAGE_SIZE];
+        Random.nextBytes(txt);
+
+        for (CryptoBackend.Mode mode : CryptoBackend.Mode.values()) {
+            for (Key.KeySize keySize : Key.KeySize.values()) {
+                Key.ExpandedKey key = keySize.genKeysHmacSha();
+                int i = index(mode, keySize);
+
+                for (CryptoBackend backend : backends.values()) {
+                    if (!backend.supports(mode, keySize)) {
+                        continue;
+                    }
+
+                    try {
+                        double nanosPerOp = measure(backend, mode, key, txt);
+                        results.add(new Measurement(mode, keySize, backend, nanosPerOp));
+
+                        if (nanosPerOp < best[i]) {
+                            best[i] = nanosPerOp;
+                            next[i] = backend;
+                        }
+                    } catch (GeneralSecurityException | RuntimeException e) {
+                        LOG.log(Level.WARNING, "crypto backend " + backend.name() + " failed calibration for " + mode + " " + keySize, e);
+                    }
+                }
+
+                key.destroy();
+            }
+        }
+
+        measurements = Collections.unmodifiableList(results);
+        selected = next;
+    }
+
+    /**
+     * A description of the selected backends, and of the last calibration if there was one.
+     */
+    public static synchronized String report() {
+        CryptoBackend[] current = selected == null ? init() : selected;
+
+        StringBuilder buff = new StringBuilder("crypto backends:");
+        for (CryptoBackend.Mode mode : CryptoBackend.Mode.values()) {
+            for (Key.KeySize keySize : Key.KeySize.values()) {
+                buff.append("\n  ").append(mode).append(' ').append(keySize).append(": ").append(current[index(mode, keySize)].name());
+
+                for (Measurement measurement : measurements) {
+                    if (measurement.mode == mode && measurement.keySize == keySize) {
+                        buff.append(String.format(Locale.ROOT, " [%s %.0f ns/op]", measurement.backend.name(), measurement.nanosPerOp));
+                    }
+                }
+            }
+        }
+        return buff.toString();
+    }
+
+    private static synchronized CryptoBackend[] init() {
+        if (selected != null) {
+            return selected;
+        }
+
+        if (Boolean.getBoolean(CALIBRATE_PROPERTY)) {
+            measureAll();
+        } else {
+            selected = defaults();
+        }
+
+        CryptoBackend[] next = selected.clone();
+        override(next, System.getProperty(BACKEND_PROPERTY), CryptoBackend.Mode.values());
+        for (CryptoBackend.Mode mode : CryptoBackend.Mode.values()) {
+            override(next, System.getProperty(BACKEND_PROPERTY + "." + mode.name().toLowerCase(Locale.ROOT)), mode);
+        }
+        selected = next;
+
+        LOG.info(report());
+        return next;
+    }
+
+    private static void override(CryptoBackend[] next, String name, CryptoBackend.Mode... modes) {
+        if (name == null || name.trim().isEmpty()) {
+            return;
+        }
+
+        CryptoBackend backend = backend(name);
+        for (CryptoBackend.Mode mode : modes) {
+            for (Key.KeySize keySize : Key.KeySize.values()) {
+                if (backend.supports(mode, keySize)) {
+                    next[index(mode, keySize)] = backend;
+                }
+            }
+        }
+    }
+
+    private static CryptoBackend[] defaults() {
+        CryptoBackend[] backends = new CryptoBackend[CryptoBackend.Mode.values().length * Key.KeySize.values().length];
+        Arrays.fill(backends, JCE);
+        return backends;
+    }
+
+    private static int index(CryptoBackend.Mode mode, Key.KeySize keySize) {
+        return mode.ordinal() * Key.KeySize.values().length + keySize.ordinal();
+    }
+
+    /**
+     * The best average time of a round of encrypt and decrypt calls, after a warm up.
+     */
+    private static double measure(CryptoBackend backend, CryptoBackend.Mode mode, Key.ExpandedKey key, byte[] txt) throws GeneralSecurityException {
+        run(backend, mode, key, txt, WARMUP_NANOS);
+
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            best = Math.min(best, run(backend, mode, key, txt, MEASURE_NANOS));
+        }
+        return best;
+    }
+
+    private static double run(CryptoBackend backend, CryptoBackend.Mode mode, Key.ExpandedKey key, byte[] txt, long nanos) throws GeneralSecurityException {
+        long start = System.nanoTime();
+        long end = start + nanos;
+        long now;
+        long ops = 0;
+
+        do {
+            byte[] plain = mode == CryptoBackend.Mode.CBC ?
+                    backend.decryptCBC((byte) 0, key, backend.encryptCBC((byte) 0, key, txt)) :
+                    backend.decryptGCM((byte) 0, key, backend.encryptGCM((byte) 0, NonceSource.THREAD_LOCAL_RANDOM, key, txt));
+
+            if (!Arrays.equals(txt, plain)) {
+                throw new IllegalStateException(backend.name() + " did not decrypt " + mode + " correctly");
+            }
+
+            ops++;
+        } while ((now = System.nanoTime()) < end);
+
+        return (double) (now - start) / ops;
+    }
+
+    private static boolean onClasspath(String className) {
+        try {
+            Class.forName(className, false, CryptoBackends.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Conscrypt is optional, it is loaded by reflection when on the classpath and its native library loads.
+     */
+    private static CryptoBackend conscrypt() {
+        try {
+            Class<?> conscrypt = Class.forName("org.conscrypt.Conscrypt");
+            if (!(Boolean) conscrypt.getMethod("isAvailable").invoke(null)) {
+                return null;
+            }
+
+            return new JceBackend("Conscrypt", (Provider) conscrypt.getMethod("newProvider").invoke(null));
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            LOG.log(Level.FINE, "Conscrypt is on the classpath but could not be loaded", e);
+            return null;
+        }
+    }
+
+    /**
+     * The time of one encrypt and decrypt of a {@link #CALIBRATION_MESSAGE_SIZE} message.
+     */
+    public static final class Measurement {
+        public final CryptoBackend.Mode mode;
+        public final Key.KeySize keySize;
+        public final CryptoBackend backend;
+        public final double nanosPerOp;
+
+        Measurement(CryptoBackend.Mode mode, Key.KeySize keySize, CryptoBackend backend, double nanosPerOp) {
+            this.mode = mode;
+            this.keySize = keySize;
+            this.backend = backend;
+            this.nanosPerOp = nanosPerOp;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s %s %s %.0f ns/op", mode, keySize, backend.name(), nanosPerOp);
+        }
+    }
+}
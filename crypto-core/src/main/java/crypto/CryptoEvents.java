@@ -0,0 +1,120 @@
+package crypto;
+
+/**
+ * JDK Flight Recorder events, shown under Crypto in JMC:
+ * <ul>
+ *     <li>crypto.Encrypt and crypto.Decrypt, the methods metered by {@link CryptoMetrics}, with the mode, key size,
+ *     input length, provider and outcome</li>
+ *     <li>crypto.KeyDerive, {@link Key.KeySize#genKeysHmacSha(byte[])} and {@link PasswordKdf#derive(byte[], byte[], int)}</li>
+ *     <li>crypto.NonceGenerate, {@link NonceSource#THREAD_LOCAL_RANDOM} and the {@link NonceSource#of(java.security.SecureRandom)}
+ *     sources, the counter source never waits</li>
+ * </ul>
+ * The events are enabled by default with a threshold, 10 ms for crypto.Encrypt, crypto.Decrypt and crypto.KeyDerive
+ * and 1 ms for crypto.NonceGenerate, so that a continuous recording only keeps the outliers: large messages,
+ * password hashing and a SecureRandom that blocked. Below the threshold an event costs two reads of the JFR clock
+ * and is not written. Without a recording no event object is created. To see every operation for a short
+ * profiling session lower the threshold, e.g. for jcmd JFR.start with a .jfc file that has
+ * <pre>
+ * &lt;event name="crypto.Encrypt"&gt;&lt;setting name="threshold"&gt;0 ms&lt;/setting&gt;&lt;/event&gt;
+ * </pre>
+ * or with {@code recording.enable("crypto.Encrypt").withThreshold(Duration.ZERO)}.
+ * <p>
+ * The library targets Java 8, jdk.jfr is only there from Java 11 and 8u262 and can be left out of a jlink'd runtime.
+ * This class and the interfaces the callers see do not refer to jdk.jfr, the events are in {@link JfrEvents},
+ * which is loaded by name only if jdk.jfr is there. Without it {@link #AVAILABLE} is false and the begin methods
+ * return null.
+ */
+final class CryptoEvents {
+
+    /**
+     * A started crypto.Encrypt or crypto.Decrypt event.
+     */
+    interface CipherEvent {
+        /**
+         * Ends the event and writes it if it took longer than the threshold.
+         *
+         * @param length the input length
+         * @param failure what the operation threw, null if it did not
+         */
+        void end(CryptoMetrics.Mode mode, Key.KeySize keySize, String provider, int length, Throwable failure);
+    }
+
+    /**
+     * A started crypto.KeyDerive event.
+     */
+    interface KeyDeriveEvent {
+        /**
+         * @param keySize null if the derived bytes are not for a {@link Key.ExpandedKey}
+         * @param length the bytes derived
+         */
+        void end(String algorithm, Key.KeySize keySize, int length, Throwable failure);
+    }
+
+    /**
+     * A started crypto.NonceGenerate event.
+     */
+    interface NonceGenerateEvent {
+        /**
+         * @param source the kind of nonce source
+         * @param length the bytes generated
+         */
+        void end(String source, int length, Throwable failure);
+    }
+
+    /**
+     * Starts the events, each method returns null if the event is not recorded.
+     */
+    interface Factory {
+        CipherEvent beginEncrypt();
+
+        CipherEvent beginDecrypt();
+
+        KeyDeriveEvent beginKeyDerive();
+
+        NonceGenerateEvent beginNonceGenerate();
+    }
+
+    private static final Factory FACTORY = factory();
+
+    static final boolean AVAILABLE = FACTORY != null;
+
+    private CryptoEvents() {
+    }
+
+    private static Factory factory() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (Factory) Class.forName("crypto.JfrEvents").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * A started crypto.Encrypt event, null if not recorded.
+     */
+    static CipherEvent beginEncrypt() {
+        return FACTORY == null ? null : FACTORY.beginEncrypt();
+    }
+
+    /**
+     * A started crypto.Decrypt event, null if not recorded.
+     */
+    static CipherEvent beginDecrypt() {
+        return FACTORY == null ? null : FACTORY.beginDecrypt();
+    }
+
+    /**
+     * A started crypto.KeyDerive event, null if not recorded.
+     */
+    static KeyDeriveEvent beginKeyDerive() {
+        return FACTORY == null ? null : FACTORY.beginKeyDerive();
+    }
+
+    /**
+     * A started crypto.NonceGenerate event, null if not recorded.
+     */
+    static NonceGenerateEvent beginNonceGenerate() {
+        return FACTORY == null ? null : FACTORY.beginNonceGenerate();
+    }
+}
@@ -0,0 +1,519 @@
+package crypto;
+
+import javax.crypto.AEADBadTagException;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Counts, bytes, latency histograms and authentication failures of the encrypt and decrypt methods,
+ * per operation, mode, key size and provider.
+ * <p>
+ * Disabled by default, the methods then only read one volatile field. Enable with {@link #enable()} or
+ * -Dcrypto.metrics=true, which installs the built in metrics and registers them in JMX as {@link #OBJECT_NAME}.
+ * Enabled, an operation costs two System.nanoTime calls and a few uncontended LongAdder and atomic increments.
+ * <pre>
+ * CryptoMetrics metrics = CryptoMetrics.enable();
+ * ...
+ * for (CryptoMetrics.Snapshot s : metrics.snapshot()) {
+ *     System.out.println(s);
+ * }
+ * </pre>
+ * Other metrics libraries are plugged in with {@link #install(Listener)}.
+ * <p>
+ * Metered are the methods that encrypt or decrypt one message:
+ * <ul>
+ * <li>the byte[] methods of {@link AES} for CBC, GCM and SIV, including the ones called through {@link KeyRing}</li>
+ * <li>all {@link AesEngine} methods, byte[], offset and ByteBuffer</li>
+ * <li>the batch methods of {@link AES}, every message of the batch is an operation of its own</li>
+ * <li>{@link ChaCha20Poly1305}, as {@link Mode#CHACHA20_POLY1305}</li>
+ * </ul>
+ * Not metered are the streams, {@link FileCrypto} and {@link AesParallel}, they work on segments of a larger message.
+ * The bytes are the input length, the plain text for encrypt and the message for decrypt.
+ * A {@link SecurityException} or {@link AEADBadTagException} is an {@link Outcome#AUTH_FAILURE}, a wrong key, a tampered
+ * message or the wrong aad, any other exception is an {@link Outcome#ERROR}.
+ * <p>
+ * Thread safe.
+ */
+public final class CryptoMetrics {
+
+    public static final String METRICS_PROPERTY = "crypto.metrics";
+    public static final String OBJECT_NAME = "crypto:type=CryptoMetrics";
+
+    private static final Logger LOG = Logger.getLogger(CryptoMetrics.class.getName());
+
+    public enum Operation {
+        ENCRYPT,
+        DECRYPT
+    }
+
+    public enum Mode {
+        CBC,
+        GCM,
+        SIV,
+        CHACHA20_POLY1305
+    }
+
+    public enum Outcome {
+        OK,
+        AUTH_FAILURE,
+        ERROR
+    }
+
+    /**
+     * Receives every metered operation on the calling thread, must be thread safe and fast.
+     */
+    public interface Listener {
+        /**
+         * @param provider the backend name, or the JCE provider name for the methods that take one
+         * @param bytes the input length
+         * @param nanos the time the operation took
+         */
+        void record(Operation operation, Mode mode, Key.KeySize keySize, String provider, int bytes, long nanos, Outcome outcome);
+    }
+
+    private static final int MODES = Mode.values().length;
+    private static final int KEY_SIZES = Key.KeySize.values().length;
+
+    private static volatile Listener listener;
+
+    /**
+     * Guarded by CryptoMetrics.class, the instance installed by {@link #enable()}.
+     */
+    private static CryptoMetrics installed;
+
+    static {
+        if (Boolean.getBoolean(METRICS_PROPERTY)) {
+            enable();
+        }
+    }
+
+    /**
+     * Indexed by {@link #index(Operation, Mode, Key.KeySize)}, keyed on the provider.
+     */
+    private final Map<String, Stats>[] stats;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public CryptoMetrics() {
+        stats = new Map[Operation.values().length * MODES * KEY_SIZES];
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = new ConcurrentHashMap<>();
+        }
+    }
+
+    /**
+     * The listener of the metered methods, null when disabled.
+     */
+    static Listener listener() {
+        return listener;
+    }
+
+    /**
+     * Install the built in metrics if no metrics are installed yet and register them in JMX.
+     *
+     * @return the built in metrics
+     * @throws IllegalStateException if a listener was installed with {@link #install(Listener)}
+     */
+    public static synchronized CryptoMetrics enable() {
+        if (installed != null) {
+            return installed;
+        }
+
+        if (listener != null) {
+            throw new IllegalStateException("a listener is already installed: " + listener);
+        }
+
+        CryptoMetrics metrics = new CryptoMetrics();
+        register(metrics);
+
+        installed = metrics;
+        listener = metrics::record;
+        return metrics;
+    }
+
+    /**
+     * Send the metered operations to the listener, replaces the built in metrics if enabled.
+     * A {@link CryptoMetrics} installed with {@code install(metrics::record)} is not registered in JMX.
+     */
+    public static synchronized void install(Listener l) {
+        disable();
+        listener = l;
+    }
+
+    /**
+     * Stop metering and unregister the built in metrics from JMX.
+     */
+    public static synchronized void disable() {
+        listener = null;
+
+        if (installed != null) {
+            unregister();
+            installed = null;
+        }
+    }
+
+    /**
+     * Called by the metered methods when the operation is done.
+     *
+     * @param start the System.nanoTime when the operation started
+     * @param failure what the operation threw, null if it succeeded
+     */
+    static void record(Listener metrics, Operation operation, Mode mode, Key.KeySize keySize, String provider, int bytes, long start, Throwable failure) {
+        metrics.record(operation, mode, keySize, provider, bytes, System.nanoTime() - start, outcome(failure));
+    }
+
+    /**
+     * The outcome of an operation that threw e, null if it did not throw.
+     */
+    static Outcome outcome(Throwable e) {
+        if (e == null) {
+            return Outcome.OK;
+        }
+        return e instanceof SecurityException || e instanceof AEADBadTagException ? Outcome.AUTH_FAILURE : Outcome.ERROR;
+    }
+
+    /**
+     * Add an operation, see {@link Listener#record(Operation, Mode, Key.KeySize, String, int, long, Outcome)}.
+     */
+    public void record(Operation operation, Mode mode, Key.KeySize keySize, String provider, int bytes, long nanos, Outcome outcome) {
+        Map<String, Stats> byProvider = stats[index(operation, mode, keySize)];
+
+        Stats s = byProvider.get(provider);
+        if (s == null) {
+            s = byProvider.computeIfAbsent(provider, p -> new Stats());
+        }
+
+        s.record(bytes, nanos, outcome);
+    }
+
+    /**
+     * The metrics of every operation, mode, key size and provider used since the start or the last reset.
+     * The values of one snapshot are read while operations are recorded, they can differ by the operations in flight.
+     */
+    public List<Snapshot> snapshot() {
+        List<Snapshot> snapshots = new ArrayList<>();
+
+        for (Operation operation : Operation.values()) {
+            for (Mode mode : Mode.values()) {
+                for (Key.KeySize keySize : Key.KeySize.values()) {
+                    for (Map.Entry<String, Stats> e : new TreeMap<>(stats[index(operation, mode, keySize)]).entrySet()) {
+                        snapshots.add(e.getValue().snapshot(operation, mode, keySize, e.getKey()));
+                    }
+                }
+            }
+        }
+
+        return snapshots;
+    }
+
+    /**
+     * The total number of authentication failures.
+     */
+    public long authFailures() {
+        long n = 0;
+        for (Map<String, Stats> byProvider : stats) {
+            for (Stats s : byProvider.values()) {
+                n += s.authFailures.sum();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Remove all metrics, operations recorded during the reset may be kept or lost.
+     */
+    public void reset() {
+        for (Map<String, Stats> byProvider : stats) {
+            byProvider.clear();
+        }
+    }
+
+    private static int index(Operation operation, Mode mode, Key.KeySize keySize) {
+        return (operation.ordinal() * MODES + mode.ordinal()) * KEY_SIZES + keySize.ordinal();
+    }
+
+    private static void register(CryptoMetrics metrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new MXBean(metrics), new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            LOG.log(Level.WARNING, OBJECT_NAME + " is already registered, e.g. by another class loader, the metrics are not in JMX");
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "could not register " + OBJECT_NAME, e);
+        }
+    }
+
+    private static void unregister() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (InstanceNotFoundException e) {
+            // not registered, see register
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "could not unregister " + OBJECT_NAME, e);
+        }
+    }
+
+    /**
+     * The metrics of one operation, mode, key size and provider.
+     */
+    public static final class Snapshot {
+        public final Operation operation;
+        public final Mode mode;
+        public final Key.KeySize keySize;
+        public final String provider;
+
+        /**
+         * Including failed operations.
+         */
+        public final long count;
+        public final long bytes;
+        public final long authFailures;
+        public final long errors;
+        public final long totalNanos;
+        public final long maxNanos;
+
+        private final long[] buckets;
+
+        Snapshot(Operation operation, Mode mode, Key.KeySize keySize, String provider,
+                 long count, long bytes, long authFailures, long errors, long totalNanos, long maxNanos, long[] buckets) {
+            this.operation = operation;
+            this.mode = mode;
+            this.keySize = keySize;
+            this.provider = provider;
+            this.count = count;
+            this.bytes = bytes;
+            this.authFailures = authFailures;
+            this.errors = errors;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.buckets = buckets;
+        }
+
+        public long meanNanos() {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        /**
+         * The latency at the percentile, within 12.5% of the recorded value.
+         *
+         * @param percentile between 0 and 100
+         */
+        public long percentileNanos(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("invalid percentile: " + percentile);
+            }
+
+            if (count == 0) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+            long n = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                n += buckets[i];
+                if (n >= rank) {
+                    return Math.min(Histogram.highestValue(i), maxNanos);
+                }
+            }
+            return maxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return operation + " " + mode + " " + keySize + " " + provider
+                    + " count=" + count + " bytes=" + bytes + " authFailures=" + authFailures + " errors=" + errors
+                    + " mean=" + meanNanos() + "ns p50=" + percentileNanos(50) + "ns p99=" + percentileNanos(99)
+                    + "ns p99.9=" + percentileNanos(99.9) + "ns max=" + maxNanos + "ns";
+        }
+    }
+
+    /**
+     * The count is the sum of the histogram buckets.
+     */
+    private static final class Stats {
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder authFailures = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        private final Histogram histogram = new Histogram();
+
+        void record(int len, long nanos, Outcome outcome) {
+            bytes.add(len);
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+            histogram.record(nanos);
+
+            if (outcome == Outcome.AUTH_FAILURE) {
+                authFailures.increment();
+            } else if (outcome == Outcome.ERROR) {
+                errors.increment();
+            }
+        }
+
+        Snapshot snapshot(Operation operation, Mode mode, Key.KeySize keySize, String provider) {
+            long[] buckets = histogram.buckets();
+
+            long count = 0;
+            for (long b : buckets) {
+                count += b;
+            }
+
+            return new Snapshot(operation, mode, keySize, provider,
+                    count, bytes.sum(), authFailures.sum(), errors.sum(), totalNanos.sum(), maxNanos.get(), buckets);
+        }
+    }
+
+    /**
+     * Lock free log-linear histogram, 8 buckets for every power of two, so a bucket is at most 12.5% wide.
+     * Values below 16 have a bucket each.
+     * <p>
+     * The counts are striped on the thread id, like the LongAdders next to it, so that threads recording at the same
+     * time do not write the same cache lines. A stripe is created by the first thread that records in it and the
+     * stripes are summed by {@link #buckets()}.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int LINEAR = 2 * SUB_BUCKETS;
+
+        static final int BUCKETS = LINEAR + (63 - (SUB_BUCKET_BITS + 1)) * SUB_BUCKETS;
+
+        static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+        private final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<>(STRIPES);
+
+        void record(long value) {
+            int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+
+            AtomicLongArray counts = stripes.get(stripe);
+            if (counts == null) {
+                stripes.compareAndSet(stripe, null, new AtomicLongArray(BUCKETS));
+                counts = stripes.get(stripe);
+            }
+
+            counts.incrementAndGet(index(Math.max(0, value)));
+        }
+
+        long[] buckets() {
+            long[] v = new long[BUCKETS];
+            for (int s = 0; s < STRIPES; s++) {
+                AtomicLongArray counts = stripes.get(s);
+                if (counts != null) {
+                    for (int i = 0; i < v.length; i++) {
+                        v[i] += counts.get(i);
+                    }
+                }
+            }
+            return v;
+        }
+
+        /**
+         * The power of two at or above the number of processors, at most 64.
+         */
+        static int stripes(int processors) {
+            int n = Math.max(1, Math.min(64, processors));
+            int stripes = Integer.highestOneBit(n);
+            return stripes == n ? stripes : stripes << 1;
+        }
+
+        static int index(long value) {
+            if (value < LINEAR) {
+                return (int) value;
+            }
+
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return LINEAR + (exp - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * The highest value that is counted in the bucket.
+         */
+        static long highestValue(int index) {
+            if (index < LINEAR) {
+                return index;
+            }
+
+            int exp = (index - LINEAR) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+            int sub = (index - LINEAR) % SUB_BUCKETS;
+            long width = 1L << (exp - SUB_BUCKET_BITS);
+            return ((SUB_BUCKETS + sub) * width) + width - 1;
+        }
+    }
+
+    /**
+     * The JMX view of the built in metrics.
+     */
+    private static final class MXBean implements CryptoMetricsMXBean {
+        private final CryptoMetrics metrics;
+
+        MXBean(CryptoMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public long getOperations() {
+            long n = 0;
+            for (Snapshot s : metrics.snapshot()) {
+                n += s.count;
+            }
+            return n;
+        }
+
+        @Override
+        public long getBytes() {
+            long n = 0;
+            for (Snapshot s : metrics.snapshot()) {
+                n += s.bytes;
+            }
+            return n;
+        }
+
+        @Override
+        public long getAuthFailures() {
+            return metrics.authFailures();
+        }
+
+        @Override
+        public Map<String, Long> getMetrics() {
+            Map<String, Long> values = new TreeMap<>();
+
+            for (Snapshot s : metrics.snapshot()) {
+                String prefix = s.operation.name().toLowerCase(Locale.ROOT) + "." + s.mode.name().toLowerCase(Locale.ROOT) + "." + s.keySize + "." + s.provider + ".";
+
+                values.put(prefix + "count", s.count);
+                values.put(prefix + "bytes", s.bytes);
+                values.put(prefix + "authFailures", s.authFailures);
+                values.put(prefix + "errors", s.errors);
+                values.put(prefix + "meanNanos", s.meanNanos());
+                values.put(prefix + "p50Nanos", s.percentileNanos(50));
+                values.put(prefix + "p99Nanos", s.percentileNanos(99));
+                values.put(prefix + "p999Nanos", s.percentileNanos(99.9));
+                values.put(prefix + "maxNanos", s.maxNanos);
+            }
+
+            return Collections.unmodifiableMap(values);
+        }
+
+        @Override
+        public void reset() {
+            metrics.reset();
+        }
+    }
+}
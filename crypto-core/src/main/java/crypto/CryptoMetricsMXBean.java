@@ -0,0 +1,29 @@
+package crypto;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link CryptoMetrics}, registered as {@link CryptoMetrics#OBJECT_NAME} by {@link CryptoMetrics#enable()}.
+ */
+public interface CryptoMetricsMXBean {
+
+    /**
+     * All encrypt and decrypt operations, including the failed ones.
+     */
+    long getOperations();
+
+    long getBytes();
+
+    /**
+     * Messages that could not be authenticated, tampered messages or the wrong key or aad.
+     */
+    long getAuthFailures();
+
+    /**
+     * Every metric of every operation, mode, key size and provider, keyed on
+     * operation.mode.keySize.provider.metric, e.g. decrypt.cbc.AES_256.JCE.p99Nanos.
+     */
+    Map<String, Long> getMetrics();
+
+    void reset();
+}
@@ -0,0 +1,103 @@
+package crypto;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * HMAC (RFC 2104) on a MessageDigest that does not allocate per message.
+ * <p>
+ * {@link javax.crypto.Mac#doFinal(byte[], int)} allocates the mac and then copies it into the output array.
+ * This writes both digests into arrays kept with the instance, and computes the same macs as the JCE HmacSHA256 and
+ * HmacSHA512 for the authKey of the key size.
+ * <p>
+ * Not thread safe, keep one per thread.
+ */
+final class DigestHmac {
+
+    private final MessageDigest md;
+    private final byte[] ipad;
+    private final byte[] opad;
+    private final byte[] inner;
+
+    private boolean started;
+
+    DigestHmac(Key.KeySize keySize, byte[] authKey) throws NoSuchAlgorithmException {
+        // the block size of SHA-256 is 64 and of SHA-512 128 bytes, the auth keys are never longer than the block
+        boolean sha256 = keySize == Key.KeySize.AES_128;
+        int blockSize = sha256 ? 64 : 128;
+
+        if (authKey.length > blockSize) {
+            throw new IllegalArgumentException("invalid auth key length: " + authKey.length);
+        }
+
+        md = MessageDigest.getInstance(sha256 ? "SHA-256" : "SHA-512");
+        ipad = new byte[blockSize];
+        opad = new byte[blockSize];
+        inner = new byte[md.getDigestLength()];
+
+        Arrays.fill(ipad, (byte) 0x36);
+        Arrays.fill(opad, (byte) 0x5c);
+        for (int i = 0; i < authKey.length; i++) {
+            ipad[i] ^= authKey[i];
+            opad[i] ^= authKey[i];
+        }
+    }
+
+    int getMacLength() {
+        return inner.length;
+    }
+
+    void update(byte b) {
+        start();
+        md.update(b);
+    }
+
+    void update(byte[] bts, int off, int len) {
+        start();
+        md.update(bts, off, len);
+    }
+
+    /**
+     * Update with buff[from:to] without changing the position or limit of buff.
+     */
+    void update(ByteBuffer buff, int from, int to) {
+        start();
+        Buffers.update(md, buff, from, to);
+    }
+
+    /**
+     * Writes the mac to out[off:off+getMacLength()] and resets for the next message.
+     */
+    void doFinal(byte[] out, int off) {
+        start();
+        started = false;
+
+        try {
+            md.digest(inner, 0, inner.length);
+            md.update(opad);
+            md.update(inner);
+            md.digest(out, off, inner.length);
+        } catch (DigestException e) {
+            // the output arrays are sized with the digest length
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Drops any input of a message that was not finished, e.g. after an exception between update and doFinal.
+     */
+    void reset() {
+        md.reset();
+        started = false;
+    }
+
+    private void start() {
+        if (!started) {
+            md.update(ipad);
+            started = true;
+        }
+    }
+}
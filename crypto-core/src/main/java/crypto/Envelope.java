@@ -0,0 +1,390 @@
+package crypto;
+
+import javax.crypto.ShortBufferException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Envelope encryption, every message is encrypted with AES GCM under a data encryption key (DEK) that is wrapped by a
+ * {@link MasterKey} and stored in front of the message:
+ * <p>
+ * [ version:byte, wrapped-dek-len:short, wrapped-dek:byte-array[wrapped-dek-len], gcm-message ]
+ * <p>
+ * The gcm-message is the {@link AES#encryptGCM(Key.ExpandedKey, byte[])} layout with the same version, the bytes before
+ * it are authenticated as its associated data.
+ * <p>
+ * A DEK is reused until it has encrypted maxMessages messages or maxBytes bytes or is older than maxAge, so only one
+ * message in many pays for the master key round trip. Unwrapped DEKs are kept in a bounded LRU cache, keyed on the
+ * wrapped DEK, for the same max age. Hits, misses and the time spent wrapping and unwrapping are counted.
+ * <pre>
+ * Envelope envelope = new Envelope(MasterKey.aesKeyWrap(masterKey));
+ *
+ * byte[] encrypted = envelope.encrypt(data);
+ * byte[] decrypted = envelope.decrypt(encrypted);
+ * </pre>
+ * DEKs that are retired or evicted are not destroyed, other threads may still be using them.
+ * <p>
+ * Thread safe.
+ */
+public class Envelope {
+
+    public static final int MAX_WRAPPED_KEY_LENGTH = 0xFFFF;
+
+    /**
+     * Well below the 2^32 messages NIST allows per key with random GCM nonces.
+     */
+    public static final long DEFAULT_MAX_MESSAGES = 1L << 20;
+    public static final long DEFAULT_MAX_BYTES = 1L << 32;
+    public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+    public static final int DEFAULT_CACHE_SIZE = 1000;
+
+    private final MasterKey masterKey;
+    private final Key.KeySize dekSize;
+    private final long maxMessages;
+    private final long maxBytes;
+    private final long maxAgeNanos;
+    private final int cacheSize;
+
+    private volatile Dek current;
+
+    /**
+     * Unwrapped DEKs, guarded by itself, in access order so that the first entry is the least recently used.
+     */
+    private final LinkedHashMap<ByteBuffer, Dek> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder wraps = new LongAdder();
+    private final LongAdder wrapNanos = new LongAdder();
+    private final LongAdder unwraps = new LongAdder();
+    private final LongAdder unwrapNanos = new LongAdder();
+
+    /**
+     * AES 256 DEKs with the default limits.
+     */
+    public Envelope(MasterKey masterKey) {
+        this(masterKey, Key.KeySize.AES_256, DEFAULT_MAX_MESSAGES, DEFAULT_MAX_BYTES, DEFAULT_MAX_AGE_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param masterKey wraps and unwraps the DEKs
+     * @param dekSize the size of new DEKs, messages with either size can be decrypted
+     * @param maxMessages the number of messages encrypted with a DEK, 1 for a new DEK per message
+     * @param maxBytes the number of plain text bytes encrypted with a DEK, a single larger message still gets a DEK
+     * @param maxAge how long a DEK is used for encryption and kept in the cache
+     * @param cacheSize the maximum number of unwrapped DEKs kept for decryption
+     */
+    public Envelope(MasterKey masterKey, Key.KeySize dekSize, long maxMessages, long maxBytes, long maxAge, TimeUnit unit, int cacheSize) {
+        if (maxMessages < 1) {
+            throw new IllegalArgumentException("invalid max messages: " + maxMessages);
+        }
+
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("invalid max bytes: " + maxBytes);
+        }
+
+        if (maxAge < 1) {
+            throw new IllegalArgumentException("invalid max age: " + maxAge);
+        }
+
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("invalid cache size: " + cacheSize);
+        }
+
+        this.masterKey = masterKey;
+        this.dekSize = dekSize;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.maxAgeNanos = unit.toNanos(maxAge);
+        this.cacheSize = cacheSize;
+    }
+
+    public byte[] encrypt(byte[] txt) throws GeneralSecurityException {
+        return encrypt((byte) 0, txt);
+    }
+
+    /**
+     * Encrypts with the current DEK, a new DEK is created and wrapped once the current one reached one of its limits.
+     *
+     * @param version any custom version you want to add to the output array
+     * @param txt the text to encrypt
+     * @return the encrypted byte array
+     * @throws GeneralSecurityException from the {@link MasterKey} or the cipher
+     */
+    public byte[] encrypt(byte version, byte[] txt) throws GeneralSecurityException {
+        Dek dek = dek(txt.length);
+
+        int headerLen = 3 + dek.wrapped.length;
+
+        byte[] output = new byte[headerLen + AES.outputSizeGCM(txt.length)];
+        output[0] = version;
+        output[1] = (byte) (dek.wrapped.length >>> 8);
+        output[2] = (byte) dek.wrapped.length;
+        System.arraycopy(dek.wrapped, 0, output, 3, dek.wrapped.length);
+
+        try {
+            AES.encryptGCM(version, dek.key.gcmCipher(), dek.key.encKeySpec(), NonceSource.THREAD_LOCAL_RANDOM, new byte[AES.GCM_IV_LENGTH],
+                    ByteBuffer.wrap(output, 0, headerLen), txt, 0, txt.length, output, headerLen);
+        } catch (ShortBufferException e) {
+            // the output is sized with outputSizeGCM, this can only happen if the size calculation is wrong
+            throw new RuntimeException(e);
+        }
+
+        return output;
+    }
+
+    public byte[] decrypt(byte[] encryptedMessage) throws GeneralSecurityException {
+        return decrypt((byte) 0, encryptedMessage);
+    }
+
+    /**
+     * Decrypts messages from {@link #encrypt(byte, byte[])}, the DEK is unwrapped by the master key on a cache miss.
+     *
+     * @param version the version the message must have
+     * @param encryptedMessage the encrypted data
+     * @return the decrypted data
+     * @throws javax.crypto.AEADBadTagException if the message could not be authenticated
+     * @throws GeneralSecurityException from the {@link MasterKey} or the cipher
+     */
+    public byte[] decrypt(byte version, byte[] encryptedMessage) throws GeneralSecurityException {
+        int headerLen = checkHeader(version, encryptedMessage);
+
+        Dek dek = unwrap(ByteBuffer.wrap(encryptedMessage, 3, headerLen - 3).slice());
+
+        return decryptGCM(version, dek.key, ByteBuffer.wrap(encryptedMessage, 0, headerLen), encryptedMessage, headerLen);
+    }
+
+    /**
+     * The exact size of a message for a plain text of len bytes, the wrapped DEK length depends on the {@link MasterKey}.
+     */
+    public static int outputSize(int wrappedDekLen, int len) {
+        return 3 + wrappedDekLen + AES.outputSizeGCM(len);
+    }
+
+    /**
+     * Remove all DEKs from the cache, the next message is encrypted with a new DEK.
+     */
+    public void clear() {
+        current = null;
+
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Messages encrypted with the current DEK and messages decrypted with a cached DEK.
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Messages that needed a new DEK or an unwrap.
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    public double hitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public long wraps() {
+        return wraps.sum();
+    }
+
+    /**
+     * The total time spent in {@link MasterKey#wrap(byte[])}.
+     */
+    public long wrapNanos() {
+        return wrapNanos.sum();
+    }
+
+    public long unwraps() {
+        return unwraps.sum();
+    }
+
+    /**
+     * The total time spent in {@link MasterKey#unwrap(byte[])}.
+     */
+    public long unwrapNanos() {
+        return unwrapNanos.sum();
+    }
+
+    /**
+     * The current DEK with len more bytes counted on it, or a new DEK if the current one reached a limit.
+     */
+    private Dek dek(int len) throws GeneralSecurityException {
+        Dek dek = current;
+        if (dek != null && dek.tryUse(len, System.nanoTime())) {
+            hits.increment();
+            return dek;
+        }
+
+        synchronized (this) {
+            // another thread may have replaced the DEK while this one waited
+            Dek latest = current;
+            if (latest != null && latest != dek && latest.tryUse(len, System.nanoTime())) {
+                hits.increment();
+                return latest;
+            }
+
+            misses.increment();
+
+            byte[] raw = dekSize.newKey();
+
+            long start = System.nanoTime();
+            byte[] wrapped = masterKey.wrap(raw);
+            long end = System.nanoTime();
+
+            wraps.increment();
+            wrapNanos.add(end - start);
+
+            if (wrapped.length > MAX_WRAPPED_KEY_LENGTH) {
+                throw new IllegalArgumentException("the wrapped key has " + wrapped.length + " bytes, at most " + MAX_WRAPPED_KEY_LENGTH + " are supported");
+            }
+
+            Dek created = new Dek(dekSize.genKeysHmacSha(raw), wrapped, end);
+            created.tryUse(len, end);
+
+            // messages are often decrypted by the process that encrypted them
+            cache(ByteBuffer.wrap(wrapped), created);
+
+            current = created;
+            return created;
+        }
+    }
+
+    private Dek unwrap(ByteBuffer wrapped) throws GeneralSecurityException {
+        long now = System.nanoTime();
+
+        synchronized (cache) {
+            Dek dek = cache.get(wrapped);
+            if (dek != null) {
+                if (now - dek.created <= maxAgeNanos) {
+                    hits.increment();
+                    return dek;
+                }
+                cache.remove(wrapped);
+            }
+        }
+
+        misses.increment();
+
+        byte[] wrappedDek = new byte[wrapped.remaining()];
+        wrapped.duplicate().get(wrappedDek);
+
+        long start = System.nanoTime();
+        byte[] raw = masterKey.unwrap(wrappedDek);
+        long end = System.nanoTime();
+
+        unwraps.increment();
+        unwrapNanos.add(end - start);
+
+        Dek dek = new Dek(expand(raw), wrappedDek, end);
+        cache(ByteBuffer.wrap(wrappedDek), dek);
+
+        return dek;
+    }
+
+    private void cache(ByteBuffer wrapped, Dek dek) {
+        if (cacheSize == 0) {
+            return;
+        }
+
+        synchronized (cache) {
+            cache.put(wrapped, dek);
+
+            Iterator<Dek> it = cache.values().iterator();
+            while (cache.size() > cacheSize) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    private static Key.ExpandedKey expand(byte[] raw) {
+        for (Key.KeySize keySize : Key.KeySize.values()) {
+            if (keySize.getKeySizeBytes() == raw.length) {
+                return keySize.genKeysHmacSha(raw);
+            }
+        }
+
+        Arrays.fill(raw, (byte) 0);
+        throw new IllegalArgumentException("invalid key length: " + raw.length);
+    }
+
+    /**
+     * @return the length of the header, which is the position of the gcm message
+     */
+    private static int checkHeader(byte version, byte[] encryptedMessage) {
+        if (encryptedMessage.length < 3) {
+            throw new IllegalArgumentException("invalid message length: " + encryptedMessage.length);
+        }
+
+        int cipherVersion = encryptedMessage[0];
+        if (cipherVersion != version) {
+            throw new RuntimeException("Version " + version + " was expected but the cipher message has " + cipherVersion);
+        }
+
+        int wrappedLen = ((encryptedMessage[1] & 0xFF) << 8) | (encryptedMessage[2] & 0xFF);
+        if (wrappedLen == 0 || 3 + wrappedLen > encryptedMessage.length) {
+            throw new IllegalArgumentException("invalid wrapped key length: " + wrappedLen);
+        }
+
+        return 3 + wrappedLen;
+    }
+
+    private static byte[] decryptGCM(byte version, Key.ExpandedKey key, ByteBuffer aad, byte[] encryptedMessage, int off) throws GeneralSecurityException {
+        int len = encryptedMessage.length - off;
+        byte[] output = new byte[AES.decryptedSizeGCM(len)];
+
+        try {
+            AES.decryptGCM(version, key.gcmCipher(), key.encKeySpec(), aad, encryptedMessage, off, len, output, 0);
+        } catch (ShortBufferException e) {
+            // the output is sized with decryptedSizeGCM, this can only happen if the size calculation is wrong
+            throw new RuntimeException(e);
+        }
+
+        return output;
+    }
+
+    private final class Dek {
+        private final Key.ExpandedKey key;
+        private final byte[] wrapped;
+        private final long created;
+
+        private final AtomicLong messages = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+
+        Dek(Key.ExpandedKey key, byte[] wrapped, long created) {
+            this.key = key;
+            this.wrapped = wrapped;
+            this.created = created;
+        }
+
+        /**
+         * Counts one message of len bytes, false if that is over a limit and the DEK must not be used.
+         * A DEK that went over a limit once is never used again, so the counts of failed attempts don't matter.
+         */
+        boolean tryUse(int len, long now) {
+            if (now - created > maxAgeNanos) {
+                return false;
+            }
+
+            long m = messages.incrementAndGet();
+            long b = bytes.addAndGet(len);
+
+            return m <= maxMessages && (m == 1 || b <= maxBytes);
+        }
+    }
+}
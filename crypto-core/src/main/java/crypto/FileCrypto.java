@@ -0,0 +1,182 @@
+package crypto;
+
+import javax.crypto.*;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+
+/**
+ * Encrypts and decrypts files with AES GCM using memory mapped files.
+ * <p>
+ * The output file is preallocated to its final size and the segments are encrypted directly from the mapped
+ * input into the mapped output. Files are mapped in windows so files of any size can be used. The files are not
+ * read into byte arrays, but the heap use is only bounded per segment, not zero: the JCE GCM implementation copies
+ * direct and mapped buffers through heap arrays and buffers a whole segment while it decrypts.
+ * <p>
+ * Each output window is forced to the storage device once it is written and the output file, with its size, is
+ * forced before returning, so the output is on disk when the methods return without an exception.
+ * Java cannot unmap a file explicitly, the mapping of a window is only released when its buffer is garbage collected.
+ * A large file can therefore keep several windows mapped, this is address space and page cache, not heap.
+ * <p>
+ * The file format is the same segmented GCM format written by {@link AesGcmOutputStream},
+ * files encrypted here can be decrypted with {@link AesGcmInputStream} and vice versa (when the segment size is the same
+ * on both sides, the segment size is read from the header on decrypt).
+ */
+public class FileCrypto {
+
+    /**
+     * The size of the input mapped at a time.
+     */
+    static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+    public static final void encryptGCM(Key.ExpandedKey key, Path in, Path out) throws IOException, NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, BadPaddingException, IllegalBlockSizeException {
+        encryptGCM((byte) 0, null, key, in, out, AesGcmOutputStream.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Encrypt the in file to the out file, out is created or truncated.
+     *
+     * @param version any custom version you want to add to the output
+     * @param cipherProviderName a JCE provider name, null to use the default JCE provider
+     * @param key the key to use for encryption
+     * @param segmentSize the plain text bytes per authenticated segment
+     */
+    public static final void encryptGCM(byte version, String cipherProviderName, Key.ExpandedKey key, Path in, Path out, int segmentSize) throws IOException, NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, BadPaddingException, IllegalBlockSizeException {
+        encryptGCM(version, cipherProviderName, key, in, out, segmentSize, WINDOW_SIZE);
+    }
+
+    static final void encryptGCM(byte version, String cipherProviderName, Key.ExpandedKey key, Path in, Path out, int segmentSize, long windowSize) throws IOException, NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, BadPaddingException, IllegalBlockSizeException {
+
+        Cipher cipher = cipherProviderName == null ? Cipher.getInstance(AES.AES_GCM_CIPHER_LBL) : Cipher.getInstance(AES.AES_GCM_CIPHER_LBL, cipherProviderName);
+        SecretKey encKey = key.encKeySpec();
+
+        byte[] header = GcmSegments.newHeader(version, segmentSize);
+        byte[] nonce = new byte[AES.GCM_IV_LENGTH];
+
+        try (FileChannel inChannel = FileChannel.open(in, StandardOpenOption.READ);
+             FileChannel outChannel = FileChannel.open(out, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            long len = inChannel.size();
+            long segments = GcmSegments.segments(len, segmentSize);
+
+            preallocate(outChannel, GcmSegments.encryptedSize(len, segmentSize));
+            outChannel.write(ByteBuffer.wrap(header), 0);
+
+            long segmentsPerWindow = Math.max(1, windowSize / segmentSize);
+
+            for (long segment = 0; segment < segments; segment += segmentsPerWindow) {
+                long n = Math.min(segmentsPerWindow, segments - segment);
+
+                long inPos = segment * segmentSize;
+                long inLen = Math.min(n * segmentSize, len - inPos);
+                long outPos = GcmSegments.HEADER_LENGTH + segment * (segmentSize + GcmSegments.TAG_LENGTH);
+
+                MappedByteBuffer src = inChannel.map(FileChannel.MapMode.READ_ONLY, inPos, inLen);
+                MappedByteBuffer dst = outChannel.map(FileChannel.MapMode.READ_WRITE, outPos, inLen + n * GcmSegments.TAG_LENGTH);
+
+                for (long i = 0; i < n; i++) {
+                    Buffers.limit(src, Math.min(src.position() + segmentSize, src.capacity()));
+
+                    long current = segment + i;
+                    GcmSegments.encryptSegment(cipher, encKey, header, nonce, current, current == segments - 1, src, dst);
+                }
+                dst.force();
+            }
+            outChannel.force(true);
+        }
+    }
+
+    public static final void decryptGCM(Key.ExpandedKey key, Path in, Path out) throws IOException, NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, BadPaddingException, IllegalBlockSizeException {
+        decryptGCM((byte) 0, null, key, in, out);
+    }
+
+    /**
+     * Decrypt the in file to the out file, out is created or truncated.
+     * If the in file cannot be authenticated a {@link SecurityException} is thrown. On this or any other failure
+     * the out file is truncated to zero bytes, so that no unauthenticated or partly decrypted data is left behind.
+     *
+     * @param version the version the data was encrypted with
+     * @param cipherProviderName a JCE provider name, null to use the default JCE provider
+     * @param key the key used to encrypt the data
+     */
+    public static final void decryptGCM(byte version, String cipherProviderName, Key.ExpandedKey key, Path in, Path out) throws IOException, NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, BadPaddingException, IllegalBlockSizeException {
+        decryptGCM(version, cipherProviderName, key, in, out, WINDOW_SIZE);
+    }
+
+    static final void decryptGCM(byte version, String cipherProviderName, Key.ExpandedKey key, Path in, Path out, long windowSize) throws IOException, NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, BadPaddingException, IllegalBlockSizeException {
+
+        Cipher cipher = cipherProviderName == null ? Cipher.getInstance(AES.AES_GCM_CIPHER_LBL) : Cipher.getInstance(AES.AES_GCM_CIPHER_LBL, cipherProviderName);
+        SecretKey encKey = key.encKeySpec();
+
+        byte[] header = new byte[GcmSegments.HEADER_LENGTH];
+        byte[] nonce = new byte[AES.GCM_IV_LENGTH];
+
+        try (FileChannel inChannel = FileChannel.open(in, StandardOpenOption.READ);
+             FileChannel outChannel = FileChannel.open(out, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+            while (headerBuffer.hasRemaining()) {
+                if (inChannel.read(headerBuffer, headerBuffer.position()) < 0) {
+                    throw new EOFException("The file is too short to contain a header");
+                }
+            }
+
+            int segmentSize = GcmSegments.checkHeader(version, header);
+            long encryptedSegmentSize = segmentSize + GcmSegments.TAG_LENGTH;
+
+            long len = inChannel.size() - GcmSegments.HEADER_LENGTH;
+            long segments = GcmSegments.encryptedSegments(len, segmentSize);
+
+            try {
+                preallocate(outChannel, len - segments * GcmSegments.TAG_LENGTH);
+
+                long segmentsPerWindow = Math.max(1, windowSize / segmentSize);
+
+                for (long segment = 0; segment < segments; segment += segmentsPerWindow) {
+                    long n = Math.min(segmentsPerWindow, segments - segment);
+
+                    long inPos = segment * encryptedSegmentSize;
+                    long inLen = Math.min(n * encryptedSegmentSize, len - inPos);
+                    long outPos = segment * segmentSize;
+
+                    MappedByteBuffer src = inChannel.map(FileChannel.MapMode.READ_ONLY, GcmSegments.HEADER_LENGTH + inPos, inLen);
+                    MappedByteBuffer dst = outChannel.map(FileChannel.MapMode.READ_WRITE, outPos, inLen - n * GcmSegments.TAG_LENGTH);
+
+                    for (long i = 0; i < n; i++) {
+                        Buffers.limit(src, (int) Math.min(src.position() + encryptedSegmentSize, src.capacity()));
+
+                        long current = segment + i;
+                        GcmSegments.decryptSegment(cipher, encKey, header, nonce, current, current == segments - 1, src, dst);
+                    }
+                    dst.force();
+                }
+                outChannel.force(true);
+            } catch (Throwable t) {
+                // do not leave unauthenticated or partly decrypted data behind
+                try {
+                    outChannel.truncate(0);
+                } catch (IOException e) {
+                    t.addSuppressed(e);
+                }
+                throw t;
+            }
+        }
+    }
+
+    /**
+     * Size the file to len bytes up front, so that it can be mapped and written in place.
+     */
+    private static void preallocate(FileChannel channel, long len) throws IOException {
+        if (len > 0) {
+            channel.write(ByteBuffer.wrap(new byte[1]), len - 1);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package crypto;
+
+import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+
+/**
+ * The segmented AES GCM format used to encrypt data that does not fit into a single byte array.
+ * <p>
+ * The output is:
+ * <p>
+ * [ version:byte, iv-len:byte, iv:byte-array[iv-len], segment-size:int, segment-0, segment-1, ..., segment-n ]
+ * <p>
+ * Each segment is the GCM encryption (cipher text + tag) of segment-size plain text bytes, only the last segment
+ * may be shorter (and can be empty).
+ * The nonce of segment i is the iv with i xored into bytes 7 to 10 and the last segment flag xored into byte 11.
+ * The header is passed as associated data to every segment.
+ * <p>
+ * Reordering or dropping segments changes the nonce used to decrypt them, and cutting off the stream at a segment
+ * boundary makes the last segment read decrypt with the wrong last flag, so all of these fail authentication.
+ */
+final class GcmSegments {
+
+    static final int HEADER_LENGTH = 1 + 1 + AES.GCM_IV_LENGTH + 4;
+    static final int TAG_LENGTH = AES.GCM_TAG_LENGTH_BITS / 8;
+
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+    static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The segment counter is 4 bytes.
+     */
+    static final long MAX_SEGMENTS = 1L << 32;
+
+    private GcmSegments() {
+    }
+
+    /**
+     * Create a header with a new random iv.
+     */
+    static byte[] newHeader(byte version, int segmentSize) {
+        checkSegmentSize(segmentSize);
+
+        byte[] iv = new byte[AES.GCM_IV_LENGTH];
+        NonceSource.THREAD_LOCAL_RANDOM.nextNonce(iv);
+
+        byte[] header = new byte[HEADER_LENGTH];
+        int i = 0;
+        header[i++] = version;
+        header[i++] = (byte) iv.length;
+        System.arraycopy(iv, 0, header, i, iv.length);
+        i += iv.length;
+
+        header[i++] = (byte) (segmentSize >>> 24);
+        header[i++] = (byte) (segmentSize >>> 16);
+        header[i++] = (byte) (segmentSize >>> 8);
+        header[i] = (byte) segmentSize;
+
+        return header;
+    }
+
+    /**
+     * Checks the version and iv length of a header.
+     *
+     * @return the segment size
+     */
+    static int checkHeader(byte version, byte[] header) {
+        int i = 0;
+        int cipherVersion = header[i++];
+        if (cipherVersion != version) {
+            throw new RuntimeException("Version " + version + " was expected but the cipher message has " + cipherVersion);
+        }
+
+        int ivLength = header[i++];
+
+        if (ivLength != AES.GCM_IV_LENGTH) { // check input parameter
+            throw new IllegalArgumentException("invalid iv length: " + ivLength);
+        }
+
+        i += ivLength;
+
+        int segmentSize = ((header[i] & 0xFF) << 24)
+                | ((header[i + 1] & 0xFF) << 16)
+                | ((header[i + 2] & 0xFF) << 8)
+                | (header[i + 3] & 0xFF);
+
+        checkSegmentSize(segmentSize);
+        return segmentSize;
+    }
+
+    static void checkSegmentSize(int segmentSize) {
+        if (segmentSize < 1 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("invalid segment size: " + segmentSize);
+        }
+    }
+
+    /**
+     * The total encrypted size, including the header, for len plain text bytes.
+     */
+    static long encryptedSize(long len, int segmentSize) {
+        return HEADER_LENGTH + len + segments(len, segmentSize) * TAG_LENGTH;
+    }
+
+    /**
+     * The number of segments for len plain text bytes, an empty input still has one (empty) last segment.
+     */
+    static long segments(long len, int segmentSize) {
+        return Math.max(1, (len + segmentSize - 1) / segmentSize);
+    }
+
+    /**
+     * The number of segments in len encrypted bytes following the header.
+     *
+     * @throws SecurityException if the last segment is too short to hold a tag
+     */
+    static long encryptedSegments(long len, int segmentSize) {
+        long encryptedSegmentSize = (long) segmentSize + TAG_LENGTH;
+        long segments = Math.max(1, (len + encryptedSegmentSize - 1) / encryptedSegmentSize);
+
+        if (len - (segments - 1) * encryptedSegmentSize < TAG_LENGTH) {
+            throw new SecurityException("could not authenticate segment " + (segments - 1) + ", the input is truncated");
+        }
+
+        return segments;
+    }
+
+    /**
+     * Derive the nonce for a segment from the iv in the header.
+     */
+    static void nonce(byte[] header, long segment, boolean last, byte[] nonce) {
+        if (segment >= MAX_SEGMENTS) {
+            throw new IllegalStateException("Too many segments, use a bigger segment size");
+        }
+
+        System.arraycopy(header, 2, nonce, 0, AES.GCM_IV_LENGTH);
+
+        nonce[7] ^= (byte) (segment >>> 24);
+        nonce[8] ^= (byte) (segment >>> 16);
+        nonce[9] ^= (byte) (segment >>> 8);
+        nonce[10] ^= (byte) segment;
+        nonce[11] ^= (byte) (last ? 1 : 0);
+    }
+
+    /**
+     * Encrypt a single segment.
+     *
+     * @param nonce GCM_IV_LENGTH scratch array
+     * @return the number of bytes written to dst, len + TAG_LENGTH
+     */
+    static int encryptSegment(Cipher cipher, SecretKey encKey, byte[] header, byte[] nonce, long segment, boolean last,
+                              byte[] src, int off, int len, byte[] dst, int dstOff) throws InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, BadPaddingException, IllegalBlockSizeException {
+        nonce(header, segment, last, nonce);
+
+        cipher.init(Cipher.ENCRYPT_MODE, encKey, new GCMParameterSpec(AES.GCM_TAG_LENGTH_BITS, nonce));
+        cipher.updateAAD(header);
+
+        return cipher.doFinal(src, off, len, dst, dstOff);
+    }
+
+    /**
+     * Decrypt and authenticate a single segment.
+     *
+     * @param nonce GCM_IV_LENGTH scratch array
+     * @return the number of bytes written to dst, len - TAG_LENGTH
+     * @throws SecurityException if the segment could not be authenticated
+     */
+    static int decryptSegment(Cipher cipher, SecretKey encKey, byte[] header, byte[] nonce, long segment, boolean last,
+                              byte[] src, int off, int len, byte[] dst, int dstOff) throws InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        if (len < TAG_LENGTH) {
+            throw new SecurityException("could not authenticate segment " + segment + ", the input is truncated");
+        }
+
+        nonce(header, segment, last, nonce);
+
+        cipher.init(Cipher.DECRYPT_MODE, encKey, new GCMParameterSpec(AES.GCM_TAG_LENGTH_BITS, nonce));
+        cipher.updateAAD(header);
+
+        try {
+            return cipher.doFinal(src, off, len, dst, dstOff);
+        } catch (AEADBadTagException e) {
+            throw new SecurityException("could not authenticate segment " + segment, e);
+        }
+    }
+
+    /**
+     * ByteBuffer version of {@link #encryptSegment(Cipher, SecretKey, byte[], byte[], long, boolean, byte[], int, int, byte[], int)},
+     * encrypts the remaining bytes of src and writes the segment at the position of dst.
+     */
+    static int encryptSegment(Cipher cipher, SecretKey encKey, byte[] header, byte[] nonce, long segment, boolean last,
+                              ByteBuffer src, ByteBuffer dst) throws InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, BadPaddingException, IllegalBlockSizeException {
+        nonce(header, segment, last, nonce);
+
+        cipher.init(Cipher.ENCRYPT_MODE, encKey, new GCMParameterSpec(AES.GCM_TAG_LENGTH_BITS, nonce));
+        cipher.updateAAD(header);
+
+        return cipher.doFinal(src, dst);
+    }
+
+    /**
+     * ByteBuffer version of {@link #decryptSegment(Cipher, SecretKey, byte[], byte[], long, boolean, byte[], int, int, byte[], int)},
+     * decrypts the remaining bytes of src and writes the plain text at the position of dst.
+     */
+    static int decryptSegment(Cipher cipher, SecretKey encKey, byte[] header, byte[] nonce, long segment, boolean last,
+                              ByteBuffer src, ByteBuffer dst) throws InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        if (src.remaining() < TAG_LENGTH) {
+            throw new SecurityException("could not authenticate segment " + segment + ", the input is truncated");
+        }
+
+        nonce(header, segment, last, nonce);
+
+        cipher.init(Cipher.DECRYPT_MODE, encKey, new GCMParameterSpec(AES.GCM_TAG_LENGTH_BITS, nonce));
+        cipher.updateAAD(header);
+
+        try {
+            return cipher.doFinal(src, dst);
+        } catch (AEADBadTagException e) {
+            throw new SecurityException("could not authenticate segment " + segment, e);
+        }
+    }
+}
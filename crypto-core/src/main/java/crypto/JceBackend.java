@@ -0,0 +1,108 @@
+package crypto;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+
+/**
+ * A backend on the ciphers of a JCE provider, e.g. the default provider, Conscrypt or BouncyCastle.
+ * <p>
+ * Ciphers are created once per thread. The hmac for CBC always comes from the default provider.
+ */
+public final class JceBackend implements CryptoBackend {
+
+    private final String name;
+    private final Provider provider;
+
+    private final ThreadLocal<Cipher> cbcCipher = new ThreadLocal<>();
+    private final ThreadLocal<Cipher> gcmCipher = new ThreadLocal<>();
+
+    /**
+     * @param name the backend name
+     * @param provider the provider of the ciphers, null to use the default provider
+     */
+    public JceBackend(String name, Provider provider) {
+        this.name = name;
+        this.provider = provider;
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    public Provider provider() {
+        return provider;
+    }
+
+    @Override
+    public byte[] encryptCBC(byte version, Key.ExpandedKey key, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        return AES.encryptCBC(version, cbcCipher(key), key.encKeySpec(), key.hmac(), null, txt);
+    }
+
+    @Override
+    public byte[] decryptCBC(byte version, Key.ExpandedKey key, byte[] encryptedMessage) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        return AES.decryptCBC(version, cbcCipher(key), key.encKeySpec(), key.hmac(), key.keySize, null, encryptedMessage);
+    }
+
+    @Override
+    public byte[] encryptGCM(byte version, NonceSource nonces, Key.ExpandedKey key, byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        return AES.encryptGCM(version, gcmCipher(key), key.encKeySpec(), nonces, null, txt);
+    }
+
+    @Override
+    public byte[] decryptGCM(byte version, Key.ExpandedKey key, byte[] encryptedMessage) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        return AES.decryptGCM(version, gcmCipher(key), key.encKeySpec(), null, encryptedMessage);
+    }
+
+    @Override
+    public int encryptCBC(byte version, Key.ExpandedKey key, ByteBuffer src, ByteBuffer dst) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+        return AES.encryptCBC(version, cbcCipher(key), key.encKeySpec(), key.hmac(),
+                new byte[AES.CBC_IV_LENGTH], new byte[key.keySize.getHMacSizeBytes()], null, src, dst);
+    }
+
+    @Override
+    public int decryptCBC(byte version, Key.ExpandedKey key, ByteBuffer src, ByteBuffer dst) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+        return AES.decryptCBC(version, cbcCipher(key), key.encKeySpec(), key.hmac(), key.keySize,
+                new byte[AES.CBC_IV_LENGTH], new byte[key.keySize.getHMacSizeBytes()], null, src, dst);
+    }
+
+    @Override
+    public int encryptGCM(byte version, NonceSource nonces, Key.ExpandedKey key, ByteBuffer src, ByteBuffer dst) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+        return AES.encryptGCM(version, gcmCipher(key), key.encKeySpec(), nonces, new byte[AES.GCM_IV_LENGTH], null, src, dst);
+    }
+
+    @Override
+    public int decryptGCM(byte version, Key.ExpandedKey key, ByteBuffer src, ByteBuffer dst) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+        return AES.decryptGCM(version, gcmCipher(key), key.encKeySpec(), new byte[AES.GCM_IV_LENGTH], null, src, dst);
+    }
+
+    private Cipher cbcCipher(Key.ExpandedKey key) throws NoSuchPaddingException, NoSuchAlgorithmException {
+        return provider == null ? key.cbcCipher() : cipher(cbcCipher, AES.AES_CBC_CIPHER_LBL);
+    }
+
+    private Cipher gcmCipher(Key.ExpandedKey key) throws NoSuchPaddingException, NoSuchAlgorithmException {
+        return provider == null ? key.gcmCipher() : cipher(gcmCipher, AES.AES_GCM_CIPHER_LBL);
+    }
+
+    private Cipher cipher(ThreadLocal<Cipher> ciphers, String transformation) throws NoSuchPaddingException, NoSuchAlgorithmException {
+        Cipher cipher = ciphers.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation, provider);
+            ciphers.set(cipher);
+        }
+        return cipher;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
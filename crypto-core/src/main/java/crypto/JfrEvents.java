@@ -0,0 +1,154 @@
+package crypto;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * The JFR events of {@link CryptoEvents}, the only class that refers to jdk.jfr.
+ * Loaded by name by {@link CryptoEvents} when jdk.jfr is there, never referred to directly.
+ * <p>
+ * The begin methods check the enabled flag of the event type before creating the event,
+ * without a recording no event object is allocated.
+ */
+final class JfrEvents implements CryptoEvents.Factory {
+
+    private static final EventType ENCRYPT = EventType.getEventType(Encrypt.class);
+    private static final EventType DECRYPT = EventType.getEventType(Decrypt.class);
+    private static final EventType KEY_DERIVE = EventType.getEventType(KeyDerive.class);
+    private static final EventType NONCE_GENERATE = EventType.getEventType(NonceGenerate.class);
+
+    @Override
+    public CryptoEvents.CipherEvent beginEncrypt() {
+        return ENCRYPT.isEnabled() ? begin(new Encrypt()) : null;
+    }
+
+    @Override
+    public CryptoEvents.CipherEvent beginDecrypt() {
+        return DECRYPT.isEnabled() ? begin(new Decrypt()) : null;
+    }
+
+    @Override
+    public CryptoEvents.KeyDeriveEvent beginKeyDerive() {
+        return KEY_DERIVE.isEnabled() ? begin(new KeyDerive()) : null;
+    }
+
+    @Override
+    public CryptoEvents.NonceGenerateEvent beginNonceGenerate() {
+        return NONCE_GENERATE.isEnabled() ? begin(new NonceGenerate()) : null;
+    }
+
+    private static <T extends Event> T begin(T event) {
+        event.begin();
+        return event;
+    }
+
+    @Category("Crypto")
+    abstract static class Cipher extends Event implements CryptoEvents.CipherEvent {
+        @Label("Mode")
+        String mode;
+
+        @Label("Key Size")
+        String keySize;
+
+        @Label("Payload Length")
+        @Description("The plain text for encrypt, the message for decrypt")
+        @DataAmount
+        int length;
+
+        @Label("Provider")
+        @Description("The backend name, or the JCE provider name for the methods that take one")
+        String provider;
+
+        @Label("Outcome")
+        String outcome;
+
+        @Override
+        public void end(CryptoMetrics.Mode mode, Key.KeySize keySize, String provider, int length, Throwable failure) {
+            end();
+            if (shouldCommit()) {
+                this.mode = mode.name();
+                this.keySize = keySize.name();
+                this.provider = provider;
+                this.length = length;
+                this.outcome = CryptoMetrics.outcome(failure).name();
+                commit();
+            }
+        }
+    }
+
+    @Name("crypto.Encrypt")
+    @Label("Encrypt")
+    @Threshold("10 ms")
+    static final class Encrypt extends Cipher {
+    }
+
+    @Name("crypto.Decrypt")
+    @Label("Decrypt")
+    @Threshold("10 ms")
+    static final class Decrypt extends Cipher {
+    }
+
+    @Name("crypto.KeyDerive")
+    @Label("Key Derive")
+    @Category("Crypto")
+    @Threshold("10 ms")
+    static final class KeyDerive extends Event implements CryptoEvents.KeyDeriveEvent {
+        @Label("Algorithm")
+        String algorithm;
+
+        @Label("Key Size")
+        String keySize;
+
+        @Label("Length")
+        @DataAmount
+        int length;
+
+        @Label("Outcome")
+        String outcome;
+
+        @Override
+        public void end(String algorithm, Key.KeySize keySize, int length, Throwable failure) {
+            end();
+            if (shouldCommit()) {
+                this.algorithm = algorithm;
+                this.keySize = keySize == null ? null : keySize.name();
+                this.length = length;
+                this.outcome = CryptoMetrics.outcome(failure).name();
+                commit();
+            }
+        }
+    }
+
+    @Name("crypto.NonceGenerate")
+    @Label("Nonce Generate")
+    @Category("Crypto")
+    @Threshold("1 ms")
+    static final class NonceGenerate extends Event implements CryptoEvents.NonceGenerateEvent {
+        @Label("Source")
+        String source;
+
+        @Label("Length")
+        @DataAmount
+        int length;
+
+        @Label("Outcome")
+        String outcome;
+
+        @Override
+        public void end(String source, int length, Throwable failure) {
+            end();
+            if (shouldCommit()) {
+                this.source = source;
+                this.length = length;
+                this.outcome = CryptoMetrics.outcome(failure).name();
+                commit();
+            }
+        }
+    }
+}
@@ -1,8 +1,19 @@
 package crypto;
 
 import at.favre.lib.crypto.HKDF;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
 import java.nio.charset.StandardCharsets;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
@@ -17,6 +28,8 @@ import java.util.Arrays;
 public class Key {
     private static final byte[] ENC_KEY_META = "encKey".getBytes(StandardCharsets.UTF_8);
     private static final byte[] AUTH_KEY_META = "authKey".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SIV_KEY_META = "sivKey".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CHACHA_KEY_META = "chachaKey".getBytes(StandardCharsets.UTF_8);
 
 
     public enum KeySize {
@@ -73,6 +86,45 @@ public class Key {
          * @return
          */
         public ExpandedKey genKeysHmacSha(byte[] key) {
+            CryptoEvents.KeyDeriveEvent event = CryptoEvents.beginKeyDerive();
+            Throwable failure = null;
+
+            try {
+                return expandKeys(key);
+            } catch (Throwable t) {
+                failure = t;
+                throw t;
+            } finally {
+                if (event != null) {
+                    event.end("HKDF", this, sizeBts + macSizeBts, failure);
+                }
+            }
+        }
+
+        /**
+         * Derives the keys for a context, e.g. a tenant id, from a master key.
+         * The master key is not modified or kept, destroying the returned key does not change it.
+         *
+         * @param masterKey must already be a relatively random key
+         * @param context any bytes that identify the context
+         */
+        public ExpandedKey genKeysHmacSha(byte[] masterKey, byte[] context) {
+            CryptoEvents.KeyDeriveEvent event = CryptoEvents.beginKeyDerive();
+            Throwable failure = null;
+
+            try {
+                return expandKeys(HKDF.fromHmacSha512().expand(masterKey, context, sizeBts));
+            } catch (Throwable t) {
+                failure = t;
+                throw t;
+            } finally {
+                if (event != null) {
+                    event.end("HKDF", this, 2 * sizeBts + macSizeBts, failure);
+                }
+            }
+        }
+
+        private ExpandedKey expandKeys(byte[] key) {
             byte[] encKey = HKDF.fromHmacSha512().expand(key, ENC_KEY_META, sizeBts);
             byte[] authKey = HKDF.fromHmacSha256().expand(key, AUTH_KEY_META, macSizeBts); //HMAC-SHA256 key is 32, HMAC-SHA512 key is 64 byte
             return new ExpandedKey(this, key, encKey, authKey);
@@ -91,6 +143,8 @@ public class Key {
 
     /**
      * Extracts, and expands from a low entropy password using an optional sal.
+     * <p>
+     * This is a single HKDF extract, cheap to brute force. For user passwords use {@link PasswordKdf}.
      *
      * @param salt can be null
      * @param pass any non secure random key
@@ -102,6 +156,8 @@ public class Key {
     }
     /**
      * Extracts, and expands from a low entropy password using an optional sal.
+     * <p>
+     * This is a single HKDF extract, cheap to brute force. For user passwords use {@link PasswordKdf}.
      *
      * @param salt can be null
      * @param pass any non secure random key
@@ -114,6 +170,10 @@ public class Key {
 
     /**
      * Hold the key and its expanded keys for encryption and authentication
+     * <p>
+     * The JCE key objects, an initialised hmac and, per thread, the Cipher and Mac instances are created on first use
+     * and kept with the key, so that repeated operations with the same key do not set up the key again.
+     * The byte arrays must not be changed once the key has been used.
      */
     public static class ExpandedKey {
         public KeySize keySize;
@@ -122,6 +182,20 @@ public class Key {
         public final byte[] encKey;
         public final byte[] authKey;
 
+        private volatile SecretKey encKeySpec;
+        private volatile SecretKey authKeySpec;
+        private volatile Mac hmacPrototype;
+        private volatile AesSiv.Keys sivKeys;
+        private volatile SecretKey chaChaKeySpec;
+        private volatile boolean destroyed;
+
+        private final ThreadLocal<State> state = new ThreadLocal<>();
+
+        /**
+         * The state of every thread that used the key, so that destroy can drop all of them and not only its own.
+         */
+        private final Set<State> states = ConcurrentHashMap.newKeySet();
+
         public ExpandedKey(KeySize keySize, byte[] orgKey, byte[] encKey, byte[] authKey) {
             this.keySize = keySize;
             this.orgKey = orgKey;
@@ -130,13 +204,246 @@ public class Key {
         }
 
         /**
-         * Set all byte arrays passed into the construct to byte zero
+         * The encKey as an AES SecretKey.
+         */
+        public SecretKey encKeySpec() {
+            checkNotDestroyed();
+
+            SecretKey spec = encKeySpec;
+            if (spec == null) {
+                spec = new SecretKeySpec(encKey, "AES");
+                encKeySpec = spec;
+            }
+            return spec;
+        }
+
+        /**
+         * The authKey as a SecretKey for the hmac of the key size.
+         */
+        public SecretKey authKeySpec() {
+            checkNotDestroyed();
+
+            SecretKey spec = authKeySpec;
+            if (spec == null) {
+                spec = new SecretKeySpec(authKey, keySize.hmacLbl());
+                authKeySpec = spec;
+            }
+            return spec;
+        }
+
+        /**
+         * A new hmac initialised with the authKey, owned by the caller.
+         * The hmac is cloned from an initialised instance so the key pads are only computed once.
+         */
+        public Mac newHmac() throws NoSuchAlgorithmException, InvalidKeyException {
+            checkNotDestroyed();
+
+            Mac prototype = hmacPrototype;
+            if (prototype == null) {
+                prototype = Mac.getInstance(keySize.hmacLbl());
+                prototype.init(authKeySpec());
+                hmacPrototype = prototype;
+            }
+
+            try {
+                return (Mac) prototype.clone();
+            } catch (CloneNotSupportedException e) {
+                Mac mac = Mac.getInstance(keySize.hmacLbl());
+                mac.init(authKeySpec());
+                return mac;
+            }
+        }
+
+        /**
+         * The hmac of the calling thread, reset and ready for one complete operation.
+         * Must not be kept between calls, use {@link #newHmac()} for that.
+         */
+        Mac hmac() throws NoSuchAlgorithmException, InvalidKeyException {
+            State st = state();
+            if (st.hmac == null) {
+                st.hmac = newHmac();
+            } else {
+                st.hmac.reset();
+            }
+            return st.hmac;
+        }
+
+        /**
+         * The CBC cipher of the default provider for the calling thread, it is initialised by every operation.
+         */
+        Cipher cbcCipher() throws NoSuchPaddingException, NoSuchAlgorithmException {
+            State st = state();
+            if (st.cbcCipher == null) {
+                st.cbcCipher = Cipher.getInstance(AES.AES_CBC_CIPHER_LBL);
+            }
+            return st.cbcCipher;
+        }
+
+        /**
+         * The GCM cipher of the default provider for the calling thread, it is initialised by every operation.
+         */
+        Cipher gcmCipher() throws NoSuchPaddingException, NoSuchAlgorithmException {
+            State st = state();
+            if (st.gcmCipher == null) {
+                st.gcmCipher = Cipher.getInstance(AES.AES_GCM_CIPHER_LBL);
+            }
+            return st.gcmCipher;
+        }
+
+        /**
+         * The AES-SIV keys, two AES keys of the key size derived from the encKey.
+         */
+        AesSiv.Keys sivKeys() throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException {
+            checkNotDestroyed();
+
+            AesSiv.Keys keys = sivKeys;
+            if (keys == null) {
+                byte[] sivKey = HKDF.fromHmacSha512().expand(encKey, SIV_KEY_META, 2 * encKey.length);
+                keys = new AesSiv.Keys(sivKey, sivMacCipher());
+                Arrays.fill(sivKey, (byte) 0);
+                sivKeys = keys;
+            }
+            return keys;
+        }
+
+        /**
+         * The CBC cipher without padding used for the AES-SIV CMAC, for the calling thread.
+         */
+        Cipher sivMacCipher() throws NoSuchPaddingException, NoSuchAlgorithmException {
+            State st = state();
+            if (st.sivMacCipher == null) {
+                st.sivMacCipher = Cipher.getInstance(AesSiv.AES_CBC_MAC_CIPHER_LBL);
+            }
+            return st.sivMacCipher;
+        }
+
+        /**
+         * The CTR cipher used by AES-SIV, for the calling thread.
+         */
+        Cipher sivCtrCipher() throws NoSuchPaddingException, NoSuchAlgorithmException {
+            State st = state();
+            if (st.sivCtrCipher == null) {
+                st.sivCtrCipher = Cipher.getInstance(AesSiv.AES_CTR_CIPHER_LBL);
+            }
+            return st.sivCtrCipher;
+        }
+
+        /**
+         * The 256 bit ChaCha20 key derived from the encKey.
+         */
+        SecretKey chaChaKeySpec() {
+            checkNotDestroyed();
+
+            SecretKey spec = chaChaKeySpec;
+            if (spec == null) {
+                byte[] chaChaKey = HKDF.fromHmacSha512().expand(encKey, CHACHA_KEY_META, 32);
+                spec = new SecretKeySpec(chaChaKey, "ChaCha20");
+                Arrays.fill(chaChaKey, (byte) 0);
+                chaChaKeySpec = spec;
+            }
+            return spec;
+        }
+
+        /**
+         * The ChaCha20-Poly1305 cipher of the default provider for the calling thread, it is initialised by every operation.
+         */
+        Cipher chaChaCipher() throws NoSuchPaddingException, NoSuchAlgorithmException {
+            State st = state();
+            if (st.chaChaCipher == null) {
+                st.chaChaCipher = Cipher.getInstance(ChaCha20Poly1305.CHACHA20_POLY1305_CIPHER_LBL);
+            }
+            return st.chaChaCipher;
+        }
+
+        /**
+         * Set all byte arrays passed into the construct to byte zero and drop the key objects, the hmac and the
+         * Cipher instances of every thread that used the key, using the key after this throws an
+         * {@link IllegalStateException}. Must not be called while other threads still use the key.
+         * <p>
+         * Copies out of reach of this method are not zeroed:
+         * <ul>
+         *     <li>the JCE SecretKeySpec copies of the keys and the key schedules inside the dropped Cipher and Mac
+         *     instances, these stay in memory until they are garbage collected</li>
+         *     <li>native copies of providers such as Conscrypt or OpenSSL</li>
+         *     <li>Cipher instances kept outside the key, e.g. by an {@link AesEngine} or a {@link CryptoBackend},
+         *     which hold the schedule of the last key they were initialised with</li>
+         * </ul>
+         * The emptied per thread entries of other threads are only removed once the key itself is garbage collected.
          */
         public void destroy() {
+            destroyed = true;
+
+            encKeySpec = null;
+            authKeySpec = null;
+            chaChaKeySpec = null;
+            hmacPrototype = null;
+
+            for (State st : states) {
+                st.clear();
+            }
+            states.clear();
+            state.remove();
+
+            AesSiv.Keys keys = sivKeys;
+            sivKeys = null;
+            if (keys != null) {
+                keys.destroy();
+            }
+
             Arrays.fill(orgKey, (byte) 0);
             Arrays.fill(encKey, (byte) 0);
             Arrays.fill(authKey, (byte) 0);
         }
+
+        private State state() {
+            checkNotDestroyed();
+
+            State st = state.get();
+            if (st == null) {
+                st = new State();
+                state.set(st);
+                states.add(st);
+
+                // destroy may have run after the check above and missed this state
+                if (destroyed) {
+                    states.remove(st);
+                    state.remove();
+                    checkNotDestroyed();
+                }
+            }
+            return st;
+        }
+
+        /**
+         * The number of threads that keep an hmac or ciphers for the key.
+         */
+        int threadStates() {
+            return states.size();
+        }
+
+        private void checkNotDestroyed() {
+            if (destroyed) {
+                throw new IllegalStateException("The key has been destroyed");
+            }
+        }
+
+        private static final class State {
+            private Mac hmac;
+            private Cipher cbcCipher;
+            private Cipher gcmCipher;
+            private Cipher sivMacCipher;
+            private Cipher sivCtrCipher;
+            private Cipher chaChaCipher;
+
+            void clear() {
+                hmac = null;
+                cbcCipher = null;
+                gcmCipher = null;
+                sivMacCipher = null;
+                sivCtrCipher = null;
+                chaChaCipher = null;
+            }
+        }
     }
 
 }
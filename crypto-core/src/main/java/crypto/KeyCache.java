@@ -0,0 +1,278 @@
+package crypto;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of keys derived with {@link Key.KeySize#genKeysHmacSha(byte[], byte[])} from a master key and a context.
+ * <p>
+ * Entries are evicted least recently used first once the cache is full, and after the time to live if one is set.
+ * Evicted keys are destroyed, see {@link Key.ExpandedKey#destroy()} for what that zeroes, but only once every lease on
+ * them is closed, so always use keys in a try with resources:
+ * <pre>
+ * try (KeyCache.Lease lease = cache.acquire(Key.KeySize.AES_256, masterKey, tenantId)) {
+ *     return AES.encryptGCM(lease.key(), txt);
+ * }
+ * </pre>
+ * The cache is keyed on a SHA-256 of the master key and the context, the master key itself is not kept.
+ * <p>
+ * Thread safe.
+ */
+public class KeyCache {
+
+    private final int maxSize;
+    private final long ttlNanos;
+
+    /**
+     * Guarded by this, in access order so that the first entry is the least recently used.
+     */
+    private final LinkedHashMap<CacheKey, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private final ThreadLocal<MessageDigest> digest = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    });
+
+    /**
+     * A cache without a time to live.
+     */
+    public KeyCache(int maxSize) {
+        this(maxSize, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param maxSize the maximum number of keys kept
+     * @param ttl how long a key is kept after it was derived, 0 to keep keys until they are evicted for space
+     */
+    public KeyCache(int maxSize, long ttl, TimeUnit unit) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("invalid max size: " + maxSize);
+        }
+
+        if (ttl < 0) {
+            throw new IllegalArgumentException("invalid ttl: " + ttl);
+        }
+
+        this.maxSize = maxSize;
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * Get the key for the master key and context, deriving it on a miss.
+     * The key stays valid until the lease is closed.
+     */
+    public Lease acquire(Key.KeySize keySize, byte[] masterKey, byte[] context) {
+        CacheKey cacheKey = new CacheKey(keySize, digest(masterKey), context.clone());
+
+        synchronized (this) {
+            Entry entry = live(cacheKey, System.nanoTime());
+            if (entry != null) {
+                hits.increment();
+                return entry.lease();
+            }
+        }
+
+        misses.increment();
+
+        // derive outside the lock, other threads can use the cache in the meantime
+        Entry created = new Entry(keySize.genKeysHmacSha(masterKey, context), System.nanoTime());
+
+        synchronized (this) {
+            Entry entry = live(cacheKey, System.nanoTime());
+            if (entry != null) {
+                // another thread derived the same key first
+                created.key.destroy();
+                return entry.lease();
+            }
+
+            Lease lease = created.lease();
+            entries.put(cacheKey, created);
+
+            Iterator<Entry> it = entries.values().iterator();
+            while (entries.size() > maxSize) {
+                Entry eldest = it.next();
+                it.remove();
+                evict(eldest);
+            }
+
+            return lease;
+        }
+    }
+
+    /**
+     * Remove all expired keys, expired keys are otherwise only removed when they are looked up.
+     */
+    public synchronized void cleanUp() {
+        long now = System.nanoTime();
+
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (expired(entry, now)) {
+                it.remove();
+                evict(entry);
+            }
+        }
+    }
+
+    /**
+     * Remove and destroy all keys.
+     */
+    public synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            evict(entry);
+        }
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * The entry for the key if it is in the cache and not expired, must hold the lock.
+     */
+    private Entry live(CacheKey cacheKey, long now) {
+        Entry entry = entries.get(cacheKey);
+
+        if (entry != null && expired(entry, now)) {
+            entries.remove(cacheKey);
+            evict(entry);
+            return null;
+        }
+
+        return entry;
+    }
+
+    private boolean expired(Entry entry, long now) {
+        return ttlNanos > 0 && now - entry.created > ttlNanos;
+    }
+
+    private void evict(Entry entry) {
+        evictions.increment();
+        entry.evict();
+    }
+
+    private byte[] digest(byte[] masterKey) {
+        MessageDigest md = digest.get();
+        md.reset();
+        return md.digest(masterKey);
+    }
+
+    /**
+     * A key handed out by the cache, the key is not destroyed while the lease is open. Not thread safe.
+     */
+    public static final class Lease implements AutoCloseable {
+        private final Entry entry;
+        private boolean closed;
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        public Key.ExpandedKey key() {
+            if (closed) {
+                throw new IllegalStateException("The lease is closed");
+            }
+            return entry.key;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                entry.release();
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final Key.ExpandedKey key;
+        private final long created;
+
+        private int leases;
+        private boolean evicted;
+
+        Entry(Key.ExpandedKey key, long created) {
+            this.key = key;
+            this.created = created;
+        }
+
+        synchronized Lease lease() {
+            leases++;
+            return new Lease(this);
+        }
+
+        synchronized void release() {
+            leases--;
+            if (evicted && leases == 0) {
+                key.destroy();
+            }
+        }
+
+        synchronized void evict() {
+            evicted = true;
+            if (leases == 0) {
+                key.destroy();
+            }
+        }
+    }
+
+    private static final class CacheKey {
+        private final Key.KeySize keySize;
+        private final byte[] masterKeyDigest;
+        private final byte[] context;
+        private final int hash;
+
+        CacheKey(Key.KeySize keySize, byte[] masterKeyDigest, byte[] context) {
+            this.keySize = keySize;
+            this.masterKeyDigest = masterKeyDigest;
+            this.context = context;
+            this.hash = 31 * (31 * keySize.hashCode() + Arrays.hashCode(masterKeyDigest)) + Arrays.hashCode(context);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+
+            CacheKey other = (CacheKey) o;
+            return keySize == other.keySize
+                    && Arrays.equals(masterKeyDigest, other.masterKeyDigest)
+                    && Arrays.equals(context, other.context);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
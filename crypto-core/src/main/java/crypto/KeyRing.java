@@ -0,0 +1,316 @@
+package crypto;
+
+import javax.crypto.*;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Maps the version byte of a message to the key and {@link Aead} algorithm it was encrypted with, for key rotation.
+ * <p>
+ * New messages are always encrypted with the active key and carry its version. Decrypting looks up the key for the
+ * version in the first byte of the message, an array lookup, so data encrypted with older keys is read without trying
+ * keys one by one. To rotate, add the new key, activate it, re-encrypt the old data with {@link #reEncrypt(byte[][], ForkJoinPool)}
+ * and then remove the old key.
+ * <pre>
+ * KeyRing ring = new KeyRing()
+ *     .add((byte) 1, oldKey, Aead.AES_GCM)
+ *     .add((byte) 2, newKey, Aead.AES_GCM)
+ *     .activate((byte) 2);
+ *
+ * byte[] txt = ring.decrypt(msg); // msg can be version 1 or 2
+ * </pre>
+ * The key ring does not own the keys, removing a key does not destroy it.
+ * <p>
+ * Thread safe, lookups don't lock, adding, activating and removing keys copies the table.
+ */
+public final class KeyRing {
+
+    /**
+     * The number of messages up to which {@link #reEncrypt(byte[][], ForkJoinPool)} runs on the calling thread,
+     * it is also the smallest number of messages given to a task.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    /**
+     * Indexed by version &amp; 0xFF, never modified once published.
+     */
+    private volatile Entry[] entries = new Entry[256];
+
+    private volatile Entry active;
+
+    /**
+     * Add a key, the first key added is activated.
+     *
+     * @throws IllegalArgumentException if the version is already in the key ring
+     */
+    public synchronized KeyRing add(byte version, Key.ExpandedKey key, Aead algorithm) {
+        if (key == null || algorithm == null) {
+            throw new IllegalArgumentException("key and algorithm must not be null");
+        }
+
+        Entry[] copy = entries.clone();
+        if (copy[version & 0xFF] != null) {
+            throw new IllegalArgumentException("version " + version + " is already in the key ring");
+        }
+
+        Entry entry = new Entry(version, key, algorithm);
+        copy[version & 0xFF] = entry;
+        entries = copy;
+
+        if (active == null) {
+            active = entry;
+        }
+
+        return this;
+    }
+
+    /**
+     * Encrypt new messages with the key for version.
+     *
+     * @throws IllegalArgumentException if the version is not in the key ring
+     */
+    public synchronized KeyRing activate(byte version) {
+        active = checkedEntry(version);
+        return this;
+    }
+
+    /**
+     * Remove the key for version, messages with the version can't be decrypted anymore.
+     *
+     * @throws IllegalArgumentException if the version is not in the key ring or is the active version
+     */
+    public synchronized KeyRing remove(byte version) {
+        Entry entry = checkedEntry(version);
+        if (entry == active) {
+            throw new IllegalArgumentException("version " + version + " is active and can't be removed");
+        }
+
+        Entry[] copy = entries.clone();
+        copy[version & 0xFF] = null;
+        entries = copy;
+
+        return this;
+    }
+
+    /**
+     * @return the active entry, null if the key ring is empty
+     */
+    public Entry active() {
+        return active;
+    }
+
+    /**
+     * @return the entry for the version, null if the version is not in the key ring
+     */
+    public Entry entry(byte version) {
+        return entries[version & 0xFF];
+    }
+
+    /**
+     * Encrypts with the active key, the message's version is the active version.
+     */
+    public byte[] encrypt(byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        return activeEntry().encrypt(txt);
+    }
+
+    /**
+     * Decrypts with the key for the version of the message.
+     *
+     * @throws IllegalArgumentException if the message is empty or its version is not in the key ring
+     */
+    public byte[] decrypt(byte[] encryptedMessage) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        return entryFor(encryptedMessage).decrypt(encryptedMessage);
+    }
+
+    /**
+     * @return true if the message was not encrypted with the active key
+     */
+    public boolean needsReEncrypt(byte[] encryptedMessage) {
+        return needsReEncrypt(activeEntry(), encryptedMessage);
+    }
+
+    /**
+     * Decrypts the message and encrypts it with the active key.
+     * Messages already encrypted with the active key are returned as is.
+     */
+    public byte[] reEncrypt(byte[] encryptedMessage) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        return reEncrypt(activeEntry(), encryptedMessage);
+    }
+
+    public byte[][] reEncrypt(byte[][] encryptedMessages) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        return reEncrypt(encryptedMessages, ForkJoinPool.commonPool(), DEFAULT_BATCH_SIZE);
+    }
+
+    public byte[][] reEncrypt(byte[][] encryptedMessages, ForkJoinPool pool) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        return reEncrypt(encryptedMessages, pool, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Re-encrypts a batch of messages with the active key on the pool, see {@link #reEncrypt(byte[])}.
+     * All messages are encrypted with the key that is active when the call starts, even if another key is activated meanwhile.
+     *
+     * @param encryptedMessages the messages, not modified
+     * @param pool the pool the messages are re-encrypted on
+     * @param batchSize batches up to this many messages are processed on the calling thread
+     * @return the re-encrypted messages in the same order, messages that did not need it are the same instance
+     */
+    public byte[][] reEncrypt(byte[][] encryptedMessages, ForkJoinPool pool, int batchSize) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("invalid batch size: " + batchSize);
+        }
+
+        byte[][] output = new byte[encryptedMessages.length][];
+        ReEncryptTask task = new ReEncryptTask(activeEntry(), batchSize, encryptedMessages, output, 0, encryptedMessages.length);
+
+        try {
+            if (encryptedMessages.length <= batchSize) {
+                task.process();
+            } else {
+                pool.invoke(task);
+            }
+        } catch (AesParallel.TaskException e) {
+            try {
+                AesParallel.rethrow(e.getCause());
+            } catch (ShortBufferException sbe) {
+                // the tasks only decrypt and encrypt into new arrays, this can only happen if the size calculation is wrong
+                throw new RuntimeException(sbe);
+            }
+        }
+
+        return output;
+    }
+
+    private static boolean needsReEncrypt(Entry active, byte[] encryptedMessage) {
+        return encryptedMessage.length == 0 || encryptedMessage[0] != active.version;
+    }
+
+    private byte[] reEncrypt(Entry active, byte[] encryptedMessage) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+        if (!needsReEncrypt(active, encryptedMessage)) {
+            return encryptedMessage;
+        }
+
+        byte[] txt = decrypt(encryptedMessage);
+        try {
+            return active.encrypt(txt);
+        } finally {
+            Arrays.fill(txt, (byte) 0);
+        }
+    }
+
+    private Entry activeEntry() {
+        Entry entry = active;
+        if (entry == null) {
+            throw new IllegalStateException("The key ring is empty");
+        }
+        return entry;
+    }
+
+    private Entry entryFor(byte[] encryptedMessage) {
+        if (encryptedMessage.length == 0) {
+            throw new IllegalArgumentException("empty message");
+        }
+
+        Entry entry = entries[encryptedMessage[0] & 0xFF];
+        if (entry == null) {
+            throw new IllegalArgumentException("unknown key version: " + encryptedMessage[0]);
+        }
+        return entry;
+    }
+
+    private Entry checkedEntry(byte version) {
+        Entry entry = entries[version & 0xFF];
+        if (entry == null) {
+            throw new IllegalArgumentException("unknown key version: " + version);
+        }
+        return entry;
+    }
+
+    /**
+     * A version with its key and algorithm.
+     */
+    public static final class Entry {
+        private final byte version;
+        private final Key.ExpandedKey key;
+        private final Aead algorithm;
+
+        private Entry(byte version, Key.ExpandedKey key, Aead algorithm) {
+            this.version = version;
+            this.key = key;
+            this.algorithm = algorithm;
+        }
+
+        public byte version() {
+            return version;
+        }
+
+        public Key.ExpandedKey key() {
+            return key;
+        }
+
+        public Aead algorithm() {
+            return algorithm;
+        }
+
+        byte[] encrypt(byte[] txt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+            return algorithm.encrypt(version, key, txt);
+        }
+
+        byte[] decrypt(byte[] encryptedMessage) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, NoSuchProviderException {
+            return algorithm.decrypt(version, key, encryptedMessage);
+        }
+    }
+
+    /**
+     * Re-encrypts the messages [from, to), splitting the range until a task has at most batchSize messages.
+     */
+    private final class ReEncryptTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        // the task is never serialized, the entry holds key material and is deliberately not Serializable
+        @SuppressWarnings("serial")
+        private final Entry active;
+        private final int batchSize;
+        private final byte[][] src;
+        private final byte[][] dst;
+        private final int from;
+        private final int to;
+
+        ReEncryptTask(Entry active, int batchSize, byte[][] src, byte[][] dst, int from, int to) {
+            this.active = active;
+            this.batchSize = batchSize;
+            this.src = src;
+            this.dst = dst;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > batchSize) {
+                int mid = (from + to) >>> 1;
+
+                invokeAll(new ReEncryptTask(active, batchSize, src, dst, from, mid),
+                        new ReEncryptTask(active, batchSize, src, dst, mid, to));
+            } else {
+                process();
+            }
+        }
+
+        void process() {
+            try {
+                for (int i = from; i < to; i++) {
+                    dst[i] = reEncrypt(active, src[i]);
+                }
+            } catch (GeneralSecurityException e) {
+                throw new AesParallel.TaskException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+
+/**
+ * A {@link MasterKey} held in memory, see {@link MasterKey#aesKeyWrap(Key.ExpandedKey)} and {@link MasterKey#aesGcm(Key.ExpandedKey)}.
+ */
+final class LocalMasterKey implements MasterKey {
+
+    static final String AES_KEY_WRAP_CIPHER_LBL = "AESWrap";
+
+    private final Key.ExpandedKey key;
+    private final boolean keyWrap;
+
+    LocalMasterKey(Key.ExpandedKey key, boolean keyWrap) {
+        this.key = key;
+        this.keyWrap = keyWrap;
+    }
+
+    @Override
+    public byte[] wrap(byte[] dek) throws GeneralSecurityException {
+        if (!keyWrap) {
+            return AES.encryptGCM(key, dek);
+        }
+
+        // wrapping is off the hot path, a new cipher per call keeps this thread safe
+        Cipher cipher = Cipher.getInstance(AES_KEY_WRAP_CIPHER_LBL);
+        cipher.init(Cipher.WRAP_MODE, key.encKeySpec());
+        return cipher.wrap(new SecretKeySpec(dek, "AES"));
+    }
+
+    @Override
+    public byte[] unwrap(byte[] wrappedDek) throws GeneralSecurityException {
+        if (!keyWrap) {
+            return AES.decryptGCM(key, wrappedDek);
+        }
+
+        Cipher cipher = Cipher.getInstance(AES_KEY_WRAP_CIPHER_LBL);
+        cipher.init(Cipher.UNWRAP_MODE, key.encKeySpec());
+        return cipher.unwrap(wrappedDek, "AES", Cipher.SECRET_KEY).getEncoded();
+    }
+}
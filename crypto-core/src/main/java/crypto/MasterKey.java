@@ -0,0 +1,40 @@
+package crypto;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * Wraps and unwraps the data encryption keys of {@link Envelope}, usually backed by a KMS or HSM.
+ * <p>
+ * The master key never leaves the implementation, only the data encryption keys are passed in and out.
+ * Calls are expected to be slow, {@link Envelope} reuses and caches the data encryption keys to keep them off the hot path.
+ * <p>
+ * Implementations must be thread safe.
+ */
+public interface MasterKey {
+
+    /**
+     * @param dek the raw data encryption key, not modified or kept
+     * @return the wrapped key, at most {@link Envelope#MAX_WRAPPED_KEY_LENGTH} bytes
+     */
+    byte[] wrap(byte[] dek) throws GeneralSecurityException;
+
+    /**
+     * @return the raw data encryption key, owned by the caller
+     * @throws GeneralSecurityException if the wrapped key could not be authenticated
+     */
+    byte[] unwrap(byte[] wrappedDek) throws GeneralSecurityException;
+
+    /**
+     * A local master key that wraps with AES key wrap (RFC 3394) using the encKey.
+     */
+    static MasterKey aesKeyWrap(Key.ExpandedKey key) {
+        return new LocalMasterKey(key, true);
+    }
+
+    /**
+     * A local master key that wraps with {@link AES#encryptGCM(Key.ExpandedKey, byte[])}.
+     */
+    static MasterKey aesGcm(Key.ExpandedKey key) {
+        return new LocalMasterKey(key, false);
+    }
+}
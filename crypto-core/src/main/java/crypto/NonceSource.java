@@ -0,0 +1,42 @@
+package crypto;
+
+import java.security.SecureRandom;
+
+/**
+ * Source of the ivs and nonces used for encryption.
+ * <p>
+ * CBC ivs must be unpredictable and always come from {@link #THREAD_LOCAL_RANDOM}.
+ * GCM nonces only need to be unique per key, so a {@link CounterNonceSource} can be used for them instead.
+ * <p>
+ * Implementations must be thread safe.
+ */
+public interface NonceSource {
+
+    /**
+     * Per thread buffered CSPRNG, threads never wait on each other for random bytes. This is the default for all ivs.
+     */
+    NonceSource THREAD_LOCAL_RANDOM = new ThreadLocalNonceSource();
+
+    /**
+     * The single shared {@link Random#secureRandom}, which some providers synchronize on.
+     */
+    NonceSource SHARED_SECURE_RANDOM = of(Random.secureRandom);
+
+    /**
+     * Fill dst[off:off+nonceLength*count] with count nonces of nonceLength bytes each.
+     *
+     * @throws IllegalStateException if the source cannot produce any more nonces
+     */
+    void nextNonces(byte[] dst, int off, int nonceLength, int count);
+
+    default void nextNonce(byte[] dst) {
+        nextNonces(dst, 0, dst.length, 1);
+    }
+
+    /**
+     * A nonce source that takes its bytes from the random instance.
+     */
+    static NonceSource of(SecureRandom random) {
+        return new SecureRandomNonceSource(random);
+    }
+}
@@ -0,0 +1,440 @@
+package crypto;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Derives keys from user passwords with a tunable work factor, PBKDF2 (RFC 8018) with HMAC SHA-256 or SHA-512 and
+ * scrypt (RFC 7914), so that guessing a password costs as much as a login.
+ * <p>
+ * {@link Key#deriveHmac256FromPass(byte[], byte[])} is a single HKDF extract and costs an attacker about a microsecond
+ * per guess. Use a random salt per user, see {@link #newSalt()}, and store it and the parameters with the user.
+ * <pre>
+ * PasswordKdf kdf = PasswordKdf.scrypt(1 &lt;&lt; 15, 8, 1);
+ * Key.ExpandedKey key = kdf.deriveKey(Key.KeySize.AES_256, salt, pass);
+ * </pre>
+ * Pick the cost with {@link #calibrate(Algorithm, long, TimeUnit)} on the hardware the derivation runs on. If the same
+ * password is derived on every request, put a {@link PasswordKeyCache} in front of the kdf.
+ * <p>
+ * Immutable and thread safe.
+ */
+public final class PasswordKdf {
+
+    public static final int DEFAULT_PBKDF2_SHA256_ITERATIONS = 600_000;
+    public static final int DEFAULT_PBKDF2_SHA512_ITERATIONS = 210_000;
+
+    public static final int DEFAULT_SCRYPT_N = 1 << 15;
+    public static final int DEFAULT_SCRYPT_R = 8;
+    public static final int DEFAULT_SCRYPT_P = 1;
+
+    /**
+     * The most memory {@link #calibrate(Algorithm, long, TimeUnit)} gives scrypt, 128 * N * r bytes.
+     */
+    public static final long DEFAULT_SCRYPT_MAX_MEMORY = 256L * 1024 * 1024;
+
+    public static final int SALT_LENGTH = 16;
+
+    /**
+     * The bytes derived for {@link #deriveKey(Key.KeySize, byte[], byte[])}, expanded into the enc and auth keys.
+     */
+    static final int KEY_LENGTH = 64;
+
+    public enum Algorithm {
+        PBKDF2_SHA256("HmacSHA256"),
+        PBKDF2_SHA512("HmacSHA512"),
+        SCRYPT("HmacSHA256");
+
+        private final String hmacLbl;
+
+        Algorithm(String hmacLbl) {
+            this.hmacLbl = hmacLbl;
+        }
+    }
+
+    private final Algorithm algorithm;
+    private final int cost;
+    private final int blockSize;
+    private final int parallelism;
+
+    private PasswordKdf(Algorithm algorithm, int cost, int blockSize, int parallelism) {
+        this.algorithm = algorithm;
+        this.cost = cost;
+        this.blockSize = blockSize;
+        this.parallelism = parallelism;
+    }
+
+    public static PasswordKdf pbkdf2Sha256(int iterations) {
+        return new PasswordKdf(Algorithm.PBKDF2_SHA256, checkIterations(iterations), 1, 1);
+    }
+
+    public static PasswordKdf pbkdf2Sha512(int iterations) {
+        return new PasswordKdf(Algorithm.PBKDF2_SHA512, checkIterations(iterations), 1, 1);
+    }
+
+    /**
+     * scrypt uses 128 * n * r bytes of memory per derivation, and runs the n * r work p times.
+     *
+     * @param n the cpu and memory cost, a power of 2 larger than 1
+     * @param r the block size
+     * @param p the parallelism, the passes are run one after the other
+     */
+    public static PasswordKdf scrypt(int n, int r, int p) {
+        if (n < 2 || (n & (n - 1)) != 0) {
+            throw new IllegalArgumentException("n must be a power of 2 larger than 1: " + n);
+        }
+        if (r < 1 || p < 1) {
+            throw new IllegalArgumentException("invalid r or p: " + r + ", " + p);
+        }
+        if ((long) n * r * 32 > Integer.MAX_VALUE - 8 || (long) r * p * 128 > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("n, r and p are too large: " + n + ", " + r + ", " + p);
+        }
+        return new PasswordKdf(Algorithm.SCRYPT, n, r, p);
+    }
+
+    /**
+     * @return the kdf with the default cost for the algorithm
+     */
+    public static PasswordKdf defaults(Algorithm algorithm) {
+        switch (algorithm) {
+            case PBKDF2_SHA256:
+                return pbkdf2Sha256(DEFAULT_PBKDF2_SHA256_ITERATIONS);
+            case PBKDF2_SHA512:
+                return pbkdf2Sha512(DEFAULT_PBKDF2_SHA512_ITERATIONS);
+            default:
+                return scrypt(DEFAULT_SCRYPT_N, DEFAULT_SCRYPT_R, DEFAULT_SCRYPT_P);
+        }
+    }
+
+    /**
+     * Measures derivations on this host and picks the cost for a derivation to take about the target time.
+     * PBKDF2 iterations scale linearly, the scrypt n is the largest power of 2 that stays under the target and
+     * {@link #DEFAULT_SCRYPT_MAX_MEMORY}, with the default r and p. The result is never cheaper than the smallest cost measured,
+     * 10 000 iterations or n = 1024.
+     */
+    public static PasswordKdf calibrate(Algorithm algorithm, long target, TimeUnit unit) throws NoSuchAlgorithmException, InvalidKeyException {
+        long targetNanos = unit.toNanos(target);
+        if (targetNanos <= 0) {
+            throw new IllegalArgumentException("invalid target: " + target);
+        }
+
+        byte[] salt = newSalt();
+        byte[] pass = new byte[16];
+        Random.nextBytes(pass);
+
+        if (algorithm == Algorithm.SCRYPT) {
+            int maxN = (int) Math.min(1 << 30, DEFAULT_SCRYPT_MAX_MEMORY / (128L * DEFAULT_SCRYPT_R));
+
+            int n = 1024;
+            scrypt(n, DEFAULT_SCRYPT_R, DEFAULT_SCRYPT_P).derive(salt, pass, KEY_LENGTH); // warm up
+
+            // the time doubles with n
+            while (n < maxN && 2 * time(scrypt(n, DEFAULT_SCRYPT_R, DEFAULT_SCRYPT_P), salt, pass) <= targetNanos) {
+                n <<= 1;
+            }
+            return scrypt(n, DEFAULT_SCRYPT_R, DEFAULT_SCRYPT_P);
+        }
+
+        int iterations = 10_000;
+        PasswordKdf kdf = new PasswordKdf(algorithm, iterations, 1, 1);
+        kdf.derive(salt, pass, KEY_LENGTH); // warm up
+
+        // double until the time is long enough to scale from
+        long nanos;
+        while ((nanos = time(kdf, salt, pass)) < targetNanos / 4 && iterations < Integer.MAX_VALUE / 2) {
+            iterations <<= 1;
+            kdf = new PasswordKdf(algorithm, iterations, 1, 1);
+        }
+
+        long scaled = Math.max(10_000, (long) (iterations * ((double) targetNanos / Math.max(1, nanos))));
+        return new PasswordKdf(algorithm, (int) Math.min(Integer.MAX_VALUE, scaled), 1, 1);
+    }
+
+    /**
+     * @return SALT_LENGTH secure random bytes
+     */
+    public static byte[] newSalt() {
+        byte[] salt = new byte[SALT_LENGTH];
+        Random.nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * Derives len bytes from the password.
+     *
+     * @param salt random bytes stored with the user, see {@link #newSalt()}
+     * @param pass the password, e.g. its UTF-8 bytes
+     */
+    public byte[] derive(byte[] salt, byte[] pass, int len) throws NoSuchAlgorithmException, InvalidKeyException {
+        if (salt == null || pass == null) {
+            throw new IllegalArgumentException("salt and pass must not be null");
+        }
+        if (len < 1) {
+            throw new IllegalArgumentException("invalid length: " + len);
+        }
+
+        CryptoEvents.KeyDeriveEvent event = CryptoEvents.beginKeyDerive();
+        Throwable failure = null;
+
+        try {
+            if (algorithm == Algorithm.SCRYPT) {
+                return scrypt(pass, salt, len);
+            }
+            return pbkdf2(algorithm.hmacLbl, pass, salt, cost, len);
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (event != null) {
+                event.end(algorithm.name(), null, len, failure);
+            }
+        }
+    }
+
+    /**
+     * Derives the encryption and authentication keys from the password, see {@link Key.KeySize#genKeysHmacSha(byte[])}.
+     */
+    public Key.ExpandedKey deriveKey(Key.KeySize keySize, byte[] salt, byte[] pass) throws NoSuchAlgorithmException, InvalidKeyException {
+        return keySize.genKeysHmacSha(derive(salt, pass, KEY_LENGTH));
+    }
+
+    public Algorithm algorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @return the PBKDF2 iterations or the scrypt n
+     */
+    public int cost() {
+        return cost;
+    }
+
+    /**
+     * @return the scrypt r, 1 for PBKDF2
+     */
+    public int blockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @return the scrypt p, 1 for PBKDF2
+     */
+    public int parallelism() {
+        return parallelism;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PasswordKdf)) {
+            return false;
+        }
+
+        PasswordKdf other = (PasswordKdf) o;
+        return algorithm == other.algorithm && cost == other.cost && blockSize == other.blockSize && parallelism == other.parallelism;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * (31 * algorithm.hashCode() + cost) + blockSize) + parallelism;
+    }
+
+    @Override
+    public String toString() {
+        return algorithm == Algorithm.SCRYPT
+                ? "SCRYPT[n=" + cost + ", r=" + blockSize + ", p=" + parallelism + "]"
+                : algorithm + "[iterations=" + cost + "]";
+    }
+
+    private static long time(PasswordKdf kdf, byte[] salt, byte[] pass) throws NoSuchAlgorithmException, InvalidKeyException {
+        long start = System.nanoTime();
+        kdf.derive(salt, pass, KEY_LENGTH);
+        return System.nanoTime() - start;
+    }
+
+    private static int checkIterations(int iterations) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("invalid iterations: " + iterations);
+        }
+        return iterations;
+    }
+
+    /**
+     * PBKDF2 from RFC 8018 on bytes, the JCE PBKDF2WithHmac key factories only take char[] passwords.
+     */
+    static byte[] pbkdf2(String hmacLbl, byte[] pass, byte[] salt, int iterations, int len) throws NoSuchAlgorithmException, InvalidKeyException {
+        Mac mac = Mac.getInstance(hmacLbl);
+        // HMAC pads the key with zeros to the block size, so an empty password is the same key as a single zero byte,
+        // SecretKeySpec does not accept an empty key
+        mac.init(new SecretKeySpec(pass.length == 0 ? new byte[1] : pass, hmacLbl));
+
+        int macLen = mac.getMacLength();
+        byte[] u = new byte[macLen];
+        byte[] t = new byte[macLen];
+        byte[] output = new byte[len];
+
+        try {
+            for (int block = 1, off = 0; off < len; block++, off += macLen) {
+                mac.update(salt);
+                mac.update((byte) (block >>> 24));
+                mac.update((byte) (block >>> 16));
+                mac.update((byte) (block >>> 8));
+                mac.update((byte) block);
+                mac.doFinal(u, 0);
+                System.arraycopy(u, 0, t, 0, macLen);
+
+                for (int i = 1; i < iterations; i++) {
+                    mac.update(u);
+                    mac.doFinal(u, 0);
+                    for (int j = 0; j < macLen; j++) {
+                        t[j] ^= u[j];
+                    }
+                }
+
+                System.arraycopy(t, 0, output, off, Math.min(macLen, len - off));
+            }
+        } catch (ShortBufferException e) {
+            // u has the mac length, this can only happen if the size calculation is wrong
+            throw new RuntimeException(e);
+        } finally {
+            Arrays.fill(u, (byte) 0);
+            Arrays.fill(t, (byte) 0);
+        }
+
+        return output;
+    }
+
+    /**
+     * scrypt from RFC 7914, the blocks are kept as little endian ints.
+     */
+    private byte[] scrypt(byte[] pass, byte[] salt, int len) throws NoSuchAlgorithmException, InvalidKeyException {
+        int r = blockSize;
+        int blockLen = 128 * r;
+
+        byte[] b = pbkdf2(algorithm.hmacLbl, pass, salt, 1, parallelism * blockLen);
+
+        int[] x = new int[32 * r];
+        int[] y = new int[32 * r];
+        int[] v = new int[32 * r * cost];
+        int[] t = new int[16];
+
+        try {
+            for (int i = 0; i < parallelism; i++) {
+                roMix(b, i * blockLen, r, x, y, t, v);
+            }
+
+            return pbkdf2(algorithm.hmacLbl, pass, b, 1, len);
+        } finally {
+            Arrays.fill(b, (byte) 0);
+            Arrays.fill(x, 0);
+            Arrays.fill(y, 0);
+            Arrays.fill(v, 0);
+            Arrays.fill(t, 0);
+        }
+    }
+
+    private void roMix(byte[] b, int off, int r, int[] x, int[] y, int[] t, int[] v) {
+        int n = cost;
+        int words = 32 * r;
+
+        for (int i = 0; i < words; i++) {
+            int p = off + i * 4;
+            x[i] = (b[p] & 0xFF) | (b[p + 1] & 0xFF) << 8 | (b[p + 2] & 0xFF) << 16 | (b[p + 3] & 0xFF) << 24;
+        }
+
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(x, 0, v, i * words, words);
+            blockMix(x, y, t, r);
+        }
+
+        for (int i = 0; i < n; i++) {
+            // integerify, the first word of the last 64 byte block, n is a power of 2
+            int j = x[(2 * r - 1) * 16] & (n - 1);
+            int vOff = j * words;
+            for (int k = 0; k < words; k++) {
+                x[k] ^= v[vOff + k];
+            }
+            blockMix(x, y, t, r);
+        }
+
+        for (int i = 0; i < words; i++) {
+            int p = off + i * 4;
+            b[p] = (byte) x[i];
+            b[p + 1] = (byte) (x[i] >>> 8);
+            b[p + 2] = (byte) (x[i] >>> 16);
+            b[p + 3] = (byte) (x[i] >>> 24);
+        }
+    }
+
+    /**
+     * scryptBlockMix on the 2 * r 16 word blocks in b, y is scratch of the same size and t of 16 words.
+     */
+    private static void blockMix(int[] b, int[] y, int[] t, int r) {
+        System.arraycopy(b, (2 * r - 1) * 16, t, 0, 16);
+
+        for (int i = 0; i < 2 * r; i++) {
+            for (int k = 0; k < 16; k++) {
+                t[k] ^= b[i * 16 + k];
+            }
+            salsa20_8(t);
+
+            // even blocks go to the first half, odd blocks to the second
+            int dst = ((i & 1) * r + (i >>> 1)) * 16;
+            System.arraycopy(t, 0, y, dst, 16);
+        }
+
+        System.arraycopy(y, 0, b, 0, 32 * r);
+    }
+
+    private static void salsa20_8(int[] b) {
+        int x0 = b[0], x1 = b[1], x2 = b[2], x3 = b[3], x4 = b[4], x5 = b[5], x6 = b[6], x7 = b[7],
+                x8 = b[8], x9 = b[9], x10 = b[10], x11 = b[11], x12 = b[12], x13 = b[13], x14 = b[14], x15 = b[15];
+
+        for (int i = 0; i < 8; i += 2) {
+            // columns
+            x4 ^= Integer.rotateLeft(x0 + x12, 7);
+            x8 ^= Integer.rotateLeft(x4 + x0, 9);
+            x12 ^= Integer.rotateLeft(x8 + x4, 13);
+            x0 ^= Integer.rotateLeft(x12 + x8, 18);
+            x9 ^= Integer.rotateLeft(x5 + x1, 7);
+            x13 ^= Integer.rotateLeft(x9 + x5, 9);
+            x1 ^= Integer.rotateLeft(x13 + x9, 13);
+            x5 ^= Integer.rotateLeft(x1 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6, 7);
+            x2 ^= Integer.rotateLeft(x14 + x10, 9);
+            x6 ^= Integer.rotateLeft(x2 + x14, 13);
+            x10 ^= Integer.rotateLeft(x6 + x2, 18);
+            x3 ^= Integer.rotateLeft(x15 + x11, 7);
+            x7 ^= Integer.rotateLeft(x3 + x15, 9);
+            x11 ^= Integer.rotateLeft(x7 + x3, 13);
+            x15 ^= Integer.rotateLeft(x11 + x7, 18);
+
+            // rows
+            x1 ^= Integer.rotateLeft(x0 + x3, 7);
+            x2 ^= Integer.rotateLeft(x1 + x0, 9);
+            x3 ^= Integer.rotateLeft(x2 + x1, 13);
+            x0 ^= Integer.rotateLeft(x3 + x2, 18);
+            x6 ^= Integer.rotateLeft(x5 + x4, 7);
+            x7 ^= Integer.rotateLeft(x6 + x5, 9);
+            x4 ^= Integer.rotateLeft(x7 + x6, 13);
+            x5 ^= Integer.rotateLeft(x4 + x7, 18);
+            x11 ^= Integer.rotateLeft(x10 + x9, 7);
+            x8 ^= Integer.rotateLeft(x11 + x10, 9);
+            x9 ^= Integer.rotateLeft(x8 + x11, 13);
+            x10 ^= Integer.rotateLeft(x9 + x8, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7);
+            x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13);
+            x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+
+        b[0] += x0; b[1] += x1; b[2] += x2; b[3] += x3; b[4] += x4; b[5] += x5; b[6] += x6; b[7] += x7;
+        b[8] += x8; b[9] += x9; b[10] += x10; b[11] += x11; b[12] += x12; b[13] += x13; b[14] += x14; b[15] += x15;
+    }
+}
@@ -0,0 +1,249 @@
+package crypto;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of the bytes a {@link PasswordKdf} derives, so that deriving the key for the same salt and password again,
+ * e.g. on every request of a session, skips the expensive derivation.
+ * <p>
+ * Entries are evicted least recently used first once the cache is full, and after the time to live if one is set.
+ * Evicted bytes are zeroed. The cache is keyed on the salt and an HMAC-SHA256 of the password with a random key
+ * of this cache, so neither the password nor a plain hash of it that could be brute forced quickly is kept.
+ * <p>
+ * Every call returns new arrays and keys, the caller may zero or destroy them.
+ * <p>
+ * Thread safe.
+ */
+public class PasswordKeyCache {
+
+    private static final String PASS_HMAC_LBL = "HmacSHA256";
+
+    private final PasswordKdf kdf;
+    private final int maxSize;
+    private final long ttlNanos;
+
+    private final SecretKeySpec passHmacKey;
+
+    /**
+     * Guarded by this, in access order so that the first entry is the least recently used.
+     */
+    private final LinkedHashMap<CacheKey, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private final ThreadLocal<Mac> passHmac = new ThreadLocal<>();
+
+    /**
+     * A cache without a time to live.
+     */
+    public PasswordKeyCache(PasswordKdf kdf, int maxSize) {
+        this(kdf, maxSize, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param maxSize the maximum number of derived keys kept
+     * @param ttl how long a key is kept after it was derived, 0 to keep keys until they are evicted for space
+     */
+    public PasswordKeyCache(PasswordKdf kdf, int maxSize, long ttl, TimeUnit unit) {
+        if (kdf == null) {
+            throw new IllegalArgumentException("kdf must not be null");
+        }
+
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("invalid max size: " + maxSize);
+        }
+
+        if (ttl < 0) {
+            throw new IllegalArgumentException("invalid ttl: " + ttl);
+        }
+
+        this.kdf = kdf;
+        this.maxSize = maxSize;
+        this.ttlNanos = unit.toNanos(ttl);
+
+        byte[] key = new byte[32];
+        Random.nextBytes(key);
+        this.passHmacKey = new SecretKeySpec(key, PASS_HMAC_LBL);
+        Arrays.fill(key, (byte) 0);
+    }
+
+    /**
+     * Same as {@link PasswordKdf#derive(byte[], byte[], int)}, derived only on a miss.
+     */
+    public byte[] derive(byte[] salt, byte[] pass, int len) throws NoSuchAlgorithmException, InvalidKeyException {
+        if (salt == null || pass == null) {
+            throw new IllegalArgumentException("salt and pass must not be null");
+        }
+
+        CacheKey cacheKey = new CacheKey(salt.clone(), passHmac(pass), len);
+
+        synchronized (this) {
+            Entry entry = live(cacheKey, System.nanoTime());
+            if (entry != null) {
+                hits.increment();
+                return entry.derived.clone();
+            }
+        }
+
+        misses.increment();
+
+        // derive outside the lock, other threads can use the cache in the meantime
+        byte[] derived = kdf.derive(salt, pass, len);
+
+        synchronized (this) {
+            if (live(cacheKey, System.nanoTime()) == null) {
+                entries.put(cacheKey, new Entry(derived.clone(), System.nanoTime()));
+
+                Iterator<Entry> it = entries.values().iterator();
+                while (entries.size() > maxSize) {
+                    Entry eldest = it.next();
+                    it.remove();
+                    evict(eldest);
+                }
+            }
+        }
+
+        return derived;
+    }
+
+    /**
+     * Same as {@link PasswordKdf#deriveKey(Key.KeySize, byte[], byte[])}, derived only on a miss.
+     */
+    public Key.ExpandedKey deriveKey(Key.KeySize keySize, byte[] salt, byte[] pass) throws NoSuchAlgorithmException, InvalidKeyException {
+        return keySize.genKeysHmacSha(derive(salt, pass, PasswordKdf.KEY_LENGTH));
+    }
+
+    public PasswordKdf kdf() {
+        return kdf;
+    }
+
+    /**
+     * Remove all expired keys, expired keys are otherwise only removed when they are looked up.
+     */
+    public synchronized void cleanUp() {
+        long now = System.nanoTime();
+
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (expired(entry, now)) {
+                it.remove();
+                evict(entry);
+            }
+        }
+    }
+
+    /**
+     * Remove and zero all keys, e.g. when a user changes the password.
+     */
+    public synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            evict(entry);
+        }
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * The entry for the key if it is in the cache and not expired, must hold the lock.
+     */
+    private Entry live(CacheKey cacheKey, long now) {
+        Entry entry = entries.get(cacheKey);
+
+        if (entry != null && expired(entry, now)) {
+            entries.remove(cacheKey);
+            evict(entry);
+            return null;
+        }
+
+        return entry;
+    }
+
+    private boolean expired(Entry entry, long now) {
+        return ttlNanos > 0 && now - entry.created > ttlNanos;
+    }
+
+    private void evict(Entry entry) {
+        evictions.increment();
+        Arrays.fill(entry.derived, (byte) 0);
+    }
+
+    private byte[] passHmac(byte[] pass) throws NoSuchAlgorithmException, InvalidKeyException {
+        Mac mac = passHmac.get();
+        if (mac == null) {
+            mac = Mac.getInstance(PASS_HMAC_LBL);
+            mac.init(passHmacKey);
+            passHmac.set(mac);
+        }
+        return mac.doFinal(pass);
+    }
+
+    private static final class Entry {
+        private final byte[] derived;
+        private final long created;
+
+        Entry(byte[] derived, long created) {
+            this.derived = derived;
+            this.created = created;
+        }
+    }
+
+    private static final class CacheKey {
+        private final byte[] salt;
+        private final byte[] passHmac;
+        private final int len;
+        private final int hash;
+
+        CacheKey(byte[] salt, byte[] passHmac, int len) {
+            this.salt = salt;
+            this.passHmac = passHmac;
+            this.len = len;
+            this.hash = 31 * (31 * Arrays.hashCode(salt) + Arrays.hashCode(passHmac)) + len;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+
+            CacheKey other = (CacheKey) o;
+            return len == other.len
+                    && Arrays.equals(salt, other.salt)
+                    && Arrays.equals(passHmac, other.passHmac);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package crypto;
+
+import java.security.SecureRandom;
+
+/**
+ * Nonces directly from a SecureRandom, see {@link NonceSource#of(SecureRandom)}.
+ */
+final class SecureRandomNonceSource implements NonceSource {
+
+    private final SecureRandom random;
+    /**
+     * The source in the crypto.NonceGenerate events.
+     */
+    private final String name;
+
+    SecureRandomNonceSource(SecureRandom random) {
+        this.random = random;
+        this.name = "SecureRandom " + random.getAlgorithm();
+    }
+
+    @Override
+    public void nextNonces(byte[] dst, int off, int nonceLength, int count) {
+        CryptoEvents.NonceGenerateEvent event = CryptoEvents.beginNonceGenerate();
+        Throwable failure = null;
+        int len = Math.multiplyExact(nonceLength, count);
+
+        try {
+            if (off == 0 && len == dst.length) {
+                random.nextBytes(dst);
+            } else {
+                byte[] bts = new byte[len];
+                random.nextBytes(bts);
+                System.arraycopy(bts, 0, dst, off, len);
+            }
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (event != null) {
+                event.end(name, len, failure);
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package crypto;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Each thread has its own SecureRandom and reads it in blocks of BUFFER_SIZE, see {@link NonceSource#THREAD_LOCAL_RANDOM}.
+ * <p>
+ * The random bytes are only used for ivs and nonces, which are written in the clear into every message,
+ * so keeping a few of them in memory before they are used does not expose anything.
+ * <p>
+ * Virtual threads (Java 21+) are short lived, a SecureRandom per virtual thread would be seeded for every task.
+ * They share a fixed set of buffers instead, picked by thread id and guarded by a ReentrantLock, which unmounts a
+ * waiting virtual thread where a synchronized block would pin its carrier thread.
+ */
+final class ThreadLocalNonceSource implements NonceSource {
+
+    static final int BUFFER_SIZE = 1024;
+
+    private final ThreadLocal<Buffer> buffers = ThreadLocal.withInitial(Buffer::new);
+
+    /**
+     * The buffers for virtual threads, null before Java 21.
+     */
+    private final SharedBuffer[] shared;
+
+    ThreadLocalNonceSource() {
+        this(VirtualThreads.AVAILABLE);
+    }
+
+    /**
+     * @param virtualThreads create the buffers shared by virtual threads
+     */
+    ThreadLocalNonceSource(boolean virtualThreads) {
+        shared = virtualThreads ? newSharedBuffers(Runtime.getRuntime().availableProcessors()) : null;
+    }
+
+    @Override
+    public void nextNonces(byte[] dst, int off, int nonceLength, int count) {
+        CryptoEvents.NonceGenerateEvent event = CryptoEvents.beginNonceGenerate();
+        Throwable failure = null;
+        int len = Math.multiplyExact(nonceLength, count);
+
+        try {
+            Thread thread = Thread.currentThread();
+            if (shared != null && VirtualThreads.isVirtual(thread)) {
+                nextShared(thread.getId(), dst, off, len);
+            } else {
+                buffers.get().nextBytes(dst, off, len);
+            }
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (event != null) {
+                event.end("THREAD_LOCAL_RANDOM", len, failure);
+            }
+        }
+    }
+
+    /**
+     * The bytes from the shared buffer for the thread id, only when created for virtual threads.
+     */
+    void nextShared(long threadId, byte[] dst, int off, int len) {
+        SharedBuffer buffer = shared[(int) (threadId & (shared.length - 1))];
+
+        buffer.lock.lock();
+        try {
+            buffer.nextBytes(dst, off, len);
+        } finally {
+            buffer.lock.unlock();
+        }
+    }
+
+    /**
+     * A power of two of at least stripes buffers, the carrier threads default to one per processor.
+     */
+    private static SharedBuffer[] newSharedBuffers(int stripes) {
+        SharedBuffer[] buffers = new SharedBuffer[Integer.highestOneBit(Math.max(1, stripes - 1)) << 1];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = new SharedBuffer();
+        }
+        return buffers;
+    }
+
+    /**
+     * A DRBG (Java 9+) or SHA1PRNG instance, both seed themselves from the system on first use
+     * and do not read from the operating system on each call like NativePRNG does.
+     */
+    static SecureRandom newSecureRandom() {
+        for (String algorithm : new String[]{"DRBG", "SHA1PRNG"}) {
+            try {
+                return SecureRandom.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                // try the next one
+            }
+        }
+
+        return new SecureRandom();
+    }
+
+    private static class Buffer {
+        private final SecureRandom random = newSecureRandom();
+        private final byte[] bytes = new byte[BUFFER_SIZE];
+        private int pos = BUFFER_SIZE;
+
+        void nextBytes(byte[] dst, int off, int len) {
+            while (len > 0) {
+                if (pos == bytes.length) {
+                    random.nextBytes(bytes);
+                    pos = 0;
+                }
+
+                int n = Math.min(len, bytes.length - pos);
+                System.arraycopy(bytes, pos, dst, off, n);
+
+                pos += n;
+                off += n;
+                len -= n;
+            }
+        }
+    }
+
+    private static final class SharedBuffer extends Buffer {
+        private final ReentrantLock lock = new ReentrantLock();
+    }
+}
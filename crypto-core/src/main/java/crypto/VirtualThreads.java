@@ -0,0 +1,98 @@
+package crypto;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Virtual threads (Java 21+) through reflection, the library is compiled for Java 8.
+ * Before Java 21 {@link #AVAILABLE} is false and no thread is virtual.
+ */
+final class VirtualThreads {
+
+    private static final MethodHandle IS_VIRTUAL = isVirtualHandle();
+    private static final MethodHandle NEW_EXECUTOR = newExecutorHandle();
+
+    static final boolean AVAILABLE = IS_VIRTUAL != null && NEW_EXECUTOR != null;
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Thread.isVirtual, false before Java 21.
+     */
+    static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor.
+     *
+     * @throws UnsupportedOperationException before Java 21
+     */
+    static ExecutorService newExecutor() {
+        if (!AVAILABLE) {
+            throw new UnsupportedOperationException("virtual threads need Java 21, this is " + System.getProperty("java.version"));
+        }
+
+        try {
+            return (ExecutorService) NEW_EXECUTOR.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The feature version, 8 for "1.8", 21 for "21".
+     */
+    static int javaVersion(String specificationVersion) {
+        String v = specificationVersion.startsWith("1.") ? specificationVersion.substring(2) : specificationVersion;
+        int dot = v.indexOf('.');
+        return Integer.parseInt(dot < 0 ? v : v.substring(0, dot));
+    }
+
+    /**
+     * Java 19 and 20 have the methods as a preview, they only work with --enable-preview.
+     */
+    private static boolean supported() {
+        try {
+            return javaVersion(System.getProperty("java.specification.version", "1.8")) >= 21;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static MethodHandle isVirtualHandle() {
+        if (!supported()) {
+            return null;
+        }
+
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static MethodHandle newExecutorHandle() {
+        if (!supported()) {
+            return null;
+        }
+
+        try {
+            return MethodHandles.publicLookup().findStatic(java.util.concurrent.Executors.class, "newVirtualThreadPerTaskExecutor",
+                    MethodType.methodType(ExecutorService.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+}
@@ -45,6 +45,20 @@ public class AESTest {
         byte[] decryptedData = AES.decryptGCM(key, encryptedData);
 
 
+        Assert.assertArrayEquals(rawData, decryptedData);
+    }
+
+    @Test
+    public void testAesCBC_LargerThanChunk_EncryptDecrypt() throws Exception{
+
+        byte[] rawData = Util.genData(AES.CHUNK_SIZE * 3 + 5);
+
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        byte[] encryptedData = AES.encryptCBC(key, rawData);
+
+        byte[] decryptedData = AES.decryptCBC(key, encryptedData);
+
+
         Assert.assertArrayEquals(rawData, decryptedData);
     }
 
@@ -0,0 +1,136 @@
+package crypto;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.crypto.AEADBadTagException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class AadTest {
+
+    private static final byte[] AAD = "route=eu-west-1;tenant=42".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testGCM() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        byte[] rawData = Util.genData(1000);
+
+        byte[] encrypted = AES.encryptGCM((byte) 0, key, AAD, rawData);
+        Assert.assertEquals(AES.outputSizeGCM(rawData.length), encrypted.length);
+        Assert.assertArrayEquals(rawData, AES.decryptGCM((byte) 0, key, AAD, encrypted));
+        Assert.assertArrayEquals(rawData, new AesEngine(key).decryptGCM((byte) 0, AAD, encrypted));
+
+        try {
+            AES.decryptGCM(key, encrypted);
+            Assert.fail("the missing aad was not detected");
+        } catch (AEADBadTagException e) {
+            // expected
+        }
+
+        // no aad is the same as empty aad and compatible with the functions without aad
+        Assert.assertArrayEquals(rawData, AES.decryptGCM((byte) 0, key, new byte[0], AES.encryptGCM(key, rawData)));
+        Assert.assertArrayEquals(rawData, AES.decryptGCM(key, AES.encryptGCM((byte) 0, key, null, rawData)));
+    }
+
+    @Test
+    public void testCBC() throws Exception {
+        for (Key.KeySize keySize : Key.KeySize.values()) {
+            Key.ExpandedKey key = keySize.genKeysHmacSha();
+            byte[] rawData = Util.genData(1000);
+
+            byte[] encrypted = AES.encryptCBC((byte) 0, key, AAD, rawData);
+            Assert.assertArrayEquals(rawData, AES.decryptCBC((byte) 0, key, AAD, encrypted));
+            Assert.assertArrayEquals(rawData, new AesEngine(key).decryptCBC((byte) 0, AAD, encrypted));
+
+            byte[] otherAad = AAD.clone();
+            otherAad[0] ^= 1;
+
+            for (byte[] aad : new byte[][]{null, otherAad}) {
+                try {
+                    AES.decryptCBC((byte) 0, key, aad, encrypted);
+                    Assert.fail("the wrong aad was not detected");
+                } catch (SecurityException e) {
+                    // expected
+                }
+            }
+
+            Assert.assertArrayEquals(rawData, AES.decryptCBC((byte) 0, key, new byte[0], AES.encryptCBC(key, rawData)));
+        }
+    }
+
+    @Test
+    public void testSlices() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_256.genKeysHmacSha();
+        AesEngine engine = new AesEngine(key);
+        byte[] rawData = Util.genData(1000);
+
+        // the aad is a header in front of the data in the same array
+        byte[] frame = new byte[AAD.length + rawData.length];
+        System.arraycopy(AAD, 0, frame, 0, AAD.length);
+        System.arraycopy(rawData, 0, frame, AAD.length, rawData.length);
+
+        byte[] dst = new byte[AES.outputSizeGCM(rawData.length)];
+        int n = engine.encryptGCM((byte) 0, frame, 0, AAD.length, frame, AAD.length, rawData.length, dst, 0);
+        Assert.assertArrayEquals(rawData, AES.decryptGCM((byte) 0, key, AAD, dst));
+
+        byte[] decrypted = new byte[rawData.length];
+        engine.decryptGCM((byte) 0, frame, 0, AAD.length, dst, 0, n, decrypted, 0);
+        Assert.assertArrayEquals(rawData, decrypted);
+
+        dst = new byte[AES.outputSizeCBC(key.keySize, rawData.length)];
+        n = engine.encryptCBC((byte) 0, frame, 0, AAD.length, frame, AAD.length, rawData.length, dst, 0);
+        Assert.assertArrayEquals(rawData, AES.decryptCBC((byte) 0, key, AAD, dst));
+
+        decrypted = new byte[AES.maxDecryptedSizeCBC(key.keySize, n)];
+        int m = engine.decryptCBC((byte) 0, frame, 0, AAD.length, dst, 0, n, decrypted, 0);
+        Assert.assertEquals(rawData.length, m);
+    }
+
+    @Test
+    public void testByteBuffers() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        AesEngine engine = new AesEngine(key);
+        byte[] rawData = Util.genData(1000);
+
+        for (boolean direct : new boolean[]{true, false}) {
+            ByteBuffer aad = buffer(direct, AAD.length + 4);
+            aad.put(new byte[4]).put(AAD);
+            Buffers.position(aad, 4);
+
+            ByteBuffer src = buffer(direct, rawData.length);
+            src.put(rawData);
+            Buffers.flip(src);
+
+            ByteBuffer encrypted = buffer(direct, AES.outputSizeGCM(rawData.length));
+            engine.encryptGCM((byte) 0, aad, src, encrypted);
+            Buffers.flip(encrypted);
+            Assert.assertEquals(4, aad.position());
+
+            ByteBuffer decrypted = buffer(direct, rawData.length);
+            engine.decryptGCM((byte) 0, aad, encrypted, decrypted);
+            Assert.assertArrayEquals(rawData, bytes(decrypted));
+
+            Buffers.position(src, 0);
+            encrypted = buffer(direct, AES.outputSizeCBC(key.keySize, rawData.length));
+            engine.encryptCBC((byte) 0, aad, src, encrypted);
+            Buffers.flip(encrypted);
+            Assert.assertEquals(4, aad.position());
+
+            decrypted = buffer(direct, encrypted.remaining());
+            engine.decryptCBC((byte) 0, aad, encrypted, decrypted);
+            Assert.assertArrayEquals(rawData, bytes(decrypted));
+        }
+    }
+
+    private static ByteBuffer buffer(boolean direct, int size) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    private static byte[] bytes(ByteBuffer buff) {
+        Buffers.flip(buff);
+        byte[] bts = new byte[buff.remaining()];
+        buff.get(bts);
+        return bts;
+    }
+}
@@ -0,0 +1,92 @@
+package crypto;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.crypto.ShortBufferException;
+import java.util.Arrays;
+
+public class AesBatchTest {
+
+    @Test
+    public void testGCMBatch() throws Exception {
+        for (Key.KeySize keySize : Key.KeySize.values()) {
+            Key.ExpandedKey key = keySize.genKeysHmacSha();
+            byte[][] messages = messages(500);
+
+            byte[][] encrypted = AES.encryptGCMBatch(key, messages);
+
+            Assert.assertArrayEquals(messages, AES.decryptGCMBatch(key, encrypted));
+
+            // each message is a normal GCM message
+            for (int i = 0; i < messages.length; i++) {
+                Assert.assertArrayEquals(messages[i], AES.decryptGCM(key, encrypted[i]));
+            }
+        }
+    }
+
+    @Test
+    public void testCBCBatch() throws Exception {
+        for (Key.KeySize keySize : Key.KeySize.values()) {
+            Key.ExpandedKey key = keySize.genKeysHmacSha();
+            byte[][] messages = messages(500);
+
+            byte[][] encrypted = AES.encryptCBCBatch(key, messages);
+
+            Assert.assertArrayEquals(messages, AES.decryptCBCBatch(key, encrypted));
+
+            for (int i = 0; i < messages.length; i++) {
+                Assert.assertArrayEquals(messages[i], AES.decryptCBC(key, encrypted[i]));
+            }
+        }
+    }
+
+    @Test
+    public void testGCMBatchContiguous() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        byte[][] messages = messages(100);
+
+        byte[] dst = new byte[AES.outputSizeGCMBatch(messages) + 10];
+        int[] offsets = new int[messages.length + 1];
+
+        int n = AES.encryptGCMBatch((byte) 1, null, key, messages, dst, 10, offsets);
+
+        Assert.assertEquals(dst.length - 10, n);
+        Assert.assertEquals(10, offsets[0]);
+        Assert.assertEquals(dst.length, offsets[messages.length]);
+
+        Assert.assertArrayEquals(messages, AES.decryptGCMBatch((byte) 1, null, key, dst, offsets, messages.length));
+    }
+
+    @Test
+    public void testCBCBatchContiguous() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_256.genKeysHmacSha();
+        byte[][] messages = messages(100);
+
+        byte[] dst = new byte[AES.outputSizeCBCBatch(key.keySize, messages)];
+        int[] offsets = new int[messages.length + 1];
+
+        AES.encryptCBCBatch((byte) 1, null, key, messages, dst, 0, offsets);
+
+        for (int i = 0; i < messages.length; i++) {
+            byte[] msg = Arrays.copyOfRange(dst, offsets[i], offsets[i + 1]);
+            Assert.assertArrayEquals(messages[i], AES.decryptCBC((byte) 1, key, msg));
+        }
+    }
+
+    @Test(expected = ShortBufferException.class)
+    public void testBatchShortBuffer() throws Exception {
+        byte[][] messages = messages(10);
+
+        AES.encryptGCMBatch((byte) 0, null, Key.KeySize.AES_128.genKeysHmacSha(), messages,
+                new byte[AES.outputSizeGCMBatch(messages) - 1], 0, new int[messages.length + 1]);
+    }
+
+    private static byte[][] messages(int count) {
+        byte[][] messages = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            messages[i] = Util.genData(i % 300);
+        }
+        return messages;
+    }
+}
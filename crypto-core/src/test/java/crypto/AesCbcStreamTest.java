@@ -0,0 +1,142 @@
+package crypto;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+public class AesCbcStreamTest {
+
+    @Test
+    public void testEncryptDecrypt() throws Exception {
+        for (Key.KeySize keySize : Key.KeySize.values()) {
+            Key.ExpandedKey key = keySize.genKeysHmacSha();
+
+            for (int len : new int[]{0, 1, 15, 16, 17, AES.CHUNK_SIZE, AES.CHUNK_SIZE + 1, 100_000}) {
+                byte[] rawData = Util.genData(len);
+                byte[] encryptedData = encrypt(key, rawData);
+
+                Assert.assertArrayEquals(rawData, decrypt(key, encryptedData));
+            }
+        }
+    }
+
+    @Test
+    public void testChannels() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        byte[] rawData = Util.genData(100_000);
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (WritableByteChannel out = new AesCbcOutputStream(Channels.newChannel(bout), (byte) 3, key)) {
+            ByteBuffer src = ByteBuffer.allocateDirect(rawData.length);
+            src.put(rawData);
+            Buffers.flip(src);
+            out.write(src);
+        }
+
+        ByteBuffer dst = ByteBuffer.allocate(rawData.length + 1);
+        try (ReadableByteChannel in = new AesCbcInputStream(Channels.newChannel(new ByteArrayInputStream(bout.toByteArray())), (byte) 3, key)) {
+            while (in.read(dst) >= 0) {
+                // read until the end of the stream
+            }
+        }
+
+        Assert.assertEquals(rawData.length, dst.position());
+        Assert.assertArrayEquals(rawData, Arrays.copyOf(dst.array(), rawData.length));
+    }
+
+    @Test(expected = SecurityException.class)
+    public void testModifiedCipherTextFails() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        byte[] encryptedData = encrypt(key, Util.genData(50_000));
+
+        encryptedData[100] ^= 1;
+
+        decrypt(key, encryptedData);
+    }
+
+    @Test(expected = SecurityException.class)
+    public void testTruncatedFails() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        byte[] encryptedData = encrypt(key, Util.genData(50_000));
+
+        decrypt(key, Arrays.copyOf(encryptedData, encryptedData.length - 16));
+    }
+
+    @Test
+    public void testFailureIsThrownOnEveryRead() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        byte[] encryptedData = encrypt(key, Util.genData(50_000));
+
+        encryptedData[100] ^= 1;
+
+        try (AesCbcInputStream in = new AesCbcInputStream(new ByteArrayInputStream(encryptedData), key)) {
+            byte[] buff = new byte[333];
+            try {
+                while (in.read(buff) != -1) {
+                    // the plain text is not authenticated yet
+                }
+                Assert.fail("expected a SecurityException");
+            } catch (SecurityException e) {
+                // a caller that ignores the failure must not see a clean end of the stream
+            }
+
+            for (int i = 0; i < 3; i++) {
+                try {
+                    in.read(ByteBuffer.allocate(10));
+                    Assert.fail("expected a SecurityException");
+                } catch (SecurityException e) {
+                    // expected
+                }
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testWrongVersionIsIOException() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        byte[] encryptedData = encrypt(key, Util.genData(1000));
+
+        encryptedData[0] = 1;
+
+        decrypt(key, encryptedData);
+    }
+
+    private static byte[] encrypt(Key.ExpandedKey key, byte[] rawData) throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+
+        try (OutputStream out = new AesCbcOutputStream(bout, key)) {
+            int i = 0;
+            while (i < rawData.length) {
+                int n = Math.min(rawData.length - i, 1000 + i % 7000);
+                out.write(rawData, i, n);
+                i += n;
+            }
+        }
+
+        return bout.toByteArray();
+    }
+
+    private static byte[] decrypt(Key.ExpandedKey key, byte[] encryptedData) throws Exception {
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+
+        try (InputStream in = new AesCbcInputStream(new ByteArrayInputStream(encryptedData), key)) {
+            byte[] buff = new byte[333];
+            int n;
+            while ((n = in.read(buff)) != -1) {
+                plain.write(buff, 0, n);
+            }
+        }
+
+        return plain.toByteArray();
+    }
+}
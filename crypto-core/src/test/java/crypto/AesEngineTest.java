@@ -0,0 +1,358 @@
+package crypto;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
+import java.nio.ByteBuffer;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class AesEngineTest {
+
+    @Test
+    public void testCBC_EngineAndAESAreCompatible() throws Exception {
+        for (Key.KeySize keySize : Key.KeySize.values()) {
+            Key.ExpandedKey key = keySize.genKeysHmacSha();
+            AesEngine engine = new AesEngine(key);
+
+            byte[] rawData = Util.genData(1024);
+
+            Assert.assertArrayEquals(rawData, AES.decryptCBC(key, engine.encryptCBC(rawData)));
+            Assert.assertArrayEquals(rawData, engine.decryptCBC(AES.encryptCBC(key, rawData)));
+            Assert.assertArrayEquals(rawData, engine.decryptCBC(engine.encryptCBC(rawData)));
+        }
+    }
+
+    @Test
+    public void testGCM_EngineAndAESAreCompatible() throws Exception {
+        for (Key.KeySize keySize : Key.KeySize.values()) {
+            Key.ExpandedKey key = keySize.genKeysHmacSha();
+            AesEngine engine = new AesEngine(key);
+
+            byte[] rawData = Util.genData(1024);
+
+            Assert.assertArrayEquals(rawData, AES.decryptGCM(key, engine.encryptGCM(rawData)));
+            Assert.assertArrayEquals(rawData, engine.decryptGCM(AES.encryptGCM(key, rawData)));
+            Assert.assertArrayEquals(rawData, engine.decryptGCM(engine.encryptGCM(rawData)));
+        }
+    }
+
+    @Test
+    public void testOffsetLength_EncryptDecrypt() throws Exception {
+        for (Key.KeySize keySize : Key.KeySize.values()) {
+            Key.ExpandedKey key = keySize.genKeysHmacSha();
+            AesEngine engine = new AesEngine(key);
+
+            for (int len : new int[]{0, 1, 15, 16, 17, 1000}) {
+                byte[] src = Util.genData(len + 10);
+
+                byte[] cbc = new byte[AES.outputSizeCBC(keySize, len) + 3];
+                int cbcLen = engine.encryptCBC((byte) 1, src, 5, len, cbc, 3);
+                Assert.assertEquals(AES.outputSizeCBC(keySize, len), cbcLen);
+                Assert.assertArrayEquals(Arrays.copyOfRange(src, 5, 5 + len), AES.decryptCBC((byte) 1, key, Arrays.copyOfRange(cbc, 3, 3 + cbcLen)));
+
+                byte[] plain = new byte[AES.maxDecryptedSizeCBC(keySize, cbcLen) + 2];
+                int plainLen = engine.decryptCBC((byte) 1, cbc, 3, cbcLen, plain, 2);
+                Assert.assertArrayEquals(Arrays.copyOfRange(src, 5, 5 + len), Arrays.copyOfRange(plain, 2, 2 + plainLen));
+
+                byte[] gcm = new byte[AES.outputSizeGCM(len) + 3];
+                int gcmLen = engine.encryptGCM((byte) 1, src, 5, len, gcm, 3);
+                Assert.assertEquals(AES.outputSizeGCM(len), gcmLen);
+                Assert.assertArrayEquals(Arrays.copyOfRange(src, 5, 5 + len), AES.decryptGCM((byte) 1, key, Arrays.copyOfRange(gcm, 3, 3 + gcmLen)));
+
+                plain = new byte[AES.decryptedSizeGCM(gcmLen)];
+                Assert.assertEquals(len, engine.decryptGCM((byte) 1, gcm, 3, gcmLen, plain, 0));
+                Assert.assertArrayEquals(Arrays.copyOfRange(src, 5, 5 + len), plain);
+            }
+        }
+    }
+
+    @Test
+    public void testDirectByteBuffer_EncryptDecrypt() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_256.genKeysHmacSha();
+        AesEngine engine = new AesEngine(key);
+
+        byte[] rawData = Util.genData(AES.CHUNK_SIZE * 2 + 3);
+
+        ByteBuffer src = ByteBuffer.allocateDirect(rawData.length);
+        src.put(rawData);
+        Buffers.flip(src);
+
+        ByteBuffer cbc = ByteBuffer.allocateDirect(AES.outputSizeCBC(key.keySize, rawData.length));
+        Assert.assertEquals(cbc.capacity(), engine.encryptCBC((byte) 0, src, cbc));
+        Assert.assertFalse(src.hasRemaining());
+        Buffers.flip(cbc);
+
+        ByteBuffer plain = ByteBuffer.allocateDirect(AES.maxDecryptedSizeCBC(key.keySize, cbc.remaining()));
+        Assert.assertEquals(rawData.length, engine.decryptCBC((byte) 0, cbc, plain));
+        Buffers.flip(plain);
+        Assert.assertArrayEquals(rawData, toArray(plain));
+
+        Buffers.position(src, 0);
+        ByteBuffer gcm = ByteBuffer.allocateDirect(AES.outputSizeGCM(rawData.length));
+        Assert.assertEquals(gcm.capacity(), engine.encryptGCM((byte) 0, src, gcm));
+        Buffers.flip(gcm);
+
+        Assert.assertArrayEquals(rawData, AES.decryptGCM(key, toArray(gcm.duplicate())));
+
+        plain = ByteBuffer.allocateDirect(AES.decryptedSizeGCM(gcm.remaining()));
+        Assert.assertEquals(rawData.length, engine.decryptGCM((byte) 0, gcm, plain));
+        Buffers.flip(plain);
+        Assert.assertArrayEquals(rawData, toArray(plain));
+    }
+
+    @Test(expected = ShortBufferException.class)
+    public void testShortOutputBufferFails() throws Exception {
+        AesEngine engine = new AesEngine(Key.KeySize.AES_128.genKeysHmacSha());
+
+        byte[] rawData = Util.genData(100);
+        engine.encryptGCM((byte) 0, rawData, 0, rawData.length, new byte[AES.outputSizeGCM(rawData.length) - 1], 0);
+    }
+
+    @Test(expected = SecurityException.class)
+    public void testCBC_TamperedMessageFails() throws Exception {
+        AesEngine engine = new AesEngine(Key.KeySize.AES_128.genKeysHmacSha());
+
+        byte[] encryptedData = engine.encryptCBC(Util.genData(64));
+        encryptedData[encryptedData.length - 1] ^= 1;
+
+        engine.decryptCBC(encryptedData);
+    }
+
+    @Test
+    public void testCBC_DecryptWithoutReinit() throws Exception {
+        Provider conscrypt = ((JceBackend) CryptoBackends.backend("Conscrypt")).provider();
+        Security.addProvider(conscrypt);
+
+        try {
+            for (Key.KeySize keySize : Key.KeySize.values()) {
+                Key.ExpandedKey key = keySize.genKeysHmacSha();
+                decryptAllLengths(key, new AesEngine(key));
+                decryptAllLengths(key, new AesEngine(conscrypt.getName(), key));
+            }
+        } finally {
+            Security.removeProvider(conscrypt.getName());
+        }
+    }
+
+    @Test
+    public void testCBC_FailedDecryptDoesNotBreakEngine() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        AesEngine engine = new AesEngine(key);
+        byte[] aad = "header".getBytes();
+        byte[] rawData = Util.genData(40);
+        byte[] plain = new byte[100];
+
+        byte[] encrypted = AES.encryptCBC((byte) 0, key, aad, rawData);
+        byte[] tampered = encrypted.clone();
+        tampered[tampered.length - 1] ^= 1;
+
+        try {
+            engine.decryptCBC((byte) 0, aad, 0, aad.length, tampered, 0, tampered.length, plain, 0);
+            Assert.fail("the modified message was not detected");
+        } catch (SecurityException e) {
+            // expected
+        }
+
+        try {
+            engine.decryptCBC((byte) 0, encrypted, 0, encrypted.length, plain, 0);
+            Assert.fail("the missing aad was not detected");
+        } catch (SecurityException e) {
+            // expected
+        }
+
+        Assert.assertEquals(rawData.length, engine.decryptCBC((byte) 0, aad, 0, aad.length, encrypted, 0, encrypted.length, plain, 0));
+        Assert.assertArrayEquals(rawData, Arrays.copyOf(plain, rawData.length));
+    }
+
+    @Test
+    public void testCBC_MalformedLargeMessageDoesNotBreakEngine() throws Exception {
+        for (Key.KeySize keySize : Key.KeySize.values()) {
+            Key.ExpandedKey key = keySize.genKeysHmacSha();
+            AesEngine engine = new AesEngine(key);
+            byte[] rawData = Util.genData(AES.CHUNK_SIZE * 2);
+            byte[] encrypted = AES.encryptCBC(key, rawData);
+            byte[] plain = new byte[encrypted.length];
+
+            // the cipher text is not a multiple of the block size
+            byte[] malformed = Arrays.copyOf(encrypted, encrypted.length - 1);
+
+            for (int i = 0; i < 3; i++) {
+                Assert.assertEquals(rawData.length, engine.decryptCBC((byte) 0, encrypted, 0, encrypted.length, plain, 0));
+
+                try {
+                    engine.decryptCBC((byte) 0, malformed, 0, malformed.length, plain, 0);
+                    Assert.fail("the malformed message was not detected");
+                } catch (IllegalBlockSizeException e) {
+                    // expected
+                }
+
+                Assert.assertEquals(rawData.length, engine.decryptCBC((byte) 0, encrypted, 0, encrypted.length, plain, 0));
+                Assert.assertArrayEquals(rawData, Arrays.copyOf(plain, rawData.length));
+
+                try {
+                    engine.decryptCBC((byte) 0, ByteBuffer.wrap(malformed), ByteBuffer.allocate(plain.length));
+                    Assert.fail("the malformed message was not detected");
+                } catch (IllegalBlockSizeException e) {
+                    // expected
+                }
+
+                ByteBuffer heapPlain = ByteBuffer.allocate(plain.length);
+                Assert.assertEquals(rawData.length, engine.decryptCBC((byte) 0, ByteBuffer.wrap(encrypted), heapPlain));
+                Assert.assertArrayEquals(rawData, Arrays.copyOf(heapPlain.array(), rawData.length));
+            }
+        }
+    }
+
+    @Test
+    public void testCBC_LargerThanChunk_SinglePassDecrypt() throws Exception {
+        for (Key.KeySize keySize : Key.KeySize.values()) {
+            Key.ExpandedKey key = keySize.genKeysHmacSha();
+            AesEngine engine = new AesEngine(key);
+
+            for (int len : new int[]{AES.CHUNK_SIZE, AES.CHUNK_SIZE + 15, AES.CHUNK_SIZE * 3 + 5}) {
+                byte[] rawData = Util.genData(len);
+                byte[] encrypted = AES.encryptCBC(key, rawData);
+                byte[] tampered = encrypted.clone();
+                tampered[tampered.length - 1] ^= 1;
+
+                Assert.assertArrayEquals(rawData, AES.decryptCBC(key, encrypted));
+                Assert.assertArrayEquals(rawData, engine.decryptCBC(encrypted));
+
+                byte[] plain = new byte[encrypted.length];
+                ByteBuffer heapPlain = ByteBuffer.allocate(encrypted.length);
+
+                Assert.assertEquals(len, engine.decryptCBC((byte) 0, encrypted, 0, encrypted.length, plain, 0));
+                Assert.assertArrayEquals(rawData, Arrays.copyOf(plain, len));
+
+                Assert.assertEquals(len, engine.decryptCBC((byte) 0, ByteBuffer.wrap(encrypted), heapPlain));
+                Buffers.flip(heapPlain);
+                Assert.assertArrayEquals(rawData, toArray(heapPlain));
+
+                Buffers.clear(heapPlain);
+                Assert.assertEquals(len, CryptoBackends.JCE.decryptCBC((byte) 0, key, ByteBuffer.wrap(encrypted), heapPlain));
+                Buffers.flip(heapPlain);
+                Assert.assertArrayEquals(rawData, toArray(heapPlain));
+
+                // no plain text is left in the output when the hmac does not match
+                Buffers.clear(heapPlain);
+                for (Runnable r : new Runnable[]{
+                        () -> decryptQuietly(() -> AES.decryptCBC(key, tampered)),
+                        () -> decryptQuietly(() -> engine.decryptCBC((byte) 0, tampered, 0, tampered.length, plain, 0)),
+                        () -> decryptQuietly(() -> engine.decryptCBC((byte) 0, ByteBuffer.wrap(tampered), heapPlain)),
+                        () -> decryptQuietly(() -> CryptoBackends.JCE.decryptCBC((byte) 0, key, ByteBuffer.wrap(tampered), heapPlain))}) {
+                    try {
+                        r.run();
+                        Assert.fail("the modified message was not detected");
+                    } catch (SecurityException e) {
+                        // expected
+                    }
+                }
+                Assert.assertArrayEquals(new byte[plain.length], plain);
+                Assert.assertEquals(0, heapPlain.position());
+                Assert.assertArrayEquals(new byte[plain.length], heapPlain.array());
+
+                // the engine's cipher is reset after the failed message
+                Assert.assertEquals(len, engine.decryptCBC((byte) 0, encrypted, 0, encrypted.length, plain, 0));
+                Assert.assertArrayEquals(rawData, Arrays.copyOf(plain, len));
+            }
+        }
+    }
+
+    @Test
+    public void testDigestHmacMatchesJce() throws Exception {
+        for (Key.KeySize keySize : Key.KeySize.values()) {
+            Key.ExpandedKey key = keySize.genKeysHmacSha();
+            DigestHmac hmac = new DigestHmac(keySize, key.authKey);
+            byte[] mac = new byte[hmac.getMacLength()];
+
+            for (int len : new int[]{0, 1, 64, 1000}) {
+                byte[] data = Util.genData(len);
+
+                hmac.update(data, 0, len);
+                hmac.doFinal(mac, 0);
+                Assert.assertArrayEquals(key.newHmac().doFinal(data), mac);
+
+                // the hmac is reset after doFinal
+                hmac.update(ByteBuffer.wrap(data), 0, len);
+                hmac.doFinal(mac, 0);
+                Assert.assertArrayEquals(key.newHmac().doFinal(data), mac);
+            }
+        }
+    }
+
+    @Test
+    public void testEngineIsThreadSafe() throws Exception {
+        final AesEngine engine = new AesEngine(Key.KeySize.AES_128.genKeysHmacSha());
+        ExecutorService exec = Executors.newFixedThreadPool(4);
+
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+
+            for (int i = 0; i < 16; i++) {
+                results.add(exec.submit(() -> {
+                    for (int n = 0; n < 100; n++) {
+                        byte[] rawData = Util.genData(n * 7);
+
+                        if (!Arrays.equals(rawData, engine.decryptGCM(engine.encryptGCM(rawData)))
+                                || !Arrays.equals(rawData, engine.decryptCBC(engine.encryptCBC(rawData)))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }));
+            }
+
+            for (Future<Boolean> result : results) {
+                Assert.assertTrue(result.get());
+            }
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    private static void decryptAllLengths(Key.ExpandedKey key, AesEngine engine) throws Exception {
+        byte[] plain = new byte[100];
+        ByteBuffer heapPlain = ByteBuffer.allocate(100);
+
+        // every length decrypted in a row on the same cipher, which is only reset by doFinal
+        for (int len = 0; len < 70; len++) {
+            byte[] rawData = Util.genData(len);
+            byte[] encrypted = AES.encryptCBC(key, rawData);
+
+            Assert.assertEquals(len, engine.decryptCBC((byte) 0, encrypted, 0, encrypted.length, plain, 0));
+            Assert.assertArrayEquals(rawData, Arrays.copyOf(plain, len));
+
+            Buffers.clear(heapPlain);
+            Assert.assertEquals(len, engine.decryptCBC((byte) 0, ByteBuffer.wrap(encrypted), heapPlain));
+            Assert.assertEquals(len, heapPlain.position());
+            Buffers.flip(heapPlain);
+            Assert.assertArrayEquals(rawData, toArray(heapPlain));
+        }
+    }
+
+    private static void decryptQuietly(Callable<?> decrypt) {
+        try {
+            decrypt.call();
+        } catch (SecurityException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer buff) {
+        byte[] bts = new byte[buff.remaining()];
+        buff.get(bts);
+        return bts;
+    }
+}
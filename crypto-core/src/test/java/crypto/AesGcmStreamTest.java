@@ -0,0 +1,143 @@
+package crypto;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+public class AesGcmStreamTest {
+
+    private static final int SEGMENT_SIZE = 100;
+
+    @Test
+    public void testEncryptDecrypt() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+
+        for (int len : new int[]{0, 1, 99, 100, 101, 200, 250, 4096}) {
+            byte[] rawData = Util.genData(len);
+            byte[] encryptedData = encrypt(key, rawData);
+
+            Assert.assertEquals(GcmSegments.encryptedSize(len, SEGMENT_SIZE), encryptedData.length);
+            Assert.assertArrayEquals(rawData, decrypt(key, encryptedData));
+        }
+    }
+
+    @Test
+    public void testEncryptDecryptSingleBytes() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_256.genKeysHmacSha();
+        byte[] rawData = Util.genData(1000);
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (AesGcmOutputStream out = new AesGcmOutputStream(bout, (byte) 0, null, key, SEGMENT_SIZE)) {
+            for (byte b : rawData) {
+                out.write(b);
+            }
+        }
+
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        try (InputStream in = new AesGcmInputStream(new ByteArrayInputStream(bout.toByteArray()), key)) {
+            int b;
+            while ((b = in.read()) != -1) {
+                plain.write(b);
+            }
+        }
+
+        Assert.assertArrayEquals(rawData, plain.toByteArray());
+    }
+
+    @Test
+    public void testChannels() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        byte[] rawData = Util.genData(200_000);
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (WritableByteChannel out = new AesGcmOutputStream(Channels.newChannel(bout), (byte) 2, key)) {
+            ByteBuffer src = ByteBuffer.allocateDirect(rawData.length);
+            src.put(rawData);
+            Buffers.flip(src);
+            out.write(src);
+        }
+
+        ByteBuffer dst = ByteBuffer.allocate(rawData.length + 1);
+        try (ReadableByteChannel in = new AesGcmInputStream(Channels.newChannel(new ByteArrayInputStream(bout.toByteArray())), (byte) 2, key)) {
+            while (in.read(dst) >= 0) {
+                // read until the end of the stream
+            }
+        }
+
+        Assert.assertEquals(rawData.length, dst.position());
+        Assert.assertArrayEquals(rawData, Arrays.copyOf(dst.array(), rawData.length));
+    }
+
+    @Test(expected = SecurityException.class)
+    public void testTruncatedAtSegmentBoundaryFails() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        byte[] encryptedData = encrypt(key, Util.genData(250));
+
+        // drop the last segment
+        decrypt(key, Arrays.copyOf(encryptedData, GcmSegments.HEADER_LENGTH + 2 * (SEGMENT_SIZE + GcmSegments.TAG_LENGTH)));
+    }
+
+    @Test(expected = SecurityException.class)
+    public void testReorderedSegmentsFail() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        byte[] encryptedData = encrypt(key, Util.genData(250));
+
+        int segmentLength = SEGMENT_SIZE + GcmSegments.TAG_LENGTH;
+        int first = GcmSegments.HEADER_LENGTH;
+        int second = first + segmentLength;
+
+        byte[] firstSegment = Arrays.copyOfRange(encryptedData, first, second);
+        System.arraycopy(encryptedData, second, encryptedData, first, segmentLength);
+        System.arraycopy(firstSegment, 0, encryptedData, second, segmentLength);
+
+        decrypt(key, encryptedData);
+    }
+
+    @Test(expected = SecurityException.class)
+    public void testModifiedHeaderFails() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        byte[] encryptedData = encrypt(key, Util.genData(250));
+
+        encryptedData[5] ^= 1;
+
+        decrypt(key, encryptedData);
+    }
+
+    private static byte[] encrypt(Key.ExpandedKey key, byte[] rawData) throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+
+        try (AesGcmOutputStream out = new AesGcmOutputStream(bout, (byte) 0, null, key, SEGMENT_SIZE)) {
+            // write in uneven pieces to cross the segment boundaries
+            int i = 0;
+            while (i < rawData.length) {
+                int n = Math.min(rawData.length - i, 37 + i % 150);
+                out.write(rawData, i, n);
+                i += n;
+            }
+        }
+
+        return bout.toByteArray();
+    }
+
+    private static byte[] decrypt(Key.ExpandedKey key, byte[] encryptedData) throws Exception {
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+
+        try (InputStream in = new AesGcmInputStream(new ByteArrayInputStream(encryptedData), key)) {
+            byte[] buff = new byte[77];
+            int n;
+            while ((n = in.read(buff)) != -1) {
+                plain.write(buff, 0, n);
+            }
+        }
+
+        return plain.toByteArray();
+    }
+}
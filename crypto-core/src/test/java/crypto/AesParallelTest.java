@@ -0,0 +1,78 @@
+package crypto;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+public class AesParallelTest {
+
+    @Test
+    public void testEncryptDecrypt() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        try {
+            for (Key.KeySize keySize : Key.KeySize.values()) {
+                AesParallel aes = new AesParallel(null, keySize.genKeysHmacSha(), pool, 100, 250);
+
+                for (int len : new int[]{0, 1, 99, 100, 101, 250, 251, 10_000, 100_001}) {
+                    byte[] rawData = Util.genData(len);
+                    byte[] encryptedData = aes.encryptGCM((byte) 2, rawData);
+
+                    Assert.assertEquals(GcmSegments.encryptedSize(len, 100), encryptedData.length);
+                    Assert.assertArrayEquals(rawData, aes.decryptGCM((byte) 2, encryptedData));
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testStreamCompatible() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        AesParallel aes = new AesParallel(null, key, ForkJoinPool.commonPool(), 1000, 5000);
+
+        byte[] rawData = Util.genData(100_000);
+
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        try (InputStream in = new AesGcmInputStream(new ByteArrayInputStream(aes.encryptGCM(rawData)), key)) {
+            byte[] buff = new byte[4096];
+            int n;
+            while ((n = in.read(buff)) != -1) {
+                plain.write(buff, 0, n);
+            }
+        }
+        Assert.assertArrayEquals(rawData, plain.toByteArray());
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (OutputStream out = new AesGcmOutputStream(bout, key)) {
+            out.write(rawData);
+        }
+        Assert.assertArrayEquals(rawData, aes.decryptGCM(bout.toByteArray()));
+    }
+
+    @Test(expected = SecurityException.class)
+    public void testModifiedSegmentFails() throws Exception {
+        AesParallel aes = new AesParallel(null, Key.KeySize.AES_128.genKeysHmacSha(), ForkJoinPool.commonPool(), 100, 250);
+
+        byte[] encryptedData = aes.encryptGCM(Util.genData(10_000));
+        encryptedData[encryptedData.length / 2] ^= 1;
+
+        aes.decryptGCM(encryptedData);
+    }
+
+    @Test(expected = SecurityException.class)
+    public void testTruncatedFails() throws Exception {
+        AesParallel aes = new AesParallel(null, Key.KeySize.AES_128.genKeysHmacSha(), ForkJoinPool.commonPool(), 100, 250);
+
+        byte[] encryptedData = aes.encryptGCM(Util.genData(10_000));
+
+        aes.decryptGCM(Arrays.copyOf(encryptedData, GcmSegments.HEADER_LENGTH + 50 * (100 + GcmSegments.TAG_LENGTH)));
+    }
+}
@@ -0,0 +1,123 @@
+package crypto;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+import java.util.Arrays;
+
+public class AesSivTest {
+
+    @Test
+    public void testEncryptDecrypt() throws Exception {
+        for (Key.KeySize keySize : Key.KeySize.values()) {
+            Key.ExpandedKey key = keySize.genKeysHmacSha();
+
+            for (int len : new int[]{0, 1, 15, 16, 17, 31, 32, 33, 1000, AES.CHUNK_SIZE + 17, 3 * AES.CHUNK_SIZE}) {
+                byte[] rawData = Util.genData(len);
+
+                byte[] encrypted = AES.encryptSIV(key, rawData);
+                Assert.assertEquals(AES.outputSizeSIV(len), encrypted.length);
+                Assert.assertArrayEquals(rawData, AES.decryptSIV(key, encrypted));
+
+                encrypted = AES.encryptSIVDeterministic(key, rawData);
+                Assert.assertEquals(AES.outputSizeSIVDeterministic(len), encrypted.length);
+                Assert.assertArrayEquals(rawData, AES.decryptSIV(key, encrypted));
+            }
+        }
+    }
+
+    @Test
+    public void testDeterministic() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_256.genKeysHmacSha();
+        byte[] rawData = Util.genData(100);
+
+        Assert.assertArrayEquals(AES.encryptSIVDeterministic(key, rawData), AES.encryptSIVDeterministic(key, rawData));
+        Assert.assertFalse(Arrays.equals(AES.encryptSIV(key, rawData), AES.encryptSIV(key, rawData)));
+
+        // the same master key gives the same messages
+        Key.ExpandedKey key2 = Key.KeySize.AES_256.genKeysHmacSha(key.orgKey.clone());
+        Assert.assertArrayEquals(AES.encryptSIVDeterministic(key, rawData), AES.encryptSIVDeterministic(key2, rawData));
+    }
+
+    @Test
+    public void testModifiedMessageFails() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        byte[] encrypted = AES.encryptSIV(key, Util.genData(100));
+
+        for (int i : new int[]{2, 2 + AES.SIV_NONCE_LENGTH, encrypted.length - 1}) {
+            byte[] msg = encrypted.clone();
+            msg[i] ^= 1;
+
+            try {
+                AES.decryptSIV(key, msg);
+                Assert.fail("modified byte " + i + " was not detected");
+            } catch (SecurityException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testWrongVersion() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        AES.decryptSIV((byte) 1, key, AES.encryptSIV((byte) 2, key, Util.genData(10)));
+    }
+
+    @Test
+    public void testAad() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        byte[] aad = "tenant=1".getBytes();
+        byte[] rawData = Util.genData(100);
+
+        byte[] encrypted = AES.encryptSIV((byte) 0, key, aad, rawData);
+        Assert.assertArrayEquals(rawData, AES.decryptSIV((byte) 0, key, aad, encrypted));
+
+        encrypted = AES.encryptSIVDeterministic((byte) 0, key, aad, rawData);
+        Assert.assertArrayEquals(rawData, AES.decryptSIV((byte) 0, key, aad, encrypted));
+        Assert.assertFalse(Arrays.equals(encrypted, AES.encryptSIVDeterministic((byte) 0, key, "tenant=2".getBytes(), rawData)));
+
+        // no aad and empty aad are the same
+        Assert.assertArrayEquals(AES.encryptSIVDeterministic(key, rawData), AES.encryptSIVDeterministic((byte) 0, key, new byte[0], rawData));
+
+        try {
+            AES.decryptSIV((byte) 0, key, "tenant=2".getBytes(), encrypted);
+            Assert.fail("the wrong aad was not detected");
+        } catch (SecurityException e) {
+            // expected
+        }
+    }
+
+    /**
+     * RFC 5297 A.1, deterministic with one associated data component.
+     */
+    @Test
+    public void testRfc5297Vector() throws Exception {
+        byte[] sivKey = hex("fffefdfcfbfaf9f8f7f6f5f4f3f2f1f0f0f1f2f3f4f5f6f7f8f9fafbfcfdfeff");
+        byte[] ad = hex("101112131415161718191a1b1c1d1e1f2021222324252627");
+        byte[] txt = hex("112233445566778899aabbccddee");
+        byte[] expected = hex("85632d07c6e8f37f950acd320a2ecc9340c02b9690c4dc04daef7f6afe5c");
+
+        Cipher cbc = Cipher.getInstance(AesSiv.AES_CBC_MAC_CIPHER_LBL);
+        Cipher ctr = Cipher.getInstance(AesSiv.AES_CTR_CIPHER_LBL);
+        AesSiv.Keys keys = new AesSiv.Keys(sivKey, cbc);
+
+        byte[] msg = new byte[AesSiv.outputSize(0, txt.length)];
+        int n = AesSiv.encrypt((byte) 0, keys, cbc, ctr, ad, new byte[0], txt, 0, txt.length, msg, 0);
+
+        Assert.assertEquals(msg.length, n);
+        Assert.assertArrayEquals(expected, Arrays.copyOfRange(msg, 2, msg.length));
+
+        byte[] decrypted = new byte[txt.length];
+        AesSiv.decrypt((byte) 0, keys, cbc, ctr, ad, msg, 0, msg.length, decrypted, 0);
+        Assert.assertArrayEquals(txt, decrypted);
+    }
+
+    private static byte[] hex(String s) {
+        byte[] bts = new byte[s.length() / 2];
+        for (int i = 0; i < bts.length; i++) {
+            bts[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bts;
+    }
+}
@@ -0,0 +1,175 @@
+package crypto;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.crypto.AEADBadTagException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AsyncAesTest {
+
+    @Test
+    public void testInlineSmallMessages() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        AtomicInteger submitted = new AtomicInteger();
+        Executor executor = r -> {
+            submitted.incrementAndGet();
+            new Thread(r).start();
+        };
+        AsyncAes async = new AsyncAes(new AesEngine(key), executor, 100);
+
+        byte[] txt = Util.genData(100);
+        CompletableFuture<byte[]> encrypted = async.encryptGCM(txt);
+        Assert.assertTrue(encrypted.isDone());
+        Assert.assertEquals(0, submitted.get());
+        Assert.assertArrayEquals(txt, AES.decryptGCM(key, encrypted.get()));
+
+        byte[] large = Util.genData(101);
+        byte[] msg = async.encryptGCM(large).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(1, submitted.get());
+        Assert.assertArrayEquals(large, async.decryptGCM(msg).get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(2, submitted.get());
+    }
+
+    @Test
+    public void testBoundedExecutor() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_256.genKeysHmacSha();
+        ExecutorService pool = AsyncAes.newBoundedExecutor(2, 16);
+        try {
+            AsyncAes async = new AsyncAes(new AesEngine(key), pool, -1);
+            byte[] aad = "header".getBytes("UTF-8");
+            byte[] txt = Util.genData(100_000);
+
+            CompletableFuture<byte[]> cbc = async.encryptCBC((byte) 1, aad, txt)
+                    .thenCompose(m -> async.decryptCBC((byte) 1, aad, m));
+            CompletableFuture<byte[]> gcm = async.encryptGCM((byte) 1, aad, txt)
+                    .thenCompose(m -> async.decryptGCM((byte) 1, aad, m));
+
+            Assert.assertArrayEquals(txt, cbc.get(10, TimeUnit.SECONDS));
+            Assert.assertArrayEquals(txt, gcm.get(10, TimeUnit.SECONDS));
+            Assert.assertArrayEquals(txt, AES.decryptCBC((byte) 1, key, aad, async.encryptCBC((byte) 1, aad, txt).get()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testByteBuffers() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        AsyncAes async = new AsyncAes(key);
+        byte[] txt = Util.genData(AsyncAes.DEFAULT_INLINE_THRESHOLD * 2);
+
+        ByteBuffer msg = ByteBuffer.allocateDirect(AES.outputSizeGCM(txt.length));
+        int written = async.encryptGCM((byte) 0, null, ByteBuffer.wrap(txt), msg).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(AES.outputSizeGCM(txt.length), written);
+        Buffers.flip(msg);
+
+        ByteBuffer plain = ByteBuffer.allocate(txt.length);
+        Assert.assertEquals(txt.length, (int) async.decryptGCM((byte) 0, null, msg, plain).get(10, TimeUnit.SECONDS));
+        Assert.assertArrayEquals(txt, plain.array());
+
+        ByteBuffer cbc = ByteBuffer.allocate(AES.outputSizeCBC(key.keySize, txt.length));
+        async.encryptCBC((byte) 0, null, ByteBuffer.wrap(txt), cbc).get(10, TimeUnit.SECONDS);
+        Buffers.flip(cbc);
+
+        ByteBuffer cbcPlain = ByteBuffer.allocate(AES.maxDecryptedSizeCBC(key.keySize, cbc.remaining()));
+        Assert.assertEquals(txt.length, (int) async.decryptCBC((byte) 0, null, cbc, cbcPlain).get(10, TimeUnit.SECONDS));
+        Assert.assertArrayEquals(txt, Arrays.copyOf(cbcPlain.array(), txt.length));
+    }
+
+    @Test
+    public void testFailuresCompleteExceptionally() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        AsyncAes async = new AsyncAes(key);
+
+        byte[] msg = AES.encryptGCM(key, Util.genData(AsyncAes.DEFAULT_INLINE_THRESHOLD * 2));
+        msg[msg.length - 1] ^= 1;
+        try {
+            async.decryptGCM(msg).get(10, TimeUnit.SECONDS);
+            Assert.fail("tampered");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause().toString(), e.getCause() instanceof AEADBadTagException);
+        }
+
+        byte[] cbc = AES.encryptCBC(Key.KeySize.AES_128.genKeysHmacSha(), new byte[10]);
+        CompletableFuture<byte[]> inline = async.decryptCBC(cbc);
+        Assert.assertTrue(inline.isCompletedExceptionally());
+        try {
+            inline.join();
+            Assert.fail("wrong key");
+        } catch (RuntimeException e) {
+            Assert.assertTrue(e.getCause() instanceof SecurityException);
+        }
+
+        AsyncAes rejecting = new AsyncAes(new AesEngine(key), r -> {
+            throw new RejectedExecutionException("full");
+        }, 0);
+        Assert.assertTrue(rejecting.encryptGCM(new byte[0]).isDone());
+        try {
+            rejecting.encryptGCM(new byte[1]).get();
+            Assert.fail("rejected");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception {
+        if (!AsyncAes.virtualThreadsAvailable()) {
+            try {
+                AsyncAes.newVirtualThreadExecutor();
+                Assert.fail("virtual threads before Java 21");
+            } catch (UnsupportedOperationException e) {
+                // expected
+            }
+            return;
+        }
+
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        ExecutorService executor = AsyncAes.newVirtualThreadExecutor();
+        try {
+            AsyncAes async = new AsyncAes(new AesEngine(key), executor, -1);
+            byte[] txt = Util.genData(1000);
+
+            CompletableFuture<?>[] futures = new CompletableFuture<?>[100];
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = async.encryptGCM(txt).thenCompose(async::decryptGCM);
+            }
+            for (CompletableFuture<?> f : futures) {
+                Assert.assertArrayEquals(txt, (byte[]) f.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSharedNonceBuffers() {
+        ThreadLocalNonceSource nonces = new ThreadLocalNonceSource(true);
+        Set<String> seen = new HashSet<>();
+
+        for (int i = 0; i < ThreadLocalNonceSource.BUFFER_SIZE; i++) {
+            byte[] iv = new byte[AES.GCM_IV_LENGTH];
+            nonces.nextShared(i, iv, 0, iv.length);
+            Assert.assertTrue(seen.add(Arrays.toString(iv)));
+        }
+    }
+
+    @Test
+    public void testJavaVersion() {
+        Assert.assertEquals(8, VirtualThreads.javaVersion("1.8"));
+        Assert.assertEquals(17, VirtualThreads.javaVersion("17"));
+        Assert.assertEquals(21, VirtualThreads.javaVersion("21"));
+        Assert.assertEquals(22, VirtualThreads.javaVersion("22.0"));
+    }
+}
@@ -0,0 +1,112 @@
+package crypto;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import javax.crypto.AEADBadTagException;
+import java.security.Provider;
+import java.security.Security;
+
+public class ChaCha20Poly1305Test {
+
+    @Test
+    public void testEncryptDecrypt() throws Exception {
+        Assume.assumeTrue(Aead.CHACHA20_POLY1305.isAvailable());
+
+        for (Key.KeySize keySize : Key.KeySize.values()) {
+            Key.ExpandedKey key = keySize.genKeysHmacSha();
+
+            for (int len : new int[]{0, 1, 64, 1000, 4096}) {
+                byte[] rawData = Util.genData(len);
+
+                byte[] encrypted = ChaCha20Poly1305.encrypt(key, rawData);
+                Assert.assertEquals(ChaCha20Poly1305.outputSize(len), encrypted.length);
+                Assert.assertEquals(len, ChaCha20Poly1305.decryptedSize(encrypted.length));
+                Assert.assertArrayEquals(rawData, ChaCha20Poly1305.decrypt(key, encrypted));
+
+                // decrypting the same message again on the same thread
+                Assert.assertArrayEquals(rawData, ChaCha20Poly1305.decrypt(key, encrypted));
+            }
+        }
+    }
+
+    @Test
+    public void testDecryptInAnyOrder() throws Exception {
+        Assume.assumeTrue(Aead.CHACHA20_POLY1305.isAvailable());
+
+        Key.ExpandedKey key = Key.KeySize.AES_256.genKeysHmacSha();
+        NonceSource nonces = new CounterNonceSource();
+        byte[] rawData = Util.genData(100);
+
+        byte[] first = ChaCha20Poly1305.encrypt((byte) 0, null, nonces, key, rawData);
+        byte[] second = ChaCha20Poly1305.encrypt((byte) 0, null, nonces, key, rawData);
+
+        byte[] tampered = first.clone();
+        tampered[tampered.length - 1] ^= 1;
+        try {
+            ChaCha20Poly1305.decrypt(key, tampered);
+            Assert.fail("tampered");
+        } catch (AEADBadTagException e) {
+            // expected
+        }
+
+        for (byte[] msg : new byte[][]{first, first, second, first, second, second}) {
+            Assert.assertArrayEquals(rawData, ChaCha20Poly1305.decrypt(key, msg));
+        }
+        Assert.assertArrayEquals(rawData, ChaCha20Poly1305.decrypt(key, ChaCha20Poly1305.encrypt((byte) 0, null, nonces, key, rawData)));
+    }
+
+    @Test
+    public void testConscrypt() throws Exception {
+        Assume.assumeTrue(Aead.CHACHA20_POLY1305.isAvailable());
+
+        Provider conscrypt = ((JceBackend) CryptoBackends.backend("Conscrypt")).provider();
+        Security.addProvider(conscrypt);
+
+        try {
+            Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+            byte[] rawData = Util.genData(1000);
+
+            Assert.assertArrayEquals(rawData, ChaCha20Poly1305.decrypt((byte) 0, conscrypt.getName(), key, ChaCha20Poly1305.encrypt(key, rawData)));
+            Assert.assertArrayEquals(rawData, ChaCha20Poly1305.decrypt(key, ChaCha20Poly1305.encrypt((byte) 0, conscrypt.getName(), NonceSource.THREAD_LOCAL_RANDOM, key, rawData)));
+        } finally {
+            Security.removeProvider(conscrypt.getName());
+        }
+    }
+
+    @Test(expected = AEADBadTagException.class)
+    public void testModifiedMessageFails() throws Exception {
+        Assume.assumeTrue(Aead.CHACHA20_POLY1305.isAvailable());
+
+        Key.ExpandedKey key = Key.KeySize.AES_256.genKeysHmacSha();
+        byte[] msg = ChaCha20Poly1305.encrypt(key, Util.genData(100));
+        msg[msg.length - 1] ^= 1;
+
+        ChaCha20Poly1305.decrypt(key, msg);
+    }
+
+    @Test
+    public void testAead() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        byte[] rawData = Util.genData(100);
+
+        for (Aead aead : Aead.values()) {
+            if (aead.isAvailable()) {
+                byte[] encrypted = aead.encrypt((byte) 1, key, rawData);
+                Assert.assertEquals(aead.outputSize(key.keySize, rawData.length), encrypted.length);
+                Assert.assertArrayEquals(rawData, aead.decrypt((byte) 1, key, encrypted));
+            }
+        }
+
+        Assume.assumeTrue(Aead.CHACHA20_POLY1305.isAvailable());
+
+        // same layout, different algorithm
+        try {
+            Aead.AES_GCM.decrypt((byte) 0, key, Aead.CHACHA20_POLY1305.encrypt((byte) 0, key, rawData));
+            Assert.fail("a ChaCha20-Poly1305 message was decrypted as AES GCM");
+        } catch (AEADBadTagException e) {
+            // expected
+        }
+    }
+}
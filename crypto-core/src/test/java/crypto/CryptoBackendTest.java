@@ -0,0 +1,170 @@
+package crypto;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+public class CryptoBackendTest {
+
+    @Test
+    public void testBackendsAreCompatible() throws Exception {
+        for (Key.KeySize keySize : Key.KeySize.values()) {
+            Key.ExpandedKey key = keySize.genKeysHmacSha();
+
+            for (CryptoBackend encryptor : CryptoBackends.available()) {
+                for (CryptoBackend decryptor : CryptoBackends.available()) {
+                    for (int len : new int[]{0, 1, 15, 16, 17, 1000}) {
+                        byte[] rawData = Util.genData(len);
+
+                        Assert.assertArrayEquals(rawData, decryptor.decryptCBC((byte) 1, key, encryptor.encryptCBC((byte) 1, key, rawData)));
+                        Assert.assertArrayEquals(rawData, decryptor.decryptGCM((byte) 1, key, encryptor.encryptGCM((byte) 1, NonceSource.THREAD_LOCAL_RANDOM, key, rawData)));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testByteBuffers() throws Exception {
+        for (Key.KeySize keySize : Key.KeySize.values()) {
+            Key.ExpandedKey key = keySize.genKeysHmacSha();
+
+            for (CryptoBackend encryptor : CryptoBackends.available()) {
+                for (CryptoBackend decryptor : CryptoBackends.available()) {
+                    for (boolean direct : new boolean[]{true, false}) {
+                        byte[] rawData = Util.genData(1000);
+
+                        ByteBuffer src = buffer(direct, rawData.length);
+                        src.put(rawData);
+                        Buffers.flip(src);
+
+                        ByteBuffer encrypted = buffer(direct, AES.outputSizeCBC(keySize, rawData.length));
+                        int n = encryptor.encryptCBC((byte) 1, key, src, encrypted);
+                        Buffers.flip(encrypted);
+                        Assert.assertEquals(n, encrypted.remaining());
+
+                        ByteBuffer decrypted = buffer(direct, n);
+                        decryptor.decryptCBC((byte) 1, key, encrypted, decrypted);
+                        Assert.assertArrayEquals(rawData, bytes(decrypted));
+
+                        Buffers.position(src, 0);
+                        encrypted = buffer(direct, AES.outputSizeGCM(rawData.length));
+                        n = encryptor.encryptGCM((byte) 1, NonceSource.THREAD_LOCAL_RANDOM, key, src, encrypted);
+                        Buffers.flip(encrypted);
+                        Assert.assertEquals(n, encrypted.remaining());
+
+                        decrypted = buffer(direct, AES.decryptedSizeGCM(n));
+                        decryptor.decryptGCM((byte) 1, key, encrypted, decrypted);
+                        Assert.assertArrayEquals(rawData, bytes(decrypted));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCommonsFallsBackToJce() throws Exception {
+        CryptoBackend commons = CryptoBackends.backend(CommonsCryptoBackend.NAME);
+        Key.ExpandedKey key = Key.KeySize.AES_256.genKeysHmacSha();
+        byte[] rawData = Util.genData(100);
+
+        // works with or without libcrypto
+        Assert.assertArrayEquals(rawData, AES.decryptGCM(key, commons.encryptGCM((byte) 0, NonceSource.THREAD_LOCAL_RANDOM, key, rawData)));
+        Assert.assertArrayEquals(rawData, commons.decryptCBC((byte) 0, key, AES.encryptCBC(key, rawData)));
+    }
+
+    @Test
+    public void testModifiedCBCFails() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+
+        for (CryptoBackend backend : CryptoBackends.available()) {
+            byte[] msg = backend.encryptCBC((byte) 0, key, Util.genData(100));
+            msg[msg.length - 1] ^= 1;
+
+            try {
+                backend.decryptCBC((byte) 0, key, msg);
+                Assert.fail(backend.name() + " did not fail");
+            } catch (SecurityException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testSelect() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        CryptoBackend previous = CryptoBackends.get(CryptoBackend.Mode.GCM, Key.KeySize.AES_128);
+
+        try {
+            CryptoBackend backend = new JceBackend("test", null);
+            CryptoBackends.select(CryptoBackend.Mode.GCM, Key.KeySize.AES_128, backend);
+
+            Assert.assertSame(backend, CryptoBackends.get(CryptoBackend.Mode.GCM, Key.KeySize.AES_128));
+            Assert.assertNotSame(backend, CryptoBackends.get(CryptoBackend.Mode.GCM, Key.KeySize.AES_256));
+            Assert.assertTrue(CryptoBackends.report().contains("GCM AES_128: test"));
+
+            byte[] rawData = Util.genData(100);
+            Assert.assertArrayEquals(rawData, AES.decryptGCM(key, AES.encryptGCM(key, rawData)));
+        } finally {
+            CryptoBackends.select(CryptoBackend.Mode.GCM, Key.KeySize.AES_128, previous);
+        }
+    }
+
+    @Test
+    public void testCalibrate() {
+        List<CryptoBackends.Measurement> measurements = CryptoBackends.calibrate();
+
+        int supported = 0;
+        for (CryptoBackend backend : CryptoBackends.available()) {
+            for (CryptoBackend.Mode mode : CryptoBackend.Mode.values()) {
+                for (Key.KeySize keySize : Key.KeySize.values()) {
+                    supported += backend.supports(mode, keySize) ? 1 : 0;
+                }
+            }
+        }
+        Assert.assertEquals(supported, measurements.size());
+
+        for (CryptoBackend.Mode mode : CryptoBackend.Mode.values()) {
+            for (Key.KeySize keySize : Key.KeySize.values()) {
+                double fastest = Double.MAX_VALUE;
+                for (CryptoBackends.Measurement measurement : measurements) {
+                    if (measurement.mode == mode && measurement.keySize == keySize) {
+                        fastest = Math.min(fastest, measurement.nanosPerOp);
+                    }
+                }
+
+                CryptoBackend selected = CryptoBackends.get(mode, keySize);
+                for (CryptoBackends.Measurement measurement : measurements) {
+                    if (measurement.mode == mode && measurement.keySize == keySize && measurement.backend == selected) {
+                        Assert.assertEquals(fastest, measurement.nanosPerOp, 0.0);
+                    }
+                }
+            }
+        }
+
+        CryptoBackends.select(CryptoBackends.JCE);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownBackend() {
+        CryptoBackends.backend("no-such-backend");
+    }
+
+    @Test
+    public void testBackendByName() {
+        Assert.assertSame(CryptoBackends.JCE, CryptoBackends.backend("jce"));
+    }
+
+    private static ByteBuffer buffer(boolean direct, int size) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    private static byte[] bytes(ByteBuffer buff) {
+        Buffers.flip(buff);
+        byte[] bts = new byte[buff.remaining()];
+        buff.get(bts);
+        return bts;
+    }
+}
@@ -0,0 +1,218 @@
+package crypto;
+
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import javax.crypto.AEADBadTagException;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class CryptoEventsTest {
+
+    private static final String[] EVENTS = {"crypto.Encrypt", "crypto.Decrypt", "crypto.KeyDerive", "crypto.NonceGenerate"};
+
+    @Test
+    public void testNoRecording() {
+        Assert.assertTrue(CryptoEvents.AVAILABLE);
+        Assert.assertNull(CryptoEvents.beginEncrypt());
+        Assert.assertNull(CryptoEvents.beginNonceGenerate());
+    }
+
+    @Test
+    public void testEvents() throws Exception {
+        List<RecordedEvent> events = record(Duration.ZERO, () -> {
+            Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+            byte[] msg = AES.encryptGCM(key, new byte[100]);
+            AES.decryptGCM(key, msg);
+            AES.decryptCBC(key, AES.encryptCBC(key, new byte[1000]));
+
+            msg[msg.length - 1] ^= 1;
+            try {
+                AES.decryptGCM(key, msg);
+                Assert.fail("tampered");
+            } catch (AEADBadTagException e) {
+                // expected
+            }
+
+            PasswordKdf.pbkdf2Sha256(1000).derive(PasswordKdf.newSalt(), "pass".getBytes("UTF-8"), 32);
+        });
+
+        RecordedEvent encGcm = find(events, "crypto.Encrypt", "GCM").get(0);
+        Assert.assertEquals("AES_128", encGcm.getString("keySize"));
+        Assert.assertEquals(100, encGcm.getInt("length"));
+        Assert.assertEquals(CryptoBackends.get(CryptoBackend.Mode.GCM, Key.KeySize.AES_128).name(), encGcm.getString("provider"));
+        Assert.assertEquals("OK", encGcm.getString("outcome"));
+        Assert.assertNotNull(encGcm.getStackTrace());
+
+        List<RecordedEvent> decGcm = find(events, "crypto.Decrypt", "GCM");
+        Assert.assertEquals(2, decGcm.size());
+        Assert.assertEquals("OK", decGcm.get(0).getString("outcome"));
+        Assert.assertEquals("AUTH_FAILURE", decGcm.get(1).getString("outcome"));
+
+        Assert.assertEquals(1000, find(events, "crypto.Encrypt", "CBC").get(0).getInt("length"));
+        Assert.assertEquals(1, find(events, "crypto.Decrypt", "CBC").size());
+
+        List<RecordedEvent> derived = named(events, "crypto.KeyDerive");
+        Assert.assertEquals(2, derived.size());
+        Assert.assertEquals("HKDF", derived.get(0).getString("algorithm"));
+        Assert.assertEquals("AES_128", derived.get(0).getString("keySize"));
+        Assert.assertEquals("PBKDF2_SHA256", derived.get(1).getString("algorithm"));
+        Assert.assertNull(derived.get(1).getString("keySize"));
+        Assert.assertEquals(32, derived.get(1).getInt("length"));
+
+        List<RecordedEvent> nonces = named(events, "crypto.NonceGenerate");
+        Assert.assertEquals(2, nonces.size());
+        Assert.assertEquals("THREAD_LOCAL_RANDOM", nonces.get(0).getString("source"));
+        Assert.assertEquals(AES.GCM_IV_LENGTH, nonces.get(0).getInt("length"));
+    }
+
+    @Test
+    public void testDefaultThreshold() throws Exception {
+        List<RecordedEvent> events = record(null, () -> {
+            Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+            for (int i = 0; i < 100; i++) {
+                AES.decryptGCM(key, AES.encryptGCM(key, new byte[64]));
+            }
+        });
+
+        Assert.assertTrue(events.toString(), named(events, "crypto.Encrypt").size() < 100);
+
+        for (EventType type : FlightRecorder.getFlightRecorder().getEventTypes()) {
+            if (type.getName().startsWith("crypto.")) {
+                Assert.assertEquals(type.getName(), "Crypto", type.getCategoryNames().get(0));
+            }
+        }
+    }
+
+    /**
+     * A JVM without the jdk.jfr module, e.g. a jlink'd runtime, must never load the event classes.
+     */
+    @Test
+    public void testWithoutJfrModule() throws Exception {
+        Assume.assumeFalse("--limit-modules needs Java 9+", System.getProperty("java.specification.version").startsWith("1."));
+
+        String classPath = System.getProperty("surefire.test.class.path", System.getProperty("java.class.path"));
+        Process process = new ProcessBuilder(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "--limit-modules", "java.base,java.logging,java.management",
+                "-cp", classPath, WithoutJfr.class.getName())
+                .redirectErrorStream(true)
+                .start();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buff = new byte[4096];
+        int n;
+        try (InputStream in = process.getInputStream()) {
+            while ((n = in.read(buff)) != -1) {
+                out.write(buff, 0, n);
+            }
+        }
+
+        Assert.assertTrue(process.waitFor(60, TimeUnit.SECONDS));
+        String output = out.toString("UTF-8");
+        Assert.assertEquals(output, 0, process.exitValue());
+        Assert.assertTrue(output, output.contains("without jfr: ok"));
+    }
+
+    /**
+     * Run by {@link #testWithoutJfrModule()} in a JVM without jdk.jfr.
+     */
+    static final class WithoutJfr {
+        public static void main(String[] args) throws Exception {
+            if (CryptoEvents.AVAILABLE || CryptoEvents.beginEncrypt() != null) {
+                throw new AssertionError("jdk.jfr should not be available");
+            }
+
+            for (Key.KeySize keySize : Key.KeySize.values()) {
+                Key.ExpandedKey key = keySize.genKeysHmacSha();
+                Key.ExpandedKey context = keySize.genKeysHmacSha(key.orgKey, new byte[]{1});
+                byte[] txt = new byte[100];
+
+                check(txt, AES.decryptGCM(key, AES.encryptGCM(key, txt)));
+                check(txt, AES.decryptCBC(context, AES.encryptCBC(context, txt)));
+                check(txt, AES.decryptSIV(key, AES.encryptSIV(key, txt)));
+                NonceSource.of(new SecureRandom()).nextNonce(new byte[AES.GCM_IV_LENGTH]);
+            }
+            PasswordKdf.pbkdf2Sha256(1000).derive(PasswordKdf.newSalt(), new byte[]{1}, 32);
+
+            System.out.println("without jfr: ok");
+        }
+
+        private static void check(byte[] expected, byte[] actual) {
+            if (!Arrays.equals(expected, actual)) {
+                throw new AssertionError("decrypted data differs");
+            }
+        }
+    }
+
+    private interface Operations {
+        void run() throws Exception;
+    }
+
+    /**
+     * The crypto events recorded while the operations run, with the threshold or the default if null.
+     */
+    private static List<RecordedEvent> record(Duration threshold, Operations operations) throws Exception {
+        Path file = Files.createTempFile("crypto-events", ".jfr");
+        try (Recording recording = new Recording()) {
+            for (String name : EVENTS) {
+                if (threshold == null) {
+                    recording.enable(name);
+                } else {
+                    recording.enable(name).withThreshold(threshold);
+                }
+            }
+
+            recording.start();
+            operations.run();
+            recording.stop();
+            recording.dump(file);
+
+            List<RecordedEvent> events = new ArrayList<>();
+            for (RecordedEvent e : RecordingFile.readAllEvents(file)) {
+                if (e.getEventType().getName().startsWith("crypto.")) {
+                    events.add(e);
+                }
+            }
+            events.sort((a, b) -> a.getStartTime().compareTo(b.getStartTime()));
+            return events;
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static List<RecordedEvent> named(List<RecordedEvent> events, String name) {
+        List<RecordedEvent> found = new ArrayList<>();
+        for (RecordedEvent e : events) {
+            if (e.getEventType().getName().equals(name)) {
+                found.add(e);
+            }
+        }
+        return found;
+    }
+
+    private static List<RecordedEvent> find(List<RecordedEvent> events, String name, String mode) {
+        List<RecordedEvent> found = new ArrayList<>();
+        for (RecordedEvent e : named(events, name)) {
+            if (mode.equals(e.getString("mode"))) {
+                found.add(e);
+            }
+        }
+        return found;
+    }
+}
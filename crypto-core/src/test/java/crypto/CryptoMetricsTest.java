@@ -0,0 +1,249 @@
+package crypto;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import javax.crypto.AEADBadTagException;
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+public class CryptoMetricsTest {
+
+    @After
+    public void disable() {
+        CryptoMetrics.disable();
+    }
+
+    @Test
+    public void testCountsBytesAndLatency() throws Exception {
+        CryptoMetrics metrics = CryptoMetrics.enable();
+        Key.ExpandedKey key = Key.KeySize.AES_256.genKeysHmacSha();
+
+        for (int i = 0; i < 10; i++) {
+            byte[] msg = AES.encryptGCM(key, new byte[100]);
+            AES.decryptGCM(key, msg);
+        }
+        AES.decryptCBC(key, AES.encryptCBC((byte) 0, key, null, new byte[1000]));
+
+        CryptoMetrics.Snapshot encGcm = find(metrics, CryptoMetrics.Operation.ENCRYPT, CryptoMetrics.Mode.GCM);
+        Assert.assertEquals(Key.KeySize.AES_256, encGcm.keySize);
+        Assert.assertEquals(CryptoBackends.get(CryptoBackend.Mode.GCM, Key.KeySize.AES_256).name(), encGcm.provider);
+        Assert.assertEquals(10, encGcm.count);
+        Assert.assertEquals(1000, encGcm.bytes);
+        Assert.assertEquals(0, encGcm.errors);
+        Assert.assertTrue(encGcm.maxNanos > 0);
+        Assert.assertTrue(encGcm.percentileNanos(50) <= encGcm.percentileNanos(99));
+        Assert.assertTrue(encGcm.percentileNanos(99) <= encGcm.maxNanos);
+
+        CryptoMetrics.Snapshot decGcm = find(metrics, CryptoMetrics.Operation.DECRYPT, CryptoMetrics.Mode.GCM);
+        Assert.assertEquals(10, decGcm.count);
+        Assert.assertEquals(10 * AES.outputSizeGCM(100), decGcm.bytes);
+
+        Assert.assertEquals(1, find(metrics, CryptoMetrics.Operation.ENCRYPT, CryptoMetrics.Mode.CBC).count);
+        Assert.assertEquals(1, find(metrics, CryptoMetrics.Operation.DECRYPT, CryptoMetrics.Mode.CBC).count);
+
+        metrics.reset();
+        Assert.assertTrue(metrics.snapshot().isEmpty());
+    }
+
+    @Test
+    public void testAuthFailures() throws Exception {
+        CryptoMetrics metrics = CryptoMetrics.enable();
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        Key.ExpandedKey otherKey = Key.KeySize.AES_128.genKeysHmacSha();
+
+        byte[] cbc = AES.encryptCBC(key, new byte[64]);
+        try {
+            AES.decryptCBC(otherKey, cbc);
+            Assert.fail("wrong key");
+        } catch (SecurityException e) {
+            // expected
+        }
+
+        byte[] gcm = AES.encryptGCM(key, new byte[64]);
+        gcm[gcm.length - 1] ^= 1;
+        try {
+            AES.decryptGCM(key, gcm);
+            Assert.fail("tampered");
+        } catch (AEADBadTagException e) {
+            // expected
+        }
+
+        try {
+            AES.decryptGCM((byte) 1, key, AES.encryptGCM(key, new byte[64]));
+            Assert.fail("wrong version");
+        } catch (RuntimeException e) {
+            // expected
+        }
+
+        Assert.assertEquals(1, find(metrics, CryptoMetrics.Operation.DECRYPT, CryptoMetrics.Mode.CBC).authFailures);
+        CryptoMetrics.Snapshot decGcm = find(metrics, CryptoMetrics.Operation.DECRYPT, CryptoMetrics.Mode.GCM);
+        Assert.assertEquals(1, decGcm.authFailures);
+        Assert.assertEquals(1, decGcm.errors);
+        Assert.assertEquals(2, decGcm.count);
+        Assert.assertEquals(2, metrics.authFailures());
+    }
+
+    @Test
+    public void testInstallListenerAndDisable() throws Exception {
+        List<String> recorded = new ArrayList<>();
+        CryptoMetrics.install((operation, mode, keySize, provider, bytes, nanos, outcome) ->
+                recorded.add(operation + " " + mode + " " + keySize + " " + provider + " " + bytes + " " + outcome));
+
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        AES.decryptSIV(key, AES.encryptSIVDeterministic(key, new byte[10]));
+
+        Assert.assertEquals(2, recorded.size());
+        Assert.assertEquals("ENCRYPT SIV AES_128 JCE 10 OK", recorded.get(0));
+        Assert.assertEquals("DECRYPT SIV AES_128 JCE " + AES.outputSizeSIVDeterministic(10) + " OK", recorded.get(1));
+
+        CryptoMetrics.disable();
+        AES.encryptSIV(key, new byte[10]);
+        Assert.assertEquals(2, recorded.size());
+    }
+
+    @Test
+    public void testEngineAndBatch() throws Exception {
+        CryptoMetrics metrics = CryptoMetrics.enable();
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        AesEngine engine = new AesEngine(key);
+
+        engine.decryptGCM(engine.encryptGCM(new byte[10]));
+
+        byte[] dst = new byte[AES.outputSizeGCM(20)];
+        engine.encryptGCM((byte) 0, new byte[20], 0, 20, dst, 0);
+        engine.decryptGCM((byte) 0, dst, 0, dst.length, new byte[20], 0);
+
+        ByteBuffer src = ByteBuffer.allocateDirect(30);
+        ByteBuffer out = ByteBuffer.allocateDirect(AES.outputSizeCBC(Key.KeySize.AES_128, 30));
+        engine.encryptCBC((byte) 0, src, out);
+
+        AES.decryptGCMBatch(key, AES.encryptGCMBatch(key, new byte[][]{new byte[40], new byte[50]}));
+
+        CryptoMetrics.Snapshot encGcm = find(metrics, CryptoMetrics.Operation.ENCRYPT, CryptoMetrics.Mode.GCM);
+        Assert.assertEquals("JCE", encGcm.provider);
+        Assert.assertEquals(4, encGcm.count);
+        Assert.assertEquals(10 + 20 + 40 + 50, encGcm.bytes);
+        Assert.assertEquals(4, find(metrics, CryptoMetrics.Operation.DECRYPT, CryptoMetrics.Mode.GCM).count);
+
+        CryptoMetrics.Snapshot encCbc = find(metrics, CryptoMetrics.Operation.ENCRYPT, CryptoMetrics.Mode.CBC);
+        Assert.assertEquals(1, encCbc.count);
+        Assert.assertEquals(30, encCbc.bytes);
+    }
+
+    @Test
+    public void testChaCha20Poly1305() throws Exception {
+        Assume.assumeTrue(Aead.CHACHA20_POLY1305.isAvailable());
+
+        CryptoMetrics metrics = CryptoMetrics.enable();
+        Key.ExpandedKey key = Key.KeySize.AES_256.genKeysHmacSha();
+
+        ChaCha20Poly1305.decrypt(key, ChaCha20Poly1305.encrypt(key, new byte[10]));
+
+        CryptoMetrics.Snapshot enc = find(metrics, CryptoMetrics.Operation.ENCRYPT, CryptoMetrics.Mode.CHACHA20_POLY1305);
+        Assert.assertEquals(1, enc.count);
+        Assert.assertEquals(10, enc.bytes);
+        Assert.assertEquals(1, find(metrics, CryptoMetrics.Operation.DECRYPT, CryptoMetrics.Mode.CHACHA20_POLY1305).count);
+    }
+
+    @Test
+    public void testHistogramThreads() throws Exception {
+        CryptoMetrics.Histogram histogram = new CryptoMetrics.Histogram();
+        int threads = 8;
+        int records = 10000;
+
+        CountDownLatch startLatch = new CountDownLatch(1);
+        List<Thread> started = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    startLatch.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < records; i++) {
+                    histogram.record(i);
+                }
+            });
+            thread.start();
+            started.add(thread);
+        }
+
+        startLatch.countDown();
+        for (Thread thread : started) {
+            thread.join();
+        }
+
+        long total = 0;
+        for (long count : histogram.buckets()) {
+            total += count;
+        }
+        Assert.assertEquals((long) threads * records, total);
+        Assert.assertEquals(threads, histogram.buckets()[CryptoMetrics.Histogram.index(0)]);
+
+        Assert.assertEquals(1, CryptoMetrics.Histogram.stripes(1));
+        Assert.assertEquals(4, CryptoMetrics.Histogram.stripes(3));
+        Assert.assertEquals(8, CryptoMetrics.Histogram.stripes(8));
+        Assert.assertEquals(64, CryptoMetrics.Histogram.stripes(1000));
+    }
+
+    @Test
+    public void testJmx() throws Exception {
+        CryptoMetrics metrics = CryptoMetrics.enable();
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        AES.encryptGCM((byte) 0, key, null, new byte[32]);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(CryptoMetrics.OBJECT_NAME);
+
+        Assert.assertEquals(1L, server.getAttribute(name, "Operations"));
+        Assert.assertEquals(32L, server.getAttribute(name, "Bytes"));
+        Assert.assertEquals(0L, server.getAttribute(name, "AuthFailures"));
+
+        Map<String, Long> values = JMX.newMXBeanProxy(server, name, CryptoMetricsMXBean.class).getMetrics();
+        Assert.assertEquals(Long.valueOf(1), values.get("encrypt.gcm.AES_128.JCE.count"));
+        Assert.assertEquals(Long.valueOf(find(metrics, CryptoMetrics.Operation.ENCRYPT, CryptoMetrics.Mode.GCM).maxNanos),
+                values.get("encrypt.gcm.AES_128.JCE.maxNanos"));
+
+        CryptoMetrics.disable();
+        Assert.assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void testHistogramBuckets() {
+        long previous = -1;
+        for (int i = 0; i < CryptoMetrics.Histogram.BUCKETS; i++) {
+            long highest = CryptoMetrics.Histogram.highestValue(i);
+            Assert.assertTrue(highest > previous);
+            Assert.assertEquals(i, CryptoMetrics.Histogram.index(highest));
+            Assert.assertEquals(i, CryptoMetrics.Histogram.index(previous + 1));
+            previous = highest;
+        }
+        Assert.assertEquals(Long.MAX_VALUE, previous);
+
+        // within 12.5%
+        for (long v = 1; v < Long.MAX_VALUE / 3; v = v * 3 + 1) {
+            long highest = CryptoMetrics.Histogram.highestValue(CryptoMetrics.Histogram.index(v));
+            Assert.assertTrue(highest >= v);
+            Assert.assertTrue((highest - v) <= v / 8);
+        }
+    }
+
+    private static CryptoMetrics.Snapshot find(CryptoMetrics metrics, CryptoMetrics.Operation operation, CryptoMetrics.Mode mode) {
+        for (CryptoMetrics.Snapshot s : metrics.snapshot()) {
+            if (s.operation == operation && s.mode == mode) {
+                return s;
+            }
+        }
+        throw new AssertionError("no " + operation + " " + mode + " in " + metrics.snapshot());
+    }
+}
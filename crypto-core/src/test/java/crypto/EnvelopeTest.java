@@ -0,0 +1,134 @@
+package crypto;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.crypto.AEADBadTagException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class EnvelopeTest {
+
+    @Test
+    public void testEncryptDecrypt() throws Exception {
+        Key.ExpandedKey masterKey = Key.KeySize.AES_256.genKeysHmacSha();
+
+        for (MasterKey mk : new MasterKey[]{MasterKey.aesKeyWrap(masterKey), MasterKey.aesGcm(masterKey)}) {
+            for (Key.KeySize dekSize : Key.KeySize.values()) {
+                Envelope envelope = new Envelope(mk, dekSize, 10, 1000, 1, TimeUnit.HOURS, 10);
+
+                for (int len : new int[]{0, 1, 100, 1000, 10_000}) {
+                    byte[] rawData = Util.genData(len);
+                    byte[] encrypted = envelope.encrypt((byte) 3, rawData);
+
+                    Assert.assertEquals(3, encrypted[0]);
+                    Assert.assertArrayEquals(rawData, envelope.decrypt((byte) 3, encrypted));
+
+                    // another instance with the same master key and no cached DEKs
+                    Assert.assertArrayEquals(rawData, new Envelope(mk).decrypt((byte) 3, encrypted));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDekReuse() throws Exception {
+        CountingMasterKey mk = new CountingMasterKey(MasterKey.aesKeyWrap(Key.KeySize.AES_128.genKeysHmacSha()));
+        Envelope envelope = new Envelope(mk, Key.KeySize.AES_128, 3, 1000, 1, TimeUnit.HOURS, 10);
+
+        for (int i = 0; i < 9; i++) {
+            envelope.encrypt(Util.genData(10));
+        }
+        Assert.assertEquals(3, mk.wraps.get());
+        Assert.assertEquals(3, envelope.wraps());
+        Assert.assertEquals(6, envelope.hits());
+        Assert.assertEquals(3, envelope.misses());
+
+        // the byte limit, a single message over the limit still gets its own DEK
+        envelope.encrypt(Util.genData(2000));
+        envelope.encrypt(Util.genData(600));
+        envelope.encrypt(Util.genData(600));
+        Assert.assertEquals(6, mk.wraps.get());
+
+        // the DEKs used for encryption are cached for decryption
+        byte[] encrypted = envelope.encrypt(Util.genData(10));
+        envelope.decrypt(encrypted);
+        envelope.decrypt(encrypted);
+        Assert.assertEquals(0, mk.unwraps.get());
+
+        envelope.clear();
+        envelope.decrypt(encrypted);
+        envelope.decrypt(encrypted);
+        Assert.assertEquals(1, mk.unwraps.get());
+        Assert.assertEquals(1, envelope.unwraps());
+        Assert.assertTrue(envelope.hitRate() > 0.5);
+    }
+
+    @Test
+    public void testMaxAge() throws Exception {
+        CountingMasterKey mk = new CountingMasterKey(MasterKey.aesGcm(Key.KeySize.AES_128.genKeysHmacSha()));
+        Envelope envelope = new Envelope(mk, Key.KeySize.AES_128, 1000, 1000, 1, TimeUnit.MILLISECONDS, 10);
+
+        byte[] encrypted = envelope.encrypt(Util.genData(10));
+        Thread.sleep(5);
+        envelope.encrypt(Util.genData(10));
+        envelope.decrypt(encrypted);
+
+        Assert.assertEquals(2, mk.wraps.get());
+        Assert.assertEquals(1, mk.unwraps.get());
+    }
+
+    @Test
+    public void testModifiedMessageFails() throws Exception {
+        Envelope envelope = new Envelope(MasterKey.aesKeyWrap(Key.KeySize.AES_256.genKeysHmacSha()));
+        byte[] encrypted = envelope.encrypt(Util.genData(100));
+
+        // a byte of the wrapped DEK, which is authenticated by the key wrap and as associated data
+        for (int i : new int[]{3, encrypted.length - 1}) {
+            byte[] msg = encrypted.clone();
+            msg[i] ^= 1;
+
+            try {
+                envelope.decrypt(msg);
+                Assert.fail("modified byte " + i + " was not detected");
+            } catch (GeneralSecurityException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = AEADBadTagException.class)
+    public void testWrongMasterKey() throws Exception {
+        byte[] encrypted = new Envelope(MasterKey.aesGcm(Key.KeySize.AES_256.genKeysHmacSha())).encrypt(Util.genData(100));
+        new Envelope(MasterKey.aesGcm(Key.KeySize.AES_256.genKeysHmacSha())).decrypt(encrypted);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testWrongVersion() throws Exception {
+        Envelope envelope = new Envelope(MasterKey.aesKeyWrap(Key.KeySize.AES_256.genKeysHmacSha()));
+        envelope.decrypt((byte) 1, envelope.encrypt((byte) 2, Util.genData(10)));
+    }
+
+    private static final class CountingMasterKey implements MasterKey {
+        private final MasterKey delegate;
+        private final AtomicInteger wraps = new AtomicInteger();
+        private final AtomicInteger unwraps = new AtomicInteger();
+
+        CountingMasterKey(MasterKey delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public byte[] wrap(byte[] dek) throws GeneralSecurityException {
+            wraps.incrementAndGet();
+            return delegate.wrap(dek);
+        }
+
+        @Override
+        public byte[] unwrap(byte[] wrappedDek) throws GeneralSecurityException {
+            unwraps.incrementAndGet();
+            return delegate.unwrap(wrappedDek);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package crypto;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class FileCryptoTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testEncryptDecrypt() throws Exception {
+        for (Key.KeySize keySize : Key.KeySize.values()) {
+            Key.ExpandedKey key = keySize.genKeysHmacSha();
+
+            for (int len : new int[]{0, 1, 99, 100, 101, 1000, 10_000}) {
+                byte[] rawData = Util.genData(len);
+
+                Path plain = write(rawData);
+                Path encrypted = folder.newFile().toPath();
+                Path decrypted = folder.newFile().toPath();
+
+                // small windows to cover remapping
+                FileCrypto.encryptGCM((byte) 0, null, key, plain, encrypted, 100, 350);
+                Assert.assertEquals(GcmSegments.encryptedSize(len, 100), Files.size(encrypted));
+
+                FileCrypto.decryptGCM((byte) 0, null, key, encrypted, decrypted, 350);
+                Assert.assertArrayEquals(rawData, Files.readAllBytes(decrypted));
+            }
+        }
+    }
+
+    @Test
+    public void testStreamCompatible() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        byte[] rawData = Util.genData(200_000);
+
+        Path encrypted = folder.newFile().toPath();
+        FileCrypto.encryptGCM(key, write(rawData), encrypted);
+
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        try (InputStream in = new AesGcmInputStream(Files.newInputStream(encrypted), key)) {
+            byte[] buff = new byte[4096];
+            int n;
+            while ((n = in.read(buff)) != -1) {
+                plain.write(buff, 0, n);
+            }
+        }
+        Assert.assertArrayEquals(rawData, plain.toByteArray());
+
+        Path streamEncrypted = folder.newFile().toPath();
+        try (OutputStream out = new AesGcmOutputStream(Files.newOutputStream(streamEncrypted), key)) {
+            out.write(rawData);
+        }
+
+        Path decrypted = folder.newFile().toPath();
+        FileCrypto.decryptGCM(key, streamEncrypted, decrypted);
+        Assert.assertArrayEquals(rawData, Files.readAllBytes(decrypted));
+    }
+
+    @Test
+    public void testTruncatedFails() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+
+        Path encrypted = folder.newFile().toPath();
+        FileCrypto.encryptGCM((byte) 0, null, key, write(Util.genData(1000)), encrypted, 100);
+
+        // cut off at a segment boundary
+        byte[] data = Files.readAllBytes(encrypted);
+        Path truncated = write(Arrays.copyOf(data, GcmSegments.HEADER_LENGTH + 5 * (100 + GcmSegments.TAG_LENGTH)));
+
+        Path decrypted = folder.newFile().toPath();
+        try {
+            FileCrypto.decryptGCM(key, truncated, decrypted);
+            Assert.fail("expected a SecurityException");
+        } catch (SecurityException e) {
+            Assert.assertEquals(0, Files.size(decrypted));
+        }
+    }
+
+    @Test(expected = SecurityException.class)
+    public void testModifiedFails() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+
+        Path encrypted = folder.newFile().toPath();
+        FileCrypto.encryptGCM(key, write(Util.genData(1000)), encrypted);
+
+        byte[] data = Files.readAllBytes(encrypted);
+        data[500] ^= 1;
+
+        FileCrypto.decryptGCM(key, write(data), folder.newFile().toPath());
+    }
+
+    private Path write(byte[] data) throws Exception {
+        Path path = folder.newFile().toPath();
+        Files.write(path, data);
+        return path;
+    }
+}
@@ -0,0 +1,104 @@
+package crypto;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+public class KeyCacheTest {
+
+    private static final byte[] ZERO_KEY = new byte[Key.KeySize.AES_128.getKeySizeBytes()];
+
+    @Test
+    public void testHitAndMiss() throws Exception {
+        KeyCache cache = new KeyCache(10);
+        byte[] masterKey = Key.KeySize.AES_128.newKey();
+
+        Key.ExpandedKey expected = Key.KeySize.AES_128.genKeysHmacSha(masterKey, context("tenant-1"));
+
+        try (KeyCache.Lease lease = cache.acquire(Key.KeySize.AES_128, masterKey, context("tenant-1"))) {
+            Assert.assertArrayEquals(expected.encKey, lease.key().encKey);
+            Assert.assertArrayEquals(expected.authKey, lease.key().authKey);
+        }
+
+        try (KeyCache.Lease lease = cache.acquire(Key.KeySize.AES_128, masterKey, context("tenant-1"))) {
+            Assert.assertArrayEquals(expected.encKey, lease.key().encKey);
+        }
+
+        try (KeyCache.Lease lease = cache.acquire(Key.KeySize.AES_128, masterKey, context("tenant-2"))) {
+            Assert.assertFalse(Arrays.equals(expected.encKey, lease.key().encKey));
+        }
+
+        Assert.assertEquals(1, cache.hits());
+        Assert.assertEquals(2, cache.misses());
+        Assert.assertEquals(2, cache.size());
+
+        // the master key is not touched
+        Assert.assertFalse(Arrays.equals(ZERO_KEY, masterKey));
+    }
+
+    @Test
+    public void testLruEvictionDestroysKey() throws Exception {
+        KeyCache cache = new KeyCache(2);
+        byte[] masterKey = Key.KeySize.AES_128.newKey();
+
+        Key.ExpandedKey first;
+        try (KeyCache.Lease lease = cache.acquire(Key.KeySize.AES_128, masterKey, context("a"))) {
+            first = lease.key();
+        }
+
+        cache.acquire(Key.KeySize.AES_128, masterKey, context("b")).close();
+        // touch a so that b is the least recently used
+        cache.acquire(Key.KeySize.AES_128, masterKey, context("a")).close();
+        cache.acquire(Key.KeySize.AES_128, masterKey, context("c")).close();
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(1, cache.evictions());
+        Assert.assertFalse(Arrays.equals(ZERO_KEY, first.encKey));
+
+        cache.clear();
+        Assert.assertArrayEquals(ZERO_KEY, first.encKey);
+    }
+
+    @Test
+    public void testKeyNotDestroyedWhileLeased() throws Exception {
+        KeyCache cache = new KeyCache(1);
+        byte[] masterKey = Key.KeySize.AES_128.newKey();
+
+        KeyCache.Lease lease = cache.acquire(Key.KeySize.AES_128, masterKey, context("a"));
+        cache.acquire(Key.KeySize.AES_128, masterKey, context("b")).close();
+
+        // evicted but still in use
+        Assert.assertEquals(1, cache.evictions());
+        byte[] rawData = Util.genData(100);
+        Assert.assertArrayEquals(rawData, AES.decryptGCM(lease.key(), AES.encryptGCM(lease.key(), rawData)));
+
+        Key.ExpandedKey key = lease.key();
+        lease.close();
+        Assert.assertArrayEquals(ZERO_KEY, key.encKey);
+    }
+
+    @Test
+    public void testTtl() throws Exception {
+        KeyCache cache = new KeyCache(10, 50, TimeUnit.MILLISECONDS);
+        byte[] masterKey = Key.KeySize.AES_256.newKey();
+
+        cache.acquire(Key.KeySize.AES_256, masterKey, context("a")).close();
+        Thread.sleep(100);
+        cache.acquire(Key.KeySize.AES_256, masterKey, context("a")).close();
+
+        Assert.assertEquals(0, cache.hits());
+        Assert.assertEquals(2, cache.misses());
+        Assert.assertEquals(1, cache.evictions());
+
+        Thread.sleep(100);
+        cache.cleanUp();
+        Assert.assertEquals(0, cache.size());
+    }
+
+    private static byte[] context(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
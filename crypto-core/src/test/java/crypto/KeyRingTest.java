@@ -0,0 +1,159 @@
+package crypto;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.crypto.AEADBadTagException;
+import java.util.concurrent.ForkJoinPool;
+
+public class KeyRingTest {
+
+    @Test
+    public void testDecryptMixedVersions() throws Exception {
+        Key.ExpandedKey key1 = Key.KeySize.AES_128.genKeysHmacSha();
+        Key.ExpandedKey key2 = Key.KeySize.AES_256.genKeysHmacSha();
+
+        KeyRing ring = new KeyRing().add((byte) 1, key1, Aead.AES_GCM);
+        Assert.assertEquals(1, ring.active().version());
+
+        byte[] rawData = Util.genData(100);
+        byte[] old = AES.encrypt(ring, rawData);
+        Assert.assertEquals(1, old[0]);
+
+        ring.add((byte) -2, key2, Aead.AES_GCM).activate((byte) -2);
+        byte[] current = AES.encrypt(ring, rawData);
+        Assert.assertEquals(-2, current[0]);
+
+        Assert.assertArrayEquals(rawData, AES.decrypt(ring, old));
+        Assert.assertArrayEquals(rawData, AES.decrypt(ring, current));
+        Assert.assertArrayEquals(rawData, AES.decryptGCM((byte) -2, key2, current));
+
+        Assert.assertTrue(ring.needsReEncrypt(old));
+        Assert.assertFalse(ring.needsReEncrypt(current));
+        Assert.assertSame(current, ring.reEncrypt(current));
+    }
+
+    @Test
+    public void testAlgorithmPerVersion() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        Aead other = Aead.CHACHA20_POLY1305.isAvailable() ? Aead.CHACHA20_POLY1305 : Aead.AES_GCM;
+
+        KeyRing ring = new KeyRing()
+                .add((byte) 1, key, Aead.AES_GCM)
+                .add((byte) 2, key, other);
+
+        byte[] rawData = Util.genData(100);
+        byte[] old = ring.encrypt(rawData);
+
+        ring.activate((byte) 2);
+        byte[] current = ring.reEncrypt(old);
+
+        Assert.assertEquals(2, current[0]);
+        Assert.assertArrayEquals(rawData, other.decrypt((byte) 2, key, current));
+        Assert.assertArrayEquals(rawData, ring.decrypt(current));
+    }
+
+    @Test
+    public void testReEncryptCBCAndSIV() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_256.genKeysHmacSha();
+        byte[] rawData = Util.genData(100);
+
+        KeyRing ring = new KeyRing()
+                .add((byte) 1, key, Aead.AES_CBC_HMAC)
+                .add((byte) 2, key, Aead.AES_SIV)
+                .add((byte) 3, key, Aead.AES_GCM);
+
+        byte[] cbc = AES.encryptCBC((byte) 1, key, rawData);
+        byte[] siv = AES.encryptSIV((byte) 2, key, rawData);
+        Assert.assertArrayEquals(rawData, ring.decrypt(cbc));
+        Assert.assertArrayEquals(rawData, ring.decrypt(siv));
+
+        ring.activate((byte) 3);
+        byte[][] current = ring.reEncrypt(new byte[][]{cbc, siv});
+        for (byte[] msg : current) {
+            Assert.assertEquals(3, msg[0]);
+            Assert.assertArrayEquals(rawData, AES.decryptGCM((byte) 3, key, msg));
+        }
+
+        ring.activate((byte) 1);
+        byte[] back = ring.encrypt(rawData);
+        Assert.assertEquals(Aead.AES_CBC_HMAC.outputSize(key.keySize, rawData.length), back.length);
+        Assert.assertArrayEquals(rawData, AES.decryptCBC((byte) 1, key, back));
+    }
+
+    @Test
+    public void testBulkReEncrypt() throws Exception {
+        KeyRing ring = new KeyRing()
+                .add((byte) 1, Key.KeySize.AES_128.genKeysHmacSha(), Aead.AES_GCM)
+                .add((byte) 2, Key.KeySize.AES_256.genKeysHmacSha(), Aead.AES_GCM);
+
+        byte[][] rawData = new byte[1000][];
+        byte[][] encrypted = new byte[rawData.length][];
+        for (int i = 0; i < rawData.length; i++) {
+            rawData[i] = Util.genData(i % 300);
+            if (i == 500) {
+                ring.activate((byte) 2);
+            }
+            encrypted[i] = ring.encrypt(rawData[i]);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            byte[][] reEncrypted = ring.reEncrypt(encrypted, pool, 16);
+
+            for (int i = 0; i < rawData.length; i++) {
+                Assert.assertEquals(2, reEncrypted[i][0]);
+                Assert.assertArrayEquals(rawData[i], ring.decrypt(reEncrypted[i]));
+            }
+            Assert.assertSame(encrypted[999], reEncrypted[999]);
+
+            ring.remove((byte) 1);
+            Assert.assertNull(ring.entry((byte) 1));
+
+            // checked exceptions from the tasks are rethrown as is
+            byte[] last = reEncrypted[999].clone();
+            last[last.length - 1] ^= 1;
+            reEncrypted[999] = last;
+            ring.add((byte) 3, Key.KeySize.AES_128.genKeysHmacSha(), Aead.AES_GCM).activate((byte) 3);
+
+            try {
+                ring.reEncrypt(reEncrypted, pool, 16);
+                Assert.fail("the modified message was not detected");
+            } catch (AEADBadTagException e) {
+                // expected
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownVersion() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        KeyRing ring = new KeyRing().add((byte) 1, key, Aead.AES_GCM);
+
+        ring.decrypt(AES.encryptGCM((byte) 5, key, Util.genData(10)));
+    }
+
+    @Test
+    public void testInvalidChanges() {
+        KeyRing ring = new KeyRing().add((byte) 1, Key.KeySize.AES_128.genKeysHmacSha(), Aead.AES_GCM);
+
+        for (Runnable r : new Runnable[]{
+                () -> ring.add((byte) 1, Key.KeySize.AES_128.genKeysHmacSha(), Aead.AES_GCM),
+                () -> ring.activate((byte) 2),
+                () -> ring.remove((byte) 1)}) {
+            try {
+                r.run();
+                Assert.fail();
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testEmpty() throws Exception {
+        new KeyRing().encrypt(Util.genData(10));
+    }
+}
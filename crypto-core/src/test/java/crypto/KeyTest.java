@@ -0,0 +1,97 @@
+package crypto;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.crypto.Mac;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class KeyTest {
+
+    @Test
+    public void testKeyObjectsReused() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_256.genKeysHmacSha();
+
+        Assert.assertSame(key.encKeySpec(), key.encKeySpec());
+        Assert.assertSame(key.authKeySpec(), key.authKeySpec());
+        Assert.assertSame(key.hmac(), key.hmac());
+
+        // newHmac is owned by the caller
+        Mac hmac = key.newHmac();
+        Assert.assertNotSame(hmac, key.newHmac());
+        Assert.assertNotSame(hmac, key.hmac());
+
+        Mac reference = Mac.getInstance(key.keySize.hmacLbl());
+        reference.init(key.authKeySpec());
+
+        byte[] data = Util.genData(100);
+        Assert.assertArrayEquals(reference.doFinal(data), hmac.doFinal(data));
+    }
+
+    @Test
+    public void testReuseAfterFailedDecrypt() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        byte[] rawData = Util.genData(1000);
+
+        byte[] encrypted = AES.encryptCBC(key, rawData);
+        byte[] modified = encrypted.clone();
+        modified[modified.length - 1] ^= 1;
+
+        try {
+            AES.decryptCBC(key, modified);
+            Assert.fail("expected a SecurityException");
+        } catch (SecurityException e) {
+            // the next call must not see any state left over
+        }
+
+        Assert.assertArrayEquals(rawData, AES.decryptCBC(key, encrypted));
+        Assert.assertArrayEquals(rawData, AES.decryptGCM(key, AES.encryptGCM(key, rawData)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDestroyedKeyCannotBeUsed() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        AES.encryptGCM(key, Util.genData(10));
+
+        key.destroy();
+
+        AES.encryptGCM(key, Util.genData(10));
+    }
+
+    @Test
+    public void testDestroyDropsStateOfAllThreads() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            // a fixed pool starts a new thread for each of the first 4 tasks
+            Future<?>[] futures = new Future<?>[4];
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = executor.submit(() -> {
+                    key.hmac();
+                    key.gcmCipher();
+                    return null;
+                });
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+            Assert.assertEquals(4, key.threadStates());
+
+            key.destroy();
+            Assert.assertEquals(0, key.threadStates());
+
+            try {
+                executor.submit(() -> key.gcmCipher()).get();
+                Assert.fail("destroyed");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            Assert.assertEquals(0, key.threadStates());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
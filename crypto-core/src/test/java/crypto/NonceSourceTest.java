@@ -0,0 +1,92 @@
+package crypto;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+public class NonceSourceTest {
+
+    @Test
+    public void testThreadLocalRandom() {
+        Set<ByteBuffer> nonces = new HashSet<>();
+
+        // cover several refills of the per thread buffer
+        for (int i = 0; i < ThreadLocalNonceSource.BUFFER_SIZE; i++) {
+            byte[] nonce = new byte[AES.GCM_IV_LENGTH];
+            NonceSource.THREAD_LOCAL_RANDOM.nextNonce(nonce);
+            Assert.assertTrue(nonces.add(ByteBuffer.wrap(nonce)));
+        }
+
+        // larger than the buffer in one call
+        byte[] ivs = new byte[ThreadLocalNonceSource.BUFFER_SIZE * 3 + 5];
+        NonceSource.THREAD_LOCAL_RANDOM.nextNonces(ivs, 5, AES.CBC_IV_LENGTH, (ivs.length - 5) / AES.CBC_IV_LENGTH);
+    }
+
+    @Test
+    public void testCounter() {
+        byte[] fixedField = {1, 2, 3, 4};
+        CounterNonceSource source = new CounterNonceSource(fixedField, 1000);
+
+        byte[] nonce = new byte[AES.GCM_IV_LENGTH];
+        source.nextNonce(nonce);
+        Assert.assertArrayEquals(new byte[]{1, 2, 3, 4, 0, 0, 0, 0, 0, 0, 0, 0}, nonce);
+
+        byte[] nonces = new byte[AES.GCM_IV_LENGTH * 2];
+        source.nextNonces(nonces, 0, AES.GCM_IV_LENGTH, 2);
+        Assert.assertEquals(1, nonces[11]);
+        Assert.assertEquals(2, nonces[23]);
+        Assert.assertEquals(1, nonces[12]);
+
+        Assert.assertEquals(3, source.invocations());
+    }
+
+    @Test
+    public void testCounterLimit() {
+        CounterNonceSource source = new CounterNonceSource(new byte[4], 3);
+        byte[] nonce = new byte[AES.GCM_IV_LENGTH];
+
+        source.nextNonce(nonce);
+        source.nextNonce(nonce);
+
+        try {
+            source.nextNonces(new byte[AES.GCM_IV_LENGTH * 2], 0, AES.GCM_IV_LENGTH, 2);
+            Assert.fail("expected the limit to be reached");
+        } catch (IllegalStateException e) {
+            // the failed call must not use up the last nonce
+        }
+
+        source.nextNonce(nonce);
+        Assert.assertEquals(2, nonce[11]);
+
+        try {
+            source.nextNonce(nonce);
+            Assert.fail("expected the limit to be reached");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals(3, source.invocations());
+        }
+    }
+
+    @Test
+    public void testEngineWithCounter() throws Exception {
+        Key.ExpandedKey key = Key.KeySize.AES_256.genKeysHmacSha();
+        AesEngine engine = new AesEngine(null, key, new CounterNonceSource());
+
+        byte[] rawData = Util.genData(1000);
+
+        byte[] encrypted1 = engine.encryptGCM(rawData);
+        byte[] encrypted2 = engine.encryptGCM(rawData);
+
+        // the iv is in bytes 2 to 14, the counter is in the last 8 bytes of the iv
+        Assert.assertEquals(0, encrypted1[13]);
+        Assert.assertEquals(1, encrypted2[13]);
+
+        Assert.assertArrayEquals(rawData, AES.decryptGCM(key, encrypted1));
+        Assert.assertArrayEquals(rawData, engine.decryptGCM(encrypted2));
+
+        byte[] encrypted3 = AES.encryptGCM((byte) 0, null, new CounterNonceSource(), key, rawData);
+        Assert.assertArrayEquals(rawData, engine.decryptGCM(encrypted3));
+    }
+}
@@ -0,0 +1,107 @@
+package crypto;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+public class PasswordKdfTest {
+
+    @Test
+    public void testPbkdf2Sha256Vector() throws Exception {
+        // RFC 7914 section 11
+        byte[] derived = PasswordKdf.pbkdf2Sha256(1).derive(bytes("salt"), bytes("passwd"), 64);
+
+        Assert.assertArrayEquals(hex("55ac046e56e3089fec1691c22544b605f94185216dde0465e68b9d57c20dacbc" +
+                "49ca9cccf179b645991664b39d77ef317c71b845b1e30bd509112041d3a19783"), derived);
+    }
+
+    @Test
+    public void testPbkdf2MatchesJce() throws Exception {
+        byte[] salt = PasswordKdf.newSalt();
+
+        for (String pass : new String[]{"", "a", "user-pass", "a password longer than the sha-256 block size of 64 bytes......."}) {
+            Assert.assertArrayEquals(jce("PBKDF2WithHmacSHA256", pass, salt, 1000, 50),
+                    PasswordKdf.pbkdf2Sha256(1000).derive(salt, bytes(pass), 50));
+
+            Assert.assertArrayEquals(jce("PBKDF2WithHmacSHA512", pass, salt, 1000, 100),
+                    PasswordKdf.pbkdf2Sha512(1000).derive(salt, bytes(pass), 100));
+        }
+    }
+
+    @Test
+    public void testScryptVectors() throws Exception {
+        // RFC 7914 section 12
+        Assert.assertArrayEquals(hex("77d6576238657b203b19ca42c18a0497f16b4844e3074ae8dfdffa3fede21442" +
+                        "fcd0069ded0948f8326a753a0fc81f17e8d3e0fb2e0d3628cf35e20c38d18906"),
+                PasswordKdf.scrypt(16, 1, 1).derive(new byte[0], new byte[0], 64));
+
+        Assert.assertArrayEquals(hex("fdbabe1c9d3472007856e7190d01e9fe7c6ad7cbc8237830e77376634b373162" +
+                        "2eaf30d92e22a3886ff109279d9830dac727afb94a83ee6d8360cbdfa2cc0640"),
+                PasswordKdf.scrypt(1024, 8, 16).derive(bytes("NaCl"), bytes("password"), 64));
+    }
+
+    @Test
+    public void testDeriveKey() throws Exception {
+        PasswordKdf kdf = PasswordKdf.scrypt(1024, 8, 1);
+        byte[] salt = PasswordKdf.newSalt();
+
+        Key.ExpandedKey key = kdf.deriveKey(Key.KeySize.AES_256, salt, bytes("user-pass"));
+        Key.ExpandedKey same = kdf.deriveKey(Key.KeySize.AES_256, salt, bytes("user-pass"));
+
+        byte[] rawData = Util.genData(100);
+        Assert.assertArrayEquals(rawData, AES.decryptGCM(same, AES.encryptGCM(key, rawData)));
+
+        Key.ExpandedKey otherSalt = kdf.deriveKey(Key.KeySize.AES_256, PasswordKdf.newSalt(), bytes("user-pass"));
+        Assert.assertFalse(Arrays.equals(key.encKey, otherSalt.encKey));
+    }
+
+    @Test
+    public void testCalibrate() throws Exception {
+        PasswordKdf pbkdf2 = PasswordKdf.calibrate(PasswordKdf.Algorithm.PBKDF2_SHA256, 20, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(PasswordKdf.Algorithm.PBKDF2_SHA256, pbkdf2.algorithm());
+        Assert.assertTrue(pbkdf2.cost() >= 10_000);
+
+        PasswordKdf scrypt = PasswordKdf.calibrate(PasswordKdf.Algorithm.SCRYPT, 20, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(PasswordKdf.scrypt(scrypt.cost(), PasswordKdf.DEFAULT_SCRYPT_R, PasswordKdf.DEFAULT_SCRYPT_P), scrypt);
+        Assert.assertTrue(scrypt.cost() >= 1024);
+    }
+
+    @Test
+    public void testInvalidParameters() {
+        for (Runnable r : new Runnable[]{
+                () -> PasswordKdf.pbkdf2Sha256(0),
+                () -> PasswordKdf.scrypt(1000, 8, 1),
+                () -> PasswordKdf.scrypt(1, 8, 1),
+                () -> PasswordKdf.scrypt(1024, 0, 1),
+                () -> PasswordKdf.scrypt(1 << 30, 8, 1)}) {
+            try {
+                r.run();
+                Assert.fail();
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    private static byte[] jce(String algorithm, String pass, byte[] salt, int iterations, int len) throws Exception {
+        PBEKeySpec spec = new PBEKeySpec(pass.toCharArray(), salt, iterations, len * 8);
+        return SecretKeyFactory.getInstance(algorithm).generateSecret(spec).getEncoded();
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] hex(String s) {
+        byte[] bts = new byte[s.length() / 2];
+        for (int i = 0; i < bts.length; i++) {
+            bts[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bts;
+    }
+}
@@ -0,0 +1,89 @@
+package crypto;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+public class PasswordKeyCacheTest {
+
+    private static final PasswordKdf KDF = PasswordKdf.pbkdf2Sha256(1000);
+
+    @Test
+    public void testHitAndMiss() throws Exception {
+        PasswordKeyCache cache = new PasswordKeyCache(KDF, 10);
+        byte[] salt = PasswordKdf.newSalt();
+
+        byte[] expected = KDF.derive(salt, pass("user-pass"), 32);
+
+        byte[] first = cache.derive(salt, pass("user-pass"), 32);
+        Assert.assertArrayEquals(expected, first);
+
+        // the caller owns the returned array
+        Arrays.fill(first, (byte) 0);
+        Assert.assertArrayEquals(expected, cache.derive(salt, pass("user-pass"), 32));
+
+        Assert.assertFalse(Arrays.equals(expected, cache.derive(salt, pass("other-pass"), 32)));
+        Assert.assertFalse(Arrays.equals(expected, cache.derive(PasswordKdf.newSalt(), pass("user-pass"), 32)));
+        Assert.assertArrayEquals(KDF.derive(salt, pass("user-pass"), 64), cache.derive(salt, pass("user-pass"), 64));
+
+        Assert.assertEquals(1, cache.hits());
+        Assert.assertEquals(4, cache.misses());
+        Assert.assertEquals(4, cache.size());
+    }
+
+    @Test
+    public void testDeriveKey() throws Exception {
+        PasswordKeyCache cache = new PasswordKeyCache(KDF, 10);
+        byte[] salt = PasswordKdf.newSalt();
+
+        Key.ExpandedKey key = cache.deriveKey(Key.KeySize.AES_128, salt, pass("user-pass"));
+        key.destroy();
+
+        Key.ExpandedKey cached = cache.deriveKey(Key.KeySize.AES_128, salt, pass("user-pass"));
+        Assert.assertArrayEquals(KDF.deriveKey(Key.KeySize.AES_128, salt, pass("user-pass")).encKey, cached.encKey);
+        Assert.assertEquals(1, cache.hits());
+    }
+
+    @Test
+    public void testLruEviction() throws Exception {
+        PasswordKeyCache cache = new PasswordKeyCache(KDF, 2);
+        byte[] salt = PasswordKdf.newSalt();
+
+        cache.derive(salt, pass("a"), 32);
+        cache.derive(salt, pass("b"), 32);
+        // touch a so that b is the least recently used
+        cache.derive(salt, pass("a"), 32);
+        cache.derive(salt, pass("c"), 32);
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(1, cache.evictions());
+
+        cache.derive(salt, pass("a"), 32);
+        Assert.assertEquals(2, cache.hits());
+
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(3, cache.evictions());
+    }
+
+    @Test
+    public void testTtl() throws Exception {
+        PasswordKeyCache cache = new PasswordKeyCache(KDF, 10, 1, TimeUnit.MILLISECONDS);
+        byte[] salt = PasswordKdf.newSalt();
+
+        cache.derive(salt, pass("a"), 32);
+        Thread.sleep(5);
+        cache.cleanUp();
+
+        Assert.assertEquals(0, cache.size());
+        cache.derive(salt, pass("a"), 32);
+        Assert.assertEquals(2, cache.misses());
+    }
+
+    private static byte[] pass(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
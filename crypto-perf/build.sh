@@ -1,6 +1,7 @@
 #!/usr/bin/env bash
 
 DIR=$(cd -P -- "$(dirname -- "$0")" && pwd -P)
+RESULTS="$DIR/results"
 
 
 build () {
@@ -16,15 +17,57 @@ build () {
 
 }
 
+jmh () {
+CP=$(find "$DIR"/target/lib -iname "*.jar" | paste -s -d:  -)
+
+java -Xmx1g -Xms1g -cp "$CP:$DIR/target/benchmarks.jar" org.openjdk.jmh.Main "$@"
+}
+
+# results/<crypto-core version>-<date>[-<suffix>].json
+result_file () {
+VERSION=$(sed -n 's:^    <version>\(.*\)</version>:\1:p' "$DIR/../crypto-core/pom.xml" | head -1)
+mkdir -p "$RESULTS"
+echo "$RESULTS/${VERSION:-unknown}-$(date +%Y%m%d-%H%M%S)$1.json"
+}
+
+# any JMH arguments, e.g. ./build.sh run CipherBench -p mode=GCM -p size=64,512
 run () {
 echo "RUN"
 
+OUT=$(result_file)
+jmh -prof gc -rf json -rff "$OUT" "$@"
+echo "results: $OUT"
+}
 
-CP=$(find "$DIR"/target/lib -iname "*.jar" | paste -s -d:  -)
+# CipherBench at each thread count in THREADS, one json file per thread count
+scale () {
+for t in ${THREADS:-1 4 16 64}; do
+  OUT=$(result_file "-t$t")
+  jmh -prof gc -rf json -rff "$OUT" -t "$t" CipherBench "$@"
+  echo "results: $OUT"
+done
+}
 
-java -Xmx1g -Xms1g -cp "$CP:$DIR/target/benchmarks.jar" org.openjdk.jmh.Main
+# fixed rate latency percentiles for a workload file, e.g. ./build.sh latency workloads/default.properties
+latency () {
+CP=$(find "$DIR"/target/lib -iname "*.jar" | paste -s -d:  -)
+OUT=$(result_file "-latency-$(basename "$1" .properties)")
 
+java -Xmx1g -Xms1g -cp "$CP:$DIR/target/benchmarks.jar" sencrypt.LatencyHarness "$1" "${OUT%.json}"
+echo "results: ${OUT%.json}.hlog and ${OUT%.json}-*.hgrm"
+}
 
+# the change in score between two result files, for the benchmarks and parameters in both
+compare () {
+jq -r -n --slurpfile a "$1" --slurpfile b "$2" '
+  def key: .benchmark + " " + (.params // {} | to_entries | map(.key + "=" + .value) | join(",")) + " t=" + (.threads | tostring);
+  ($a[0] | map({key: key, value: .primaryMetric}) | from_entries) as $old
+  | $b[0][]
+  | key as $k
+  | select($old[$k] != null)
+  | [$k, $old[$k].score, .primaryMetric.score, .primaryMetric.scoreUnit,
+     (((.primaryMetric.score / $old[$k].score) - 1) * 100 | . * 10 | round / 10 | tostring + "%")]
+  | @tsv'
 }
 
 CMD="$1"
@@ -37,10 +80,22 @@ case "$CMD" in
     ;;
 
     run)
-    run
+    run "$@"
+    ;;
+
+    scale)
+    scale "$@"
+    ;;
+
+    compare)
+    compare "$@"
+    ;;
+
+    latency)
+    latency "$@"
     ;;
 
     * )
-    echo "./build.sh build|run"
+    echo "./build.sh build|run [jmh args]|scale [jmh args]|compare old.json new.json|latency workload.properties"
     ;;
-esac
\ No newline at end of file
+esac
@@ -0,0 +1,73 @@
+package sencrypt;
+
+import crypto.AES;
+import crypto.Key;
+import crypto.Util;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Encrypts a batch of small messages one by one with {@link AES#encryptGCM} and in one call with
+ * {@link AES#encryptGCMBatch}, the score is per batch.
+ */
+@State(Scope.Benchmark)
+public class AesBatchJce extends AesBase {
+
+    @Param({"500", "5000"})
+    public int batchSize;
+
+    @Param({"50", "300"})
+    public int size;
+
+    private byte[][] messages;
+    private byte[] contiguous;
+    private int[] offsets;
+
+    private Key.ExpandedKey key;
+
+    @Setup
+    public void setup() {
+        key = Key.KeySize.AES_128.genKeysHmacSha(Util.genData(16));
+
+        messages = new byte[batchSize][];
+        for (int i = 0; i < batchSize; i++) {
+            messages[i] = Util.genData(size);
+        }
+
+        contiguous = new byte[AES.outputSizeGCMBatch(messages)];
+        offsets = new int[batchSize + 1];
+    }
+
+    @Benchmark
+    public byte[][] enc_aes128GCM() throws Exception {
+        byte[][] output = new byte[messages.length][];
+        for (int i = 0; i < messages.length; i++) {
+            output[i] = AES.encryptGCM(key, messages[i]);
+        }
+        return output;
+    }
+
+    @Benchmark
+    public byte[][] enc_aes128GCM_batch() throws Exception {
+        return AES.encryptGCMBatch(key, messages);
+    }
+
+    @Benchmark
+    public byte[] enc_aes128GCM_batchContiguous() throws Exception {
+        AES.encryptGCMBatch((byte) 0, null, key, messages, contiguous, 0, offsets);
+        return contiguous;
+    }
+
+    @Benchmark
+    public byte[][] enc_aes128CbcHmacSha256() throws Exception {
+        byte[][] output = new byte[messages.length][];
+        for (int i = 0; i < messages.length; i++) {
+            output[i] = AES.encryptCBC(key, messages[i]);
+        }
+        return output;
+    }
+
+    @Benchmark
+    public byte[][] enc_aes128CbcHmacSha256_batch() throws Exception {
+        return AES.encryptCBCBatch(key, messages);
+    }
+}
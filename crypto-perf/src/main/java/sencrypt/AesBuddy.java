@@ -2,11 +2,16 @@ package sencrypt;
 
 import clojure.java.api.Clojure;
 import clojure.lang.IFn;
-import org.openjdk.jmh.annotations.Benchmark;
+import crypto.Util;
+import org.openjdk.jmh.annotations.*;
 
 import java.security.SecureRandom;
 import java.util.Arrays;
 
+/**
+ * Encrypts with the Clojure buddy-core library.
+ */
+@State(Scope.Benchmark)
 public class AesBuddy extends AesBase{
 
 
@@ -50,32 +55,42 @@ public class AesBuddy extends AesBase{
 
     private static final Object PRE_HASHED_KEY_512 = SHA512.invoke("mysecretkeyt");
 
-//    @Benchmark
-//    public void aes128CbcHmacSha256() throws Exception {
-//        ENCRYPT.invoke(
-//                AesUtil.plaintext,
-//                PRE_HASHED_KEY_256,
-//                RANDOM_BYTES.invoke(16L, SECURE_RANDOM),
-//                BUDDY_CONF_256);
-//    }
-//
-//    @Benchmark
-//    public void aes256CbcHmacSha512() throws Exception {
-//        ENCRYPT.invoke(
-//                AesUtil.plaintext,
-//                PRE_HASHED_KEY_512,
-//                RANDOM_BYTES.invoke(16L, SECURE_RANDOM),
-//                BUDDY_CONF_512);
-//    }
-//
-//    @Benchmark
-//    public void aes256GCM() throws Exception {
-//        ENCRYPT.invoke(
-//                AesUtil.plaintext,
-//                PRE_HASHED_KEY_128,
-//                RANDOM_BYTES.invoke(12L),
-//                BUDDY_CONF_128_GCM);
-//    }
+    @Param({"16", "64", "256", "512", "4096", "65536", "1048576", "16777216"})
+    public int size;
+
+    private byte[] plaintext;
+
+    @Setup
+    public void setup() {
+        plaintext = Util.genData(size);
+    }
+
+    @Benchmark
+    public Object aes128CbcHmacSha256() throws Exception {
+        return ENCRYPT.invoke(
+                plaintext,
+                PRE_HASHED_KEY_256,
+                RANDOM_BYTES.invoke(16L, SECURE_RANDOM),
+                BUDDY_CONF_256);
+    }
+
+    @Benchmark
+    public Object aes256CbcHmacSha512() throws Exception {
+        return ENCRYPT.invoke(
+                plaintext,
+                PRE_HASHED_KEY_512,
+                RANDOM_BYTES.invoke(16L, SECURE_RANDOM),
+                BUDDY_CONF_512);
+    }
+
+    @Benchmark
+    public Object aes128GCM() throws Exception {
+        return ENCRYPT.invoke(
+                plaintext,
+                PRE_HASHED_KEY_128,
+                RANDOM_BYTES.invoke(12L, SECURE_RANDOM),
+                BUDDY_CONF_128_GCM);
+    }
 
 
     /*
@@ -1,11 +1,18 @@
 package sencrypt;
 
+import crypto.AES;
+import crypto.CryptoBackend;
+import crypto.CryptoBackends;
+import crypto.Key;
+import crypto.NonceSource;
 import org.apache.commons.codec.digest.HmacAlgorithms;
 import org.apache.commons.crypto.cipher.CryptoCipher;
 import org.apache.commons.crypto.utils.Utils;
-import org.openjdk.jmh.annotations.Benchmark;
+import crypto.Util;
+import org.openjdk.jmh.annotations.*;
 
 import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
 import java.util.Properties;
 
 /**
@@ -13,68 +20,124 @@ import java.util.Properties;
  *
  * All messages for CBC are CBC+HMAC.
  * We use a separate key for encryption and authentication.
+ *
+ * The enc_ and dec_ benchmarks use CryptoCipher directly, the core_ benchmarks write the crypto-core message formats
+ * through the crypto-core Commons backend.
+ * <p>
+ * Per thread state, the direct buffers are written to.
  */
+@State(Scope.Thread)
 public class AesCommons extends AesBase{
 
-    private static byte[] GCM_128_ENCRYPTED;
-    private static byte[] CBC_128_ENCRYPTED;
-    private static SecretKey ENC_DEFAULT_KEY_128;
-    private static SecretKey AUTH_DEFAULT_KEY_256;
+    private static final byte VERSION = (byte) 0;
+
+    private static final CryptoBackend BACKEND = CryptoBackends.backend("Commons");
+
+    @Param({"16", "64", "256", "512", "4096", "65536", "1048576", "16777216"})
+    public int size;
+
+    private byte[] plaintext;
+
+    private byte[] gcm128Encrypted;
+    private byte[] cbc128Encrypted;
+    private SecretKey encKey128;
+    private SecretKey authKey256;
+
+    private Key.ExpandedKey coreKey128;
+    private byte[] coreGcm128Encrypted;
+    private byte[] coreCbc128Encrypted;
+
+    private ByteBuffer src;
+    private ByteBuffer dst;
+
+    @Setup
+    public void setup() throws Exception {
+        plaintext = Util.genData(size);
+
+        encKey128 = AesUtil.getKey(128);
+        authKey256 = AesUtil.getKey(256);
 
+        Properties properties = new Properties();
+        CryptoCipher encipher = Utils.getCipherInstance(AesUtil.CBC_CYPHER_TRANSFORM, properties);
 
-    static {
-        try {
-            ENC_DEFAULT_KEY_128 = AesUtil.getKey(128);
+        CryptoCipher gcmEncipher = Utils.getCipherInstance(AesUtil.GCM_CYPHER_TRANSFORM, properties);
 
-            AUTH_DEFAULT_KEY_256 = AesUtil.getKey(256);
+        gcm128Encrypted = AesUtil.encryptGCM(gcmEncipher, encKey128, AesUtil.GCM_IV_SIZE, plaintext);
+        cbc128Encrypted = AesUtil.encryptCBC(encipher, HmacAlgorithms.HMAC_SHA_256, authKey256, encKey128, AesUtil.CBC_IV_SIZE, plaintext);
 
-            Properties properties = new Properties();
-            CryptoCipher encipher = Utils.getCipherInstance(AesUtil.CBC_CYPHER_TRANSFORM, properties);
+        coreKey128 = Key.KeySize.AES_128.genKeysHmacSha();
+        coreGcm128Encrypted = BACKEND.encryptGCM(VERSION, NonceSource.THREAD_LOCAL_RANDOM, coreKey128, plaintext);
+        coreCbc128Encrypted = BACKEND.encryptCBC(VERSION, coreKey128, plaintext);
 
-            CryptoCipher gcmEncipher = Utils.getCipherInstance(AesUtil.GCM_CYPHER_TRANSFORM, properties);
+        src = ByteBuffer.allocateDirect(size);
+        src.put(plaintext);
+        dst = ByteBuffer.allocateDirect(AES.outputSizeGCM(size));
+    }
+
+    @Benchmark
+    public byte[] enc_aes128CbcHmacSha256() throws Exception {
+
+        Properties properties = new Properties();
+        CryptoCipher encipher = Utils.getCipherInstance(AesUtil.CBC_CYPHER_TRANSFORM, properties);
+
+        return AesUtil.encryptCBC(encipher, HmacAlgorithms.HMAC_SHA_256, authKey256, encKey128, AesUtil.CBC_IV_SIZE, plaintext);
 
-            GCM_128_ENCRYPTED = AesUtil.encryptGCM(gcmEncipher, ENC_DEFAULT_KEY_128, AesUtil.GCM_IV_SIZE, AesUtil.plaintext);
-            CBC_128_ENCRYPTED = AesUtil.encryptCBC(encipher, HmacAlgorithms.HMAC_SHA_256, AUTH_DEFAULT_KEY_256, ENC_DEFAULT_KEY_128, AesUtil.CBC_IV_SIZE, AesUtil.plaintext);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
     }
 
-//    @Benchmark
-//    public void enc_aes128CbcHmacSha256() throws Exception {
-//
-//        Properties properties = new Properties();
-//        CryptoCipher encipher = Utils.getCipherInstance(AesUtil.CBC_CYPHER_TRANSFORM, properties);
-//
-//        AesUtil.encryptCBC(encipher, HmacAlgorithms.HMAC_SHA_256, AUTH_DEFAULT_KEY_256, ENC_DEFAULT_KEY_128, AesUtil.CBC_IV_SIZE, AesUtil.plaintext);
-//
-//    }
-//
-//    @Benchmark
-//    public void enc_aes128GCM() throws Exception {
-//        Properties properties = new Properties();
-//        CryptoCipher encipher = Utils.getCipherInstance(AesUtil.GCM_CYPHER_TRANSFORM, properties);
-//
-//        AesUtil.encryptGCM(encipher, ENC_DEFAULT_KEY_128, AesUtil.GCM_IV_SIZE, AesUtil.plaintext);
-//    }
-//
-//    @Benchmark
-//    public void dec_aes128CbcHmacSha256() throws Exception {
-//
-//        Properties properties = new Properties();
-//        CryptoCipher encipher = Utils.getCipherInstance(AesUtil.CBC_CYPHER_TRANSFORM, properties);
-//
-//
-//        AesUtil.decryptCBC(encipher, HmacAlgorithms.HMAC_SHA_256, AUTH_DEFAULT_KEY_256, ENC_DEFAULT_KEY_128, CBC_128_ENCRYPTED);
-//
-//    }
-//
-//    @Benchmark
-//    public void dec_aes128GCM() throws Exception {
-//        Properties properties = new Properties();
-//        CryptoCipher encipher = Utils.getCipherInstance(AesUtil.GCM_CYPHER_TRANSFORM, properties);
-//
-//        AesUtil.decryptGCM(encipher, ENC_DEFAULT_KEY_128, GCM_128_ENCRYPTED);
-//    }
+    @Benchmark
+    public byte[] enc_aes128GCM() throws Exception {
+        Properties properties = new Properties();
+        CryptoCipher encipher = Utils.getCipherInstance(AesUtil.GCM_CYPHER_TRANSFORM, properties);
+
+        return AesUtil.encryptGCM(encipher, encKey128, AesUtil.GCM_IV_SIZE, plaintext);
+    }
+
+    @Benchmark
+    public byte[] dec_aes128CbcHmacSha256() throws Exception {
+
+        Properties properties = new Properties();
+        CryptoCipher encipher = Utils.getCipherInstance(AesUtil.CBC_CYPHER_TRANSFORM, properties);
+
+
+        return AesUtil.decryptCBC(encipher, HmacAlgorithms.HMAC_SHA_256, authKey256, encKey128, cbc128Encrypted);
+
+    }
+
+    @Benchmark
+    public byte[] dec_aes128GCM() throws Exception {
+        Properties properties = new Properties();
+        CryptoCipher encipher = Utils.getCipherInstance(AesUtil.GCM_CYPHER_TRANSFORM, properties);
+
+        return AesUtil.decryptGCM(encipher, encKey128, gcm128Encrypted);
+    }
+
+    // the crypto-core message formats on the Commons Crypto backend, falls back to JCE when libcrypto can't be loaded
+
+    @Benchmark
+    public byte[] core_enc_aes128CbcHmacSha256() throws Exception {
+        return BACKEND.encryptCBC(VERSION, coreKey128, plaintext);
+    }
+
+    @Benchmark
+    public byte[] core_enc_aes128GCM() throws Exception {
+        return BACKEND.encryptGCM(VERSION, NonceSource.THREAD_LOCAL_RANDOM, coreKey128, plaintext);
+    }
+
+    @Benchmark
+    public byte[] core_dec_aes128CbcHmacSha256() throws Exception {
+        return BACKEND.decryptCBC(VERSION, coreKey128, coreCbc128Encrypted);
+    }
+
+    @Benchmark
+    public byte[] core_dec_aes128GCM() throws Exception {
+        return BACKEND.decryptGCM(VERSION, coreKey128, coreGcm128Encrypted);
+    }
+
+    @Benchmark
+    public int core_enc_aes128GCM_direct() throws Exception {
+        src.clear();
+        dst.clear();
+        return BACKEND.encryptGCM(VERSION, NonceSource.THREAD_LOCAL_RANDOM, coreKey128, src, dst);
+    }
 
 }
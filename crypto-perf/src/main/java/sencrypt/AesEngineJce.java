@@ -0,0 +1,77 @@
+package sencrypt;
+
+import crypto.AES;
+import crypto.AesEngine;
+import crypto.Key;
+import crypto.Util;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares the static {@link AES} functions, which create a new Cipher and Mac for each message,
+ * against the {@link AesEngine} which reuses them per thread.
+ */
+@State(Scope.Benchmark)
+public class AesEngineJce extends AesBase {
+
+    @Param({"64", "1024", "4096"})
+    public int size;
+
+    private byte[] plaintext;
+
+    private byte[] gcmEncrypted;
+    private byte[] cbcEncrypted;
+
+    private Key.ExpandedKey key;
+    private AesEngine engine;
+
+    @Setup
+    public void setup() throws Exception {
+        plaintext = Util.genData(size);
+
+        key = Key.KeySize.AES_128.genKeysHmacSha(Util.genData(16));
+        engine = new AesEngine(key);
+
+        gcmEncrypted = AES.encryptGCM(key, plaintext);
+        cbcEncrypted = AES.encryptCBC(key, plaintext);
+    }
+
+    @Benchmark
+    public byte[] enc_aes128GCM() throws Exception {
+        return AES.encryptGCM(key, plaintext);
+    }
+
+    @Benchmark
+    public byte[] enc_aes128GCM_engine() throws Exception {
+        return engine.encryptGCM(plaintext);
+    }
+
+    @Benchmark
+    public byte[] dec_aes128GCM() throws Exception {
+        return AES.decryptGCM(key, gcmEncrypted);
+    }
+
+    @Benchmark
+    public byte[] dec_aes128GCM_engine() throws Exception {
+        return engine.decryptGCM(gcmEncrypted);
+    }
+
+    @Benchmark
+    public byte[] enc_aes128CbcHmacSha256() throws Exception {
+        return AES.encryptCBC(key, plaintext);
+    }
+
+    @Benchmark
+    public byte[] enc_aes128CbcHmacSha256_engine() throws Exception {
+        return engine.encryptCBC(plaintext);
+    }
+
+    @Benchmark
+    public byte[] dec_aes128CbcHmacSha256() throws Exception {
+        return AES.decryptCBC(key, cbcEncrypted);
+    }
+
+    @Benchmark
+    public byte[] dec_aes128CbcHmacSha256_engine() throws Exception {
+        return engine.decryptCBC(cbcEncrypted);
+    }
+}
@@ -0,0 +1,60 @@
+package sencrypt;
+
+import crypto.AES;
+import crypto.AesParallel;
+import crypto.Key;
+import crypto.Util;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a single threaded {@link AES#encryptGCM} with {@link AesParallel} on large messages.
+ * AesParallel uses the common ForkJoinPool, run on a machine with several cores to see the difference.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class AesParallelJce {
+
+    @Param({"1048576", "16777216", "134217728"})
+    public int size;
+
+    private byte[] plaintext;
+    private byte[] gcmEncrypted;
+    private byte[] parallelEncrypted;
+
+    private Key.ExpandedKey key;
+    private AesParallel parallel;
+
+    @Setup
+    public void setup() throws Exception {
+        plaintext = Util.genData(size);
+
+        key = Key.KeySize.AES_128.genKeysHmacSha(Util.genData(16));
+        parallel = new AesParallel(key);
+
+        gcmEncrypted = AES.encryptGCM(key, plaintext);
+        parallelEncrypted = parallel.encryptGCM(plaintext);
+    }
+
+    @Benchmark
+    public byte[] enc_aes128GCM() throws Exception {
+        return AES.encryptGCM(key, plaintext);
+    }
+
+    @Benchmark
+    public byte[] enc_aes128GCM_parallel() throws Exception {
+        return parallel.encryptGCM(plaintext);
+    }
+
+    @Benchmark
+    public byte[] dec_aes128GCM() throws Exception {
+        return AES.decryptGCM(key, gcmEncrypted);
+    }
+
+    @Benchmark
+    public byte[] dec_aes128GCM_parallel() throws Exception {
+        return parallel.decryptGCM(parallelEncrypted);
+    }
+}
@@ -0,0 +1,58 @@
+package sencrypt;
+
+import crypto.AES;
+import crypto.Key;
+import crypto.Util;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares AES-SIV, random and deterministic, against AES GCM on the default JCE provider.
+ */
+@State(Scope.Benchmark)
+public class AesSivJce extends AesBase {
+
+    @Param({"64", "1024", "4096", "65536"})
+    public int size;
+
+    private byte[] plaintext;
+
+    private byte[] gcmEncrypted;
+    private byte[] sivEncrypted;
+
+    private Key.ExpandedKey key;
+
+    @Setup
+    public void setup() throws Exception {
+        plaintext = Util.genData(size);
+
+        key = Key.KeySize.AES_128.genKeysHmacSha(Util.genData(16));
+
+        gcmEncrypted = AES.encryptGCM(key, plaintext);
+        sivEncrypted = AES.encryptSIV(key, plaintext);
+    }
+
+    @Benchmark
+    public byte[] enc_aes128GCM() throws Exception {
+        return AES.encryptGCM(key, plaintext);
+    }
+
+    @Benchmark
+    public byte[] enc_aes128SIV() throws Exception {
+        return AES.encryptSIV(key, plaintext);
+    }
+
+    @Benchmark
+    public byte[] enc_aes128SIV_deterministic() throws Exception {
+        return AES.encryptSIVDeterministic(key, plaintext);
+    }
+
+    @Benchmark
+    public byte[] dec_aes128GCM() throws Exception {
+        return AES.decryptGCM(key, gcmEncrypted);
+    }
+
+    @Benchmark
+    public byte[] dec_aes128SIV() throws Exception {
+        return AES.decryptSIV(key, sivEncrypted);
+    }
+}
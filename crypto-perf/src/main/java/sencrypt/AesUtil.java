@@ -15,7 +15,6 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Arrays;
-import java.util.Random;
 
 /**
  * AES encryption helper functions. Mostly for apache commons encryption.
@@ -24,9 +23,6 @@ import java.util.Random;
 public class AesUtil {
 
 
-    public static final byte[] plaintext = genData(4096); // 4kb
-
-
     public static final String CBC_CYPHER_TRANSFORM = "AES/CBC/PKCS5Padding";
     public static final String GCM_CYPHER_TRANSFORM = "AES/GCM/NoPadding";
     public static final int GCM_IV_SIZE = 12;
@@ -202,19 +198,4 @@ public class AesUtil {
         return output;
     }
 
-    /**
-     * Get some random data
-     */
-    private static final byte[] genData(int byteLen) {
-        byte[] v = new byte[byteLen];
-
-        Random r = new Random();
-
-        for (int i = 0; i < (byteLen); i++) {
-            v[i] = (byte) r.nextInt(127);
-        }
-
-        return v;
-    }
-
-}
\ No newline at end of file
+}
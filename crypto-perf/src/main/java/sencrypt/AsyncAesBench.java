@@ -0,0 +1,46 @@
+package sencrypt;
+
+import crypto.AesEngine;
+import crypto.AsyncAes;
+import crypto.Key;
+import crypto.Util;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * The cost of handing a GCM message to another thread with {@link AsyncAes}, executor=inline runs it on the calling
+ * thread. The difference at a small size is the hand off, which is what the inline threshold saves.
+ */
+@State(Scope.Benchmark)
+public class AsyncAesBench extends AesBase {
+
+    @Param({"inline", "pool"})
+    public String executor;
+
+    @Param({"1024", "16384", "131072"})
+    public int size;
+
+    private ExecutorService pool;
+    private AsyncAes async;
+    private byte[] plaintext;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha();
+        pool = AsyncAes.newBoundedExecutor(Runtime.getRuntime().availableProcessors(), AsyncAes.DEFAULT_QUEUE_SIZE);
+
+        async = new AsyncAes(new AesEngine(key), pool, executor.equals("inline") ? Integer.MAX_VALUE : -1);
+        plaintext = Util.genData(size);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public byte[] encGCM() {
+        return async.encryptGCM(plaintext).join();
+    }
+}
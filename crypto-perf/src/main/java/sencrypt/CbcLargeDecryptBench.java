@@ -0,0 +1,57 @@
+package sencrypt;
+
+import crypto.AES;
+import crypto.AesEngine;
+import crypto.Key;
+import crypto.Util;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decrypting CBC messages larger than the cache, the hmac and decryption are done in one pass over CHUNK_SIZE chunks
+ * instead of reading the whole message once for the hmac and again for decryption.
+ */
+@State(Scope.Thread)
+public class CbcLargeDecryptBench extends AesBase {
+
+    @Param({"1048576", "8388608"})
+    public int size;
+
+    private Key.ExpandedKey key;
+    private byte[] encrypted;
+    private byte[] dst;
+    private ByteBuffer src;
+    private ByteBuffer dstBuffer;
+
+    private AesEngine engine;
+
+    @Setup
+    public void setup() throws Exception {
+        key = Key.KeySize.AES_128.genKeysHmacSha(Util.genData(16));
+        engine = new AesEngine(key);
+
+        encrypted = AES.encryptCBC(key, Util.genData(size));
+        dst = new byte[encrypted.length];
+
+        src = ByteBuffer.wrap(encrypted);
+        dstBuffer = ByteBuffer.allocate(encrypted.length);
+    }
+
+    @Benchmark
+    public byte[] dec_aes128CbcHmacSha256() throws Exception {
+        return AES.decryptCBC(key, encrypted);
+    }
+
+    @Benchmark
+    public int dec_aes128CbcHmacSha256_engineOffset() throws Exception {
+        return engine.decryptCBC((byte) 0, encrypted, 0, encrypted.length, dst, 0);
+    }
+
+    @Benchmark
+    public int dec_aes128CbcHmacSha256_engineBuffer() throws Exception {
+        src.rewind();
+        dstBuffer.clear();
+        return engine.decryptCBC((byte) 0, src, dstBuffer);
+    }
+}
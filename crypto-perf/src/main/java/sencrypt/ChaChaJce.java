@@ -0,0 +1,55 @@
+package sencrypt;
+
+import crypto.AES;
+import crypto.ChaCha20Poly1305;
+import crypto.Key;
+import crypto.Util;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares ChaCha20-Poly1305 against AES GCM on the default JCE provider.
+ * Run with -jvmArgs "-XX:+UnlockDiagnosticVMOptions -XX:-UseAESIntrinsics" to see a host without AES-NI.
+ */
+@State(Scope.Benchmark)
+public class ChaChaJce extends AesBase {
+
+    @Param({"64", "1024", "4096"})
+    public int size;
+
+    private byte[] plaintext;
+
+    private byte[] gcmEncrypted;
+    private byte[] chaChaEncrypted;
+
+    private Key.ExpandedKey key;
+
+    @Setup
+    public void setup() throws Exception {
+        plaintext = Util.genData(size);
+
+        key = Key.KeySize.AES_256.genKeysHmacSha(Util.genData(32));
+
+        gcmEncrypted = AES.encryptGCM(key, plaintext);
+        chaChaEncrypted = ChaCha20Poly1305.encrypt(key, plaintext);
+    }
+
+    @Benchmark
+    public byte[] enc_aes256GCM() throws Exception {
+        return AES.encryptGCM(key, plaintext);
+    }
+
+    @Benchmark
+    public byte[] enc_chacha20Poly1305() throws Exception {
+        return ChaCha20Poly1305.encrypt(key, plaintext);
+    }
+
+    @Benchmark
+    public byte[] dec_aes256GCM() throws Exception {
+        return AES.decryptGCM(key, gcmEncrypted);
+    }
+
+    @Benchmark
+    public byte[] dec_chacha20Poly1305() throws Exception {
+        return ChaCha20Poly1305.decrypt(key, chaChaEncrypted);
+    }
+}
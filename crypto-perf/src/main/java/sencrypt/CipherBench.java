@@ -0,0 +1,20 @@
+package sencrypt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * Encrypt and decrypt on one thread for every size, mode, key size and provider of {@link CipherState.AllSizes}.
+ * The full matrix takes hours, narrow it with {@code -p}.
+ */
+public class CipherBench {
+
+    @Benchmark
+    public byte[] enc(CipherState.AllSizes state) throws Exception {
+        return state.encrypt();
+    }
+
+    @Benchmark
+    public byte[] dec(CipherState.AllSizes state) throws Exception {
+        return state.decrypt();
+    }
+}
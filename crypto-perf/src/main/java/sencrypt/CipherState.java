@@ -0,0 +1,146 @@
+package sencrypt;
+
+import crypto.AES;
+import crypto.ChaCha20Poly1305;
+import crypto.Key;
+import crypto.NonceSource;
+import crypto.Util;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.conscrypt.Conscrypt;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.Security;
+
+/**
+ * The message, key and provider of a benchmark, shared by the threads of a benchmark and only read once set up.
+ * <p>
+ * Select with {@code -p}, e.g. {@code -p mode=GCM -p provider=SunJCE,Conscrypt -p size=64,512}.
+ * A mode the provider does not have, e.g. ChaCha20-Poly1305 on Bouncy Castle 1.61, fails in the setup and
+ * JMH moves on to the next parameters.
+ */
+@State(Scope.Benchmark)
+public abstract class CipherState extends AesBase {
+
+    private static final byte VERSION = (byte) 0;
+
+    public enum Mode {
+        GCM {
+            @Override
+            byte[] encrypt(String provider, Key.ExpandedKey key, byte[] txt) throws Exception {
+                return AES.encryptGCM(VERSION, provider, key, txt);
+            }
+
+            @Override
+            byte[] decrypt(String provider, Key.ExpandedKey key, byte[] encryptedMessage) throws Exception {
+                return AES.decryptGCM(VERSION, provider, key, encryptedMessage);
+            }
+        },
+        CBC {
+            @Override
+            byte[] encrypt(String provider, Key.ExpandedKey key, byte[] txt) throws Exception {
+                return AES.encryptCBC(VERSION, provider, key, txt);
+            }
+
+            @Override
+            byte[] decrypt(String provider, Key.ExpandedKey key, byte[] encryptedMessage) throws Exception {
+                return AES.decryptCBC(VERSION, provider, key, encryptedMessage);
+            }
+        },
+        CHACHA20_POLY1305 {
+            @Override
+            byte[] encrypt(String provider, Key.ExpandedKey key, byte[] txt) throws Exception {
+                return ChaCha20Poly1305.encrypt(VERSION, provider, NonceSource.THREAD_LOCAL_RANDOM, key, txt);
+            }
+
+            @Override
+            byte[] decrypt(String provider, Key.ExpandedKey key, byte[] encryptedMessage) throws Exception {
+                return ChaCha20Poly1305.decrypt(VERSION, provider, key, encryptedMessage);
+            }
+        };
+
+        abstract byte[] encrypt(String provider, Key.ExpandedKey key, byte[] txt) throws Exception;
+
+        abstract byte[] decrypt(String provider, Key.ExpandedKey key, byte[] encryptedMessage) throws Exception;
+    }
+
+    @Param({"GCM", "CBC", "CHACHA20_POLY1305"})
+    public Mode mode;
+
+    /**
+     * The ChaCha20 key is always 256 bits, derived from the encKey of either key size.
+     */
+    @Param({"AES_128", "AES_256"})
+    public Key.KeySize keySize;
+
+    /**
+     * A JCE provider name, or default for the backend crypto-core picks (CryptoBackends).
+     */
+    @Param({"default", "SunJCE", "Conscrypt", "BC"})
+    public String provider;
+
+    private String providerName;
+    private Key.ExpandedKey key;
+    private byte[] plaintext;
+    private byte[] encrypted;
+
+    abstract int size();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        providerName = providerName(provider);
+        key = keySize.genKeysHmacSha(Util.genData(16));
+        plaintext = Util.genData(size());
+        encrypted = mode.encrypt(providerName, key, plaintext);
+    }
+
+    /**
+     * Adds Conscrypt or Bouncy Castle to the JCE providers if named and not added yet.
+     *
+     * @return the provider name for the crypto-core methods, null for default
+     */
+    static String providerName(String provider) {
+        if ("Conscrypt".equals(provider) && Security.getProvider(provider) == null) {
+            Security.addProvider(Conscrypt.newProvider());
+        } else if ("BC".equals(provider) && Security.getProvider(provider) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+
+        return "default".equals(provider) ? null : provider;
+    }
+
+    public byte[] encrypt() throws Exception {
+        return mode.encrypt(providerName, key, plaintext);
+    }
+
+    public byte[] decrypt() throws Exception {
+        return mode.decrypt(providerName, key, encrypted);
+    }
+
+    /**
+     * 16 bytes to 16MB.
+     */
+    @State(Scope.Benchmark)
+    public static class AllSizes extends CipherState {
+        @Param({"16", "64", "256", "512", "4096", "65536", "1048576", "16777216"})
+        public int size;
+
+        @Override
+        int size() {
+            return size;
+        }
+    }
+
+    /**
+     * The message sizes of most of the production traffic, for the multi-threaded runs.
+     */
+    @State(Scope.Benchmark)
+    public static class SmallSizes extends CipherState {
+        @Param({"64", "256", "512"})
+        public int size;
+
+        @Override
+        int size() {
+            return size;
+        }
+    }
+}
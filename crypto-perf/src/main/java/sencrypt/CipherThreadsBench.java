@@ -0,0 +1,53 @@
+package sencrypt;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The small messages of {@link CipherState.SmallSizes} on 16 and 64 threads, compare the ops/s with
+ * {@link CipherBench} at the same parameters to see how a provider scales. The threads share the key and message.
+ * <p>
+ * Use {@code -t} to run {@link CipherBench} at other thread counts.
+ */
+public class CipherThreadsBench {
+
+    @Benchmark
+    @Threads(16)
+    public byte[] enc_16threads(CipherState.SmallSizes state) throws Exception {
+        return state.encrypt();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public byte[] dec_16threads(CipherState.SmallSizes state) throws Exception {
+        return state.decrypt();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public byte[] enc_64threads(CipherState.SmallSizes state) throws Exception {
+        return state.encrypt();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public byte[] dec_64threads(CipherState.SmallSizes state) throws Exception {
+        return state.decrypt();
+    }
+
+    /**
+     * Mixed traffic, 12 threads decrypting and 4 encrypting at the same time. JMH reports the group and each method.
+     */
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(12)
+    public byte[] mixed_dec(CipherState.SmallSizes state) throws Exception {
+        return state.decrypt();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(4)
+    public byte[] mixed_enc(CipherState.SmallSizes state) throws Exception {
+        return state.encrypt();
+    }
+}
@@ -0,0 +1,80 @@
+package sencrypt;
+
+import crypto.AES;
+import crypto.CryptoMetrics;
+import crypto.Key;
+import crypto.Util;
+import jdk.jfr.Recording;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+
+/**
+ * The cost of {@link CryptoMetrics} and of the JFR events on small GCM messages, the operation with the least work
+ * to hide it in. Compare metrics=false with metrics=true, e.g. with -t 4 for the contended counters.
+ * jfr=none runs without a recording, default with a recording of the crypto events at their default thresholds,
+ * as a continuous recording would, and all with a threshold of 0, every operation written.
+ */
+@State(Scope.Benchmark)
+public class CryptoMetricsBench extends AesBase {
+
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    @Param({"none", "default", "all"})
+    public String jfr;
+
+    @Param({"64"})
+    public int size;
+
+    private Recording recording;
+
+    private Key.ExpandedKey key;
+    private byte[] plaintext;
+    private byte[] encrypted;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        if (metrics) {
+            CryptoMetrics.enable();
+        } else {
+            CryptoMetrics.disable();
+        }
+
+        if (!jfr.equals("none")) {
+            recording = new Recording();
+            for (String name : new String[]{"crypto.Encrypt", "crypto.Decrypt", "crypto.KeyDerive", "crypto.NonceGenerate"}) {
+                if (jfr.equals("all")) {
+                    recording.enable(name).withThreshold(Duration.ZERO);
+                } else {
+                    recording.enable(name);
+                }
+            }
+            recording.start();
+        }
+
+        key = Key.KeySize.AES_128.genKeysHmacSha();
+        plaintext = Util.genData(size);
+        encrypted = AES.encryptGCM(key, plaintext);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        CryptoMetrics.disable();
+
+        if (recording != null) {
+            recording.close();
+            recording = null;
+        }
+    }
+
+    @Benchmark
+    public byte[] encGCM() throws Exception {
+        return AES.encryptGCM(key, plaintext);
+    }
+
+    @Benchmark
+    public byte[] decGCM() throws Exception {
+        return AES.decryptGCM(key, encrypted);
+    }
+}
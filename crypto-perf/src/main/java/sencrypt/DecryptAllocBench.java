@@ -0,0 +1,70 @@
+package sencrypt;
+
+import crypto.AES;
+import crypto.AesEngine;
+import crypto.Key;
+import crypto.Util;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Garbage per decrypt with the {@link AesEngine} functions that write into caller supplied arrays and heap buffers,
+ * run with {@code -prof gc} and compare gc.alloc.rate.norm.
+ */
+@State(Scope.Thread)
+public class DecryptAllocBench extends AesBase {
+
+    @Param({"64", "1024"})
+    public int size;
+
+    private byte[] gcmEncrypted;
+    private byte[] cbcEncrypted;
+    private byte[] dst;
+    private ByteBuffer gcmSrc;
+    private ByteBuffer cbcSrc;
+    private ByteBuffer dstBuffer;
+
+    private AesEngine engine;
+
+    @Setup
+    public void setup() throws Exception {
+        byte[] plaintext = Util.genData(size);
+
+        Key.ExpandedKey key = Key.KeySize.AES_128.genKeysHmacSha(Util.genData(16));
+        engine = new AesEngine(key);
+
+        gcmEncrypted = AES.encryptGCM(key, plaintext);
+        cbcEncrypted = AES.encryptCBC(key, plaintext);
+        dst = new byte[cbcEncrypted.length];
+
+        // the JCE copies direct buffers through temporary arrays
+        gcmSrc = ByteBuffer.wrap(gcmEncrypted);
+        cbcSrc = ByteBuffer.wrap(cbcEncrypted);
+        dstBuffer = ByteBuffer.allocate(cbcEncrypted.length);
+    }
+
+    @Benchmark
+    public int dec_aes128GCM_offset() throws Exception {
+        return engine.decryptGCM((byte) 0, gcmEncrypted, 0, gcmEncrypted.length, dst, 0);
+    }
+
+    @Benchmark
+    public int dec_aes128CbcHmacSha256_offset() throws Exception {
+        return engine.decryptCBC((byte) 0, cbcEncrypted, 0, cbcEncrypted.length, dst, 0);
+    }
+
+    @Benchmark
+    public int dec_aes128GCM_buffer() throws Exception {
+        gcmSrc.rewind();
+        dstBuffer.clear();
+        return engine.decryptGCM((byte) 0, gcmSrc, dstBuffer);
+    }
+
+    @Benchmark
+    public int dec_aes128CbcHmacSha256_buffer() throws Exception {
+        cbcSrc.rewind();
+        dstBuffer.clear();
+        return engine.decryptCBC((byte) 0, cbcSrc, dstBuffer);
+    }
+}
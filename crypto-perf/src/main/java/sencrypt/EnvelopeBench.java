@@ -0,0 +1,68 @@
+package sencrypt;
+
+import crypto.AES;
+import crypto.Envelope;
+import crypto.Key;
+import crypto.MasterKey;
+import crypto.Util;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Envelope encryption with a reused DEK and with a new DEK per message, which wraps on every call, against plain AES GCM.
+ */
+@State(Scope.Benchmark)
+public class EnvelopeBench extends AesBase {
+
+    @Param({"64", "1024"})
+    public int size;
+
+    private byte[] plaintext;
+
+    private Key.ExpandedKey key;
+
+    private Envelope reused;
+    private Envelope perMessage;
+
+    private byte[] encrypted;
+
+    @Setup
+    public void setup() throws Exception {
+        plaintext = Util.genData(size);
+
+        key = Key.KeySize.AES_256.genKeysHmacSha(Util.genData(32));
+        MasterKey masterKey = MasterKey.aesKeyWrap(Key.KeySize.AES_256.genKeysHmacSha(Util.genData(32)));
+
+        reused = new Envelope(masterKey);
+        perMessage = new Envelope(masterKey, Key.KeySize.AES_256, 1, Envelope.DEFAULT_MAX_BYTES, 1, TimeUnit.HOURS, 0);
+
+        encrypted = reused.encrypt(plaintext);
+    }
+
+    @Benchmark
+    public byte[] enc_aes256GCM() throws Exception {
+        return AES.encryptGCM(key, plaintext);
+    }
+
+    @Benchmark
+    public byte[] enc_envelope_reusedDek() throws Exception {
+        return reused.encrypt(plaintext);
+    }
+
+    @Benchmark
+    public byte[] enc_envelope_dekPerMessage() throws Exception {
+        return perMessage.encrypt(plaintext);
+    }
+
+    @Benchmark
+    public byte[] dec_envelope_cachedDek() throws Exception {
+        return reused.decrypt(encrypted);
+    }
+
+    @Benchmark
+    public byte[] dec_envelope_unwrap() throws Exception {
+        // the cache size is 0, every message is unwrapped
+        return perMessage.decrypt(encrypted);
+    }
+}
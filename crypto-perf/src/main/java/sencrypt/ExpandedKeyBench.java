@@ -0,0 +1,50 @@
+package sencrypt;
+
+import crypto.AES;
+import crypto.Key;
+import crypto.Util;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The static {@link AES} functions with a reused {@link Key.ExpandedKey}, which keeps its key objects, hmac and ciphers,
+ * against a new ExpandedKey for the same key bytes on every call, which sets everything up again like before.
+ */
+@State(Scope.Benchmark)
+public class ExpandedKeyBench extends AesBase {
+
+    @Param({"64", "1024"})
+    public int size;
+
+    private byte[] plaintext;
+    private Key.ExpandedKey key;
+
+    @Setup
+    public void setup() {
+        plaintext = Util.genData(size);
+        key = Key.KeySize.AES_128.genKeysHmacSha(Util.genData(16));
+    }
+
+    @Benchmark
+    public byte[] enc_aes128GCM_newKey() throws Exception {
+        return AES.encryptGCM(newKey(), plaintext);
+    }
+
+    @Benchmark
+    public byte[] enc_aes128GCM_reusedKey() throws Exception {
+        return AES.encryptGCM(key, plaintext);
+    }
+
+    @Benchmark
+    public byte[] enc_aes128CbcHmacSha256_newKey() throws Exception {
+        return AES.encryptCBC(newKey(), plaintext);
+    }
+
+    @Benchmark
+    public byte[] enc_aes128CbcHmacSha256_reusedKey() throws Exception {
+        return AES.encryptCBC(key, plaintext);
+    }
+
+    private Key.ExpandedKey newKey() {
+        return new Key.ExpandedKey(key.keySize, key.orgKey, key.encKey, key.authKey);
+    }
+}
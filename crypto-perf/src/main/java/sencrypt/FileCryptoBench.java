@@ -0,0 +1,99 @@
+package sencrypt;
+
+import crypto.AES;
+import crypto.FileCrypto;
+import crypto.Key;
+import crypto.Util;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares encrypting large files with the memory mapped {@link FileCrypto} against reading the whole file into a
+ * byte array and calling {@link AES#encryptGCM}.
+ * <p>
+ * The byte array path cannot encrypt files of 2GB or more (arrays are limited to Integer.MAX_VALUE) and needs
+ * about three times the file size in heap, so it only runs up to 1000MB.
+ * <p>
+ * java -jar target/benchmarks.jar FileCryptoBench
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class FileCryptoBench {
+
+    private static final int MB = 1024 * 1024;
+
+    @State(Scope.Benchmark)
+    public static class ArrayFiles extends BenchFiles {
+        @Param({"100", "1000"})
+        public int sizeMB;
+
+        @Setup
+        public void setup() throws IOException {
+            create(sizeMB);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            delete();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class MappedFiles extends BenchFiles {
+        @Param({"100", "1000", "2048"})
+        public int sizeMB;
+
+        @Setup
+        public void setup() throws IOException {
+            create(sizeMB);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            delete();
+        }
+    }
+
+    @Benchmark
+    public void enc_aes128GCM_byteArray(ArrayFiles files) throws Exception {
+        Files.write(files.encrypted, AES.encryptGCM(files.key, Files.readAllBytes(files.plain)));
+    }
+
+    @Benchmark
+    public void enc_aes128GCM_mapped(MappedFiles files) throws Exception {
+        FileCrypto.encryptGCM(files.key, files.plain, files.encrypted);
+    }
+
+    abstract static class BenchFiles {
+        Key.ExpandedKey key;
+        Path plain;
+        Path encrypted;
+
+        void create(int sizeMB) throws IOException {
+            key = Key.KeySize.AES_128.genKeysHmacSha(Util.genData(16));
+
+            plain = Files.createTempFile("filecrypto", ".plain");
+            encrypted = Files.createTempFile("filecrypto", ".enc");
+
+            byte[] block = Util.genData(MB);
+            try (OutputStream out = Files.newOutputStream(plain)) {
+                for (int i = 0; i < sizeMB; i++) {
+                    out.write(block);
+                }
+            }
+        }
+
+        void delete() throws IOException {
+            Files.deleteIfExists(plain);
+            Files.deleteIfExists(encrypted);
+        }
+    }
+}
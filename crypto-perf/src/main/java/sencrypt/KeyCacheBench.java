@@ -0,0 +1,40 @@
+package sencrypt;
+
+import crypto.Key;
+import crypto.KeyCache;
+import crypto.Util;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Deriving a per tenant key from a master key on every call against looking it up in a {@link KeyCache}.
+ */
+@State(Scope.Benchmark)
+public class KeyCacheBench extends AesBase {
+
+    private byte[] masterKey;
+    private byte[] context;
+
+    private KeyCache cache;
+
+    @Setup
+    public void setup() {
+        masterKey = Util.genData(32);
+        context = "tenant-1".getBytes(StandardCharsets.UTF_8);
+
+        cache = new KeyCache(1000);
+    }
+
+    @Benchmark
+    public byte[] derive() {
+        return Key.KeySize.AES_256.genKeysHmacSha(masterKey, context).encKey;
+    }
+
+    @Benchmark
+    public byte[] cached() {
+        try (KeyCache.Lease lease = cache.acquire(Key.KeySize.AES_256, masterKey, context)) {
+            return lease.key().encKey;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package sencrypt;
+
+import crypto.Key;
+import crypto.Util;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a {@link Workload} at a fixed rate and records the latency percentiles with HdrHistogram.
+ * <p>
+ * JMH measures how fast the operations run back to back, this measures what a request sees at a steady rate
+ * while GC, SecureRandom and the other threads do their work.
+ * <p>
+ * Each thread has a schedule of rate / threads operations per second. The response time is measured from the
+ * time the operation was scheduled, not from when it started, so an operation delayed by a slow one before it
+ * (a GC pause, a blocked SecureRandom) counts the delay. Without this correction for coordinated omission a
+ * 100ms pause shows up as one slow operation instead of all the operations that should have run during it.
+ * The service time, from start to end of the operation, is recorded as well, the difference between the two
+ * is the time spent waiting.
+ * <p>
+ * Writes, for the given output prefix:
+ * <ul>
+ *     <li>prefix.hlog, the histograms of every second, e.g. for HistogramLogAnalyzer</li>
+ *     <li>prefix-encrypt.hgrm and prefix-decrypt.hgrm, the response time percentiles in microseconds after the
+ *     warmup, e.g. for the HdrHistogram plotter</li>
+ *     <li>prefix-encrypt-service.hgrm and prefix-decrypt-service.hgrm, the service time percentiles</li>
+ * </ul>
+ * <pre>
+ *     java -cp target/benchmarks.jar:target/lib/* sencrypt.LatencyHarness workloads/default.properties [prefix]
+ * </pre>
+ */
+public final class LatencyHarness {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final Workload workload;
+    private final String provider;
+    private final Key.ExpandedKey[] keys;
+    private final byte[][] plaintexts;
+    /**
+     * [key][size]
+     */
+    private final byte[][][] encrypted;
+
+    private final Recorder encryptResponse = new Recorder(3);
+    private final Recorder decryptResponse = new Recorder(3);
+    private final Recorder encryptService = new Recorder(3);
+    private final Recorder decryptService = new Recorder(3);
+
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final AtomicReference<Exception> firstError = new AtomicReference<>();
+
+    LatencyHarness(Workload workload) throws Exception {
+        this.workload = workload;
+        this.provider = CipherState.providerName(workload.provider);
+
+        keys = new Key.ExpandedKey[workload.keys];
+        plaintexts = new byte[workload.sizes.length][];
+        encrypted = new byte[workload.keys][workload.sizes.length][];
+
+        for (int s = 0; s < workload.sizes.length; s++) {
+            plaintexts[s] = Util.genData(workload.sizes[s]);
+        }
+
+        for (int k = 0; k < keys.length; k++) {
+            keys[k] = workload.keySize.genKeysHmacSha();
+            for (int s = 0; s < plaintexts.length; s++) {
+                encrypted[k][s] = workload.mode.encrypt(provider, keys[k], plaintexts[s]);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("LatencyHarness <workload.properties> [output prefix]");
+            System.exit(1);
+        }
+
+        Workload workload = Workload.load(Paths.get(args[0]));
+        String prefix = args.length > 1 ? args[1] : "latency";
+
+        System.out.println(workload);
+        new LatencyHarness(workload).run(prefix);
+    }
+
+    void run(String prefix) throws Exception {
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long warmupEnd = start + workload.warmupSeconds * NANOS_PER_SECOND;
+        long end = warmupEnd + workload.durationSeconds * NANOS_PER_SECOND;
+
+        Thread[] threads = new Thread[workload.threads];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(() -> runSchedule(index, start, end), "latency-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+
+        Histogram encryptTotal = new Histogram(3);
+        Histogram decryptTotal = new Histogram(3);
+        Histogram encryptServiceTotal = new Histogram(3);
+        Histogram decryptServiceTotal = new Histogram(3);
+
+        try (PrintStream log = new PrintStream(new FileOutputStream(prefix + ".hlog"))) {
+            HistogramLogWriter writer = new HistogramLogWriter(log);
+            writer.outputComment(workload.toString());
+            writer.outputLogFormatVersion();
+            writer.outputStartTime(System.currentTimeMillis());
+            writer.setBaseTime(System.currentTimeMillis());
+            writer.outputLegend();
+
+            System.out.println("  time       ops        p50        p99      p99.9        max  (response us)");
+
+            long next = start + NANOS_PER_SECOND;
+            boolean done = false;
+            while (!done) {
+                waitUntil(Math.min(next, end));
+                done = next >= end;
+                if (done) {
+                    for (Thread t : threads) {
+                        t.join();
+                    }
+                }
+
+                Histogram enc = interval(encryptResponse, "encrypt", writer);
+                Histogram dec = interval(decryptResponse, "decrypt", writer);
+                Histogram encService = interval(encryptService, "encrypt-service", writer);
+                Histogram decService = interval(decryptService, "decrypt-service", writer);
+
+                boolean warmup = next <= warmupEnd;
+                if (!warmup) {
+                    encryptTotal.add(enc);
+                    decryptTotal.add(dec);
+                    encryptServiceTotal.add(encService);
+                    decryptServiceTotal.add(decService);
+                }
+
+                Histogram both = enc.copy();
+                both.add(dec);
+                printLine((next - start) / NANOS_PER_SECOND + (warmup ? "w" : "s"), both);
+
+                next += NANOS_PER_SECOND;
+            }
+        }
+
+        write(prefix + "-encrypt.hgrm", encryptTotal);
+        write(prefix + "-decrypt.hgrm", decryptTotal);
+        write(prefix + "-encrypt-service.hgrm", encryptServiceTotal);
+        write(prefix + "-decrypt-service.hgrm", decryptServiceTotal);
+
+        System.out.println();
+        System.out.println("after warmup:");
+        printLine("enc", encryptTotal);
+        printLine("enc svc", encryptServiceTotal);
+        printLine("dec", decryptTotal);
+        printLine("dec svc", decryptServiceTotal);
+        System.out.println("target rate " + workload.rate + " ops/s, actual "
+                + (encryptTotal.getTotalCount() + decryptTotal.getTotalCount()) / workload.durationSeconds + " ops/s, "
+                + bytesOut.sum() / (1024 * 1024) / (workload.warmupSeconds + workload.durationSeconds) + " MB/s out");
+
+        if (errors.sum() > 0) {
+            System.out.println("errors: " + errors.sum() + ", the first:");
+            firstError.get().printStackTrace(System.out);
+        }
+    }
+
+    /**
+     * The operations of one thread, each at its scheduled time or, if behind, straight after the one before.
+     * The threads' schedules are offset from each other by interval / threads.
+     */
+    private void runSchedule(int index, long start, long end) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double interval = NANOS_PER_SECOND * (double) workload.threads / workload.rate;
+        double offset = (double) index / workload.threads;
+
+        long sink = 0;
+        long n = 0;
+        long scheduled = start + (long) (interval * offset);
+
+        while (scheduled < end) {
+            waitUntil(scheduled);
+
+            int key = random.nextInt(keys.length);
+            int size = workload.sizeIndex(random.nextDouble());
+            boolean encrypt = random.nextDouble() < workload.encryptRatio;
+
+            long begin = System.nanoTime();
+            try {
+                byte[] v = encrypt
+                        ? workload.mode.encrypt(provider, keys[key], plaintexts[size])
+                        : workload.mode.decrypt(provider, keys[key], encrypted[key][size]);
+                sink += v.length;
+            } catch (Exception e) {
+                errors.increment();
+                firstError.compareAndSet(null, e);
+            }
+            long now = System.nanoTime();
+
+            (encrypt ? encryptResponse : decryptResponse).recordValue(now - scheduled);
+            (encrypt ? encryptService : decryptService).recordValue(now - begin);
+
+            n++;
+            scheduled = start + (long) (interval * (n + offset));
+        }
+
+        bytesOut.add(sink);
+    }
+
+    private static Histogram interval(Recorder recorder, String tag, HistogramLogWriter writer) {
+        Histogram h = recorder.getIntervalHistogram();
+        h.setTag(tag);
+        writer.outputIntervalHistogram(h);
+        return h;
+    }
+
+    private static void write(String file, Histogram histogram) throws IOException {
+        try (PrintStream out = new PrintStream(new FileOutputStream(new File(file)))) {
+            histogram.outputPercentileDistribution(out, 1000.0);
+        }
+    }
+
+    private static void printLine(String label, Histogram h) {
+        System.out.println(String.format("%7s %9d %10.1f %10.1f %10.1f %10.1f",
+                label,
+                h.getTotalCount(),
+                h.getValueAtPercentile(50) / 1000.0,
+                h.getValueAtPercentile(99) / 1000.0,
+                h.getValueAtPercentile(99.9) / 1000.0,
+                h.getMaxValue() / 1000.0));
+    }
+
+    /**
+     * Parks until the deadline. The wake up delay of the thread is part of the response time, as it would be for
+     * a server thread woken by a request.
+     */
+    private static void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+}
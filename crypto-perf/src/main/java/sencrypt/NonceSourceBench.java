@@ -0,0 +1,60 @@
+package sencrypt;
+
+import crypto.AES;
+import crypto.CounterNonceSource;
+import crypto.NonceSource;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Iv generation throughput of the nonce sources, run main to measure with 1 to 64 threads:
+ * <p>
+ * java -cp target/benchmarks.jar sencrypt.NonceSourceBench
+ * <p>
+ * or a single thread count with: java -jar target/benchmarks.jar NonceSourceBench -t 16
+ */
+@State(Scope.Benchmark)
+public class NonceSourceBench extends AesBase {
+
+    private final NonceSource sharedSecureRandom = NonceSource.SHARED_SECURE_RANDOM;
+    private final NonceSource threadLocalRandom = NonceSource.THREAD_LOCAL_RANDOM;
+    private final NonceSource counter = new CounterNonceSource();
+
+    @State(Scope.Thread)
+    public static class Iv {
+        final byte[] bts = new byte[AES.GCM_IV_LENGTH];
+    }
+
+    @Benchmark
+    public byte[] sharedSecureRandom(Iv iv) {
+        sharedSecureRandom.nextNonce(iv.bts);
+        return iv.bts;
+    }
+
+    @Benchmark
+    public byte[] threadLocalRandom(Iv iv) {
+        threadLocalRandom.nextNonce(iv.bts);
+        return iv.bts;
+    }
+
+    @Benchmark
+    public byte[] counter(Iv iv) {
+        counter.nextNonce(iv.bts);
+        return iv.bts;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[]{1, 2, 4, 8, 16, 32, 64}) {
+            Options opt = new OptionsBuilder()
+                    .include(NonceSourceBench.class.getSimpleName())
+                    .threads(threads)
+                    .forks(1)
+                    .build();
+
+            new Runner(opt).run();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package sencrypt;
+
+import crypto.Key;
+import crypto.PasswordKdf;
+import crypto.PasswordKeyCache;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of a password derivation with the default parameters, against the HKDF extract of
+ * {@link Key#deriveHmac256FromPass(byte[], byte[])} and a {@link PasswordKeyCache} hit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PasswordKdfBench extends AesBase {
+
+    private byte[] salt;
+    private byte[] pass;
+
+    private PasswordKdf pbkdf2Sha256;
+    private PasswordKdf scrypt;
+    private PasswordKeyCache cache;
+
+    @Setup
+    public void setup() {
+        salt = PasswordKdf.newSalt();
+        pass = "user-pass".getBytes(StandardCharsets.UTF_8);
+
+        pbkdf2Sha256 = PasswordKdf.defaults(PasswordKdf.Algorithm.PBKDF2_SHA256);
+        scrypt = PasswordKdf.defaults(PasswordKdf.Algorithm.SCRYPT);
+        cache = new PasswordKeyCache(scrypt, 1000);
+    }
+
+    @Benchmark
+    public byte[] hkdfExtract() {
+        return Key.deriveHmac256FromPass(salt, pass);
+    }
+
+    @Benchmark
+    public byte[] pbkdf2Sha256() throws Exception {
+        return pbkdf2Sha256.derive(salt, pass, 64);
+    }
+
+    @Benchmark
+    public byte[] scrypt() throws Exception {
+        return scrypt.derive(salt, pass, 64);
+    }
+
+    @Benchmark
+    public byte[] scryptCached() throws Exception {
+        return cache.derive(salt, pass, 64);
+    }
+}
@@ -0,0 +1,136 @@
+package sencrypt;
+
+import crypto.Key;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * The traffic {@link LatencyHarness} replays, read from a properties file:
+ * <pre>
+ * # operations per second over all threads
+ * rate=2000
+ * threads=4
+ * # seconds, the warmup is not recorded
+ * warmup=10
+ * duration=60
+ * # GCM, CBC or CHACHA20_POLY1305
+ * mode=GCM
+ * keySize=AES_128
+ * # default for the crypto-core backend, SunJCE, Conscrypt or BC
+ * provider=default
+ * # distinct keys, each operation picks one at random
+ * keys=16
+ * # the share of operations that encrypt, the rest decrypt
+ * encryptRatio=0.25
+ * # message size in bytes:weight
+ * sizes=64:50,512:30,4096:15,65536:5
+ * </pre>
+ * Only rate is required, the others default to the values above.
+ * The harness encrypts a message of each size with each key up front, keys * sum(sizes) bytes are kept in memory.
+ */
+final class Workload {
+
+    final int rate;
+    final int threads;
+    final int warmupSeconds;
+    final int durationSeconds;
+    final CipherState.Mode mode;
+    final Key.KeySize keySize;
+    final String provider;
+    final int keys;
+    final double encryptRatio;
+    final int[] sizes;
+    /**
+     * The cumulative weights of sizes, the last is the total.
+     */
+    private final int[] weights;
+
+    private Workload(Properties props) {
+        rate = positive(props, "rate", null);
+        threads = positive(props, "threads", "4");
+        warmupSeconds = Integer.parseInt(props.getProperty("warmup", "10").trim());
+        durationSeconds = positive(props, "duration", "60");
+        mode = CipherState.Mode.valueOf(props.getProperty("mode", "GCM").trim());
+        keySize = Key.KeySize.valueOf(props.getProperty("keySize", "AES_128").trim());
+        provider = props.getProperty("provider", "default").trim();
+        keys = positive(props, "keys", "16");
+        encryptRatio = Double.parseDouble(props.getProperty("encryptRatio", "0.25").trim());
+
+        if (warmupSeconds < 0) {
+            throw new IllegalArgumentException("warmup must not be negative: " + warmupSeconds);
+        }
+        if (encryptRatio < 0 || encryptRatio > 1) {
+            throw new IllegalArgumentException("encryptRatio must be between 0 and 1: " + encryptRatio);
+        }
+
+        String[] entries = props.getProperty("sizes", "64:50,512:30,4096:15,65536:5").split(",");
+        sizes = new int[entries.length];
+        weights = new int[entries.length];
+
+        int total = 0;
+        for (int i = 0; i < entries.length; i++) {
+            String[] sizeWeight = entries[i].trim().split(":");
+            sizes[i] = Integer.parseInt(sizeWeight[0].trim());
+            int weight = sizeWeight.length > 1 ? Integer.parseInt(sizeWeight[1].trim()) : 1;
+
+            if (sizes[i] < 0 || weight < 1) {
+                throw new IllegalArgumentException("sizes must be size:weight with size >= 0 and weight >= 1: " + entries[i]);
+            }
+            total += weight;
+            weights[i] = total;
+        }
+    }
+
+    static Workload load(Path file) throws IOException {
+        Properties props = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            props.load(reader);
+        }
+        return new Workload(props);
+    }
+
+    /**
+     * The index into sizes for a random value between 0 (inclusive) and 1 (exclusive), following the weights.
+     */
+    int sizeIndex(double random) {
+        int w = (int) (random * weights[weights.length - 1]);
+        for (int i = 0; i < weights.length; i++) {
+            if (w < weights[i]) {
+                return i;
+            }
+        }
+        return weights.length - 1;
+    }
+
+    private static int positive(Properties props, String name, String defaultValue) {
+        String v = props.getProperty(name, defaultValue);
+        if (v == null) {
+            throw new IllegalArgumentException(name + " is required");
+        }
+
+        int i = Integer.parseInt(v.trim());
+        if (i < 1) {
+            throw new IllegalArgumentException(name + " must be positive: " + i);
+        }
+        return i;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buff = new StringBuilder();
+        buff.append("rate=").append(rate).append(" threads=").append(threads)
+                .append(" warmup=").append(warmupSeconds).append("s duration=").append(durationSeconds).append('s')
+                .append(" mode=").append(mode).append(" keySize=").append(keySize).append(" provider=").append(provider)
+                .append(" keys=").append(keys).append(" encryptRatio=").append(encryptRatio).append(" sizes=");
+
+        for (int i = 0; i < sizes.length; i++) {
+            buff.append(i == 0 ? "" : ",").append(sizes[i]).append(':').append(weights[i] - (i == 0 ? 0 : weights[i - 1]));
+        }
+        return buff.toString();
+    }
+}